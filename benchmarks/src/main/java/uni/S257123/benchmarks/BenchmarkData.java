@@ -0,0 +1,122 @@
+package uni.S257123.benchmarks;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import uni.S257123.generator.GeneratorSettings;
+import uni.S257123.generator.InventoryDataGenerator;
+import uni.S257123.generator.MongoDataSink;
+import uni.S257123.storage.database.DatabaseStorage;
+import uni.S257123.storage.text.TextStorage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Creates the datasets the benchmarks run against, and the storage backends to run them on.
+ * <p>
+ * Datasets come from the {@link InventoryDataGenerator}, with a fixed seed so every run measures the same data.
+ * Text datasets are written once per size into the system temp folder and reused by later runs, then copied into a
+ * fresh working folder for each trial, as the add, update and delete benchmarks change the files.
+ * The database backend needs a MongoDB deployment to load into, given by the {@code ims.mongo.uri} system property
+ * (e.g. {@code -jvmArgsAppend -Dims.mongo.uri=mongodb://localhost:27017}).
+ * </p>
+ */
+final class BenchmarkData {
+    static final Path CACHE_DIR = Path.of(System.getProperty("java.io.tmpdir"), "ims-benchmarks");
+    /**
+     * Two words of the generator's vocabulary that appear next to each other in a small share of descriptions, for
+     * the substring search benchmark.
+     */
+    static final String SEARCH_TERM = "Steel Bolt";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * The settings the datasets are generated with. Every item has an "added" transaction and, on average, one
+     * update, and nothing is deleted so the number of items always matches the requested size.
+     */
+    static GeneratorSettings settings(int rows) {
+        GeneratorSettings defaults = GeneratorSettings.defaults(42, rows, rows * 2L);
+        return new GeneratorSettings(defaults.seed(), rows, rows * 2L, defaults.vocabulary(),
+                defaults.wordsPerDescription(), defaults.priceDistribution(), defaults.minPriceCents(),
+                defaults.maxPriceCents(), defaults.maxQuantity(), defaults.startDate(), defaults.endDate(), 1, 0, 7);
+    }
+
+    /**
+     * Copies the text dataset of the given size into a new folder, generating it first if it isn't cached yet.
+     * @param rows the number of items in the dataset
+     * @return the folder holding items.txt and transactions.txt
+     */
+    static Path copyTextDataset(int rows) throws IOException {
+        Path pristine = CACHE_DIR.resolve("generated-" + rows);
+        if (!Files.exists(pristine.resolve("complete"))) {
+            Files.createDirectories(pristine);
+            new InventoryDataGenerator(settings(rows))
+                    .writeTextFiles(pristine.resolve("items.txt"), pristine.resolve("transactions.txt"));
+            Files.createFile(pristine.resolve("complete"));
+        }
+        Path workingCopy = Files.createTempDirectory("ims-benchmark-");
+        for (String file : List.of("items.txt", "transactions.txt")) {
+            Files.copy(pristine.resolve(file), workingCopy.resolve(file), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return workingCopy;
+    }
+
+    static TextStorage openText(Path directory) {
+        return new TextStorage(directory.resolve("items.txt").toString(),
+                directory.resolve("transactions.txt").toString());
+    }
+
+    /**
+     * Loads a dataset of the given size into a new database on the deployment given by {@code ims.mongo.uri}.
+     * @return the name of the database the dataset was loaded into
+     */
+    static String loadDatabaseDataset(int rows) {
+        String databaseName = "ims_benchmark_" + rows + "_" + System.nanoTime();
+        try (MongoDataSink sink = new MongoDataSink(mongoUri(), databaseName, 7)) {
+            new InventoryDataGenerator(settings(rows)).generate(sink);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return databaseName;
+    }
+
+    static DatabaseStorage openDatabase(String databaseName) {
+        return new DatabaseStorage(mongoUri(), databaseName);
+    }
+
+    static void dropDatabase(String databaseName) {
+        try (MongoClient client = MongoClients.create(mongoUri())) {
+            client.getDatabase(databaseName).drop();
+        }
+    }
+
+    private static String mongoUri() {
+        String uri = System.getProperty("ims.mongo.uri");
+        if (uri == null) {
+            throw new IllegalStateException("Set -Dims.mongo.uri to benchmark the database backend");
+        }
+        return uri;
+    }
+
+    static void deleteDirectory(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package uni.S257123.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import uni.S257123.models.CSV;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing rows into {@link CSV} objects and writing them back out, which every storage operation relies on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvBenchmark {
+    private final List<String> itemHeaders = List.of("id", "description", "unitPrice", "qtyInStock", "totalPrice");
+    private final List<String> transactionHeaders = List.of("id", "description", "unitPrice", "stockRemaining",
+            "totalPrice", "transactionType", "date");
+    private final String itemRow = "0012345,gadget 12345,345.99,345,119366.55";
+    private final String transactionRow = "0012345,gadget 12345,345.99,345,119366.55,added,14/06/2023";
+    private CSV item;
+
+    @Setup
+    public void setUp() {
+        item = new CSV(Arrays.asList(itemRow.split(",")), itemHeaders);
+    }
+
+    /**
+     * Splits and parses an items row, the same way {@code TextStorage.readContents} does for every row it reads.
+     */
+    @Benchmark
+    public CSV parseItem() {
+        return new CSV(Arrays.asList(itemRow.split(",")), itemHeaders);
+    }
+
+    @Benchmark
+    public CSV parseTransaction() {
+        return new CSV(Arrays.asList(transactionRow.split(",")), transactionHeaders);
+    }
+
+    @Benchmark
+    public String toCSVFileOutput() {
+        return item.toCSVFileOutput();
+    }
+
+    @Benchmark
+    public String toDisplayString() {
+        return item.toString();
+    }
+}
@@ -0,0 +1,150 @@
+package uni.S257123.benchmarks;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.text.TextStorage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each {@link Storage} operation on each backend, across dataset sizes from 1 thousand to 10 million items.
+ * <p>
+ * Every benchmark reports both throughput and sampled latency (with percentiles). Run through the exec plugin, the GC
+ * profiler is also attached so allocation rates are reported. The database backend is only run when asked for with
+ * {@code -p backend=database}, as it needs a MongoDB deployment (see {@link BenchmarkData}).
+ * </p>
+ * <p>
+ * The largest text datasets are held entirely in memory by {@code TextStorage}, so the forked JVMs need a large heap:
+ * about 16 GB for 10 million rows, given with {@code -jvmArgsAppend -Xmx16g} (through {@code -Djmh.args} when run with
+ * the exec plugin). Without it they get the JVM's default heap of a quarter of the machine's memory. Use
+ * {@code -p rows=...} to pick smaller sizes on machines without the memory for them.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class StorageBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"text"})
+    public String backend;
+
+    Storage storage;
+    private Path textDirectory;
+    private String databaseName;
+    private List<String> ids;
+    private int nextID = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (backend.equals("text")) {
+            textDirectory = BenchmarkData.copyTextDataset(rows);
+            storage = BenchmarkData.openText(textDirectory);
+        } else {
+            databaseName = BenchmarkData.loadDatabaseDataset(rows);
+            storage = BenchmarkData.openDatabase(databaseName);
+        }
+        ids = storage.getIDs();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (textDirectory != null) {
+            BenchmarkData.deleteDirectory(textDirectory);
+        }
+        if (databaseName != null) {
+            BenchmarkData.dropDatabase(databaseName);
+        }
+    }
+
+    /**
+     * Cycles through the ids that existed when the trial started, so lookups and updates spread across the dataset.
+     */
+    String nextID() {
+        nextID = (nextID + 7919) % ids.size();
+        return ids.get(nextID);
+    }
+
+    /**
+     * Loads the whole items datasource. For the text backend that means parsing the files into a new instance. The
+     * constructor only starts reading each file in the background, so a row of each is read to wait for both reads to
+     * finish.
+     */
+    @Benchmark
+    public Object load() {
+        if (backend.equals("text")) {
+            TextStorage loaded = BenchmarkData.openText(textDirectory);
+            loaded.readPage("items", 0, 1);
+            loaded.readPage("transactions", 0, 1);
+            return loaded;
+        }
+        return storage.readContents("items");
+    }
+
+    @Benchmark
+    public List<CSV> pointLookup() {
+        return storage.searchRecord("items", Pair.of("id", nextID()));
+    }
+
+    @Benchmark
+    public List<CSV> substringSearch() {
+        return storage.searchRecord("items", Pair.of("description", BenchmarkData.SEARCH_TERM));
+    }
+
+    @Benchmark
+    public List<CSV> numericSearch() {
+        return storage.searchRecord("items", Pair.of("qtyInStock", "42"));
+    }
+
+    @Benchmark
+    public boolean add() {
+        return storage.addRecord(List.of("benchmark item", "9.99", "5", "49.95"), "items");
+    }
+
+    @Benchmark
+    public void update() {
+        storage.updateRecord(List.of(nextID(), "qtyInStock", String.valueOf(nextID)));
+    }
+
+    /**
+     * Holds an item for each delete to remove, stepping back from the last id. A new item is added before every
+     * invocation (which is not measured), so the dataset doesn't shrink. The ids are only fetched again once every one
+     * fetched has been deleted, as fetching them copies every id.
+     */
+    @State(Scope.Thread)
+    public static class DeleteTarget {
+        private List<String> ids;
+        private int next;
+        String id;
+
+        @Setup(Level.Trial)
+        public void fetchIDs(StorageBenchmark benchmark) {
+            ids = benchmark.storage.getIDs();
+            next = ids.size();
+        }
+
+        @Setup(Level.Invocation)
+        public void addItemToDelete(StorageBenchmark benchmark) {
+            benchmark.storage.addRecord(List.of("item to delete", "1.0", "1", "1.0"), "items");
+            if (next == 0) {
+                // Every id fetched has been deleted, leaving the items added since
+                fetchIDs(benchmark);
+            }
+            id = ids.get(--next);
+        }
+    }
+
+    @Benchmark
+    public void delete(DeleteTarget target) {
+        storage.deleteRecord(target.id);
+    }
+}
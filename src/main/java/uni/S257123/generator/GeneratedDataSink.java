@@ -0,0 +1,16 @@
+package uni.S257123.generator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.LocalDate;
+
+/**
+ * Receives the rows produced by {@link InventoryDataGenerator}. Every transaction is passed in date order first,
+ * followed by every item that still exists at the end of the history, in id order.
+ */
+public interface GeneratedDataSink extends Closeable {
+    void transaction(long id, String description, long unitPriceCents, int stockRemaining, String transactionType,
+                     LocalDate date) throws IOException;
+
+    void item(long id, String description, long unitPriceCents, int qtyInStock) throws IOException;
+}
@@ -0,0 +1,82 @@
+package uni.S257123.generator;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Everything that controls what {@link InventoryDataGenerator} produces. The same settings (including the seed) always
+ * produce exactly the same data.
+ *
+ * @param seed the seed of the random number generator
+ * @param itemCount the number of items added over the course of the history. Items that get deleted are not in the
+ *                  final items file, so it may hold fewer rows than this
+ * @param transactionCount the total number of transactions, including the "added" transaction of every item. Must be
+ *                         at least itemCount
+ * @param vocabulary the words descriptions are made from. Words must not contain commas
+ * @param wordsPerDescription how many words each description has
+ * @param priceDistribution the shape of the distribution unit prices are drawn from
+ * @param minPriceCents the lowest unit price, in pennies
+ * @param maxPriceCents the highest unit price, in pennies
+ * @param maxQuantity the highest quantity in stock
+ * @param startDate the date of the first transaction
+ * @param endDate the date of the last transaction. Transactions are spread evenly between the two dates, in order
+ * @param updateWeight how likely a transaction that isn't an item being added is to be an update
+ * @param deleteWeight how likely a transaction that isn't an item being added is to be a deletion
+ * @param idWidth the number of digits ids are padded to with preceding zeros, or 0 for plain numbers
+ */
+public record GeneratorSettings(
+        long seed,
+        int itemCount,
+        long transactionCount,
+        List<String> vocabulary,
+        int wordsPerDescription,
+        PriceDistribution priceDistribution,
+        long minPriceCents,
+        long maxPriceCents,
+        int maxQuantity,
+        LocalDate startDate,
+        LocalDate endDate,
+        double updateWeight,
+        double deleteWeight,
+        int idWidth) {
+
+    /**
+     * A general purpose set of words that make plausible product descriptions
+     */
+    public static final List<String> DEFAULT_VOCABULARY = List.of(
+            "Red", "Blue", "Green", "Black", "White", "Steel", "Brass", "Copper", "Plastic", "Rubber", "Wooden",
+            "Large", "Small", "Heavy", "Light", "Compact", "Industrial", "Premium", "Basic", "Wireless", "Digital",
+            "Bolt", "Screw", "Nut", "Washer", "Bracket", "Hinge", "Clamp", "Valve", "Pump", "Motor", "Sensor",
+            "Switch", "Cable", "Adapter", "Panel", "Filter", "Bearing", "Gear", "Spring", "Pipe", "Fitting", "Hose",
+            "Drill", "Saw", "Hammer", "Wrench", "Pliers", "Tape", "Glue", "Paint", "Brush", "Lamp", "Battery",
+            "Charger", "Speaker", "Monitor", "Keyboard", "Mouse", "Router", "Phone", "Tablet", "Camera", "Printer");
+
+    public GeneratorSettings {
+        if (itemCount < 0 || transactionCount < itemCount || (itemCount == 0 && transactionCount > 0)) {
+            throw new IllegalArgumentException("There must be at least one transaction per item, and an item for "
+                    + "any other transactions to change");
+        }
+        if (vocabulary.isEmpty() || vocabulary.stream().anyMatch(word -> word.contains(","))) {
+            throw new IllegalArgumentException("The vocabulary must have at least one word, and no commas");
+        }
+        if (minPriceCents < 0 || maxPriceCents < minPriceCents) {
+            throw new IllegalArgumentException("The price range is invalid");
+        }
+        if (endDate.isBefore(startDate)) {
+            throw new IllegalArgumentException("The end date is before the start date");
+        }
+        if (updateWeight < 0 || deleteWeight < 0) {
+            throw new IllegalArgumentException("The update and delete weights cannot be negative");
+        }
+    }
+
+    /**
+     * Settings for a catalogue with the given number of items and transactions, using a log-normal price
+     * distribution between £0.50 and £2,000, a year of history, and nine updates for every deletion.
+     */
+    public static GeneratorSettings defaults(long seed, int itemCount, long transactionCount) {
+        return new GeneratorSettings(seed, itemCount, transactionCount, DEFAULT_VOCABULARY, 3,
+                PriceDistribution.LOG_NORMAL, 50, 200_000, 500,
+                LocalDate.of(2023, 1, 1), LocalDate.of(2023, 12, 31), 0.9, 0.1, 5);
+    }
+}
@@ -0,0 +1,222 @@
+package uni.S257123.generator;
+
+import uni.S257123.storage.text.TextStorage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Generates realistic, reproducible item catalogues and transaction histories for load testing.
+ * <p>
+ * The generator plays out a history of items being added, updated and deleted, passing each transaction to a
+ * {@link GeneratedDataSink} in date order, followed by the items left at the end of the history. The items are
+ * therefore always exactly what replaying the transactions would produce. Every random choice comes from one
+ * {@link SplittableRandom} seeded from the {@link GeneratorSettings}, so the same settings always produce the same
+ * data.
+ * </p>
+ * <p>
+ * Items are only held as a few primitive arrays while generating, so tens of millions of items fit comfortably in
+ * memory, and descriptions are derived from a hash of the item's id rather than stored.
+ * </p>
+ */
+public class InventoryDataGenerator {
+    private final GeneratorSettings settings;
+    private final String[] vocabulary;
+
+    public InventoryDataGenerator(GeneratorSettings settings) {
+        this.settings = settings;
+        this.vocabulary = settings.vocabulary().toArray(String[]::new);
+    }
+
+    /**
+     * Plays out the whole history, passing every transaction and then every remaining item to the sink. The sink is
+     * not closed.
+     * @param sink where the generated rows are sent
+     * @return how many of each kind of row were generated
+     */
+    public GeneratedCounts generate(GeneratedDataSink sink) throws IOException {
+        SplittableRandom random = new SplittableRandom(settings.seed());
+        int itemCount = settings.itemCount();
+        long[] unitPriceCents = new long[itemCount];
+        int[] quantities = new int[itemCount];
+        int[] descriptionVersions = new int[itemCount];
+        // The indexes of the items that exist, and where each item is in that list, so a random existing item can be
+        // picked, and removed when deleted, in constant time
+        int[] existing = new int[itemCount];
+        int[] positions = new int[itemCount];
+        int existingCount = 0;
+        int added = 0;
+        long updated = 0;
+        long deleted = 0;
+
+        LocalDate[] dates = datesOfHistory();
+        long transactionCount = settings.transactionCount();
+        double totalWeight = settings.updateWeight() + settings.deleteWeight();
+        double deleteChance = totalWeight == 0 ? 0 : settings.deleteWeight() / totalWeight;
+        for (long transaction = 0; transaction < transactionCount; transaction++) {
+            LocalDate date = dates[(int) (transaction * dates.length / transactionCount)];
+            long remainingTransactions = transactionCount - transaction;
+            int remainingAdds = itemCount - added;
+            // Spreads the adds across the history, while making sure every item has been added by the end
+            if (remainingAdds > 0
+                    && (existingCount == 0 || random.nextLong(remainingTransactions) < remainingAdds)) {
+                int item = added++;
+                unitPriceCents[item] = settings.priceDistribution().sampleCents(random, settings.minPriceCents(),
+                        settings.maxPriceCents());
+                quantities[item] = random.nextInt(settings.maxQuantity() + 1);
+                existing[existingCount] = item;
+                positions[item] = existingCount++;
+                sink.transaction(item + 1L, description(item, 0), unitPriceCents[item], quantities[item], "added",
+                        date);
+            } else if (random.nextDouble() < deleteChance && (existingCount > 1 || remainingAdds > 0)) {
+                // The last item is never deleted once every item has been added, so later transactions always have
+                // an item to update
+                int position = random.nextInt(existingCount);
+                int item = existing[position];
+                int last = existing[--existingCount];
+                existing[position] = last;
+                positions[last] = position;
+                positions[item] = -1;
+                deleted++;
+                sink.transaction(item + 1L, description(item, descriptionVersions[item]), unitPriceCents[item], 0,
+                        "deleted", date);
+            } else {
+                int item = existing[random.nextInt(existingCount)];
+                double change = random.nextDouble();
+                if (change < 0.6) {
+                    quantities[item] = random.nextInt(settings.maxQuantity() + 1);
+                } else if (change < 0.9) {
+                    unitPriceCents[item] = settings.priceDistribution().sampleCents(random,
+                            settings.minPriceCents(), settings.maxPriceCents());
+                } else {
+                    descriptionVersions[item]++;
+                }
+                updated++;
+                sink.transaction(item + 1L, description(item, descriptionVersions[item]), unitPriceCents[item],
+                        quantities[item], "updated", date);
+            }
+        }
+
+        for (int item = 0; item < itemCount; item++) {
+            if (positions[item] >= 0) {
+                sink.item(item + 1L, description(item, descriptionVersions[item]), unitPriceCents[item],
+                        quantities[item]);
+            }
+        }
+        return new GeneratedCounts(existingCount, added, updated, deleted);
+    }
+
+    /**
+     * Generates the data straight into an items file and a transactions file, in the formats {@link TextStorage}
+     * reads. Any existing files are replaced.
+     * @return how many of each kind of row were generated
+     */
+    public GeneratedCounts writeTextFiles(Path itemsFile, Path transactionsFile) {
+        try (TextFileSink sink = new TextFileSink(itemsFile, transactionsFile, settings.idWidth())) {
+            return generate(sink);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Works out the description of an item. Each item's words are picked by a hash of the seed, its index and how
+     * many times its description has been changed, so no descriptions need to be stored.
+     */
+    private String description(int item, int version) {
+        long hash = mix(settings.seed() ^ mix(mix(item) + version));
+        StringBuilder description = new StringBuilder(32);
+        for (int word = 0; word < settings.wordsPerDescription(); word++) {
+            if (word > 0) {
+                description.append(' ');
+            }
+            description.append(vocabulary[(int) Long.remainderUnsigned(hash, vocabulary.length)]);
+            hash = mix(hash);
+        }
+        return description.toString();
+    }
+
+    /**
+     * The finalising step of SplitMix64, which spreads every bit of the input across the output.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Every date between the start and end dates, so that transactions can share the same LocalDate instances.
+     */
+    private LocalDate[] datesOfHistory() {
+        int days = (int) ChronoUnit.DAYS.between(settings.startDate(), settings.endDate()) + 1;
+        LocalDate[] dates = new LocalDate[days];
+        for (int day = 0; day < days; day++) {
+            dates[day] = settings.startDate().plusDays(day);
+        }
+        return dates;
+    }
+
+    /**
+     * Generates a dataset from the command line, for setting up soak tests by hand.
+     * <p>
+     * Takes {@code --name=value} arguments: {@code --seed}, {@code --items}, {@code --transactions} and
+     * {@code --distribution} (UNIFORM, LOG_NORMAL or PARETO), plus either {@code --out=folder} to write items.txt and
+     * transactions.txt into a folder, or {@code --mongo=connectionString} and {@code --database=name} to load into
+     * MongoDB.
+     * </p>
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(option[0], option.length > 1 ? option[1] : "");
+        }
+        int items = Integer.parseInt(options.getOrDefault("items", "1000000"));
+        long transactions = Long.parseLong(options.getOrDefault("transactions", String.valueOf(items * 3L)));
+        GeneratorSettings defaults = GeneratorSettings.defaults(Long.parseLong(options.getOrDefault("seed", "1")),
+                items, transactions);
+        GeneratorSettings settings = new GeneratorSettings(defaults.seed(), items, transactions,
+                defaults.vocabulary(), defaults.wordsPerDescription(),
+                PriceDistribution.valueOf(options.getOrDefault("distribution", defaults.priceDistribution().name())),
+                defaults.minPriceCents(), defaults.maxPriceCents(), defaults.maxQuantity(), defaults.startDate(),
+                defaults.endDate(), defaults.updateWeight(), defaults.deleteWeight(), defaults.idWidth());
+        InventoryDataGenerator generator = new InventoryDataGenerator(settings);
+
+        long start = System.nanoTime();
+        GeneratedCounts counts;
+        if (options.containsKey("mongo")) {
+            try (MongoDataSink sink = new MongoDataSink(options.get("mongo"),
+                    options.getOrDefault("database", "I2P"), settings.idWidth())) {
+                counts = generator.generate(sink);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            Path folder = Path.of(options.getOrDefault("out", "."));
+            counts = generator.writeTextFiles(folder.resolve("items.txt"), folder.resolve("transactions.txt"));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Generated %d items and %d transactions in %.2fs (%.0f rows/s)%n", counts.items(),
+                counts.transactions(), seconds, (counts.items() + counts.transactions()) / seconds);
+    }
+
+    /**
+     * How many rows a run of the generator produced.
+     * @param items the number of items left at the end of the history
+     * @param added the number of "added" transactions
+     * @param updated the number of "updated" transactions
+     * @param deleted the number of "deleted" transactions
+     */
+    public record GeneratedCounts(int items, int added, long updated, long deleted) {
+        public long transactions() {
+            return added + updated + deleted;
+        }
+    }
+}
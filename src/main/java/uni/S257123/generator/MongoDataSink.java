@@ -0,0 +1,93 @@
+package uni.S257123.generator;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import org.bson.Document;
+import uni.S257123.storage.database.DatabaseStorage;
+import uni.S257123.storage.ids.IdFormat;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk-loads generated rows into the items and transactions collections of a MongoDB database, as documents shaped
+ * the same way {@link DatabaseStorage} writes them.
+ * <p>
+ * Documents are sent in unordered batches with {@code insertMany}, which lets the server apply each batch in parallel.
+ * {@link DatabaseStorage} picks up the highest generated id the next time it connects, so new items carry on from
+ * there.
+ * </p>
+ */
+public class MongoDataSink implements GeneratedDataSink {
+    private static final int BATCH_SIZE = 10_000;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private final MongoClient mongoClient;
+    private final MongoCollection<Document> items;
+    private final MongoCollection<Document> transactions;
+    private final IdFormat idFormat;
+    private final List<Document> itemBatch = new ArrayList<>(BATCH_SIZE);
+    private final List<Document> transactionBatch = new ArrayList<>(BATCH_SIZE);
+    private LocalDate lastDate;
+    private String lastDateText;
+
+    /**
+     * @param idWidth the number of digits ids are padded to with preceding zeros, or 0 for plain numbers
+     */
+    public MongoDataSink(String connectionString, String databaseName, int idWidth) {
+        mongoClient = MongoClients.create(connectionString);
+        items = mongoClient.getDatabase(databaseName).getCollection("items");
+        transactions = mongoClient.getDatabase(databaseName).getCollection("transactions");
+        idFormat = new IdFormat(idWidth);
+    }
+
+    @Override
+    public void transaction(long id, String description, long unitPriceCents, int stockRemaining,
+                            String transactionType, LocalDate date) {
+        if (!date.equals(lastDate)) {
+            lastDate = date;
+            lastDateText = DATE_FORMAT.format(date);
+        }
+        transactionBatch.add(new Document("id", idFormat.format(id))
+                .append("description", description)
+                .append("unitPrice", unitPriceCents / 100.0)
+                .append("qtyInStock", stockRemaining)
+                .append("totalPrice", unitPriceCents * stockRemaining / 100.0)
+                .append("transactionType", transactionType)
+                .append("date", lastDateText));
+        if (transactionBatch.size() == BATCH_SIZE) {
+            flush(transactions, transactionBatch);
+        }
+    }
+
+    @Override
+    public void item(long id, String description, long unitPriceCents, int qtyInStock) {
+        itemBatch.add(new Document("_id", idFormat.format(id))
+                .append("description", description)
+                .append("unitPrice", unitPriceCents / 100.0)
+                .append("qtyInStock", qtyInStock)
+                .append("totalPrice", unitPriceCents * qtyInStock / 100.0));
+        if (itemBatch.size() == BATCH_SIZE) {
+            flush(items, itemBatch);
+        }
+    }
+
+    private static void flush(MongoCollection<Document> collection, List<Document> batch) {
+        if (!batch.isEmpty()) {
+            collection.insertMany(batch, new InsertManyOptions().ordered(false));
+            batch.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        try (mongoClient) {
+            flush(transactions, transactionBatch);
+            flush(items, itemBatch);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package uni.S257123.generator;
+
+import java.util.SplittableRandom;
+
+/**
+ * The shapes of distribution unit prices can be drawn from when generating items.
+ */
+public enum PriceDistribution {
+    /**
+     * Every price between the minimum and maximum is equally likely
+     */
+    UNIFORM {
+        @Override
+        long sampleCents(SplittableRandom random, long minCents, long maxCents) {
+            return minCents + random.nextLong(maxCents - minCents + 1);
+        }
+    },
+    /**
+     * Prices cluster around the geometric middle of the range, with a long tail of more expensive items, which is
+     * how most retail catalogues look
+     */
+    LOG_NORMAL {
+        @Override
+        long sampleCents(SplittableRandom random, long minCents, long maxCents) {
+            double logMin = Math.log(Math.max(minCents, 1));
+            double logMax = Math.log(Math.max(maxCents, 1));
+            // Three standard deviations either side of the middle covers almost all of the range
+            double logPrice = (logMin + logMax) / 2 + random.nextGaussian() * (logMax - logMin) / 6;
+            return clamp(Math.round(Math.exp(logPrice)), minCents, maxCents);
+        }
+    },
+    /**
+     * Most items are cheap, with a few very expensive ones (roughly 80% of items in the cheapest 20% of the range)
+     */
+    PARETO {
+        @Override
+        long sampleCents(SplittableRandom random, long minCents, long maxCents) {
+            double alpha = 1.16;
+            double price = Math.max(minCents, 1) / Math.pow(1 - random.nextDouble(), 1 / alpha);
+            return clamp(Math.round(price), minCents, maxCents);
+        }
+    };
+
+    /**
+     * @return a price in pennies between minCents and maxCents inclusive
+     */
+    abstract long sampleCents(SplittableRandom random, long minCents, long maxCents);
+
+    private static long clamp(long value, long min, long max) {
+        return Math.min(Math.max(value, min), max);
+    }
+}
@@ -0,0 +1,195 @@
+package uni.S257123.generator;
+
+import uni.S257123.storage.text.TextStorage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+/**
+ * Writes generated rows to an items file and a transactions file, in exactly the formats {@link TextStorage} reads and
+ * writes.
+ * <p>
+ * Rows are encoded straight into a byte buffer by hand rather than through {@code String.format} or a Writer, as
+ * formatting is otherwise most of the cost of generating a dataset. Prices are formatted the same way
+ * {@link Double#toString(double)} would format them, so the files are identical to ones TextStorage wrote itself.
+ * </p>
+ */
+public class TextFileSink implements GeneratedDataSink {
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final RowWriter items;
+    private final RowWriter transactions;
+    private final int idWidth;
+    // Consecutive transactions usually share a date, so the last date is only encoded once
+    private LocalDate lastDate;
+    private final byte[] lastDateBytes = new byte[10];
+
+    /**
+     * @param idWidth the number of digits ids are padded to with preceding zeros, or 0 for plain numbers
+     */
+    public TextFileSink(Path itemsFile, Path transactionsFile, int idWidth) throws IOException {
+        this.idWidth = idWidth;
+        items = new RowWriter(Files.newOutputStream(itemsFile));
+        transactions = new RowWriter(Files.newOutputStream(transactionsFile));
+        items.ascii("id,description,unitPrice,qtyInStock,totalPrice");
+        transactions.ascii("id,description,unitPrice,stockRemaining,totalPrice,transactionType,date");
+    }
+
+    @Override
+    public void transaction(long id, String description, long unitPriceCents, int stockRemaining,
+                            String transactionType, LocalDate date) throws IOException {
+        writeCommonColumns(transactions, id, description, unitPriceCents, stockRemaining);
+        transactions.ascii(",");
+        transactions.ascii(transactionType);
+        transactions.ascii(",");
+        if (!date.equals(lastDate)) {
+            encodeDate(date);
+            lastDate = date;
+        }
+        transactions.bytes(lastDateBytes);
+    }
+
+    @Override
+    public void item(long id, String description, long unitPriceCents, int qtyInStock) throws IOException {
+        writeCommonColumns(items, id, description, unitPriceCents, qtyInStock);
+    }
+
+    /**
+     * Writes the id, description, unit price, quantity and total price columns, which both files start with.
+     */
+    private void writeCommonColumns(RowWriter out, long id, String description, long unitPriceCents, int quantity)
+            throws IOException {
+        out.ascii("\n");
+        out.number(id, idWidth);
+        out.ascii(",");
+        out.ascii(description);
+        out.ascii(",");
+        out.price(unitPriceCents);
+        out.ascii(",");
+        out.number(quantity, 0);
+        out.ascii(",");
+        out.price(unitPriceCents * quantity);
+    }
+
+    /**
+     * Encodes the date as dd/MM/yyyy, the format TextStorage stores dates in.
+     */
+    private void encodeDate(LocalDate date) {
+        int day = date.getDayOfMonth();
+        int month = date.getMonthValue();
+        int year = date.getYear();
+        lastDateBytes[0] = (byte) ('0' + day / 10);
+        lastDateBytes[1] = (byte) ('0' + day % 10);
+        lastDateBytes[2] = '/';
+        lastDateBytes[3] = (byte) ('0' + month / 10);
+        lastDateBytes[4] = (byte) ('0' + month % 10);
+        lastDateBytes[5] = '/';
+        for (int digit = 9; digit >= 6; digit--) {
+            lastDateBytes[digit] = (byte) ('0' + year % 10);
+            year /= 10;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (items; transactions) {
+            items.flush();
+            transactions.flush();
+        }
+    }
+
+    /**
+     * A minimal buffered output stream that can encode the handful of value types the files contain.
+     */
+    private static final class RowWriter implements AutoCloseable {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = 0;
+        private final byte[] digits = new byte[20];
+
+        RowWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * Writes text, copying ASCII characters (all of the default vocabulary is ASCII) straight into the buffer and
+         * falling back on UTF-8 encoding for the rest of the text from the first character that isn't.
+         */
+        void ascii(String text) throws IOException {
+            int length = text.length();
+            ensureSpace(length);
+            for (int i = 0; i < length; i++) {
+                char character = text.charAt(i);
+                if (character >= 0x80) {
+                    bytes(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                buffer[position++] = (byte) character;
+            }
+        }
+
+        void bytes(byte[] bytes) throws IOException {
+            ensureSpace(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        /**
+         * Writes a non-negative whole number, padded with preceding zeros to at least width digits.
+         */
+        void number(long value, int width) throws IOException {
+            int count = 0;
+            do {
+                digits[count++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            ensureSpace(Math.max(count, width));
+            for (int padding = count; padding < width; padding++) {
+                buffer[position++] = '0';
+            }
+            while (count > 0) {
+                buffer[position++] = digits[--count];
+            }
+        }
+
+        /**
+         * Writes a price given in pennies the way {@link Double#toString(double)} writes it, i.e. with as few decimal
+         * places as possible but at least one.
+         */
+        void price(long cents) throws IOException {
+            if (cents >= 1_000_000_000L) {
+                // Double.toString switches to scientific notation from ten million
+                ascii(Double.toString(cents / 100.0));
+                return;
+            }
+            number(cents / 100, 0);
+            ensureSpace(3);
+            int pennies = (int) (cents % 100);
+            buffer[position++] = '.';
+            buffer[position++] = (byte) ('0' + pennies / 10);
+            if (pennies % 10 != 0) {
+                buffer[position++] = (byte) ('0' + pennies % 10);
+            }
+        }
+
+        private void ensureSpace(int length) throws IOException {
+            if (position + length > buffer.length) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -3,12 +3,25 @@ package uni.S257123.main;
 import org.apache.commons.lang3.tuple.Pair;
 import uni.S257123.storage.database.DatabaseStorage;
 import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.metrics.InstrumentedStorage;
 import uni.S257123.storage.text.TextStorage;
+import uni.S257123.storage.transfer.CsvImporter;
+import uni.S257123.storage.transfer.ExportFilter;
+import uni.S257123.storage.transfer.ExportFormat;
+import uni.S257123.storage.transfer.ImportProgress;
+import uni.S257123.storage.transfer.RecordExporter;
+import uni.S257123.ui.batch.BatchCommandRunner;
 import uni.S257123.ui.console.ConsoleInterface;
 import uni.S257123.ui.graphical.GraphicalInterface;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Represents an Inventory Management System that allows users to manage items and view transactions.
@@ -20,6 +33,8 @@ import java.util.Arrays;
  *   <li>Remove items from the inventory.</li>
  *   <li>View past transactions either for the current day or all-time.</li>
  *   <li>View all items currently in the inventory.</li>
+ *   <li>Bulk import items from a supplier's CSV file.</li>
+ *   <li>Export items or transactions to CSV or JSON Lines files.</li>
  * </ul>
  *
  * <p>
@@ -29,7 +44,7 @@ import java.util.Arrays;
  *
  * <p>
  * The system stores its data in two locations, one for items and another for transactions. The contents of these
- * locations are read into memory as lists of CSV objects at startup if using a text file solution.
+ * locations are read into memory as lists of CSV objects in the background at startup if using a text file solution.
  * </p>
  *
  * <p>
@@ -47,23 +62,66 @@ import java.util.Arrays;
 public class InventoryManagementSystem
 {
 	static boolean sessionActive = true;
-	static int optionsQuantity = 7;
-	static GraphicalInterface gui = new GraphicalInterface();
+	static int optionsQuantity = 9;
 	static ConsoleInterface cli = new ConsoleInterface();
 	static Storage storage;
 
 	/**
 	 * Entry point for the Inventory Management System. The user gets the opportunity to choose what setting they want
-	 * to use
+	 * to use, unless any arguments are given, in which case the system runs non-interactively (see
+	 * {@link #runBatch(String[])}).
 	 *
-	 * @param args Command-line arguments (currently unused in this context).
+	 * @param args Command-line arguments, only used for running non-interactively.
 	 */
 	public static void main(String[] args)	{
+		if (args.length > 0) {
+			runBatch(args);
+			return;
+		}
 		chooseSettings();
 
 		System.out.println("\n\nThanks for using this program...!");
 	}
 
+	/**
+	 * Runs commands against the storage without any prompts, for scripting. The storage is chosen with the same
+	 * {@code --storage}, {@code --items}, {@code --transactions}, {@code --mongo}, {@code --database},
+	 * {@code --shards} and {@code --replica} options as {@link InventoryServer}. Any other arguments are run as a single command (e.g.
+	 * {@code search items description bolt}), otherwise commands are read one per line from {@code --file}, or from
+	 * standard input. The results are written as JSON lines to {@code --out}, or to standard output.
+	 * {@code --batch-size} sets how many consecutive adds are saved together.
+	 * <p>
+	 * The process exits with status 1 if any command failed.
+	 * </p>
+	 * @param args the command line arguments
+	 * @see BatchCommandRunner
+	 */
+	private static void runBatch(String[] args) {
+		Map<String, String> options = StorageOptions.parse(args);
+		List<String> command = StorageOptions.positional(args);
+		long failures;
+		try (Writer out = new BufferedWriter(options.containsKey("out")
+				? new OutputStreamWriter(new FileOutputStream(options.get("out")), StandardCharsets.UTF_8)
+				: new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16)) {
+			BatchCommandRunner runner = new BatchCommandRunner(StorageOptions.open(options), out,
+					Integer.parseInt(options.getOrDefault("batch-size",
+							String.valueOf(BatchCommandRunner.DEFAULT_BATCH_SIZE))));
+			if (!command.isEmpty()) {
+				failures = runner.run(command);
+			} else if (options.containsKey("file")) {
+				try (BufferedReader commands = Files.newBufferedReader(Path.of(options.get("file")))) {
+					failures = runner.run(commands);
+				}
+			} else {
+				failures = runner.run(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		// Exits explicitly, as the database storage's background threads would otherwise keep the JVM running
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
 	/**
 	 * Runs the appropriate menu method based on the users input.
 	 * <p>
@@ -81,10 +139,12 @@ public class InventoryManagementSystem
 		if (choice.equals("text")) {
 			choice = cli.chooseOption(new ArrayList<>(Arrays.asList("gui", "cli")));
 			if (choice.equals("gui")) {
-				gui.setStorage(new TextStorage());
+				GraphicalInterface gui = new GraphicalInterface();
+				gui.setStorage(InstrumentedStorage.wrap(new TextStorage()));
 				gui.displayMenu();
 			} else if (choice.equals("cli")) {
-				storage = new TextStorage();
+				storage = InstrumentedStorage.wrap(new TextStorage());
+				watchItemChanges();
 				cli.displayMenu();
 				while (sessionActive) {
 					menuOptions(cli.menuInputChoice(optionsQuantity));
@@ -93,10 +153,12 @@ public class InventoryManagementSystem
 		} else if (choice.equals("database")) {
 			choice = cli.chooseOption(new ArrayList<>(Arrays.asList("gui", "cli")));
 			if (choice.equals("gui")) {
-				gui.setStorage(new DatabaseStorage());
+				GraphicalInterface gui = new GraphicalInterface();
+				gui.setStorage(InstrumentedStorage.wrap(new DatabaseStorage()));
 				gui.displayMenu();
 			} else if (choice.equals("cli")) {
-				storage = new DatabaseStorage();
+				storage = InstrumentedStorage.wrap(new DatabaseStorage());
+				watchItemChanges();
 				cli.displayMenu();
 				while (sessionActive) {
 					menuOptions(cli.menuInputChoice(optionsQuantity));
@@ -105,6 +167,22 @@ public class InventoryManagementSystem
 		}
 	}
 
+	/**
+	 * Shows the user a notice whenever an item changes, so that changes made by other users of a shared storage
+	 * don't go unnoticed. Transactions are left out, as every item change already creates one.
+	 */
+	private static void watchItemChanges() {
+		try {
+			storage.addListener(change -> {
+				if (change.target().equals("items")) {
+					cli.displayChange(change);
+				}
+			});
+		} catch (UnsupportedOperationException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
 	/**
 	 * Allows the users menu selection to correctly orchestrate the text backend with the storage choice. These options
 	 * are defined here as it separates any responsibility for the backend from the UI. At this stage it seems unlikely
@@ -125,12 +203,33 @@ public class InventoryManagementSystem
 			case 2 -> storage.addRecord(cli.addRecordInput(),"items");
 			case 3 -> storage.updateRecord(cli.updateRecordInput(storage.searchRecord(), storage.getHeaders("items")));
 			case 4 -> storage.deleteRecord(cli.deleteRecordInput(storage.searchRecord()));
-			case 5 -> cli.displayRecords(
-					storage.searchRecord(
-							"transactions",
-							Pair.of("date",cli.viewTransactionsInput())));
-			case 6 -> cli.displayRecords(storage.searchRecord());
-			case 7 -> sessionActive = false;
+			case 5 -> {
+				String date = cli.viewTransactionsInput();
+				// All time needs no search, so the transactions are streamed straight from the storage
+				if (date.isEmpty()) {
+					cli.displayRecords(storage, "transactions");
+				} else {
+					cli.displayRecords(storage.searchRecord("transactions", Pair.of("date", date)));
+				}
+			}
+			case 6 -> cli.displayRecords(storage, "items");
+			case 7 -> {
+				Path source = cli.importFileInput();
+				Path rejectedReport = source.resolveSibling(source.getFileName() + ".rejected.csv");
+				ImportProgress result = new CsvImporter(storage).importItems(source, rejectedReport,
+						cli::displayImportProgress);
+				cli.displayImportResult(result, rejectedReport);
+			}
+			case 8 -> {
+				String selectedSource = cli.chooseOption(storage.getSources());
+				ExportFormat format = cli.exportFormatInput();
+				Path destination = cli.exportFileInput();
+				ExportFilter filter = cli.exportFilterInput(selectedSource.equals("transactions"));
+				long rowsWritten = new RecordExporter(storage).export(selectedSource, destination, format, filter,
+						destination.getFileName().toString().endsWith(".gz"));
+				cli.displayExportResult(rowsWritten, destination);
+			}
+			case 9 -> sessionActive = false;
 			default -> System.out.println("Unexpected error occurred, please enter an integer!");
 		}
 	}
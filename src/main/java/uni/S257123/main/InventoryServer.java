@@ -0,0 +1,43 @@
+package uni.S257123.main;
+
+import uni.S257123.server.StorageHttpServer;
+import uni.S257123.storage.interfaces.Storage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+/**
+ * Runs the Inventory Management System headless, serving its storage over HTTP for other programs (e.g. the tills of
+ * several stores) to use, instead of through the CLI or GUI. See {@link StorageHttpServer} for the API.
+ * <p>
+ * Takes {@code --name=value} arguments, all optional:
+ * </p>
+ * <ul>
+ *     <li>{@code --storage}: "text" (the default), "database", "sharded" or "hybrid"</li>
+ *     <li>{@code --items} and {@code --transactions}: the files used by the text storage</li>
+ *     <li>{@code --mongo} and {@code --database}: the deployment and database used by the database storage</li>
+ *     <li>{@code --shards}: the folders of the sharded storage, separated by commas</li>
+ *     <li>{@code --replica}: the folder the hybrid storage keeps its replica of the database in</li>
+ *     <li>{@code --host} and {@code --port}: where to listen (127.0.0.1:8080 by default)</li>
+ *     <li>{@code --max-concurrent}: how many requests are handled at once (64 by default)</li>
+ *     <li>{@code --max-queued}: how many requests may wait before new ones are refused (1024 by default)</li>
+ * </ul>
+ */
+public class InventoryServer {
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = StorageOptions.parse(args);
+        Storage storage = StorageOptions.open(options);
+
+        StorageHttpServer server = new StorageHttpServer(
+                storage,
+                new InetSocketAddress(options.getOrDefault("host", "127.0.0.1"),
+                        Integer.parseInt(options.getOrDefault("port", "8080"))),
+                Integer.parseInt(options.getOrDefault("max-concurrent", "64")),
+                Integer.parseInt(options.getOrDefault("max-queued", "1024")));
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5)));
+        System.out.println("Serving the inventory on http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort());
+    }
+}
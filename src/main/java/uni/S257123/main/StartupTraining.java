@@ -0,0 +1,49 @@
+package uni.S257123.main;
+
+import org.apache.commons.lang3.tuple.Pair;
+import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.text.TextStorage;
+import uni.S257123.ui.console.ConsoleInterface;
+
+import java.util.List;
+
+/**
+ * A short, non-interactive run through the startup path of the system, used by the "appcds" Maven profile to record
+ * which classes get loaded into a class data sharing archive. Later runs started with that archive map the classes in
+ * already parsed and verified, instead of loading each one from the jar.
+ * <p>
+ * Only reads from the bundled text files, so it is safe to run as part of the build. The GUI and MongoDB classes are
+ * loaded without being initialised, as starting JavaFX needs a display and MongoDB needs a server.
+ * </p>
+ */
+public class StartupTraining {
+    private static final List<String> UNINITIALISED_CLASSES = List.of(
+            "uni.S257123.ui.graphical.GraphicalInterface",
+            "uni.S257123.ui.graphical.PagedTableLoader",
+            "uni.S257123.storage.database.DatabaseStorage",
+            "javafx.application.Application",
+            "javafx.fxml.FXMLLoader",
+            "javafx.scene.control.TableView",
+            "javafx.scene.control.TableColumn",
+            "javafx.scene.control.ComboBox",
+            "javafx.scene.control.ChoiceBox",
+            "com.mongodb.client.MongoClients",
+            "com.mongodb.MongoClientSettings",
+            "org.bson.Document");
+
+    public static void main(String[] args) throws ClassNotFoundException {
+        Storage storage = new TextStorage();
+        for (String source : storage.getSources()) {
+            storage.getHeaders(source);
+            storage.readPage(source, 0, 100);
+            storage.searchRecord(source, Pair.of("description", "a"));
+        }
+        storage.getIDs();
+        new ConsoleInterface();
+
+        ClassLoader loader = StartupTraining.class.getClassLoader();
+        for (String className : UNINITIALISED_CLASSES) {
+            Class.forName(className, false, loader);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package uni.S257123.main;
+
+import uni.S257123.storage.database.DatabaseStorage;
+import uni.S257123.storage.hybrid.HybridStorage;
+import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.metrics.InstrumentedStorage;
+import uni.S257123.storage.sharding.ShardedStorage;
+import uni.S257123.storage.text.TextStorage;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the {@code --name=value} command line arguments shared by the non-interactive entry points, and opens the
+ * storage they choose.
+ * <ul>
+ *     <li>{@code --storage}: "text" (the default), "database", "sharded" or "hybrid"</li>
+ *     <li>{@code --items} and {@code --transactions}: the files used by the text storage</li>
+ *     <li>{@code --mongo} and {@code --database}: the deployment and database used by the database storage, and
+ *     replicated by the hybrid storage</li>
+ *     <li>{@code --shards}: the folders of the sharded storage, separated by commas, each with an items.txt and a
+ *     transactions.txt</li>
+ *     <li>{@code --replica}: the folder the hybrid storage keeps its replica of the database in</li>
+ * </ul>
+ */
+final class StorageOptions {
+    private StorageOptions() {
+    }
+
+    /**
+     * @return every {@code --name=value} argument as name to value. Flags without a value map to ""
+     */
+    static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String[] option = arg.substring(2).split("=", 2);
+                options.put(option[0], option.length > 1 ? option[1] : "");
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return every argument that isn't a {@code --name=value} option, in order
+     */
+    static List<String> positional(String[] args) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                positional.add(arg);
+            }
+        }
+        return positional;
+    }
+
+    /**
+     * Opens the storage chosen by the options, wrapped for metrics if they are enabled.
+     */
+    static Storage open(Map<String, String> options) {
+        Storage storage;
+        if (options.getOrDefault("storage", "text").equals("sharded")) {
+            if (options.getOrDefault("shards", "").isBlank()) {
+                throw new IllegalArgumentException("--storage=sharded needs --shards=folder,folder,...");
+            }
+            storage = ShardedStorage.text(Arrays.stream(options.get("shards").split(",")).map(Path::of).toList());
+        } else if (options.getOrDefault("storage", "text").equals("database")) {
+            storage = database(options);
+        } else if (options.getOrDefault("storage", "text").equals("hybrid")) {
+            if (options.getOrDefault("replica", "").isBlank()) {
+                throw new IllegalArgumentException("--storage=hybrid needs --replica=folder");
+            }
+            HybridStorage hybrid = new HybridStorage(Path.of(options.get("replica")), database(options));
+            hybrid.start();
+            storage = hybrid;
+        } else {
+            storage = new TextStorage(
+                    options.getOrDefault("items", "src/main/resources/items.txt"),
+                    options.getOrDefault("transactions", "src/main/resources/transactions.txt"));
+        }
+        return InstrumentedStorage.wrap(storage);
+    }
+
+    private static DatabaseStorage database(Map<String, String> options) {
+        return options.containsKey("mongo")
+                ? new DatabaseStorage(options.get("mongo"), options.getOrDefault("database", "I2P"))
+                : new DatabaseStorage();
+    }
+}
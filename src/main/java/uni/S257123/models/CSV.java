@@ -1,8 +1,10 @@
 package uni.S257123.models;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * A structured representation of an entry in a CSV (Comma-Separated Values) file.
@@ -36,23 +38,30 @@ public class CSV {
     /**
      * A set of fields that were defined for this CSV entry.
      * Using a LinkedHashSet to maintain the order of insertion for predictable iteration.
+     * Rows constructed with the same headers share one unmodifiable set (see
+     * {@link #sharedFieldSets}), rather than each row holding its own copy.
      */
-    public Set<String> definedFields = new LinkedHashSet<>();
+    public Set<String> definedFields;
 
     /**
-     * A map associating each field name with a supplier.
-     * The supplier effectively acts as a getter for the field, allowing dynamic retrieval
+     * The unmodifiable field sets shared between rows, keyed by the headers the rows were constructed with.
+     */
+    private static final Map<List<String>, Set<String>> sharedFieldSets = new ConcurrentHashMap<>();
+
+    /**
+     * A map associating each field name with a getter for that field, allowing dynamic retrieval
      * of field values based on the field's name.
+     * Shared by every instance, so that each row read in doesn't have to allocate its own copy of the map.
      */
-    Map<String, Supplier<Object>> fieldSuppliers = Map.of(
-            "id", () -> id,
-            "description", () -> description,
-            "stockRemaining", () -> stockRemaining,
-            "transactionType", () -> transactionType,
-            "unitPrice", () -> unitPrice,
-            "qtyInStock", () -> qtyInStock,
-            "totalPrice", () -> totalPrice,
-            "date", () -> date
+    static final Map<String, Function<CSV, Object>> fieldSuppliers = Map.of(
+            "id", csv -> csv.id,
+            "description", csv -> csv.description,
+            "stockRemaining", csv -> csv.stockRemaining,
+            "transactionType", csv -> csv.transactionType,
+            "unitPrice", csv -> csv.unitPrice,
+            "qtyInStock", csv -> csv.qtyInStock,
+            "totalPrice", csv -> csv.totalPrice,
+            "date", csv -> csv.date
     );
 
     /**
@@ -61,7 +70,8 @@ public class CSV {
      * <p>This constructor iterates over each header, identifies the corresponding value from the
      * input row parameters, assigns this value to the relevant property of the object, and marks
      * the property as defined in {@code definedFields}. If the header is not recognized, it throws
-     * an {@code IllegalArgumentException}.</p>
+     * an {@code IllegalArgumentException}. Rows constructed with the same headers share the same
+     * {@code definedFields} set.</p>
      *
      * @param parameterFileRow The list of values associated with a particular row in a CSV file.
      * @param headers          The list of headers corresponding to the order of values in
@@ -75,23 +85,63 @@ public class CSV {
             String value = parameterFileRow.get(i);
 
             switch (header) {
-                case "id", "_id" -> { id = value; definedFields.add("id"); }
-                case "description" -> { description = value; definedFields.add("description"); }
-                case "stockRemaining" -> { stockRemaining = Integer.parseInt(value); definedFields.add("stockRemaining"); }
-                case "transactionType" -> { transactionType = value; definedFields.add("transactionType"); }
-                case "unitPrice" -> { unitPrice = Double.parseDouble(value); definedFields.add("unitPrice"); }
-                case "qtyInStock" -> { qtyInStock = Integer.parseInt(value); definedFields.add("qtyInStock"); }
-                case "totalPrice" -> { totalPrice = Double.parseDouble(value); definedFields.add("totalPrice"); }
-                case "date" -> { date = value; definedFields.add("date"); }
+                case "id", "_id" -> id = value;
+                case "description" -> description = value;
+                case "stockRemaining" -> stockRemaining = Integer.parseInt(value);
+                case "transactionType" -> transactionType = value;
+                case "unitPrice" -> unitPrice = Double.parseDouble(value);
+                case "qtyInStock" -> qtyInStock = Integer.parseInt(value);
+                case "totalPrice" -> totalPrice = Double.parseDouble(value);
+                case "date" -> date = value;
                 default -> throw new IllegalArgumentException("Unexpected header: " + header);
             }
         }
+        definedFields = sharedFieldSets.get(headers);
+        if (definedFields == null) {
+            definedFields = sharedFieldSets.computeIfAbsent(List.copyOf(headers), CSV::fieldsDefinedBy);
+        }
         if (definedFields.contains("qtyInStock") && definedFields.contains("unitPrice")) {
-            definedFields.add("totalPrice");
             totalPrice = qtyInStock * unitPrice;
         }
     }
 
+    /**
+     * Constructs a row with no values yet, for code that fills in the public fields itself rather than having them
+     * parsed from strings, such as when decoding a row that was stored in binary.
+     *
+     * @param definedFields the fields the row defines, which should be the set shared by existing rows with the same
+     *                      headers (see {@link #definedFields})
+     */
+    public CSV(Set<String> definedFields) {
+        this.definedFields = definedFields;
+    }
+
+    /**
+     * Works out which fields a row with the given headers defines, in order. The "_id" header of database rows is
+     * treated as "id", and "totalPrice" is always defined when it can be calculated from the other fields.
+     * @param headers the headers of a row, all of which are known to be valid
+     * @return an unmodifiable set of the defined fields, to be shared by every row with these headers
+     */
+    private static Set<String> fieldsDefinedBy(List<String> headers) {
+        Set<String> fields = new LinkedHashSet<>();
+        for (String header : headers) {
+            fields.add(header.equals("_id") ? "id" : header);
+        }
+        if (fields.contains("qtyInStock") && fields.contains("unitPrice")) {
+            fields.add("totalPrice");
+        }
+        return Collections.unmodifiableSet(fields);
+    }
+
+    /**
+     * @param propertyName the name of a property, e.g. from a search
+     * @return whether any row can have a property of that name, so whether it can be passed to
+     * {@link #GetPropertyByName(String)}
+     */
+    public static boolean isField(String propertyName) {
+        return fieldSuppliers.containsKey(propertyName);
+    }
+
     /**
      * Retrieves the value of a specified property using the {@code fieldSuppliers} map.
      *
@@ -102,7 +152,7 @@ public class CSV {
      * @return The value of the specified property, or {@code null} if the property does not exist.
      */
     public Object GetPropertyByName(String propertyName) {
-        return fieldSuppliers.get(propertyName).get();
+        return fieldSuppliers.get(propertyName).apply(this);
     }
 
     /**
@@ -120,9 +170,33 @@ public class CSV {
      */
     @Override
     public String toString() {
-        return definedFields.stream()
-                .map(fieldName -> String.format("%s=%s", fieldName, fieldSuppliers.get(fieldName).get()))
-                .collect(Collectors.joining(", "));
+        StringBuilder output = new StringBuilder(96);
+        appendDisplayString(output);
+        return output.toString();
+    }
+
+    /**
+     * Writes the same output as {@link #toString()} onto the end of the builder. Numbers are appended as primitives,
+     * so no Strings are created for the row. Used when drawing large numbers of rows to the console.
+     * @param out the builder to append the row to
+     */
+    public void appendDisplayString(StringBuilder out) {
+        boolean first = true;
+        for (String fieldName : definedFields) {
+            if (!first) {
+                out.append(", ");
+            }
+            first = false;
+            out.append(fieldName).append('=');
+            Object value = fieldSuppliers.get(fieldName).apply(this);
+            if (value instanceof Double number) {
+                out.append(number.doubleValue());
+            } else if (value instanceof Integer number) {
+                out.append(number.intValue());
+            } else {
+                out.append(value);
+            }
+        }
     }
 
     /**
@@ -139,8 +213,30 @@ public class CSV {
      *         this method would return "12345,item1".
      */
     public String toCSVFileOutput() {
-        return definedFields.stream()
-                .map(fieldName -> String.format("%s", fieldSuppliers.get(fieldName).get()))
-                .collect(Collectors.joining(","));
+        StringBuilder output = new StringBuilder(64);
+        try {
+            appendCSVFileOutput(output);
+        } catch (IOException e) {
+            // A StringBuilder never throws IOException, it is only declared by Appendable
+            throw new UncheckedIOException(e);
+        }
+        return output.toString();
+    }
+
+    /**
+     * Writes the same output as {@link #toCSVFileOutput()} straight to the given destination, without building a
+     * String for the row first. Used when streaming large numbers of rows to a file.
+     * @param out where the row should be written, such as a buffered Writer
+     * @throws IOException if the destination fails to be written to
+     */
+    public void appendCSVFileOutput(Appendable out) throws IOException {
+        boolean first = true;
+        for (String fieldName : definedFields) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append(String.valueOf(fieldSuppliers.get(fieldName).apply(this)));
+        }
     }
-}
\ No newline at end of file
+}
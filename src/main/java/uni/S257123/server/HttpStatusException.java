@@ -0,0 +1,15 @@
+package uni.S257123.server;
+
+/**
+ * Thrown while handling a request to stop and respond with an error status, e.g. 404 for an id that doesn't exist.
+ */
+class HttpStatusException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    HttpStatusException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
@@ -0,0 +1,177 @@
+package uni.S257123.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the small JSON bodies the server accepts: an object whose values are strings, numbers, booleans or null, or
+ * an array of such objects. Every value is returned as the text the storage layer expects, e.g. {@code 4.5} as "4.5".
+ * <p>
+ * Nested objects and arrays inside an object are not supported, as no request needs them.
+ * </p>
+ */
+class JsonParser {
+    private final String json;
+    private int position = 0;
+
+    private JsonParser(String json) {
+        this.json = json;
+    }
+
+    /**
+     * @return the objects in the body: one if the body is an object, or each element if it is an array
+     * @throws HttpStatusException with a 400 status if the body isn't valid
+     */
+    static List<Map<String, String>> parseObjects(String json) {
+        JsonParser parser = new JsonParser(json);
+        List<Map<String, String>> objects = new ArrayList<>();
+        parser.skipWhitespace();
+        if (parser.peek() == '[') {
+            parser.position++;
+            parser.skipWhitespace();
+            if (parser.peek() == ']') {
+                parser.position++;
+            } else {
+                do {
+                    objects.add(parser.parseObject());
+                } while (parser.consumeSeparator(']'));
+            }
+        } else {
+            objects.add(parser.parseObject());
+        }
+        parser.skipWhitespace();
+        if (parser.position != json.length()) {
+            throw parser.error("unexpected content after the end of the body");
+        }
+        return objects;
+    }
+
+    private Map<String, String> parseObject() {
+        skipWhitespace();
+        expect('{');
+        Map<String, String> object = new LinkedHashMap<>();
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return object;
+        }
+        do {
+            skipWhitespace();
+            String name = parseString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            object.put(name, parseValue());
+        } while (consumeSeparator('}'));
+        return object;
+    }
+
+    /**
+     * Consumes either a comma, meaning another element follows, or the closing character.
+     * @return true if there is another element
+     */
+    private boolean consumeSeparator(char closing) {
+        skipWhitespace();
+        char next = peek();
+        position++;
+        if (next == ',') {
+            return true;
+        }
+        if (next == closing) {
+            return false;
+        }
+        throw error("expected ',' or '" + closing + "'");
+    }
+
+    private String parseValue() {
+        char next = peek();
+        if (next == '"') {
+            return parseString();
+        }
+        int start = position;
+        while (position < json.length() && ",}] \t\r\n".indexOf(json.charAt(position)) < 0) {
+            position++;
+        }
+        String literal = json.substring(start, position);
+        if (literal.equals("null")) {
+            return null;
+        }
+        if (literal.equals("true") || literal.equals("false")) {
+            return literal;
+        }
+        try {
+            Double.parseDouble(literal);
+            return literal;
+        } catch (NumberFormatException e) {
+            throw error("expected a string, number, boolean or null");
+        }
+    }
+
+    private String parseString() {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            if (position >= json.length()) {
+                throw error("unterminated string");
+            }
+            char c = json.charAt(position++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (position >= json.length()) {
+                throw error("unterminated string");
+            }
+            char escaped = json.charAt(position++);
+            switch (escaped) {
+                case '"', '\\', '/' -> value.append(escaped);
+                case 'b' -> value.append('\b');
+                case 'f' -> value.append('\f');
+                case 'n' -> value.append('\n');
+                case 'r' -> value.append('\r');
+                case 't' -> value.append('\t');
+                case 'u' -> {
+                    if (position + 4 > json.length()) {
+                        throw error("invalid unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(json, position, position + 4, 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid unicode escape");
+                    }
+                    position += 4;
+                }
+                default -> throw error("invalid escape '\\" + escaped + "'");
+            }
+        }
+    }
+
+    private void expect(char expected) {
+        if (peek() != expected) {
+            throw error("expected '" + expected + "'");
+        }
+        position++;
+    }
+
+    private char peek() {
+        if (position >= json.length()) {
+            throw error("unexpected end of the body");
+        }
+        return json.charAt(position);
+    }
+
+    private void skipWhitespace() {
+        while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+    }
+
+    private HttpStatusException error(String message) {
+        return new HttpStatusException(400, "Invalid JSON at character " + position + ": " + message);
+    }
+}
@@ -0,0 +1,51 @@
+package uni.S257123.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds how many requests are handled at once, and how many may wait for their turn.
+ * <p>
+ * Every request gets its own virtual thread, which is cheap, so the limit is applied here instead of by the size of a
+ * thread pool. Once the waiting requests reach the queue size, further requests are turned away straight away (with
+ * a 503) instead of piling up behind a storage backend that can't keep up.
+ * </p>
+ */
+class RequestLimiter {
+    private final Semaphore running;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final int maxWaiting;
+
+    /**
+     * @param maxRunning how many requests may be handled at the same time
+     * @param maxWaiting how many requests may wait for one of those slots
+     */
+    RequestLimiter(int maxRunning, int maxWaiting) {
+        this.running = new Semaphore(maxRunning, true);
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * Waits for a slot to handle a request in, unless the queue is already full.
+     * @return true if the request may be handled, in which case {@link #exit()} must be called afterwards
+     */
+    boolean tryEnter() throws InterruptedException {
+        if (running.tryAcquire()) {
+            return true;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            running.acquire();
+            return true;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    void exit() {
+        running.release();
+    }
+}
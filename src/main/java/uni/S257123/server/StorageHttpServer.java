@@ -0,0 +1,459 @@
+package uni.S257123.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.tuple.Pair;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.concurrent.StorageExecutor;
+import uni.S257123.storage.history.ReplayVerification;
+import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.query.Condition;
+import uni.S257123.storage.query.Query;
+import uni.S257123.storage.query.Sort;
+import uni.S257123.storage.transfer.ExportFilter;
+import uni.S257123.storage.transfer.RecordExporter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves a {@link Storage} as a JSON HTTP API, so that several stores can share one inventory.
+ * <p>
+ * Built on the JDK's {@link HttpServer}, which keeps connections alive between requests and reads pipelined requests
+ * off a connection in order. Each request is handled on its own virtual thread, with a {@link RequestLimiter}
+ * bounding how many are handled at once and how many may queue. Storage calls go through a {@link StorageExecutor},
+ * which keeps the backend safe from concurrent writes.
+ * </p>
+ * <p>The API:</p>
+ * <ul>
+ *     <li>{@code GET /items} lists every item, or searches with {@code ?property=description&value=bolt}</li>
+ *     <li>{@code GET /items?q=blu bolt} finds the items whose descriptions best match, best first, allowing typos and
+ *     unfinished words, limited to {@value #SEARCH_LIMIT} unless {@code ?limit=} says otherwise</li>
+ *     <li>{@code GET /items/{id}} fetches one item</li>
+ *     <li>{@code GET /items?asOf=2023-06-01} and {@code GET /items/{id}?asOf=2023-06-01} give the items (or one item)
+ *     as they were at the end of that day, rebuilt from the transactions</li>
+ *     <li>{@code GET /items/{id}/history} lists every transaction of an item, oldest first, including deleted
+ *     items</li>
+ *     <li>{@code POST /items} adds an item from {@code {"description":..,"unitPrice":..,"qtyInStock":..}}, or many
+ *     items from an array of them</li>
+ *     <li>{@code PATCH /items/{id}} changes the properties given in the body, e.g. {@code {"qtyInStock":5}}</li>
+ *     <li>{@code DELETE /items/{id}} deletes an item</li>
+ *     <li>{@code GET /transactions} lists transactions, filtered by {@code ?date=}, {@code ?from=} and {@code ?to=}
+ *     (as yyyy-MM-dd) and {@code ?type=} (added, updated or deleted)</li>
+ *     <li>Both lists can be sorted and limited, e.g. {@code ?sort=totalPrice&order=desc&limit=50} for the 50 highest
+ *     value items, without the whole list being sorted</li>
+ *     <li>{@code GET /transactions/verify} checks that replaying the transactions gives the stored items</li>
+ *     <li>{@code GET /health} reports that the server is up</li>
+ * </ul>
+ * <p>Errors are returned as {@code {"error":"..."}} with a matching status code.</p>
+ */
+public class StorageHttpServer {
+    private static final String JSON = "application/json; charset=utf-8";
+    /**
+     * How many items a description search returns when no limit is given
+     */
+    private static final int SEARCH_LIMIT = 20;
+
+    private final Storage storage;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final RequestLimiter limiter;
+    private final StorageExecutor storageExecutor;
+
+    /**
+     * @param storage the storage to serve
+     * @param address the address and port to listen on
+     * @param maxConcurrent how many requests may be handled at the same time
+     * @param maxQueued how many requests may wait to be handled before new ones are refused with a 503. Also used as
+     *                  the backlog of connections waiting to be accepted
+     */
+    public StorageHttpServer(Storage storage, InetSocketAddress address, int maxConcurrent, int maxQueued)
+            throws IOException {
+        this.storage = storage;
+        this.limiter = new RequestLimiter(maxConcurrent, maxQueued);
+        this.storageExecutor = new StorageExecutor(storage, maxConcurrent);
+        server = HttpServer.create(address, maxQueued);
+        server.createContext("/items", exchange -> handle(exchange, this::items));
+        server.createContext("/transactions", exchange -> handle(exchange, this::transactions));
+        server.createContext("/health", exchange -> handle(exchange, this::health));
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting connections, giving requests already being handled up to the delay to finish.
+     * @param delaySeconds the longest to wait for requests to finish
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        storageExecutor.close();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private interface Route {
+        void handle(HttpExchange exchange, List<String> path) throws IOException;
+    }
+
+    /**
+     * Runs a route once the limiter lets the request in, turning any failure into a JSON error response.
+     */
+    private void handle(HttpExchange exchange, Route route) {
+        try (exchange) {
+            boolean entered;
+            try {
+                entered = limiter.tryEnter();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!entered) {
+                sendError(exchange, 503, "The server is too busy, try again shortly");
+                return;
+            }
+            try {
+                route.handle(exchange, pathSegments(exchange));
+            } catch (HttpStatusException e) {
+                sendError(exchange, e.status, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                // Includes NumberFormatException from values that should have been numbers
+                sendError(exchange, 400, e.getMessage());
+            } catch (RuntimeException e) {
+                sendError(exchange, 500, String.valueOf(e.getMessage()));
+            } finally {
+                limiter.exit();
+            }
+        } catch (IOException e) {
+            // The client went away before the response could be sent, nothing more can be done for it
+        }
+    }
+
+    private void items(HttpExchange exchange, List<String> path) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (path.size() == 1) {
+            switch (method) {
+                case "GET" -> {
+                    Map<String, String> query = queryParameters(exchange);
+                    if (query.containsKey("asOf")) {
+                        LocalDate date = parseDate(query.get("asOf"));
+                        sendRows(exchange, read(() -> storage.itemsAsOf(date)));
+                        return;
+                    }
+                    if (query.containsKey("q")) {
+                        int limit = limitParameter(query);
+                        sendRows(exchange, read(() -> storage.searchDescriptions(query.get("q"),
+                                limit == 0 ? SEARCH_LIMIT : limit)));
+                        return;
+                    }
+                    String property = query.getOrDefault("property", "id");
+                    String value = query.getOrDefault("value", "");
+                    Sort sort = sortParameter(query);
+                    int limit = limitParameter(query);
+                    List<CSV> rows;
+                    if (sort == null && limit == 0) {
+                        rows = read(() -> storage.searchRecord("items", Pair.of(property, value)));
+                    } else {
+                        Condition condition = value.isEmpty() ? null : Condition.contains(property, value);
+                        rows = read(() -> storage.query(new Query("items", condition, sort, limit)));
+                    }
+                    sendRows(exchange, rows);
+                }
+                case "POST" -> addItems(exchange);
+                default -> throw new HttpStatusException(405, method + " is not supported on /items");
+            }
+        } else if (path.size() == 2) {
+            String id = path.get(1);
+            switch (method) {
+                case "GET" -> {
+                    LocalDate date = parseDate(queryParameters(exchange).get("asOf"));
+                    if (date == null) {
+                        sendRows(exchange, List.of(read(() -> findItem(id))));
+                    } else {
+                        CSV item = read(() -> storage.itemAsOf(id, date));
+                        if (item == null) {
+                            throw new HttpStatusException(404, "No item had the id " + id + " on " + date);
+                        }
+                        sendRows(exchange, List.of(item));
+                    }
+                }
+                case "PATCH" -> updateItem(exchange, id);
+                case "DELETE" -> {
+                    write(() -> {
+                        findItem(id);
+                        storage.deleteRecord(id);
+                        return null;
+                    });
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                default -> throw new HttpStatusException(405, method + " is not supported on /items/{id}");
+            }
+        } else if (path.size() == 3 && path.get(2).equals("history")) {
+            if (!method.equals("GET")) {
+                throw new HttpStatusException(405, method + " is not supported on /items/{id}/history");
+            }
+            String id = path.get(1);
+            List<CSV> history = read(() -> storage.transactionHistory(id));
+            if (history.isEmpty()) {
+                throw new HttpStatusException(404, "No item has the id " + id);
+            }
+            sendRows(exchange, history);
+        } else {
+            throw new HttpStatusException(404, "Not found");
+        }
+    }
+
+    private void addItems(HttpExchange exchange) throws IOException {
+        List<List<String>> rows = new ArrayList<>();
+        for (Map<String, String> item : JsonParser.parseObjects(readBody(exchange))) {
+            String description = required(item, "description");
+            if (description.contains(",") || description.contains("\n")) {
+                throw new HttpStatusException(400, "description cannot contain commas or line breaks");
+            }
+            double unitPrice = Double.parseDouble(required(item, "unitPrice"));
+            int qtyInStock = Integer.parseInt(required(item, "qtyInStock"));
+            if (unitPrice < 0 || qtyInStock < 0) {
+                throw new HttpStatusException(400, "unitPrice and qtyInStock cannot be negative");
+            }
+            rows.add(List.of(description, String.valueOf(unitPrice), String.valueOf(qtyInStock),
+                    String.valueOf(unitPrice * qtyInStock)));
+        }
+        write(() -> rows.size() == 1 ? storage.addRecord(rows.getFirst(), "items") : storage.addRecords(rows, "items"));
+        sendJSON(exchange, 201, "{\"added\":" + rows.size() + "}");
+    }
+
+    private void updateItem(HttpExchange exchange, String id) throws IOException {
+        List<Map<String, String>> bodies = JsonParser.parseObjects(readBody(exchange));
+        if (bodies.size() != 1) {
+            throw new HttpStatusException(400, "Expected one object of properties to change");
+        }
+        CSV updated = write(() -> {
+            findItem(id);
+            List<String> headers = storage.getHeaders("items");
+            for (Map.Entry<String, String> change : bodies.getFirst().entrySet()) {
+                String property = change.getKey();
+                if (!headers.contains(property) || property.equals("id") || property.equals("totalPrice")) {
+                    throw new HttpStatusException(400, property + " cannot be changed");
+                }
+                String value = Objects.requireNonNull(change.getValue(), property + " cannot be null");
+                switch (property) {
+                    case "unitPrice" -> Double.parseDouble(value);
+                    case "qtyInStock" -> Integer.parseInt(value);
+                    default -> {
+                        if (value.contains(",") || value.contains("\n")) {
+                            throw new HttpStatusException(400, property + " cannot contain commas or line breaks");
+                        }
+                    }
+                }
+                storage.updateRecord(List.of(id, property, value));
+            }
+            return findItem(id);
+        });
+        sendRows(exchange, List.of(updated));
+    }
+
+    private void transactions(HttpExchange exchange, List<String> path) throws IOException {
+        if (path.size() == 2 && path.get(1).equals("verify")) {
+            verifyTransactions(exchange);
+            return;
+        }
+        if (path.size() != 1) {
+            throw new HttpStatusException(404, "Not found");
+        }
+        if (!exchange.getRequestMethod().equals("GET")) {
+            throw new HttpStatusException(405, exchange.getRequestMethod() + " is not supported on /transactions");
+        }
+        Map<String, String> query = queryParameters(exchange);
+        LocalDate date = parseDate(query.get("date"));
+        ExportFilter filter = new ExportFilter(
+                date != null ? date : parseDate(query.get("from")),
+                date != null ? date : parseDate(query.get("to")),
+                query.get("type"));
+        Query transactions = new Query("transactions", filter.toCondition(), sortParameter(query),
+                limitParameter(query));
+        sendRows(exchange, read(() -> storage.query(transactions)));
+    }
+
+    private void verifyTransactions(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            throw new HttpStatusException(405, exchange.getRequestMethod() + " is not supported on /transactions/verify");
+        }
+        ReplayVerification verification = read(storage::verifyTransactionLog);
+        StringBuilder json = new StringBuilder("{\"matches\":").append(verification.matches())
+                .append(",\"transactions\":").append(verification.transactionsReplayed())
+                .append(",\"items\":").append(verification.itemsChecked())
+                .append(",\"mismatches\":").append(verification.mismatches())
+                .append(",\"examples\":[");
+        for (int i = 0; i < verification.examples().size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            RecordExporter.appendJSONString(verification.examples().get(i), json);
+        }
+        sendJSON(exchange, 200, json.append("]}").toString());
+    }
+
+    private void health(HttpExchange exchange, List<String> path) throws IOException {
+        sendJSON(exchange, 200, "{\"status\":\"ok\"}");
+    }
+
+    /**
+     * Finds the item with exactly the given id. Must be called from within {@link #read} or {@link #write}.
+     * @throws HttpStatusException with a 404 status if there is no such item
+     */
+    private CSV findItem(String id) {
+        for (CSV csv : storage.searchRecord("items", Pair.of("id", id))) {
+            if (id.equals(csv.id)) {
+                return csv;
+            }
+        }
+        throw new HttpStatusException(404, "No item has the id " + id);
+    }
+
+    private interface StorageCall<T> {
+        T call();
+    }
+
+    // Requests are already on their own virtual thread, so storage calls are run on it rather than handed off
+
+    private <T> T read(StorageCall<T> call) {
+        return storageExecutor.read(storage -> call.call());
+    }
+
+    private <T> T write(StorageCall<T> call) {
+        return storageExecutor.write(storage -> call.call());
+    }
+
+    private static String required(Map<String, String> object, String name) {
+        String value = object.get(name);
+        if (value == null) {
+            throw new HttpStatusException(400, name + " is required");
+        }
+        return value;
+    }
+
+    /**
+     * @return the order asked for with {@code ?sort=field&order=desc} (ascending by default), or null if not sorted
+     */
+    private static Sort sortParameter(Map<String, String> query) {
+        String field = query.get("sort");
+        if (field == null) {
+            return null;
+        }
+        return switch (query.getOrDefault("order", "asc")) {
+            case "asc" -> Sort.ascending(field);
+            case "desc" -> Sort.descending(field);
+            default -> throw new HttpStatusException(400, "order must be asc or desc");
+        };
+    }
+
+    /**
+     * @return the most rows asked for with {@code ?limit=}, or 0 for every row
+     */
+    private static int limitParameter(Map<String, String> query) {
+        int limit = Integer.parseInt(query.getOrDefault("limit", "0"));
+        if (limit < 0) {
+            throw new HttpStatusException(400, "limit cannot be negative");
+        }
+        return limit;
+    }
+
+    private static LocalDate parseDate(String date) {
+        if (date == null) {
+            return null;
+        }
+        try {
+            return LocalDate.parse(date);
+        } catch (DateTimeParseException e) {
+            throw new HttpStatusException(400, "Dates must be in the form yyyy-MM-dd, not " + date);
+        }
+    }
+
+    /**
+     * @return the path split on "/", without the empty segment before the first slash, e.g. ["items", "00012"]
+     */
+    private static List<String> pathSegments(HttpExchange exchange) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : exchange.getRequestURI().getPath().split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(URLDecoder.decode(segment, StandardCharsets.UTF_8));
+            }
+        }
+        return segments;
+    }
+
+    private static Map<String, String> queryParameters(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                String[] nameValue = parameter.split("=", 2);
+                parameters.put(URLDecoder.decode(nameValue[0], StandardCharsets.UTF_8),
+                        nameValue.length > 1 ? URLDecoder.decode(nameValue[1], StandardCharsets.UTF_8) : "");
+            }
+        }
+        return parameters;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        return new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Streams the rows as a JSON array, using chunked encoding so that large results don't have to be built up as one
+     * string first.
+     */
+    private static void sendRows(HttpExchange exchange, List<CSV> rows) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write('[');
+            for (int i = 0; i < rows.size(); i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                RecordExporter.appendJSON(rows.get(i), out);
+            }
+            out.write(']');
+        }
+    }
+
+    private static void sendJSON(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        StringBuilder json = new StringBuilder("{\"error\":");
+        try {
+            RecordExporter.appendJSONString(message, json);
+        } catch (IOException e) {
+            // A StringBuilder never throws IOException, it is only declared by Appendable
+            throw new UncheckedIOException(e);
+        }
+        sendJSON(exchange, status, json.append('}').toString());
+    }
+}
@@ -0,0 +1,116 @@
+package uni.S257123.storage.concurrent;
+
+import uni.S257123.storage.interfaces.Storage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Runs blocking storage calls off the caller's thread, on Java 21 virtual threads.
+ * <p>
+ * Virtual threads are cheap enough to start one per call, so instead of sizing a thread pool, a {@link Semaphore}
+ * bounds how many calls reach the backend at once (e.g. to stay within MongoDB's connection pool). The backends are
+ * not thread safe, so reads share a read lock while writes take the write lock, as a write like
+ * {@link Storage#updateRecord(java.util.List)} rewrites files and replaces the rows held in memory. A storage that
+ * {@link Storage#isThreadSafe() locks itself} isn't locked again, so e.g. writes to different shards of a
+ * {@link uni.S257123.storage.sharding.ShardedStorage} run at the same time.
+ * </p>
+ * <p>
+ * The submit methods return a {@link CompletableFuture}, which a UI can use to hand the result back to its own
+ * thread (e.g. with {@code Platform::runLater} as the executor of a later stage). Code already running on a virtual
+ * thread, such as an HTTP request handler, can use the blocking {@link #read} and {@link #write} instead.
+ * </p>
+ */
+public class StorageExecutor implements AutoCloseable {
+    private final Storage storage;
+    private final ExecutorService threads = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("storage-", 0).factory());
+    private final Semaphore permits;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final boolean locking;
+
+    /**
+     * @param storage the backend the calls are run against
+     * @param maxConcurrent how many calls may be running against the backend at the same time
+     */
+    public StorageExecutor(Storage storage, int maxConcurrent) {
+        this.storage = storage;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.locking = !storage.isThreadSafe();
+    }
+
+    /**
+     * @return the limit on concurrent calls set by the {@code ims.storage.maxConcurrent} system property, 64 by
+     * default
+     */
+    public static int configuredMaxConcurrent() {
+        return Integer.getInteger("ims.storage.maxConcurrent", 64);
+    }
+
+    /**
+     * Runs a call that only reads from the storage on a virtual thread.
+     * @param call what to do with the storage
+     * @return the result of the call, or the exception it threw
+     */
+    public <T> CompletableFuture<T> submitRead(Function<Storage, T> call) {
+        return CompletableFuture.supplyAsync(() -> read(call), threads);
+    }
+
+    /**
+     * Runs a call that changes the storage on a virtual thread.
+     * @param call what to do with the storage
+     * @return the result of the call, or the exception it threw
+     */
+    public <T> CompletableFuture<T> submitWrite(Function<Storage, T> call) {
+        return CompletableFuture.supplyAsync(() -> write(call), threads);
+    }
+
+    /**
+     * Runs a call that only reads from the storage on the calling thread, once a permit and the read lock are free.
+     */
+    public <T> T read(Function<Storage, T> call) {
+        return run(lock.readLock(), call);
+    }
+
+    /**
+     * Runs a call that changes the storage on the calling thread, once a permit and the write lock are free.
+     */
+    public <T> T write(Function<Storage, T> call) {
+        return run(lock.writeLock(), call);
+    }
+
+    private <T> T run(Lock storageLock, Function<Storage, T> call) {
+        permits.acquireUninterruptibly();
+        try {
+            if (!locking) {
+                return call.apply(storage);
+            }
+            storageLock.lock();
+            try {
+                return call.apply(storage);
+            } finally {
+                storageLock.unlock();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Stops accepting calls, waiting for the ones already submitted to finish.
+     */
+    @Override
+    public void close() {
+        threads.close();
+    }
+}
@@ -0,0 +1,54 @@
+package uni.S257123.storage.database;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.bson.BsonValue;
+import uni.S257123.storage.metrics.StorageMetrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every command the MongoDB driver sends to the server into {@link StorageMetrics}, as the operation
+ * "mongo." followed by the command name (e.g. "mongo.find"), against the collection the command ran on.
+ * <p>
+ * This shows how much of each {@link DatabaseStorage} call is spent waiting on the server, and how many round trips
+ * it takes. Only registered with the driver when metrics are enabled.
+ * </p>
+ */
+class MongoCommandMetrics implements CommandListener {
+    /**
+     * The collection each in-flight command is running on, by request id, as only the started event says
+     */
+    private final Map<Integer, String> collections = new ConcurrentHashMap<>();
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        BsonValue collection = event.getCommand().get(event.getCommandName());
+        collections.put(event.getRequestId(), collection != null && collection.isString()
+                ? collection.asString().getValue()
+                : event.getDatabaseName());
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        StorageMetrics.recordLatency("mongo." + event.getCommandName(), collectionOf(event.getRequestId()),
+                event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        String collection = collectionOf(event.getRequestId());
+        StorageMetrics.recordLatency("mongo." + event.getCommandName(), collection,
+                event.getElapsedTime(TimeUnit.NANOSECONDS));
+        StorageMetrics.recordError("mongo." + event.getCommandName(), collection);
+    }
+
+    private String collectionOf(int requestId) {
+        String collection = collections.remove(requestId);
+        return collection != null ? collection : "unknown";
+    }
+}
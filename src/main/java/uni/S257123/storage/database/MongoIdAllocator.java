@@ -0,0 +1,81 @@
+package uni.S257123.storage.database;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+import uni.S257123.storage.ids.BatchedIdAllocator;
+import uni.S257123.storage.ids.IdFormat;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link BatchedIdAllocator} that keeps the next unreserved id in a counter document. Blocks are reserved with an
+ * atomic {@code $inc}, so any number of clients can share the same counter without handing out the same id twice.
+ */
+public class MongoIdAllocator extends BatchedIdAllocator {
+    private final MongoCollection<Document> counters;
+    private final String counterName;
+
+    /**
+     * @param counters the collection holding the counter documents
+     * @param counterName the _id of the counter document to use
+     * @param minimumID the lowest id that may be handed out. The counter is raised to this value if it is lower (or
+     *                  doesn't exist yet), so ids already in the collection are skipped
+     * @param format how ids are formatted as strings
+     * @param batchSize how many ids are reserved by each update to the counter
+     */
+    public MongoIdAllocator(MongoCollection<Document> counters, String counterName, long minimumID, IdFormat format,
+                            long batchSize) {
+        super(format, batchSize);
+        this.counters = counters;
+        this.counterName = counterName;
+        raiseCounter(minimumID);
+    }
+
+    /**
+     * Starts from an existing counter document as it is, only finding the lowest id that may be handed out if the
+     * counter doesn't exist yet, as finding it may mean reading every id in the collection.
+     * @param counters the collection holding the counter documents
+     * @param counterName the _id of the counter document to use
+     * @param minimumID finds the lowest id that may be handed out, only called if the counter doesn't exist yet
+     * @param format how ids are formatted as strings
+     * @param batchSize how many ids are reserved by each update to the counter
+     */
+    public MongoIdAllocator(MongoCollection<Document> counters, String counterName, LongSupplier minimumID,
+                            IdFormat format, long batchSize) {
+        super(format, batchSize);
+        this.counters = counters;
+        this.counterName = counterName;
+        if (counters.find(Filters.eq("_id", counterName)).first() == null) {
+            // Raised rather than set, in case another client created the counter in the meantime
+            raiseCounter(minimumID.getAsLong());
+        }
+    }
+
+    private void raiseCounter(long minimumID) {
+        counters.updateOne(Filters.eq("_id", counterName), Updates.max("next", minimumID),
+                new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Reserves a range of ids for something else to hand out, e.g. a replica that adds items while offline.
+     * @param count how many ids to reserve
+     * @return the first id of the range, which runs to just before this plus the count
+     */
+    public long reserveRange(long count) {
+        return reserveBlock(count);
+    }
+
+    @Override
+    protected long reserveBlock(long count) {
+        Document counter = counters.findOneAndUpdate(
+                Filters.eq("_id", counterName),
+                Updates.inc("next", count),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+        return counter.get("next", Number.class).longValue() - count;
+    }
+}
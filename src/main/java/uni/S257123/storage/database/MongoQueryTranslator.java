@@ -0,0 +1,228 @@
+package uni.S257123.storage.database;
+
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Field;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.query.Condition;
+import uni.S257123.storage.query.FieldType;
+import uni.S257123.storage.query.Query;
+import uni.S257123.storage.query.Sort;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a {@link Query} into a single MongoDB filter (and sort and limit), so the whole query is run by the server
+ * and only the matching documents are sent back.
+ * <p>
+ * With the whole condition in one filter, MongoDB's own query planner picks which index to use, trying the candidate
+ * indexes against each other and caching the winner for queries of the same shape. Nested ANDs are flattened first,
+ * so it sees every condition on the same level.
+ * </p>
+ */
+class MongoQueryTranslator {
+    /**
+     * The field added to documents when sorting by date, as dates are stored as "dd/MM/yyyy" strings that don't sort
+     * in date order
+     */
+    private static final String SORT_DATE = "_sortDate";
+
+    private final String target;
+    private final Function<String, Object> idValue;
+
+    /**
+     * @param target the collection being queried
+     * @param idValue turns an id from a query into whichever type it is stored as
+     */
+    MongoQueryTranslator(String target, Function<String, Object> idValue) {
+        this.target = target;
+        this.idValue = idValue;
+    }
+
+    /**
+     * @return the filter matching the query's condition, or an empty filter if it has none
+     * @throws IllegalArgumentException if the query names an unknown field, or has a value that can't be parsed as
+     * its field's type
+     */
+    Bson filter(Query query) {
+        return query.condition() == null ? new Document() : filter(query.condition());
+    }
+
+    /**
+     * Whether the query has to be run as an aggregation rather than a find, which is only needed when sorting by date.
+     */
+    boolean needsAggregation(Query query) {
+        return query.sort() != null && FieldType.of(query.sort().field()) == FieldType.DATE;
+    }
+
+    /**
+     * @return the sort to apply to a find, or null if the query isn't sorted
+     */
+    Bson sort(Sort sort) {
+        if (sort == null) {
+            return null;
+        }
+        String field = fieldName(sort.field());
+        return sort.descending() ? Sorts.descending(field) : Sorts.ascending(field);
+    }
+
+    /**
+     * Builds the aggregation pipeline for a query sorted by date: the dates are parsed into a temporary field that
+     * the documents are sorted by, which is removed again before they are returned.
+     */
+    List<Bson> pipeline(Query query) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(Aggregates.match(filter(query)));
+        pipeline.add(Aggregates.addFields(new Field<>(SORT_DATE, parsedDate(fieldName(query.sort().field())))));
+        pipeline.add(Aggregates.sort(query.sort().descending() ? Sorts.descending(SORT_DATE)
+                : Sorts.ascending(SORT_DATE)));
+        if (query.limit() > 0) {
+            pipeline.add(Aggregates.limit(query.limit()));
+        }
+        pipeline.add(Aggregates.project(Projections.exclude(SORT_DATE)));
+        return pipeline;
+    }
+
+    private Bson filter(Condition condition) {
+        return switch (condition) {
+            case Condition.And and -> {
+                List<Bson> filters = new ArrayList<>();
+                flattenAnd(and, filters);
+                yield Filters.and(filters);
+            }
+            case Condition.Or or -> Filters.or(or.conditions().stream().map(this::filter).toList());
+            case Condition.Equals equals -> {
+                String field = fieldName(equals.field());
+                yield switch (FieldType.of(equals.field())) {
+                    case NUMBER -> Filters.eq(field, parseNumber(equals.value()));
+                    // Compared as parsed dates rather than as stored text, the way the text backend compares them
+                    case DATE -> Filters.expr(new Document("$eq", List.of(parsedDate(field), date(equals.value()))));
+                    case TEXT -> Filters.eq(field, isId(equals.field()) ? idValue.apply(equals.value()) : equals.value());
+                };
+            }
+            case Condition.Range range -> {
+                String field = fieldName(range.field());
+                FieldType type = FieldType.of(range.field());
+                if (type == FieldType.DATE) {
+                    List<Document> bounds = new ArrayList<>();
+                    if (range.from() != null) {
+                        bounds.add(new Document("$gte", List.of(parsedDate(field), date(range.from()))));
+                    }
+                    if (range.to() != null) {
+                        bounds.add(new Document("$lte", List.of(parsedDate(field), date(range.to()))));
+                    }
+                    yield switch (bounds.size()) {
+                        case 0 -> Filters.exists(field);
+                        case 1 -> Filters.expr(bounds.getFirst());
+                        default -> Filters.expr(new Document("$and", bounds));
+                    };
+                }
+                List<Bson> bounds = new ArrayList<>();
+                if (range.from() != null) {
+                    bounds.add(Filters.gte(field, type == FieldType.NUMBER ? parseNumber(range.from()) : range.from()));
+                }
+                if (range.to() != null) {
+                    bounds.add(Filters.lte(field, type == FieldType.NUMBER ? parseNumber(range.to()) : range.to()));
+                }
+                yield switch (bounds.size()) {
+                    case 0 -> Filters.exists(field);
+                    case 1 -> bounds.getFirst();
+                    default -> Filters.and(bounds);
+                };
+            }
+            case Condition.Contains contains -> {
+                String field = fieldName(contains.field());
+                if (FieldType.of(contains.field()) == FieldType.NUMBER) {
+                    // Numbers have to be turned into strings server side before they can be searched as text
+                    yield Filters.expr(new Document("$regexMatch", new Document("input",
+                            new Document("$toString", "$" + field))
+                            .append("regex", Pattern.quote(contains.text()))));
+                }
+                yield Filters.regex(field, Pattern.quote(contains.text()));
+            }
+            case Condition.StartsWith startsWith -> {
+                String field = fieldName(startsWith.field());
+                String regex = "^" + escape(startsWith.prefix());
+                if (FieldType.of(startsWith.field()) == FieldType.NUMBER) {
+                    yield Filters.expr(new Document("$regexMatch", new Document("input",
+                            new Document("$toString", "$" + field)).append("regex", regex)));
+                }
+                // Escaped character by character rather than quoted, as MongoDB only walks an index for an anchored
+                // regex if what follows the anchor is plain text
+                yield Filters.regex(field, regex);
+            }
+        };
+    }
+
+    private void flattenAnd(Condition.And and, List<Bson> filters) {
+        for (Condition part : and.conditions()) {
+            if (part instanceof Condition.And nested) {
+                flattenAnd(nested, filters);
+            } else {
+                filters.add(filter(part));
+            }
+        }
+    }
+
+    /**
+     * Maps a field of a {@link CSV} to the name it is stored under: items keep their id in "_id", and transactions
+     * keep the stock remaining in "qtyInStock".
+     */
+    private String fieldName(String field) {
+        if (!CSV.isField(field)) {
+            throw new IllegalArgumentException("Unknown field: " + field);
+        }
+        if (isId(field) && target.equals("items")) {
+            return "_id";
+        }
+        if (field.equals("stockRemaining") && target.equals("transactions")) {
+            return "qtyInStock";
+        }
+        return field;
+    }
+
+    private static boolean isId(String field) {
+        return field.equals("id");
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static Document parsedDate(String field) {
+        return new Document("$dateFromString",
+                new Document("dateString", "$" + field).append("format", "%d/%m/%Y"));
+    }
+
+    private static Date date(String value) {
+        int key = FieldType.dateKey(value);
+        return Date.from(LocalDate.of(key / 10_000, key / 100 % 100, key % 100).atStartOfDay(ZoneOffset.UTC)
+                .toInstant());
+    }
+
+    private static double parseNumber(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number, but found: " + value);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package uni.S257123.storage.events;
+
+import uni.S257123.models.CSV;
+
+/**
+ * Describes a single row that has changed within a {@link uni.S257123.storage.interfaces.Storage} datasource.
+ *
+ * @param target the datasource the row belongs to, without any file extension
+ * @param type whether the row was inserted, updated, or deleted
+ * @param record the new values of the row. For deletions this holds the last known values of the row, which may
+ *               only be its id if the backend no longer has the rest of the row
+ */
+public record StorageChange(String target, Type type, CSV record) {
+    /**
+     * The kinds of change that can be made to a row.
+     */
+    public enum Type {
+        INSERTED,
+        UPDATED,
+        DELETED
+    }
+
+    /**
+     * @return the id of the changed row
+     */
+    public String id() {
+        return record.id;
+    }
+}
@@ -0,0 +1,51 @@
+package uni.S257123.storage.events;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Holds the listeners registered with a storage backend, and hands each {@link StorageChange} out to all of them.
+ * <p>
+ * A listener that throws is not allowed to stop the remaining listeners from being told about the change.
+ * </p>
+ */
+public class StorageChangePublisher {
+    private final List<StorageListener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(StorageListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(StorageListener listener) {
+        listeners.remove(listener);
+    }
+
+    public boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    public void publish(StorageChange change) {
+        for (StorageListener listener : listeners) {
+            try {
+                listener.onChange(change);
+            } catch (RuntimeException e) {
+                System.err.println("Storage listener failed to handle " + change.type() + " of " + change.id()
+                        + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Tells every listener that no more changes will be published to it.
+     * @param reason why changes stopped being published
+     */
+    public void stop(Exception reason) {
+        for (StorageListener listener : listeners) {
+            try {
+                listener.onStopped(reason);
+            } catch (RuntimeException e) {
+                System.err.println("Storage listener failed to handle being stopped: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package uni.S257123.storage.events;
+
+/**
+ * Receives a {@link StorageChange} every time a row is inserted, updated or deleted in a storage backend it has been
+ * registered with.
+ * <p>
+ * Listeners may be called from a background thread (e.g. a database change stream), so any UI work should be handed
+ * back to the UI's own thread.
+ * </p>
+ *
+ * @see uni.S257123.storage.interfaces.Storage#addListener(StorageListener)
+ */
+@FunctionalInterface
+public interface StorageListener {
+    void onChange(StorageChange change);
+
+    /**
+     * Called once if the storage can no longer tell this listener about changes, e.g. because the database doesn't
+     * support the change streams they are read from. By default the reason is printed to standard error.
+     * @param reason why no more changes will be reported
+     */
+    default void onStopped(Exception reason) {
+        System.err.println("No longer being told about storage changes: " + reason.getMessage());
+    }
+}
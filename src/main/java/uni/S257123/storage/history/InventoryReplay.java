@@ -0,0 +1,215 @@
+package uni.S257123.storage.history;
+
+import uni.S257123.models.CSV;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Rebuilds the items from the transactions, which form a log of every change made to them.
+ * <p>
+ * Each transaction records the whole state of its item after the change, not just what changed, so replaying the log
+ * only has to keep the latest transaction of each item, dropping items whose latest transaction is a deletion. That
+ * also means the log can be split up and each part replayed on its own, which {@link #verify} uses to check a whole
+ * log in parallel.
+ * </p>
+ * <p>
+ * Transactions are expected in the order they happened. The items come out in the order they were first added, which
+ * is the order they are kept in the items file.
+ * </p>
+ */
+public class InventoryReplay {
+    /**
+     * The headers of the rebuilt items, matching the items file
+     */
+    public static final List<String> ITEM_HEADERS = List.of("id", "description", "unitPrice", "qtyInStock",
+            "totalPrice");
+
+    /**
+     * The fields of the rebuilt items, shared with every item read from the items file
+     */
+    private static final Set<String> ITEM_FIELDS = new CSV(List.of("", "", "0", "0", "0"), ITEM_HEADERS).definedFields;
+
+    /**
+     * The most mismatches described in a {@link ReplayVerification}
+     */
+    private static final int MAX_EXAMPLES = 20;
+
+    /**
+     * The latest state of each item, as either its latest transaction or an item it was started from. Transactions
+     * are only turned into items once the replay is finished, so items changed many times are only converted once
+     */
+    private final Map<String, CSV> latest = new LinkedHashMap<>();
+    private long replayed = 0;
+
+    public InventoryReplay() {
+    }
+
+    /**
+     * Continues a replay from a known state, such as a saved checkpoint.
+     * @param items the items as they were after the last transaction already replayed
+     */
+    public InventoryReplay(Collection<CSV> items) {
+        for (CSV item : items) {
+            latest.put(item.id, item);
+        }
+    }
+
+    /**
+     * Applies the next transaction of the log.
+     */
+    public void apply(CSV transaction) {
+        if ("deleted".equals(transaction.transactionType)) {
+            latest.remove(transaction.id);
+        } else {
+            latest.put(transaction.id, transaction);
+        }
+        replayed++;
+    }
+
+    /**
+     * @return how many transactions have been applied
+     */
+    public long replayed() {
+        return replayed;
+    }
+
+    /**
+     * @return how many items there are after the transactions applied so far
+     */
+    public int size() {
+        return latest.size();
+    }
+
+    /**
+     * @return the items as they are after the transactions applied so far, in the order they were first added
+     */
+    public List<CSV> items() {
+        List<CSV> items = new ArrayList<>(latest.size());
+        for (CSV state : latest.values()) {
+            items.add(toItem(state));
+        }
+        return items;
+    }
+
+    /**
+     * Turns a transaction into the item it describes. The stock left is called stockRemaining in the transactions
+     * file, but qtyInStock in MongoDB and in items, so either is accepted.
+     * @param state a transaction, or an item (which is returned as it is)
+     */
+    public static CSV toItem(CSV state) {
+        if (state.transactionType == null) {
+            return state;
+        }
+        CSV item = new CSV(ITEM_FIELDS);
+        item.id = state.id;
+        item.description = state.description;
+        item.unitPrice = state.unitPrice;
+        item.qtyInStock = state.stockRemaining != null ? state.stockRemaining : state.qtyInStock;
+        // Worked out the same way as when an item is read from the items file
+        item.totalPrice = item.qtyInStock * item.unitPrice;
+        return item;
+    }
+
+    /**
+     * Checks that replaying the whole log gives exactly the items that are stored.
+     * <p>
+     * The log is split into one part per thread of the common {@link ForkJoinPool}, and each part finds the latest
+     * transaction of each item in it at the same time. The parts are then merged, keeping the later transaction of
+     * each item, and the survivors are compared against the items in parallel too.
+     * </p>
+     * @param transactions every transaction, in the order they happened
+     * @param items the items that are stored
+     * @return what was checked, and any items that don't match
+     */
+    public static ReplayVerification verify(List<CSV> transactions, List<CSV> items) {
+        int parts = Math.max(1, Math.min(ForkJoinPool.commonPool().getParallelism() * 4,
+                transactions.size() / 10_000 + 1));
+        Map<String, Integer> lastIndexes = IntStream.range(0, parts).parallel()
+                .mapToObj(part -> lastIndexes(transactions,
+                        (int) ((long) part * transactions.size() / parts),
+                        (int) ((long) (part + 1) * transactions.size() / parts)))
+                .reduce(InventoryReplay::mergeLastIndexes)
+                .orElseGet(HashMap::new);
+
+        AtomicLong mismatches = new AtomicLong();
+        ConcurrentLinkedQueue<String> examples = new ConcurrentLinkedQueue<>();
+        Set<String> storedIds = new HashSet<>(items.size() * 4 / 3 + 1);
+        for (CSV item : items) {
+            storedIds.add(item.id);
+        }
+        IntStream.range(0, items.size()).parallel().forEach(i -> {
+            CSV item = items.get(i);
+            Integer last = lastIndexes.get(item.id);
+            String problem = null;
+            if (last == null) {
+                problem = item.id + " is stored but has no transactions";
+            } else {
+                CSV transaction = transactions.get(last);
+                if ("deleted".equals(transaction.transactionType)) {
+                    problem = item.id + " is stored but was deleted on " + transaction.date;
+                } else if (!sameState(item, transaction)) {
+                    problem = item.id + " is stored as [" + item.toCSVFileOutput() + "] but its last transaction is ["
+                            + transaction.toCSVFileOutput() + "]";
+                }
+            }
+            if (problem != null) {
+                recordProblem(problem, mismatches, examples);
+            }
+        });
+        lastIndexes.entrySet().parallelStream()
+                .filter(entry -> !storedIds.contains(entry.getKey()))
+                .filter(entry -> !"deleted".equals(transactions.get(entry.getValue()).transactionType))
+                .forEach(entry -> recordProblem(entry.getKey() + " was never deleted but isn't stored",
+                        mismatches, examples));
+        List<String> sortedExamples = new ArrayList<>(examples);
+        sortedExamples.sort(null);
+        return new ReplayVerification(transactions.size(), items.size(), mismatches.get(), sortedExamples);
+    }
+
+    /**
+     * Finds the index of the latest transaction of each item between the two indexes.
+     */
+    private static Map<String, Integer> lastIndexes(List<CSV> transactions, int from, int to) {
+        Map<String, Integer> lastIndexes = new HashMap<>();
+        for (int i = from; i < to; i++) {
+            lastIndexes.put(transactions.get(i).id, i);
+        }
+        return lastIndexes;
+    }
+
+    private static Map<String, Integer> mergeLastIndexes(Map<String, Integer> first, Map<String, Integer> second) {
+        Map<String, Integer> larger = first.size() >= second.size() ? first : second;
+        Map<String, Integer> smaller = larger == first ? second : first;
+        smaller.forEach((id, index) -> larger.merge(id, index, Math::max));
+        return larger;
+    }
+
+    /**
+     * Compares a stored item with its latest transaction, without turning the transaction into an item first. The
+     * total price of an item is always worked out from its unit price and stock, so it isn't compared separately.
+     */
+    private static boolean sameState(CSV stored, CSV transaction) {
+        Integer stock = transaction.stockRemaining != null ? transaction.stockRemaining : transaction.qtyInStock;
+        return Objects.equals(stored.description, transaction.description)
+                && Objects.equals(stored.unitPrice, transaction.unitPrice)
+                && Objects.equals(stored.qtyInStock, stock);
+    }
+
+    private static void recordProblem(String problem, AtomicLong mismatches, ConcurrentLinkedQueue<String> examples) {
+        if (mismatches.incrementAndGet() <= MAX_EXAMPLES) {
+            examples.add(problem);
+        }
+    }
+}
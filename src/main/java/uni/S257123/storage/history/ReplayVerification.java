@@ -0,0 +1,27 @@
+package uni.S257123.storage.history;
+
+import java.util.List;
+
+/**
+ * The result of checking that replaying the transactions gives the stored items.
+ *
+ * @param transactionsReplayed how many transactions were replayed
+ * @param itemsChecked how many stored items were compared
+ * @param mismatches how many items didn't match (stored but deleted or changed, or missing)
+ * @param examples descriptions of up to 20 of the mismatches
+ */
+public record ReplayVerification(long transactionsReplayed, long itemsChecked, long mismatches,
+                                 List<String> examples) {
+    /**
+     * @return whether every item matched
+     */
+    public boolean matches() {
+        return mismatches == 0;
+    }
+
+    @Override
+    public String toString() {
+        return (matches() ? "OK" : mismatches + " mismatches") + ": replayed " + transactionsReplayed
+                + " transactions against " + itemsChecked + " items";
+    }
+}
@@ -0,0 +1,418 @@
+package uni.S257123.storage.hybrid;
+
+import com.mongodb.MongoException;
+import org.apache.commons.lang3.tuple.Pair;
+import org.bson.types.ObjectId;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.database.DatabaseStorage;
+import uni.S257123.storage.events.StorageChange;
+import uni.S257123.storage.events.StorageListener;
+import uni.S257123.storage.history.ReplayVerification;
+import uni.S257123.storage.ids.IdFormat;
+import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.query.Condition;
+import uni.S257123.storage.query.Query;
+import uni.S257123.storage.text.TextStorage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A {@link DatabaseStorage} that keeps working offline: every read is served from a local replica of the database in
+ * text files, and every write is made to the replica straight away, then queued to be sent to the database in the
+ * background.
+ * <p>
+ * The replica is a {@link TextStorage} in a folder of its own (items.txt and transactions.txt), so reads cost what
+ * they do for the text storage whether or not the database can be reached. Beside it are kept the writes not yet sent
+ * (pending.log), the ids reserved for new items (ids.pool), how far through the database's changes the replica is
+ * (sync.properties) and the transactions pushed that haven't come back yet (pushed.log), so the program can stop and
+ * start again while offline without losing anything.
+ * </p>
+ * <p>
+ * Once {@link #start() started}, a background thread syncs with the database every {@code ims.sync.intervalMs}
+ * milliseconds (5000 by default), see {@link RemoteSync}: the queued writes are pushed in batches, and the changes
+ * made by everyone else are pulled from the collections' change streams, which need the database to be a replica set.
+ * A write that clashes with a change made in the database in the meantime is dropped in favour of the database's
+ * copy, and recorded in {@link #conflicts()}. While the database can't be reached, the rounds fail quietly and are
+ * tried again.
+ * </p>
+ * <p>
+ * New items are given ids from ranges reserved in advance from the database's id counter, the same one the
+ * {@link DatabaseStorage} uses, so ids made offline never clash with anyone else's. {@code ims.sync.reservedIds}
+ * (1000 by default) are kept reserved, and adding more items than that while offline fails until the database can be
+ * reached again.
+ * </p>
+ */
+public class HybridStorage implements Storage {
+    private static final long SYNC_INTERVAL_MS = Long.getLong("ims.sync.intervalMs", 5000);
+
+    private final TextStorage replica;
+    private final WriteQueue queue;
+    private final ReplicaIdAllocator ids;
+    private final RemoteSync sync;
+    /**
+     * Held to read the replica, and held exclusively to change it, by both the writes made here and the sync
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<SyncConflict> conflicts = new CopyOnWriteArrayList<>();
+    /**
+     * The changes the replica has made during the write in progress, or null outside of writes. Only used while
+     * holding the write lock
+     */
+    private List<StorageChange> captured;
+    /**
+     * The highest numeric id in the replica when it was first needed, or -1 before then
+     */
+    private long highestID = -1;
+    private volatile boolean online;
+    private boolean started;
+
+    /**
+     * Keeps a replica of a database in a folder.
+     * @param folder the folder holding the replica, created along with its files if it doesn't exist
+     * @param remote the database the replica is of
+     * @throws RuntimeException if the folder can't be created
+     */
+    public HybridStorage(Path folder, DatabaseStorage remote) {
+        Path itemsFile = folder.resolve("items.txt");
+        Path transactionsFile = folder.resolve("transactions.txt");
+        try {
+            Files.createDirectories(folder);
+            if (Files.notExists(itemsFile)) {
+                Files.writeString(itemsFile, "id,description,unitPrice,qtyInStock,totalPrice",
+                        StandardCharsets.UTF_8);
+            }
+            if (Files.notExists(transactionsFile)) {
+                Files.writeString(transactionsFile,
+                        "id,description,unitPrice,stockRemaining,totalPrice,transactionType,date",
+                        StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.ids = new ReplicaIdAllocator(folder.resolve("ids.pool"), IdFormat.configured());
+        this.replica = new TextStorage(itemsFile.toString(), transactionsFile.toString(), ids);
+        this.queue = new WriteQueue(folder.resolve("pending.log"), replica::getHeaders);
+        this.sync = new RemoteSync(remote.database(), replica, queue, ids, lock.writeLock(), this::highestID,
+                folder.resolve("sync.properties"), this::conflict);
+        replica.addListener(change -> {
+            if (captured != null) {
+                captured.add(change);
+            }
+        });
+    }
+
+    /**
+     * Starts syncing with the database in the background. Until then the replica is read and written on its own, and
+     * writes are only queued.
+     */
+    public synchronized void start() {
+        if (!started) {
+            started = true;
+            Thread.ofVirtual().name("replica-sync").start(this::syncForever);
+        }
+    }
+
+    private void syncForever() {
+        while (true) {
+            try {
+                syncNow();
+            } catch (RuntimeException e) {
+                System.err.println("Failed to sync the replica with the database: " + e);
+            }
+            try {
+                Thread.sleep(SYNC_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Syncs with the database straight away rather than waiting for the next round, e.g. before shutting down.
+     * @return whether the database could be reached
+     */
+    public boolean syncNow() {
+        try {
+            sync.run();
+            if (!online) {
+                System.out.println("The replica is in sync with the database");
+            }
+            online = true;
+        } catch (MongoException e) {
+            if (online) {
+                System.out.println("Lost the connection to the database, working offline: " + e.getMessage());
+            }
+            online = false;
+        }
+        return online;
+    }
+
+    /**
+     * @return how many writes haven't been sent to the database yet
+     */
+    public int pendingWrites() {
+        return queue.size();
+    }
+
+    /**
+     * @return every write dropped since starting because the item had also been changed in the database, oldest first
+     */
+    public List<SyncConflict> conflicts() {
+        return List.copyOf(conflicts);
+    }
+
+    private void conflict(SyncConflict conflict) {
+        conflicts.add(conflict);
+        System.err.println(conflict);
+    }
+
+    /**
+     * Finds the highest numeric id in the replica the first time it is needed, marking every id in it as used so the
+     * reserved ids already given out aren't given out again.
+     */
+    private long highestID() {
+        lock.writeLock().lock();
+        try {
+            if (highestID < 0) {
+                long highest = 0;
+                for (String target : replica.getSources()) {
+                    for (CSV row : replica.readPage(target, 0, Integer.MAX_VALUE)) {
+                        long id = IdFormat.parse(row.id);
+                        highest = Math.max(highest, id);
+                        ids.markUsed(id);
+                    }
+                }
+                highestID = highest;
+            }
+            return highestID;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reserves more ids before adding items if there aren't enough left. Called before taking the lock, so reads
+     * never wait on the database. While offline it is left to the sync, and the reserved ids that are left are used.
+     * @param needed how many ids the items being added need
+     */
+    private void reserveIds(int needed) {
+        if (needed == 0) {
+            return;
+        }
+        highestID(); // Marks the ids already in the replica as used, so the ones left are known
+        if (online && ids.available() < needed) {
+            try {
+                sync.reserveIds(needed);
+            } catch (MongoException e) {
+                System.err.println("Failed to reserve more ids: " + e.getMessage());
+            }
+        }
+    }
+
+    private <T> T read(Supplier<T> call) {
+        lock.readLock().lock();
+        try {
+            return call.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Makes a write to the replica, and queues what it changed to be sent to the database.
+     * @param id the id of the item being changed, or null if the write adds rows
+     */
+    private <T> T write(String id, Supplier<T> call) {
+        lock.writeLock().lock();
+        try {
+            highestID();
+            CSV base = id != null ? item(id) : null;
+            captured = new ArrayList<>();
+            T result = call.get();
+            queue.add(pendingWrites(captured, base));
+            return result;
+        } finally {
+            captured = null;
+            lock.writeLock().unlock();
+        }
+    }
+
+    private CSV item(String id) {
+        List<CSV> found = replica.query(Query.where("items", Condition.equalTo("id", id)).limitedTo(1));
+        return found.isEmpty() ? null : found.getFirst();
+    }
+
+    /**
+     * Groups the changes made by a write into one {@link PendingWrite} per item, each with its transactions.
+     * @param base the item as it was before the write, if one item was changed
+     */
+    private static List<PendingWrite> pendingWrites(List<StorageChange> changes, CSV base) {
+        Map<String, StorageChange> items = new LinkedHashMap<>();
+        Map<String, List<PendingWrite.Transaction>> transactions = new LinkedHashMap<>();
+        for (StorageChange change : changes) {
+            if (change.target().equals("items")) {
+                items.put(change.id(), change);
+            } else {
+                transactions.computeIfAbsent(change.id(), id -> new ArrayList<>())
+                        .add(new PendingWrite.Transaction(new ObjectId().toHexString(), change.record()));
+            }
+        }
+        List<PendingWrite> writes = new ArrayList<>(Math.max(items.size(), transactions.size()));
+        for (StorageChange change : items.values()) {
+            List<PendingWrite.Transaction> itemTransactions = transactions.remove(change.id());
+            // Deleted rows are published with no stock, so the row as it was is kept instead
+            CSV item = change.type() == StorageChange.Type.DELETED ? base : change.record();
+            writes.add(new PendingWrite(change.type(), item,
+                    change.type() == StorageChange.Type.INSERTED ? null : base,
+                    itemTransactions != null ? itemTransactions : List.of()));
+        }
+        for (List<PendingWrite.Transaction> rest : transactions.values()) {
+            writes.add(new PendingWrite(null, null, null, rest));
+        }
+        return writes;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public List<String> getSources() {
+        return read(replica::getSources);
+    }
+
+    @Override
+    public List<String> getHeaders(String target) {
+        return read(() -> replica.getHeaders(target));
+    }
+
+    @Override
+    public boolean addRecord(List<String> parameters, String target, String transactionType) {
+        reserveIds(target.equals("items") ? 1 : 0);
+        return write(null, () -> replica.addRecord(parameters, target, transactionType));
+    }
+
+    @Override
+    public boolean addRecord(List<String> parameters, String target) {
+        reserveIds(target.equals("items") ? 1 : 0);
+        return write(null, () -> replica.addRecord(parameters, target));
+    }
+
+    @Override
+    public boolean addRecords(List<List<String>> rows, String target) {
+        reserveIds(target.equals("items") ? rows.size() : 0);
+        return write(null, () -> replica.addRecords(rows, target));
+    }
+
+    @Override
+    public void updateRecord(List<String> recordInfo) {
+        write(recordInfo.getFirst(), () -> {
+            replica.updateRecord(recordInfo);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteRecord(String id) {
+        write(id, () -> {
+            replica.deleteRecord(id);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Read as one page of every row of the replica, as the text storage reads the file at a path rather than a
+     * datasource here.
+     * </p>
+     */
+    @Override
+    public List<CSV> readContents(String target) {
+        return read(() -> replica.readPage(target, 0, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public List<CSV> readPage(String target, int offset, int limit) {
+        return read(() -> replica.readPage(target, offset, limit));
+    }
+
+    @Override
+    public void forEachRecord(String target, Consumer<CSV> action) {
+        read(() -> {
+            replica.forEachRecord(target, action);
+            return null;
+        });
+    }
+
+    @Override
+    public List<CSV> searchRecord(String target, Pair<String, String> propertyNameValuePair) {
+        return read(() -> replica.searchRecord(target, propertyNameValuePair));
+    }
+
+    @Override
+    public List<CSV> query(Query query) {
+        return read(() -> replica.query(query));
+    }
+
+    @Override
+    public List<CSV> transactionHistory(String id) {
+        return read(() -> replica.transactionHistory(id));
+    }
+
+    @Override
+    public List<CSV> itemsAsOf(LocalDate date) {
+        return read(() -> replica.itemsAsOf(date));
+    }
+
+    @Override
+    public CSV itemAsOf(String id, LocalDate date) {
+        return read(() -> replica.itemAsOf(id, date));
+    }
+
+    @Override
+    public ReplayVerification verifyTransactionLog() {
+        return read(replica::verifyTransactionLog);
+    }
+
+    @Override
+    public List<CSV> searchDescriptions(String text, int limit) {
+        return read(() -> replica.searchDescriptions(text, limit));
+    }
+
+    @Override
+    public List<String> getIDs() {
+        return read(replica::getIDs);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Listeners are told about the writes made here, and about the changes pulled from the database as the replica
+     * catches up with them.
+     * </p>
+     */
+    @Override
+    public void addListener(StorageListener listener) {
+        replica.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(StorageListener listener) {
+        replica.removeListener(listener);
+    }
+}
@@ -0,0 +1,75 @@
+package uni.S257123.storage.hybrid;
+
+import uni.S257123.models.CSV;
+import uni.S257123.storage.events.StorageChange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A write made to a replica that hasn't reached the database yet: the change to one item, and the transactions
+ * recorded along with it.
+ *
+ * @param type whether the item was inserted, updated or deleted, or null if only transactions were added
+ * @param item the item as it is after the write. For deletions, the item as it was before it was deleted
+ * @param base the item as it was before the write, which the database's copy must still match for the write to be
+ *             made there. Null for inserted items
+ * @param transactions the transactions recorded by the write
+ */
+record PendingWrite(StorageChange.Type type, CSV item, CSV base, List<Transaction> transactions) {
+    /**
+     * A transaction recorded by a write.
+     *
+     * @param objectId the ObjectId the transaction is stored under in the database, picked when the write is made so
+     *                 that sending it twice (e.g. after losing the connection part way through) stores it once
+     * @param row the transaction
+     */
+    record Transaction(String objectId, CSV row) {
+    }
+
+    /**
+     * @return the id of the item written, or of the item the transactions are of
+     */
+    String id() {
+        return item != null ? item.id : transactions.getFirst().row().id;
+    }
+
+    /**
+     * Writes the write as one line of tab separated fields, as neither ids nor the rows' values hold tabs.
+     */
+    String toLine() {
+        StringBuilder line = new StringBuilder();
+        line.append(type != null ? type.name() : "-")
+                .append('\t').append(item != null ? item.toCSVFileOutput() : "-")
+                .append('\t').append(base != null ? base.toCSVFileOutput() : "-");
+        for (Transaction transaction : transactions) {
+            line.append('\t').append(transaction.objectId()).append('=').append(transaction.row().toCSVFileOutput());
+        }
+        return line.toString();
+    }
+
+    /**
+     * Reads a write back from a line written by {@link #toLine()}.
+     * @param headers the headers of the rows of each datasource
+     * @throws RuntimeException if the line isn't a whole write, e.g. as the program stopped while writing it
+     */
+    static PendingWrite fromLine(String line, Function<String, List<String>> headers) {
+        String[] fields = line.split("\t");
+        List<Transaction> transactions = new ArrayList<>(fields.length - 3);
+        for (int i = 3; i < fields.length; i++) {
+            String[] transaction = fields[i].split("=", 2);
+            transactions.add(new Transaction(transaction[0], row(transaction[1], headers.apply("transactions"))));
+        }
+        return new PendingWrite(
+                fields[0].equals("-") ? null : StorageChange.Type.valueOf(fields[0]),
+                fields[1].equals("-") ? null : row(fields[1], headers.apply("items")),
+                fields[2].equals("-") ? null : row(fields[2], headers.apply("items")),
+                transactions);
+    }
+
+    private static CSV row(String text, List<String> headers) {
+        return new CSV(Arrays.asList(text.split(",")), headers);
+    }
+}
@@ -0,0 +1,131 @@
+package uni.S257123.storage.hybrid;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The ObjectIds of the transactions a replica pushed to the database that haven't come back through the change stream
+ * yet, so they aren't added to the replica a second time. Saved in a file next to the replica, as they can still come
+ * back after a restart.
+ * <p>
+ * Every ObjectId pushed and every one that comes back is appended to the file as a line of its own ("+" or "-" then
+ * the ObjectId), so saving costs about as much as what changed, rather than writing out every ObjectId remembered.
+ * The file is only rewritten with just the ObjectIds still remembered once most of its lines are about ones that
+ * aren't, which keeps it from growing without end.
+ * </p>
+ */
+final class PushedTransactions {
+    /**
+     * The most ObjectIds remembered, in case some never come back. The oldest are forgotten first
+     */
+    private static final int REMEMBERED = 100_000;
+    /**
+     * The fewest lines the file is rewritten at, so a small file isn't rewritten over and over
+     */
+    private static final int COMPACT_LINES = 10_000;
+
+    private final Path file;
+    private final Set<String> objectIds = new LinkedHashSet<>();
+    /**
+     * The lines not yet appended to the file
+     */
+    private final List<String> unsaved = new ArrayList<>();
+    private int fileLines = 0;
+
+    /**
+     * @param file the file the ObjectIds are saved in, read if it exists
+     */
+    PushedTransactions(Path file) {
+        this.file = file;
+        try {
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    fileLines++;
+                    // A line cut short by the program stopping is ignored, as it was never saved
+                    if (line.length() == 25 && line.charAt(0) == '+') {
+                        remember(line.substring(1));
+                    } else if (line.length() == 25 && line.charAt(0) == '-') {
+                        objectIds.remove(line.substring(1));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Remembers a transaction as pushed, until it is {@link #save() saved}.
+     * @param objectId the transaction's ObjectId, as hex
+     */
+    synchronized void add(String objectId) {
+        remember(objectId);
+        unsaved.add("+" + objectId);
+    }
+
+    /**
+     * Forgets a transaction once it has come back, until it is {@link #save() saved}.
+     * @param objectId the transaction's ObjectId, as hex
+     * @return whether the transaction was pushed from here
+     */
+    synchronized boolean remove(String objectId) {
+        if (!objectIds.remove(objectId)) {
+            return false;
+        }
+        unsaved.add("-" + objectId);
+        return true;
+    }
+
+    /**
+     * Appends the changes since the last save to the file, or rewrites it if it has grown well past what is
+     * remembered.
+     * @throws RuntimeException if an IOException occurs while writing the file
+     */
+    synchronized void save() {
+        if (unsaved.isEmpty()) {
+            return;
+        }
+        try {
+            if (fileLines + unsaved.size() > Math.max(COMPACT_LINES, objectIds.size() * 2)) {
+                Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+                try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    for (String objectId : objectIds) {
+                        writer.write("+" + objectId);
+                        writer.newLine();
+                    }
+                }
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                fileLines = objectIds.size();
+            } else {
+                try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (String line : unsaved) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                }
+                fileLines += unsaved.size();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        unsaved.clear();
+    }
+
+    private void remember(String objectId) {
+        objectIds.add(objectId);
+        if (objectIds.size() > REMEMBERED) {
+            // Replayed the same way when the file is read, so it needs no line of its own
+            objectIds.remove(objectIds.iterator().next());
+        }
+    }
+}
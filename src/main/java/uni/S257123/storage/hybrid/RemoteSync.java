@@ -0,0 +1,552 @@
+package uni.S257123.storage.hybrid;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.database.MongoIdAllocator;
+import uni.S257123.storage.events.StorageChange;
+import uni.S257123.storage.ids.BatchedIdAllocator;
+import uni.S257123.storage.ids.IdFormat;
+import uni.S257123.storage.text.TextStorage;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps a replica and the database it is a replica of in step, one {@link #run() round} at a time: writes queued in
+ * the replica are pushed to the database, then changes made in the database since the last round are pulled into the
+ * replica.
+ * <p>
+ * Writes are pushed in batches, each as one ordered bulk write. An update or delete only matches the database's copy
+ * of the item if it still has the values the replica's copy had before the write, so if anyone else has changed the
+ * item since the replica last pulled it, the write doesn't happen. When a bulk write doesn't match as many items as it
+ * should, the items are read back to find which writes were made. The database's copy wins any conflict: it replaces
+ * the replica's copy, the replica's write is dropped and reported as a {@link SyncConflict}, and the transactions the
+ * write recorded in the replica are taken back out of it. A write is only taken off the queue once it has been made,
+ * and both it and its transactions can safely be pushed again if the connection is lost part way through.
+ * </p>
+ * <p>
+ * Changes are pulled from the change stream of each collection, resuming after the last change pulled, whose resume
+ * token is saved in a file next to the replica. The first round, with no tokens saved, copies everything in the
+ * database into the replica instead, then replays the writes still queued on top. Changes to items that have writes
+ * queued are skipped, as pushing those writes finds out which copy wins. The transactions this replica pushed itself
+ * are recognised by their ObjectIds and skipped, which are saved in a file of their own until they come back, see
+ * {@link PushedTransactions}. The resume tokens are only saved when they move on.
+ * </p>
+ */
+final class RemoteSync {
+    /**
+     * How many queued writes are pushed in one bulk write, and how many changes are pulled from each change stream
+     * in one round, set by the {@code ims.sync.batchSize} system property
+     */
+    private static final int BATCH_SIZE = Integer.getInteger("ims.sync.batchSize", 500);
+    /**
+     * The fewest ids kept reserved for adding items offline, set by the {@code ims.sync.reservedIds} system property
+     */
+    private static final long RESERVED_IDS = Long.getLong("ims.sync.reservedIds", 1000);
+    /**
+     * The error MongoDB gives when a resume token is older than anything left in its oplog
+     */
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+    private final MongoDatabase database;
+    private final Map<String, MongoCollection<Document>> collections = new LinkedHashMap<>();
+    private final TextStorage replica;
+    private final WriteQueue queue;
+    private final ReplicaIdAllocator ids;
+    /**
+     * Held while changing the replica, so that nothing reads it half changed
+     */
+    private final Lock replicaLock;
+    /**
+     * Finds the highest id in the replica, for the id counter to start above
+     */
+    private final LongSupplier highestID;
+    private final Consumer<SyncConflict> conflicts;
+    private final Path stateFile;
+    /**
+     * The resume token of the last change pulled from each collection
+     */
+    private final Map<String, BsonDocument> resumeTokens = new HashMap<>();
+    /**
+     * The ObjectIds of the transactions pushed that haven't come back through the change stream yet
+     */
+    private final PushedTransactions pushedTransactions;
+    private final Object reserveLock = new Object();
+    private volatile MongoIdAllocator idCounter;
+
+    /**
+     * @param database the database holding the items and transactions collections, and the id counter
+     * @param replica the replica to keep in step with it
+     * @param queue the writes made to the replica that haven't been pushed yet
+     * @param ids the ids reserved for the replica to add items with
+     * @param replicaLock held while changing the replica
+     * @param highestID finds the highest id in the replica
+     * @param stateFile where the resume tokens are saved, read if it exists. The transactions pushed are saved next to
+     *                  it, in pushed.log
+     * @param conflicts told about every write dropped because the database's copy had changed
+     */
+    RemoteSync(MongoDatabase database, TextStorage replica, WriteQueue queue, ReplicaIdAllocator ids,
+               Lock replicaLock, LongSupplier highestID, Path stateFile, Consumer<SyncConflict> conflicts) {
+        this.database = database;
+        this.replica = replica;
+        this.queue = queue;
+        this.ids = ids;
+        this.replicaLock = replicaLock;
+        this.highestID = highestID;
+        this.stateFile = stateFile;
+        this.conflicts = conflicts;
+        this.pushedTransactions = new PushedTransactions(stateFile.resolveSibling("pushed.log"));
+        collections.put("items", database.getCollection("items"));
+        collections.put("transactions", database.getCollection("transactions"));
+        if (Files.exists(stateFile)) {
+            Properties state = new Properties();
+            try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+                state.load(reader);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            for (String target : collections.keySet()) {
+                String token = state.getProperty(target + ".resumeToken");
+                if (token != null) {
+                    resumeTokens.put(target, BsonDocument.parse(token));
+                }
+            }
+            // Saved along with the tokens by earlier versions
+            for (String objectId : state.getProperty("pushedTransactions", "").split(",")) {
+                if (!objectId.isEmpty()) {
+                    pushedTransactions.add(objectId);
+                }
+            }
+            pushedTransactions.save();
+        }
+    }
+
+    /**
+     * Runs one round: copies the database if it hasn't been yet, tops up the reserved ids, pushes the queued writes
+     * and pulls the database's changes.
+     * @throws com.mongodb.MongoException if the database can't be reached, in which case the round can just be run
+     * again later
+     */
+    synchronized void run() {
+        if (resumeTokens.size() < collections.size()) {
+            copyDatabase();
+        }
+        reserveIds(0);
+        while (push()) {
+            // Each push takes one batch, so carry on until the queue is empty
+        }
+        for (String target : collections.keySet()) {
+            // The tokens are dropped if a pull finds the database no longer has the changes after them
+            if (resumeTokens.containsKey(target)) {
+                pull(target);
+            }
+        }
+    }
+
+    /**
+     * Reserves more ids from the database's id counter if fewer than {@code ims.sync.reservedIds} are left, or fewer
+     * than are about to be needed. Also called before adding items, without holding the replica's lock.
+     * @param needed how many ids are about to be handed out
+     */
+    void reserveIds(long needed) {
+        long minimumID = idCounter == null ? highestID.getAsLong() + 1 : 0;
+        synchronized (reserveLock) {
+            if (idCounter == null) {
+                idCounter = new MongoIdAllocator(database.getCollection("counters"), "items", minimumID,
+                        IdFormat.configured(), BatchedIdAllocator.configuredBatchSize());
+            }
+            long wanted = Math.max(RESERVED_IDS, needed);
+            if (ids.available() < wanted) {
+                long start = idCounter.reserveRange(wanted);
+                ids.add(start, start + wanted);
+            }
+        }
+    }
+
+    /**
+     * Replaces the replica's rows with a copy of the database's, then replays the queued writes on top, which haven't
+     * been pushed yet. The change streams are opened first, so nothing made while copying is missed.
+     */
+    private void copyDatabase() {
+        Map<String, BsonDocument> tokens = new HashMap<>();
+        for (Map.Entry<String, MongoCollection<Document>> collection : collections.entrySet()) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = collection.getValue().watch()
+                    .cursor()) {
+                tokens.put(collection.getKey(), cursor.getResumeToken());
+            }
+        }
+        Map<String, List<CSV>> copies = new HashMap<>();
+        for (Map.Entry<String, MongoCollection<Document>> collection : collections.entrySet()) {
+            List<CSV> rows = new ArrayList<>();
+            for (Document document : collection.getValue().find()) {
+                rows.add(toRow(collection.getKey(), document));
+            }
+            copies.put(collection.getKey(), rows);
+        }
+        replicaLock.lock();
+        try {
+            for (Map.Entry<String, List<CSV>> copy : copies.entrySet()) {
+                replica.replaceContents(copy.getKey(), copy.getValue());
+            }
+            for (PendingWrite write : queue.peek(Integer.MAX_VALUE)) {
+                if (write.type() != null) {
+                    replica.replicate(new StorageChange("items", write.type(), write.item()));
+                }
+                for (PendingWrite.Transaction transaction : write.transactions()) {
+                    replica.replicate(new StorageChange("transactions", StorageChange.Type.INSERTED,
+                            transaction.row()));
+                }
+            }
+        } finally {
+            replicaLock.unlock();
+        }
+        resumeTokens.putAll(tokens);
+        saveState();
+    }
+
+    /**
+     * Pushes the oldest batch of queued writes to the database.
+     * @return whether there were any writes to push
+     */
+    private boolean push() {
+        List<PendingWrite> batch = queue.peek(BATCH_SIZE);
+        if (batch.isEmpty()) {
+            return false;
+        }
+        List<WriteModel<Document>> models = new ArrayList<>(batch.size());
+        // Which write of the batch each model is of, as writes of only transactions have no model
+        List<Integer> modelWrites = new ArrayList<>(batch.size());
+        int inserts = 0;
+        int matches = 0;
+        int deletes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            PendingWrite write = batch.get(i);
+            if (write.type() == null) {
+                continue;
+            }
+            switch (write.type()) {
+                case INSERTED -> {
+                    models.add(new InsertOneModel<>(itemDocument(write.item())));
+                    inserts++;
+                }
+                case UPDATED -> {
+                    models.add(new ReplaceOneModel<>(unchanged(write.base()), itemDocument(write.item())));
+                    matches++;
+                }
+                case DELETED -> {
+                    models.add(new DeleteOneModel<>(unchanged(write.base())));
+                    deletes++;
+                }
+            }
+            modelWrites.add(i);
+        }
+
+        int done = batch.size();
+        boolean allMade = true;
+        if (!models.isEmpty()) {
+            try {
+                BulkWriteResult result = collections.get("items").bulkWrite(models,
+                        new BulkWriteOptions().ordered(true));
+                allMade = result.getInsertedCount() == inserts && result.getMatchedCount() == matches
+                        && result.getDeletedCount() == deletes;
+            } catch (MongoBulkWriteException e) {
+                // The bulk write stops at the first write that fails, so the writes after it stay queued
+                allMade = false;
+                if (!e.getWriteErrors().isEmpty()) {
+                    done = modelWrites.get(e.getWriteErrors().getFirst().getIndex()) + 1;
+                }
+            }
+        }
+        List<PendingWrite> pushed = batch.subList(0, done);
+        Set<String> conflicted = allMade ? Set.of() : resolveConflicts(pushed);
+
+        List<Document> transactions = new ArrayList<>();
+        // The transactions of dropped writes, which the replica recorded when the writes were made
+        List<CSV> dropped = new ArrayList<>();
+        for (PendingWrite write : pushed) {
+            for (PendingWrite.Transaction transaction : write.transactions()) {
+                if (conflicted.contains(write.id())) {
+                    dropped.add(transaction.row());
+                } else {
+                    transactions.add(transactionDocument(transaction));
+                }
+            }
+        }
+        if (!dropped.isEmpty()) {
+            // Otherwise the replica's transactions would no longer replay to its items, nor match the database's
+            replicaLock.lock();
+            try {
+                replica.removeRows("transactions", dropped);
+            } finally {
+                replicaLock.unlock();
+            }
+        }
+        if (!transactions.isEmpty()) {
+            try {
+                collections.get("transactions").insertMany(transactions, new InsertManyOptions().ordered(false));
+            } catch (MongoBulkWriteException e) {
+                // Transactions already there were pushed before the connection was lost last time
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                        throw e;
+                    }
+                }
+            }
+            for (Document transaction : transactions) {
+                pushedTransactions.add(transaction.getObjectId("_id").toHexString());
+            }
+            // Saved before the writes are taken off the queue, so they are recognised when they come back
+            pushedTransactions.save();
+        }
+        queue.remove(done);
+        return true;
+    }
+
+    /**
+     * Reads back the items written by a batch that didn't all match, and compares each with what the replica has.
+     * Where they differ, the database's copy replaces the replica's.
+     * @param pushed the writes of the batch that were tried, in order
+     * @return the ids of the items whose writes were dropped
+     */
+    private Set<String> resolveConflicts(List<PendingWrite> pushed) {
+        // What each item should be after the writes, or null if it should have been deleted
+        Map<String, CSV> expected = new LinkedHashMap<>();
+        for (PendingWrite write : pushed) {
+            if (write.type() != null) {
+                expected.put(write.item().id, write.type() == StorageChange.Type.DELETED ? null : write.item());
+            }
+        }
+        List<Object> idValues = new ArrayList<>(expected.size());
+        for (String id : expected.keySet()) {
+            idValues.add(idValue(id));
+        }
+        Map<String, CSV> remote = new HashMap<>();
+        for (Document document : collections.get("items").find(Filters.in("_id", idValues))) {
+            CSV item = toRow("items", document);
+            remote.put(item.id, item);
+        }
+
+        Set<String> conflicted = new LinkedHashSet<>();
+        for (Map.Entry<String, CSV> item : expected.entrySet()) {
+            CSV local = item.getValue();
+            CSV stored = remote.get(item.getKey());
+            if (local == null ? stored == null
+                    : stored != null && local.toCSVFileOutput().equals(stored.toCSVFileOutput())) {
+                continue;
+            }
+            conflicted.add(item.getKey());
+            replicaLock.lock();
+            try {
+                replica.replicate(stored != null
+                        ? new StorageChange("items", StorageChange.Type.UPDATED, stored)
+                        : new StorageChange("items", StorageChange.Type.DELETED, local));
+            } finally {
+                replicaLock.unlock();
+            }
+            conflicts.accept(new SyncConflict(item.getKey(), local, stored));
+        }
+        return conflicted;
+    }
+
+    /**
+     * Pulls up to a batch of the changes made to a collection since the last ones pulled into the replica.
+     */
+    private void pull(String target) {
+        BsonDocument pulledFrom = resumeTokens.get(target);
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = collections.get(target).watch()
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .resumeAfter(resumeTokens.get(target))
+                .maxAwaitTime(1, TimeUnit.SECONDS)
+                .cursor()) {
+            ChangeStreamDocument<Document> change;
+            for (int i = 0; i < BATCH_SIZE && (change = cursor.tryNext()) != null; i++) {
+                apply(target, change);
+                // Moved on after each change, so the ObjectIds forgotten by apply are saved along with it
+                resumeTokens.put(target, cursor.getResumeToken());
+            }
+            if (cursor.getResumeToken() != null) {
+                resumeTokens.put(target, cursor.getResumeToken());
+            }
+        } catch (MongoCommandException e) {
+            if (e.getErrorCode() != CHANGE_STREAM_HISTORY_LOST) {
+                throw e;
+            }
+            // Too long offline for the database to still have every change, so it is copied again next round
+            System.err.println("The replica has missed too many changes to " + target + ", so it will be copied "
+                    + "from the database again");
+            resumeTokens.clear();
+        } finally {
+            // Only written when something moved on, rather than every round. The token is saved first, as a pushed
+            // transaction remembered after it came back only takes up room, while one forgotten too soon is added twice
+            if (!Objects.equals(pulledFrom, resumeTokens.get(target))) {
+                saveState();
+            }
+            pushedTransactions.save();
+        }
+    }
+
+    private void apply(String target, ChangeStreamDocument<Document> change) {
+        StorageChange storageChange = null;
+        if (change.getDocumentKey() == null) {
+            // Not a change to one document, e.g. the collection being dropped
+            return;
+        }
+        if (target.equals("items")) {
+            String id = idString(change.getDocumentKey().get("_id"));
+            if (queue.touches(id)) {
+                return;
+            }
+            switch (change.getOperationType()) {
+                case INSERT, UPDATE, REPLACE -> {
+                    // Updates to documents deleted since have nothing to look up, and their deletion follows
+                    if (change.getFullDocument() != null) {
+                        storageChange = new StorageChange(target, StorageChange.Type.UPDATED,
+                                toRow(target, change.getFullDocument()));
+                    }
+                }
+                case DELETE -> storageChange = new StorageChange(target, StorageChange.Type.DELETED,
+                        new CSV(List.of(id), List.of("id")));
+                default -> {
+                }
+            }
+        } else if (change.getFullDocument() != null && change.getOperationType() == OperationType.INSERT
+                && !pushedTransactions.remove(idString(change.getDocumentKey().get("_id")))) {
+            storageChange = new StorageChange(target, StorageChange.Type.INSERTED,
+                    toRow(target, change.getFullDocument()));
+        }
+        if (storageChange != null) {
+            replicaLock.lock();
+            try {
+                replica.replicate(storageChange);
+            } finally {
+                replicaLock.unlock();
+            }
+        }
+    }
+
+    private void saveState() {
+        Properties state = new Properties();
+        for (Map.Entry<String, BsonDocument> token : resumeTokens.entrySet()) {
+            state.setProperty(token.getKey() + ".resumeToken", token.getValue().toJson());
+        }
+        try {
+            Path tempFile = stateFile.resolveSibling(stateFile.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                state.store(writer, "Where the replica is up to in each collection's change stream");
+            }
+            Files.move(tempFile, stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return a filter matching the item only while it still has the values it had in the replica
+     */
+    private static Bson unchanged(CSV base) {
+        return Filters.and(
+                Filters.eq("_id", idValue(base.id)),
+                Filters.eq("description", base.description),
+                Filters.eq("unitPrice", base.unitPrice),
+                Filters.eq("qtyInStock", base.qtyInStock));
+    }
+
+    private static Document itemDocument(CSV item) {
+        return new Document("_id", idValue(item.id))
+                .append("description", item.description)
+                .append("unitPrice", item.unitPrice)
+                .append("qtyInStock", item.qtyInStock)
+                .append("totalPrice", item.totalPrice);
+    }
+
+    private static Document transactionDocument(PendingWrite.Transaction transaction) {
+        CSV row = transaction.row();
+        return new Document("_id", new ObjectId(transaction.objectId()))
+                .append("id", idValue(row.id))
+                .append("description", row.description)
+                .append("unitPrice", row.unitPrice)
+                .append("qtyInStock", row.stockRemaining)
+                .append("totalPrice", row.totalPrice)
+                .append("transactionType", row.transactionType)
+                .append("date", row.date);
+    }
+
+    /**
+     * Converts a document into a row with the replica's headers. Items' ids are their _id, and the stock of
+     * transactions is kept in qtyInStock in the database but stockRemaining in the files.
+     */
+    private CSV toRow(String target, Document document) {
+        List<String> headers = replica.getHeaders(target);
+        List<String> values = new ArrayList<>(headers.size());
+        for (String header : headers) {
+            Object value = document.get(switch (header) {
+                case "id" -> target.equals("items") ? "_id" : "id";
+                case "stockRemaining" -> "qtyInStock";
+                default -> header;
+            });
+            values.add(switch (header) {
+                case "qtyInStock", "stockRemaining" -> value instanceof Number number
+                        ? Integer.toString(number.intValue()) : "0";
+                case "unitPrice", "totalPrice" -> value instanceof Number number
+                        ? Double.toString(number.doubleValue()) : "0.0";
+                default -> value != null ? value.toString() : "";
+            });
+        }
+        return new CSV(values, headers);
+    }
+
+    /**
+     * Items added before ids were allocated by {@link MongoIdAllocator} use MongoDB's own ObjectIds, so ids that are
+     * valid ObjectIds are stored as them, as the database storage does.
+     */
+    private static Object idValue(String id) {
+        return ObjectId.isValid(id) ? new ObjectId(id) : id;
+    }
+
+    private static String idString(BsonValue id) {
+        if (id.isObjectId()) {
+            return id.asObjectId().getValue().toHexString();
+        }
+        return id.isString() ? id.asString().getValue() : id.toString();
+    }
+}
@@ -0,0 +1,123 @@
+package uni.S257123.storage.hybrid;
+
+import uni.S257123.storage.ids.IdAllocator;
+import uni.S257123.storage.ids.IdFormat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out the ids of items added to a replica, from ranges reserved in advance from the database's id counter, so
+ * items can be added while offline without ever being given an id another client of the database also makes.
+ * <p>
+ * The ranges are saved in a small file next to the replica each time one is reserved. Which ids have been handed out
+ * isn't saved, as that would mean writing the file for every new item. Instead, every id already in the replica is
+ * {@link #markUsed(long) marked as used} before the first id is handed out, as each id handed out is written to the
+ * replica's transactions before anything else.
+ * </p>
+ * <p>
+ * Handing out an id never waits on the database. More ids are reserved by the sync, and by the replica before it
+ * adds items, while it isn't holding its lock.
+ * </p>
+ */
+final class ReplicaIdAllocator implements IdAllocator {
+    private final Path poolFile;
+    private final IdFormat format;
+    /**
+     * The ranges not yet used up, oldest first, each the next id to hand out and the end of the range (exclusive)
+     */
+    private final List<long[]> ranges = new ArrayList<>();
+
+    /**
+     * @param poolFile the file the reserved ranges are saved in, read if it exists
+     * @param format how ids are formatted as strings
+     */
+    ReplicaIdAllocator(Path poolFile, IdFormat format) {
+        this.poolFile = poolFile;
+        this.format = format;
+        try {
+            if (Files.exists(poolFile)) {
+                for (String line : Files.readAllLines(poolFile, StandardCharsets.UTF_8)) {
+                    String[] range = line.split(",");
+                    if (range.length == 2) {
+                        ranges.add(new long[]{Long.parseLong(range[0]), Long.parseLong(range[1])});
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * @throws IllegalStateException if every reserved id has been handed out, e.g. as the database can't be reached
+     * to reserve more
+     */
+    @Override
+    public synchronized String nextID() {
+        while (!ranges.isEmpty()) {
+            long[] range = ranges.getFirst();
+            if (range[0] < range[1]) {
+                return format.format(range[0]++);
+            }
+            ranges.removeFirst();
+        }
+        throw new IllegalStateException("Every id reserved for adding items offline has been used, "
+                + "reconnect to the database to reserve more");
+    }
+
+    /**
+     * @return how many ids are left to hand out
+     */
+    synchronized long available() {
+        long available = 0;
+        for (long[] range : ranges) {
+            available += range[1] - range[0];
+        }
+        return available;
+    }
+
+    /**
+     * Adds a newly reserved range of ids, saving it straight away.
+     * @param start the first id of the range
+     * @param end the id after the last one
+     */
+    synchronized void add(long start, long end) {
+        ranges.add(new long[]{start, end});
+        save();
+    }
+
+    /**
+     * Stops an id found in the replica from being handed out again, along with the ids before it in its range, as
+     * they are handed out in order.
+     */
+    synchronized void markUsed(long id) {
+        for (long[] range : ranges) {
+            if (id >= range[0] && id < range[1]) {
+                range[0] = id + 1;
+            }
+        }
+    }
+
+    private void save() {
+        StringBuilder contents = new StringBuilder();
+        for (long[] range : ranges) {
+            if (range[0] < range[1]) {
+                contents.append(range[0]).append(',').append(range[1]).append('\n');
+            }
+        }
+        try {
+            Path tempFile = poolFile.resolveSibling(poolFile.getFileName() + ".tmp");
+            Files.writeString(tempFile, contents, StandardCharsets.UTF_8);
+            Files.move(tempFile, poolFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
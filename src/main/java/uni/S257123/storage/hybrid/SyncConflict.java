@@ -0,0 +1,20 @@
+package uni.S257123.storage.hybrid;
+
+import uni.S257123.models.CSV;
+
+/**
+ * An item that was changed both in a replica and in the database before the replica's change reached the database.
+ * The database's copy is kept, and the replica's change is dropped.
+ *
+ * @param id the id of the item
+ * @param local the item as the replica had changed it, or null if the replica deleted it
+ * @param remote the item as the database has it, which the replica now has too, or null if the database deleted it
+ */
+public record SyncConflict(String id, CSV local, CSV remote) {
+    @Override
+    public String toString() {
+        return "Item " + id + " was changed in the database too, so its change here ("
+                + (local != null ? local.toCSVFileOutput() : "deleted") + ") was replaced by the database's ("
+                + (remote != null ? remote.toCSVFileOutput() : "deleted") + ")";
+    }
+}
@@ -0,0 +1,191 @@
+package uni.S257123.storage.hybrid;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The writes made to a replica that haven't reached the database yet, oldest first, saved in a file so they survive
+ * the program stopping while offline.
+ * <p>
+ * New writes are appended to the file one line each. Once writes have reached the database, a line saying how many
+ * is appended too ("#pushed" then the count), and the writes it covers are skipped when the file is next read. Only
+ * once most of the file is writes that have been pushed, or the queue is empty, is it rewritten with just the writes
+ * left, next to the old one and moved over it. So pushing a long queue costs about as much as the queue, rather than
+ * writing out what is left of it after every batch. If the program stopped part way through appending a line, that
+ * line is skipped when the file is next read, as the write it holds never finished either (and a cut short count
+ * means its writes are pushed again, which is safe).
+ * </p>
+ */
+final class WriteQueue {
+    private static final String PUSHED = "#pushed ";
+    /**
+     * The fewest pushed writes the file is rewritten at, unless the queue is empty
+     */
+    private static final int COMPACT_WRITES = 10_000;
+
+    private final Path file;
+    private final Function<String, List<String>> headers;
+    /**
+     * Only read from the file on first use, as reading it needs the replica's headers, which wait for it to load
+     */
+    private Deque<PendingWrite> writes;
+    /**
+     * How many of the writes are of each item
+     */
+    private final Map<String, Integer> writesById = new HashMap<>();
+    /**
+     * How many writes in the file have been pushed, and are skipped when it is read
+     */
+    private int pushedInFile = 0;
+
+    /**
+     * @param file the file the writes are saved in, read if it exists
+     * @param headers the headers of the replica's rows, by datasource
+     */
+    WriteQueue(Path file, Function<String, List<String>> headers) {
+        this.file = file;
+        this.headers = headers;
+    }
+
+    private Deque<PendingWrite> writes() {
+        if (writes == null) {
+            writes = new ArrayDeque<>();
+            try {
+                if (Files.exists(file)) {
+                    for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                        if (line.startsWith(PUSHED)) {
+                            skipPushed(line);
+                            continue;
+                        }
+                        try {
+                            track(PendingWrite.fromLine(line, headers), 1);
+                        } catch (RuntimeException e) {
+                            System.err.println("Skipped an unfinished write in " + file + ": " + line);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return writes;
+    }
+
+    private void skipPushed(String line) {
+        int count;
+        try {
+            count = Integer.parseInt(line.substring(PUSHED.length()));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        for (int i = 0; i < count && !writes.isEmpty(); i++) {
+            track(writes.removeFirst(), -1);
+            pushedInFile++;
+        }
+    }
+
+    private void track(PendingWrite write, int count) {
+        if (count > 0) {
+            writes.addLast(write);
+        }
+        writesById.merge(write.id(), count, (a, b) -> a + b == 0 ? null : a + b);
+    }
+
+    /**
+     * Saves writes to the end of the queue.
+     */
+    synchronized void add(List<PendingWrite> newWrites) {
+        if (newWrites.isEmpty()) {
+            return;
+        }
+        writes();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (PendingWrite write : newWrites) {
+                writer.write(write.toLine());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for (PendingWrite write : newWrites) {
+            track(write, 1);
+        }
+    }
+
+    /**
+     * @return up to the limit of the oldest writes, which stay queued until {@link #remove(int) removed}
+     */
+    synchronized List<PendingWrite> peek(int limit) {
+        List<PendingWrite> oldest = new ArrayList<>(Math.min(limit, writes().size()));
+        Iterator<PendingWrite> iterator = writes.iterator();
+        while (oldest.size() < limit && iterator.hasNext()) {
+            oldest.add(iterator.next());
+        }
+        return oldest;
+    }
+
+    /**
+     * Removes the oldest writes, once they've reached the database, noting in the file that they have.
+     */
+    synchronized void remove(int count) {
+        writes();
+        int removed = 0;
+        for (; removed < count && !writes.isEmpty(); removed++) {
+            track(writes.removeFirst(), -1);
+        }
+        if (removed == 0) {
+            return;
+        }
+        pushedInFile += removed;
+        try {
+            if (writes.isEmpty() || pushedInFile >= Math.max(COMPACT_WRITES, writes.size())) {
+                Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+                try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    for (PendingWrite write : writes) {
+                        writer.write(write.toLine());
+                        writer.newLine();
+                    }
+                }
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                pushedInFile = 0;
+            } else {
+                try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.APPEND)) {
+                    writer.write(PUSHED + removed);
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return whether any queued write is of the item with this id
+     */
+    synchronized boolean touches(String id) {
+        writes();
+        return writesById.containsKey(id);
+    }
+
+    /**
+     * @return how many writes are queued
+     */
+    synchronized int size() {
+        return writes().size();
+    }
+}
@@ -0,0 +1,103 @@
+package uni.S257123.storage.ids;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An {@link IdAllocator} that reserves ids from persistent storage in blocks, then hands them out from memory.
+ * <p>
+ * Handing out an id from the current block is a single atomic increment, so threads never wait on each other unless
+ * the block has run out. Only then does one thread take a lock and reserve the next block, which is the only time the
+ * persistent counter gets written. Because a block is persisted before any of its ids are handed out, ids are never
+ * reused, though the unused end of a block is skipped if the program stops before using it.
+ * </p>
+ * <p>
+ * When ids are being used up quickly (e.g. by a bulk import), each block is made twice the size of the last, up to
+ * {@link #MAX_BATCH_SIZE}, so that the counter isn't being written thousands of times a second. The block size drops
+ * back to the configured size once ids are being used at a normal rate again.
+ * </p>
+ */
+public abstract class BatchedIdAllocator implements IdAllocator {
+    /**
+     * The block size used when the {@code ims.id.batchSize} system property is not set
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long MAX_BATCH_SIZE = 1 << 20;
+    // A block used up quicker than this causes the next block to be bigger
+    private static final long FAST_RESERVE_NANOS = 1_000_000_000L;
+
+    private final IdFormat format;
+    private final long batchSize;
+    private final AtomicReference<Block> currentBlock = new AtomicReference<>(new Block(0, 0));
+    private final Object reserveLock = new Object();
+    // Only accessed while holding reserveLock
+    private long nextBatchSize;
+    private long lastReserveNanos;
+
+    /**
+     * A reserved range of ids from start (inclusive) to end (exclusive)
+     */
+    private static final class Block {
+        final AtomicLong next;
+        final long end;
+
+        Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+
+    protected BatchedIdAllocator(IdFormat format, long batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1: " + batchSize);
+        }
+        this.format = format;
+        this.batchSize = batchSize;
+        this.nextBatchSize = batchSize;
+    }
+
+    /**
+     * @return the block size set by the {@code ims.id.batchSize} system property, or {@link #DEFAULT_BATCH_SIZE}
+     */
+    public static long configuredBatchSize() {
+        return Long.getLong("ims.id.batchSize", DEFAULT_BATCH_SIZE);
+    }
+
+    @Override
+    public String nextID() {
+        return format.format(nextNumericID());
+    }
+
+    /**
+     * @return the next id as a number, for callers that store ids numerically
+     */
+    public long nextNumericID() {
+        while (true) {
+            Block block = currentBlock.get();
+            long id = block.next.getAndIncrement();
+            if (id < block.end) {
+                return id;
+            }
+            synchronized (reserveLock) {
+                // Another thread may have already replaced the block while this one was waiting for the lock
+                if (currentBlock.get() == block) {
+                    long now = System.nanoTime();
+                    boolean usedUpQuickly = lastReserveNanos != 0 && now - lastReserveNanos < FAST_RESERVE_NANOS;
+                    nextBatchSize = usedUpQuickly ? Math.min(nextBatchSize * 2, Math.max(MAX_BATCH_SIZE, batchSize))
+                            : batchSize;
+                    lastReserveNanos = now;
+                    long start = reserveBlock(nextBatchSize);
+                    currentBlock.set(new Block(start, start + nextBatchSize));
+                }
+            }
+        }
+    }
+
+    /**
+     * Persistently reserves the next count ids, so that no later call (from this or any other process sharing the
+     * same storage) can reserve them again. Only ever called by one thread at a time.
+     * @param count the number of ids to reserve
+     * @return the first id of the reserved range, the range running up to (but not including) the start plus count
+     */
+    protected abstract long reserveBlock(long count);
+}
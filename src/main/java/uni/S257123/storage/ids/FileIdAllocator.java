@@ -0,0 +1,45 @@
+package uni.S257123.storage.ids;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A {@link BatchedIdAllocator} that persists the next unreserved id in a small text file alongside the data files.
+ * The file is replaced atomically each time a block is reserved, so a crash part way through a write can't lose it.
+ */
+public class FileIdAllocator extends BatchedIdAllocator {
+    private final Path counterFile;
+    private final long minimumID;
+
+    /**
+     * @param counterFile the file holding the next unreserved id, created when the first block is reserved
+     * @param minimumID the lowest id that may be handed out, used so that ids already in the data before the counter
+     *                  file existed are skipped
+     * @param format how ids are formatted as strings
+     * @param batchSize how many ids are reserved each time the counter file is written
+     */
+    public FileIdAllocator(Path counterFile, long minimumID, IdFormat format, long batchSize) {
+        super(format, batchSize);
+        this.counterFile = counterFile;
+        this.minimumID = minimumID;
+    }
+
+    @Override
+    protected long reserveBlock(long count) {
+        try {
+            long start = minimumID;
+            if (Files.exists(counterFile)) {
+                start = Math.max(start, Long.parseLong(Files.readString(counterFile, StandardCharsets.UTF_8).trim()));
+            }
+            Path tempFile = counterFile.resolveSibling(counterFile.getFileName() + ".tmp");
+            Files.writeString(tempFile, Long.toString(start + count), StandardCharsets.UTF_8);
+            Files.move(tempFile, counterFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return start;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package uni.S257123.storage.ids;
+
+/**
+ * Hands out the ids given to new items. Implementations must be safe to call from multiple threads, and must never
+ * hand out the same id twice, even after the item it was given to has been deleted or the program restarted.
+ */
+@FunctionalInterface
+public interface IdAllocator {
+    /**
+     * @return an id that has never been handed out before
+     */
+    String nextID();
+}
@@ -0,0 +1,55 @@
+package uni.S257123.storage.ids;
+
+/**
+ * How numeric ids are turned into strings.
+ *
+ * @param width the minimum number of characters in an id, filled with preceding zeros. A width of 0 leaves ids as
+ *              plain numbers. Ids that need more digits than the width are never cut short, so the width does not
+ *              cap how many ids can be made.
+ */
+public record IdFormat(int width) {
+    /**
+     * The width used when the {@code ims.id.width} system property is not set, matching the original 5 character ids
+     */
+    public static final int DEFAULT_WIDTH = 5;
+
+    public IdFormat {
+        if (width < 0) {
+            throw new IllegalArgumentException("ID width cannot be negative: " + width);
+        }
+    }
+
+    /**
+     * @return the format set by the {@code ims.id.width} system property, or {@link #DEFAULT_WIDTH} if it isn't set
+     */
+    public static IdFormat configured() {
+        return new IdFormat(Integer.getInteger("ims.id.width", DEFAULT_WIDTH));
+    }
+
+    public String format(long id) {
+        String digits = Long.toString(id);
+        if (digits.length() >= width) {
+            return digits;
+        }
+        StringBuilder padded = new StringBuilder(width);
+        padded.repeat('0', width - digits.length());
+        return padded.append(digits).toString();
+    }
+
+    /**
+     * Reads the numeric value of an id made by any width of this format.
+     * @param id the id to be read
+     * @return the number the id represents, or -1 if the id is not numeric (e.g. a MongoDB ObjectId)
+     */
+    public static long parse(String id) {
+        if (id == null || id.isEmpty() || id.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) {
+                return -1;
+            }
+        }
+        return Long.parseLong(id);
+    }
+}
@@ -0,0 +1,38 @@
+package uni.S257123.storage.ids;
+
+/**
+ * Hands out only the ids that leave one remainder when divided by the number of stripes, so that several storages can
+ * each make their own ids without ever making the same one, and which of them made an id can be told from the id
+ * alone (see {@link uni.S257123.storage.sharding.ShardedStorage}).
+ * <p>
+ * The ids are numbered by a {@link BatchedIdAllocator}, so the persisted counter is of how many ids this stripe has
+ * handed out rather than of the ids themselves, and handing one out stays a single atomic increment.
+ * </p>
+ */
+public class StripedIdAllocator implements IdAllocator {
+    private final BatchedIdAllocator counter;
+    private final int stripe;
+    private final int stripes;
+    private final IdFormat format;
+
+    /**
+     * @param counter numbers the ids of this stripe
+     * @param stripe the remainder every id leaves, from 0 to one less than the number of stripes
+     * @param stripes how many stripes the ids are split between
+     * @param format how ids are formatted as strings
+     */
+    public StripedIdAllocator(BatchedIdAllocator counter, int stripe, int stripes, IdFormat format) {
+        if (stripes < 1 || stripe < 0 || stripe >= stripes) {
+            throw new IllegalArgumentException("Stripe " + stripe + " is not one of " + stripes + " stripes");
+        }
+        this.counter = counter;
+        this.stripe = stripe;
+        this.stripes = stripes;
+        this.format = format;
+    }
+
+    @Override
+    public String nextID() {
+        return format.format(counter.nextNumericID() * stripes + stripe);
+    }
+}
@@ -1,9 +1,21 @@
 package uni.S257123.storage.interfaces;
 import org.apache.commons.lang3.tuple.Pair;
 import uni.S257123.models.CSV;
+import uni.S257123.storage.events.StorageListener;
+import uni.S257123.storage.history.InventoryReplay;
+import uni.S257123.storage.history.ReplayVerification;
+import uni.S257123.storage.query.Condition;
+import uni.S257123.storage.query.FieldType;
+import uni.S257123.storage.query.MemoryQueryPlan;
+import uni.S257123.storage.query.Query;
+import uni.S257123.storage.query.Sort;
+import uni.S257123.storage.search.DescriptionIndex;
 import uni.S257123.storage.text.TextStorage;
 
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Defines the storage layer for an Inventory Management System.
@@ -49,6 +61,26 @@ public interface Storage {
 
     boolean addRecord(List<String> parameters, String target);
 
+    /**
+     * Adds many records in one go, with the same effect as calling {@link #addRecord(List, String)} for each of them
+     * in order (including the "added" transaction of each item).
+     * <p>
+     * Used for bulk loads, where writing and re-reading the datasource for every single row would be far too slow.
+     * The default implementation simply adds the rows one at a time, so implementations should override it with a
+     * single batched write.
+     * </p>
+     * @param rows the parameters of each record, in the same form {@link #addRecord(List, String)} takes them
+     * @param target the datasource for the records to be added to, without its file extension
+     * @return true if every record was successfully added
+     */
+    default boolean addRecords(List<List<String>> rows, String target) {
+        boolean allAdded = true;
+        for (List<String> parameters : rows) {
+            allAdded &= addRecord(parameters, target);
+        }
+        return allAdded;
+    }
+
     /**
      * Takes in an ID along with a property and value to update, and the items data-store to change the associated
      * values.
@@ -75,6 +107,39 @@ public interface Storage {
      */
     List<CSV> readContents(String target);
 
+    /**
+     * Reads one page of rows from the provided datasource, in the same order as {@link #readContents(String)}.
+     * <p>
+     * Used by the UIs to page data in as it is needed, rather than holding every row of a large datasource at once.
+     * The default implementation falls back on {@link #readContents(String)}, so implementations that can seek
+     * directly to a row should override it.
+     * </p>
+     * @param target the datasource to be read from, missing any file extensions if applicable
+     * @param offset the index of the first row to return
+     * @param limit the maximum number of rows to return
+     * @return up to limit CSV objects starting at offset, or an empty list once offset passes the last row
+     */
+    default List<CSV> readPage(String target, int offset, int limit) {
+        List<CSV> rows = readContents(target);
+        int from = Math.min(offset, rows.size());
+        int to = Math.min(from + limit, rows.size());
+        return new ArrayList<>(rows.subList(from, to));
+    }
+
+    /**
+     * Passes every row of the provided datasource to the action in turn, in the same order as
+     * {@link #readContents(String)}, without building a list of all of them first.
+     * <p>
+     * Used to stream large datasources (e.g. for exports) in constant memory. The default implementation falls back
+     * on {@link #readContents(String)}, so implementations backed by a cursor should override it.
+     * </p>
+     * @param target the datasource to be read from, missing any file extensions if applicable
+     * @param action called once for each row
+     */
+    default void forEachRecord(String target, Consumer<CSV> action) {
+        readContents(target).forEach(action);
+    }
+
     /**
      * Searches a selected datasource to see if a certain value matches any pre-existing data for the specified property.
      * <p>
@@ -98,9 +163,151 @@ public interface Storage {
         return searchRecord("items", Pair.of("id", ""));
     }
 
+    /**
+     * Finds the rows of a datasource that meet a {@link Query}'s condition, sorted and limited as it asks.
+     * <p>
+     * Unlike {@link #searchRecord(String, Pair)}, a query can combine conditions on several fields with AND and OR,
+     * and compare numbers and dates as ranges. The default implementation checks every row from
+     * {@link #forEachRecord(String, Consumer)} against a {@link MemoryQueryPlan}, so implementations that can filter
+     * closer to the data should override it.
+     * </p>
+     * @param query what to search for
+     * @return the matching rows
+     * @throws IllegalArgumentException if the query names an unknown field, or has a value that can't be parsed as
+     * its field's type
+     */
+    default List<CSV> query(Query query) {
+        MemoryQueryPlan.Results results = MemoryQueryPlan.plan(query, List.of()).results();
+        forEachRecord(query.target(), results::accept);
+        return results.toList();
+    }
+
+    /**
+     * Finds every transaction of one item, in the order they happened, i.e. the item's full audit trail.
+     * <p>
+     * The default implementation queries the transactions for the exact id, which checks every transaction, so
+     * implementations that can look transactions up by id should override it.
+     * </p>
+     * @param id the id of the item
+     * @return the item's transactions, oldest first, or an empty list if it has none
+     */
+    default List<CSV> transactionHistory(String id) {
+        return query(Query.where("transactions", Condition.equalTo("id", id)));
+    }
+
+    /**
+     * Rebuilds the items as they were at the end of a day, by replaying the transactions up to then. Every transaction
+     * records the whole state of its item afterwards, so the transactions are a complete log of the items.
+     * <p>
+     * The default implementation replays every transaction, so implementations should override it to start from a
+     * saved snapshot part way through the log.
+     * </p>
+     * @param date the last day to include transactions from
+     * @return the items at the end of that day, in the order they were first added
+     */
+    default List<CSV> itemsAsOf(LocalDate date) {
+        int dateKey = FieldType.dateKey(date);
+        InventoryReplay replay = new InventoryReplay();
+        forEachRecord("transactions", transaction -> {
+            if (FieldType.dateKey(transaction.date) <= dateKey) {
+                replay.apply(transaction);
+            }
+        });
+        return replay.items();
+    }
+
+    /**
+     * Finds one item as it was at the end of a day, from its {@link #transactionHistory(String)}, e.g. to find how
+     * much stock it had then.
+     * @param id the id of the item
+     * @param date the last day to include transactions from
+     * @return the item at the end of that day, or null if it hadn't been added yet or had been deleted
+     */
+    default CSV itemAsOf(String id, LocalDate date) {
+        int dateKey = FieldType.dateKey(date);
+        CSV latest = null;
+        for (CSV transaction : transactionHistory(id)) {
+            if (FieldType.dateKey(transaction.date) > dateKey) {
+                break;
+            }
+            latest = transaction;
+        }
+        return latest == null || "deleted".equals(latest.transactionType) ? null : InventoryReplay.toItem(latest);
+    }
+
+    /**
+     * Checks that replaying every transaction gives exactly the items that are stored, e.g. after a crash or a manual
+     * edit of the files.
+     * @return what was checked, and any items that don't match
+     */
+    default ReplayVerification verifyTransactionLog() {
+        return InventoryReplay.verify(readPage("transactions", 0, Integer.MAX_VALUE),
+                readPage("items", 0, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Finds the first rows of a datasource in the given order, e.g. the 50 items with the highest total price, without
+     * sorting the whole datasource: only the best rows seen so far are kept while it is read, or the server sorts and
+     * limits them.
+     * @param target the datasource to read, without its file extension
+     * @param sort the order of the rows
+     * @param limit how many rows to return, at least 1
+     * @return at most the limit rows, in the given order
+     * @throws IllegalArgumentException if the sort names an unknown field, or the limit is less than 1
+     */
+    default List<CSV> top(String target, Sort sort, int limit) {
+        if (limit < 1) {
+            // A query limited to 0 isn't limited at all, which would sort the whole datasource
+            throw new IllegalArgumentException("The limit must be at least 1, not " + limit);
+        }
+        return query(Query.all(target).sortedBy(sort).limitedTo(limit));
+    }
+
+    /**
+     * Finds the items whose descriptions best match some text, the way a search box would, e.g. "blu bolt" finds
+     * "Blue Bolt" and "Bolt (Blue)" as well as "Bolts and blue nuts". Typos and unfinished words are allowed, and the
+     * closest and most relevant matches come first, see {@link DescriptionIndex}.
+     * <p>
+     * The default implementation indexes every item for each search, so implementations should override it to keep an
+     * index up to date as items change.
+     * </p>
+     * @param text the words to search for
+     * @param limit the most items to return
+     * @return the best matching items, best first
+     */
+    default List<CSV> searchDescriptions(String text, int limit) {
+        DescriptionIndex<CSV> index = new DescriptionIndex<>();
+        forEachRecord("items", item -> index.put(item.id, item.description, item));
+        return index.search(text, limit).matches();
+    }
+
+    /**
+     * Whether the storage can be called from several threads at once without the caller locking it, e.g. because it
+     * locks its own parts. Otherwise a {@link uni.S257123.storage.concurrent.StorageExecutor} only lets reads run
+     * together, and runs each write on its own.
+     * @return false by default, as the backends hold their rows in memory unguarded
+     */
+    default boolean isThreadSafe() {
+        return false;
+    }
+
     /**
      * Fetches the list of ID's from the storage location.
      * @return A list of strings where each string is one ID
      */
     List<String> getIDs();
+
+    /**
+     * Registers a listener to be told about every row that gets inserted, updated or deleted, so that a UI can patch
+     * its view of the data rather than re-reading it all. Where the backend supports it, this includes changes made
+     * by other processes.
+     * @param listener the listener to be called with each {@link uni.S257123.storage.events.StorageChange}
+     */
+    void addListener(StorageListener listener);
+
+    /**
+     * Stops a listener previously passed to {@link #addListener(StorageListener)} from receiving changes.
+     * @param listener the listener to be removed
+     */
+    void removeListener(StorageListener listener);
 }
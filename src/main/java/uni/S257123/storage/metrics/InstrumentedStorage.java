@@ -0,0 +1,175 @@
+package uni.S257123.storage.metrics;
+
+import org.apache.commons.lang3.tuple.Pair;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.events.StorageListener;
+import uni.S257123.storage.history.ReplayVerification;
+import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.query.Query;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Wraps any {@link Storage} so that every call is timed into {@link StorageMetrics}, per operation and per datasource.
+ * <p>
+ * Only the outside of each call is measured here, along with how many rows it returned. What happens inside (bytes
+ * read and written, rows scanned and cache hits) is counted by the backends themselves, as only they know.
+ * </p>
+ */
+public class InstrumentedStorage implements Storage {
+    private final Storage storage;
+
+    private InstrumentedStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Wraps the storage if metrics are enabled, otherwise returns it as it is so that there is no overhead at all.
+     * @param storage the backend to be measured
+     * @return the storage to use in its place
+     */
+    public static Storage wrap(Storage storage) {
+        return StorageMetrics.ENABLED ? new InstrumentedStorage(storage) : storage;
+    }
+
+    /**
+     * Runs the call, recording its latency, or an error if it throws.
+     */
+    private static <T> T timed(String operation, String target, Supplier<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } catch (RuntimeException e) {
+            StorageMetrics.recordError(operation, target);
+            throw e;
+        } finally {
+            StorageMetrics.recordLatency(operation, target, System.nanoTime() - start);
+        }
+    }
+
+    private static void timed(String operation, String target, Runnable call) {
+        timed(operation, target, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    private static List<CSV> countReturned(String target, List<CSV> rows) {
+        StorageMetrics.count(target, StorageCounter.ROWS_RETURNED, rows.size());
+        return rows;
+    }
+
+    @Override
+    public List<String> getSources() {
+        return storage.getSources();
+    }
+
+    @Override
+    public List<String> getHeaders(String target) {
+        return timed("getHeaders", target, () -> storage.getHeaders(target));
+    }
+
+    @Override
+    public boolean addRecord(List<String> parameters, String target, String transactionType) {
+        return timed("addRecord", target, () -> storage.addRecord(parameters, target, transactionType));
+    }
+
+    @Override
+    public boolean addRecord(List<String> parameters, String target) {
+        return timed("addRecord", target, () -> storage.addRecord(parameters, target));
+    }
+
+    @Override
+    public boolean addRecords(List<List<String>> rows, String target) {
+        return timed("addRecords", target, () -> storage.addRecords(rows, target));
+    }
+
+    @Override
+    public void updateRecord(List<String> recordInfo) {
+        timed("updateRecord", "items", () -> storage.updateRecord(recordInfo));
+    }
+
+    @Override
+    public void deleteRecord(String id) {
+        timed("deleteRecord", "items", () -> storage.deleteRecord(id));
+    }
+
+    @Override
+    public List<CSV> readContents(String target) {
+        return timed("readContents", target, () -> countReturned(target, storage.readContents(target)));
+    }
+
+    @Override
+    public List<CSV> readPage(String target, int offset, int limit) {
+        return timed("readPage", target, () -> countReturned(target, storage.readPage(target, offset, limit)));
+    }
+
+    @Override
+    public void forEachRecord(String target, Consumer<CSV> action) {
+        timed("forEachRecord", target, () -> storage.forEachRecord(target, csv -> {
+            StorageMetrics.count(target, StorageCounter.ROWS_RETURNED, 1);
+            action.accept(csv);
+        }));
+    }
+
+    @Override
+    public List<CSV> searchRecord(String target, Pair<String, String> propertyNameValuePair) {
+        return timed("searchRecord", target,
+                () -> countReturned(target, storage.searchRecord(target, propertyNameValuePair)));
+    }
+
+    @Override
+    public List<CSV> query(Query query) {
+        return timed("query", query.target(), () -> countReturned(query.target(), storage.query(query)));
+    }
+
+    @Override
+    public List<CSV> searchDescriptions(String text, int limit) {
+        return timed("searchDescriptions", "items",
+                () -> countReturned("items", storage.searchDescriptions(text, limit)));
+    }
+
+    @Override
+    public List<CSV> transactionHistory(String id) {
+        return timed("transactionHistory", "transactions",
+                () -> countReturned("transactions", storage.transactionHistory(id)));
+    }
+
+    @Override
+    public List<CSV> itemsAsOf(LocalDate date) {
+        return timed("itemsAsOf", "transactions", () -> countReturned("items", storage.itemsAsOf(date)));
+    }
+
+    @Override
+    public CSV itemAsOf(String id, LocalDate date) {
+        return timed("itemAsOf", "transactions", () -> storage.itemAsOf(id, date));
+    }
+
+    @Override
+    public ReplayVerification verifyTransactionLog() {
+        return timed("verifyTransactionLog", "transactions", storage::verifyTransactionLog);
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return storage.isThreadSafe();
+    }
+
+    @Override
+    public List<String> getIDs() {
+        return timed("getIDs", "items", storage::getIDs);
+    }
+
+    @Override
+    public void addListener(StorageListener listener) {
+        storage.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(StorageListener listener) {
+        storage.removeListener(listener);
+    }
+}
@@ -0,0 +1,102 @@
+package uni.S257123.storage.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, laid out the same way as an HdrHistogram.
+ * <p>
+ * Values are grouped into buckets whose width doubles with each power of two, with {@value #SUB_BUCKETS} buckets per
+ * power of two, so every recorded value is kept to within about 3% whether it is 50 nanoseconds or 50 seconds.
+ * Recording a value is a couple of shifts and an atomic increment, and the whole histogram is a fixed array of under
+ * two thousand counts no matter how many values are recorded.
+ * </p>
+ */
+public class LatencyHistogram {
+    private static final int PRECISION_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+    private static final int BUCKETS = (64 - PRECISION_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        totalNanos.add(value);
+        maxNanos.accumulate(value);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long maxNanos() {
+        return maxNanos.get();
+    }
+
+    public double meanNanos() {
+        long values = count();
+        return values == 0 ? 0 : (double) totalNanos() / values;
+    }
+
+    /**
+     * Finds the latency that the given share of recorded values are at or below.
+     * @param percentile between 0 and 100, e.g. 99.9
+     * @return the highest value in the bucket the percentile falls in, or 0 if nothing has been recorded
+     */
+    public long percentileNanos(double percentile) {
+        long values = count();
+        if (values == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * values));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(bucket), maxNanos());
+            }
+        }
+        return maxNanos();
+    }
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts.set(bucket, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+
+    /**
+     * Values below {@value #SUB_BUCKETS} get a bucket each. Above that, the top {@code PRECISION_BITS + 1} bits of
+     * the value pick the bucket within its power of two.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,110 @@
+package uni.S257123.storage.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import uni.S257123.storage.profiling.QueryProfile;
+import uni.S257123.storage.profiling.QueryProfiler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Serves the storage metrics as plain text over HTTP, so they can be checked with curl or scraped by Prometheus.
+ * <p>
+ * {@code /metrics} is in the Prometheus text format, {@code /metrics/report} is the same table as
+ * {@link StorageMetrics#getReport()}, and {@code /metrics/queries} lists the most recent searches profiled by the
+ * {@link QueryProfiler}. The server only listens on the loopback address.
+ * </p>
+ */
+class MetricsEndpoint {
+    private MetricsEndpoint() {
+    }
+
+    static void start(StorageMetrics metrics, int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+            server.createContext("/metrics", exchange -> {
+                String body = switch (exchange.getRequestURI().getPath()) {
+                    case "/metrics/report" -> metrics.getReport();
+                    case "/metrics/queries" -> QueryProfiler.get().recentQueries().stream()
+                            .map(QueryProfile::toString)
+                            .collect(Collectors.joining(System.lineSeparator(), "", System.lineSeparator()));
+                    default -> prometheusText(metrics);
+                };
+                respond(exchange, body);
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-endpoint");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            // The server's dispatcher thread takes on the daemon status of the thread that starts it, so it is
+            // started from a daemon thread to stop it keeping the application running after the UI exits
+            Thread starter = new Thread(server::start, "metrics-endpoint-start");
+            starter.setDaemon(true);
+            starter.start();
+            starter.join();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not serve metrics on port " + port, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static String prometheusText(StorageMetrics metrics) {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE ims_storage_operation_seconds summary\n");
+        metrics.latencies().forEach((key, histogram) -> {
+            String labels = "operation=\"" + key.operation() + "\",target=\"" + key.target() + "\"";
+            for (double percentile : StorageMetrics.reportedPercentiles()) {
+                text.append("ims_storage_operation_seconds{").append(labels).append(",quantile=\"")
+                        .append(BigDecimal.valueOf(percentile).movePointLeft(2).stripTrailingZeros().toPlainString())
+                        .append("\"} ")
+                        .append(seconds(histogram.percentileNanos(percentile))).append('\n');
+            }
+            text.append("ims_storage_operation_seconds_sum{").append(labels).append("} ")
+                    .append(seconds(histogram.totalNanos())).append('\n');
+            text.append("ims_storage_operation_seconds_count{").append(labels).append("} ")
+                    .append(histogram.count()).append('\n');
+        });
+        text.append("# TYPE ims_storage_operation_errors_total counter\n");
+        metrics.errors().forEach((key, failed) -> text.append("ims_storage_operation_errors_total{operation=\"")
+                .append(key.operation()).append("\",target=\"").append(key.target()).append("\"} ")
+                .append(failed.sum()).append('\n'));
+        for (StorageCounter counter : StorageCounter.values()) {
+            String name = "ims_storage_" + snakeCase(counter.metricName) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            metrics.counters().forEach((target, adders) -> {
+                LongAdder adder = adders[counter.ordinal()];
+                text.append(name).append("{target=\"").append(target).append("\"} ").append(adder.sum())
+                        .append('\n');
+            });
+        }
+        return text.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String snakeCase(String camelCase) {
+        return camelCase.replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase(Locale.ROOT);
+    }
+}
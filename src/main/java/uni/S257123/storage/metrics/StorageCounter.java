@@ -0,0 +1,42 @@
+package uni.S257123.storage.metrics;
+
+/**
+ * The counts kept for each datasource by {@link StorageMetrics}, besides the timings of each operation.
+ */
+public enum StorageCounter {
+    /**
+     * Bytes read from the datasource's file
+     */
+    BYTES_READ("bytesRead"),
+    /**
+     * Bytes written to the datasource's file, including whole-file rewrites
+     */
+    BYTES_WRITTEN("bytesWritten"),
+    /**
+     * Rows looked at to answer a query, whether or not they matched. For the database backend this is the
+     * documents received from the server, as what the server examines itself isn't visible to the client
+     */
+    ROWS_SCANNED("rowsScanned"),
+    /**
+     * Rows handed back to the caller
+     */
+    ROWS_RETURNED("rowsReturned"),
+    /**
+     * Reads answered from rows already held in memory
+     */
+    CACHE_HITS("cacheHits"),
+    /**
+     * Reads that had to go to the file or server
+     */
+    CACHE_MISSES("cacheMisses"),
+    /**
+     * Lines other programs appended to the datasource's file that couldn't be read as rows, and were left out
+     */
+    ROWS_SKIPPED("rowsSkipped");
+
+    public final String metricName;
+
+    StorageCounter(String metricName) {
+        this.metricName = metricName;
+    }
+}
@@ -0,0 +1,210 @@
+package uni.S257123.storage.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects timings and counters for every storage operation, for finding out where time goes.
+ * <p>
+ * Metrics are off unless the JVM is started with {@code -Dims.metrics=true}. While off, {@link #ENABLED} is a
+ * constant false, so the JIT compiler removes every call the backends make into this class, and
+ * {@link InstrumentedStorage#wrap} hands back the backend untouched.
+ * </p>
+ * <p>
+ * While on, the metrics are published over JMX as {@value #OBJECT_NAME}, and if {@code -Dims.metrics.port} is also
+ * set, as plain text over HTTP by a {@link MetricsEndpoint}.
+ * </p>
+ */
+public final class StorageMetrics implements StorageMetricsMXBean {
+    public static final boolean ENABLED = Boolean.getBoolean("ims.metrics");
+    public static final String OBJECT_NAME = "uni.S257123:type=StorageMetrics";
+    private static final double[] REPORTED_PERCENTILES = {50, 90, 99, 99.9};
+
+    private static final StorageMetrics INSTANCE = ENABLED ? start() : null;
+
+    private final Map<OperationKey, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<OperationKey, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder[]> counters = new ConcurrentHashMap<>();
+    private volatile long resetAtNanos = System.nanoTime();
+
+    /**
+     * An operation (e.g. searchRecord) on one datasource (e.g. items)
+     */
+    record OperationKey(String operation, String target) implements Comparable<OperationKey> {
+        @Override
+        public int compareTo(OperationKey other) {
+            int byOperation = operation.compareTo(other.operation);
+            return byOperation != 0 ? byOperation : target.compareTo(other.target);
+        }
+    }
+
+    private StorageMetrics() {
+    }
+
+    private static StorageMetrics start() {
+        StorageMetrics metrics = new StorageMetrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Storage metrics could not be registered with JMX: " + e.getMessage());
+        }
+        Integer port = Integer.getInteger("ims.metrics.port");
+        if (port != null) {
+            MetricsEndpoint.start(metrics, port);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics being collected, or null if metrics are disabled
+     */
+    public static StorageMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Records how long one call of an operation took. Does nothing if metrics are disabled.
+     */
+    public static void recordLatency(String operation, String target, long nanos) {
+        if (ENABLED) {
+            INSTANCE.latencies.computeIfAbsent(new OperationKey(operation, target), key -> new LatencyHistogram())
+                    .record(nanos);
+        }
+    }
+
+    /**
+     * Records a call of an operation that threw an exception. Does nothing if metrics are disabled.
+     */
+    public static void recordError(String operation, String target) {
+        if (ENABLED) {
+            INSTANCE.errors.computeIfAbsent(new OperationKey(operation, target), key -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * Adds to one of the counters of a datasource. Does nothing if metrics are disabled.
+     */
+    public static void count(String target, StorageCounter counter, long amount) {
+        if (ENABLED) {
+            INSTANCE.countersOf(target)[counter.ordinal()].add(amount);
+        }
+    }
+
+    private LongAdder[] countersOf(String target) {
+        return counters.computeIfAbsent(target, key -> {
+            LongAdder[] adders = new LongAdder[StorageCounter.values().length];
+            for (int i = 0; i < adders.length; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        });
+    }
+
+    // The getters below return sorted copies, so that reports list operations in a stable order
+
+    Map<OperationKey, LatencyHistogram> latencies() {
+        return new TreeMap<>(latencies);
+    }
+
+    Map<OperationKey, LongAdder> errors() {
+        return new TreeMap<>(errors);
+    }
+
+    Map<String, LongAdder[]> counters() {
+        return new TreeMap<>(counters);
+    }
+
+    /**
+     * @return how many seconds the metrics have been collected for, since startup or the last reset
+     */
+    double secondsCollected() {
+        return Math.max((System.nanoTime() - resetAtNanos) / 1e9, 1e-9);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        double seconds = secondsCollected();
+        report.append(String.format("%-28s %-14s %10s %10s %10s %10s %10s %10s %10s %8s%n", "operation", "target",
+                "calls", "ops/s", "mean(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "errors"));
+        Map<OperationKey, LongAdder> errorCounts = errors();
+        latencies().forEach((key, histogram) -> {
+            LongAdder failed = errorCounts.get(key);
+            report.append(String.format("%-28s %-14s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %10.3f %8d%n",
+                    key.operation(), key.target(), histogram.count(), histogram.count() / seconds,
+                    histogram.meanNanos() / 1e6, histogram.percentileNanos(50) / 1e6,
+                    histogram.percentileNanos(90) / 1e6, histogram.percentileNanos(99) / 1e6,
+                    histogram.maxNanos() / 1e6, failed == null ? 0 : failed.sum()));
+        });
+        report.append(System.lineSeparator());
+        counters().forEach((target, adders) -> {
+            report.append(target).append(':');
+            for (StorageCounter counter : StorageCounter.values()) {
+                report.append(' ').append(counter.metricName).append('=').append(adders[counter.ordinal()].sum());
+            }
+            long hits = adders[StorageCounter.CACHE_HITS.ordinal()].sum();
+            long lookups = hits + adders[StorageCounter.CACHE_MISSES.ordinal()].sum();
+            if (lookups > 0) {
+                report.append(String.format(" cacheHitRate=%.3f", (double) hits / lookups));
+            }
+            report.append(System.lineSeparator());
+        });
+        return report.toString();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters().forEach((target, adders) -> {
+            for (StorageCounter counter : StorageCounter.values()) {
+                values.put(target + "." + counter.metricName, adders[counter.ordinal()].sum());
+            }
+        });
+        latencies().forEach((key, histogram) ->
+                values.put(key.operation() + "." + key.target() + ".calls", histogram.count()));
+        errors().forEach((key, failed) -> values.put(key.operation() + "." + key.target() + ".errors", failed.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMillis() {
+        Map<String, Double> values = new TreeMap<>();
+        latencies().forEach((key, histogram) -> {
+            String prefix = key.operation() + "." + key.target() + ".";
+            values.put(prefix + "mean", histogram.meanNanos() / 1e6);
+            for (double percentile : REPORTED_PERCENTILES) {
+                values.put(prefix + "p" + percentileLabel(percentile), histogram.percentileNanos(percentile) / 1e6);
+            }
+            values.put(prefix + "max", histogram.maxNanos() / 1e6);
+        });
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        latencies.values().forEach(LatencyHistogram::reset);
+        errors.values().forEach(LongAdder::reset);
+        counters.values().forEach(adders -> {
+            for (LongAdder adder : adders) {
+                adder.reset();
+            }
+        });
+        resetAtNanos = System.nanoTime();
+    }
+
+    static double[] reportedPercentiles() {
+        return REPORTED_PERCENTILES.clone();
+    }
+
+    /**
+     * Writes a percentile without a trailing ".0", e.g. 99 or 99.9
+     */
+    static String percentileLabel(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+}
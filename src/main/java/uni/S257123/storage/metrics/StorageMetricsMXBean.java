@@ -0,0 +1,31 @@
+package uni.S257123.storage.metrics;
+
+import java.util.Map;
+
+/**
+ * The storage metrics as seen through JMX, e.g. in JConsole or VisualVM under {@value StorageMetrics#OBJECT_NAME}.
+ */
+public interface StorageMetricsMXBean {
+    /**
+     * @return a table of every operation's call count, throughput and latency percentiles, followed by each
+     * datasource's counters
+     */
+    String getReport();
+
+    /**
+     * @return every counter, keyed by "target.counter" (e.g. "items.rowsScanned"), along with the call and error
+     * counts of each operation, keyed by "operation.target.calls" and "operation.target.errors"
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return the mean, percentiles and maximum latency of each operation in milliseconds, keyed by
+     * "operation.target.statistic" (e.g. "searchRecord.items.p99")
+     */
+    Map<String, Double> getLatencyMillis();
+
+    /**
+     * Clears every histogram and counter, e.g. before starting a load test.
+     */
+    void reset();
+}
@@ -0,0 +1,31 @@
+package uni.S257123.storage.profiling;
+
+/**
+ * How a backend went about answering a search.
+ */
+public enum QueryPlan {
+    /**
+     * Every row held in memory was checked against the search
+     */
+    MEMORY_SCAN,
+    /**
+     * The whole datasource was read, as the search matched everything
+     */
+    FULL_READ,
+    /**
+     * The matching rows were found through an index, e.g. MongoDB's index on _id
+     */
+    INDEX_LOOKUP,
+    /**
+     * The server checked every document against a filter, e.g. a regular expression with no index to use
+     */
+    SERVER_FILTER,
+    /**
+     * The server ran an aggregation pipeline, converting values to strings before matching them
+     */
+    SERVER_AGGREGATION,
+    /**
+     * The matching rows were found and ranked through an inverted index of the words in them
+     */
+    TEXT_INDEX
+}
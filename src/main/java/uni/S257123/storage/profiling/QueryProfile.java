@@ -0,0 +1,43 @@
+package uni.S257123.storage.profiling;
+
+import java.time.Instant;
+
+/**
+ * Everything recorded about one call of {@code Storage.searchRecord}.
+ *
+ * @param startedAt when the search started
+ * @param target the datasource searched
+ * @param property the property searched on
+ * @param value the value searched for
+ * @param plan how the backend answered the search
+ * @param rowsExamined how many rows were looked at, or -1 if the backend couldn't tell
+ * @param rowsReturned how many rows matched
+ * @param fetchNanos the time spent finding the rows, including waiting on the server
+ * @param conversionNanos the time spent turning results into {@code CSV} objects
+ */
+public record QueryProfile(
+        Instant startedAt,
+        String target,
+        String property,
+        String value,
+        QueryPlan plan,
+        long rowsExamined,
+        long rowsReturned,
+        long fetchNanos,
+        long conversionNanos) {
+
+    public long totalNanos() {
+        return fetchNanos + conversionNanos;
+    }
+
+    /**
+     * @return the profile as one line of space separated name=value pairs, as written to the slow-query log
+     */
+    @Override
+    public String toString() {
+        return String.format("%s totalMs=%.3f plan=%s target=%s property=%s value=\"%s\" examined=%d returned=%d "
+                        + "fetchMs=%.3f conversionMs=%.3f",
+                startedAt, totalNanos() / 1e6, plan, target, property, value.replace("\"", "\\\""),
+                rowsExamined, rowsReturned, fetchNanos / 1e6, conversionNanos / 1e6);
+    }
+}
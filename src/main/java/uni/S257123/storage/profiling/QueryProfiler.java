@@ -0,0 +1,147 @@
+package uni.S257123.storage.profiling;
+
+import uni.S257123.models.CSV;
+import uni.S257123.storage.metrics.StorageMetrics;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Profiles every call of {@code Storage.searchRecord}, recording the plan each backend chose, how many rows it
+ * examined and returned, and how long it spent finding rows compared to converting them into {@link CSV} objects.
+ * <p>
+ * The most recent profiles are kept in memory, and any search slower than the threshold is written to a
+ * {@link SlowQueryLog}. Configured through system properties:
+ * </p>
+ * <ul>
+ *     <li>{@code ims.slowQuery.thresholdMs}: how slow a search has to be to be logged (100 by default, or a negative
+ *     number to log nothing)</li>
+ *     <li>{@code ims.slowQuery.dir}: the folder the log files are written to ("logs" by default)</li>
+ *     <li>{@code ims.slowQuery.maxBytes}: how large each log file may get (10MB by default)</li>
+ *     <li>{@code ims.slowQuery.files}: how many log files are kept (5 by default)</li>
+ * </ul>
+ */
+public class QueryProfiler {
+    private static final int RECENT_PROFILES = 100;
+    private static final QueryProfiler INSTANCE = new QueryProfiler(
+            Long.getLong("ims.slowQuery.thresholdMs", 100) * 1_000_000,
+            new SlowQueryLog(
+                    Path.of(System.getProperty("ims.slowQuery.dir", "logs")),
+                    Long.getLong("ims.slowQuery.maxBytes", 10L * 1024 * 1024),
+                    Integer.getInteger("ims.slowQuery.files", 5)));
+
+    private final long thresholdNanos;
+    private final SlowQueryLog slowQueryLog;
+    private final Deque<QueryProfile> recent = new ArrayDeque<>(RECENT_PROFILES);
+
+    QueryProfiler(long thresholdNanos, SlowQueryLog slowQueryLog) {
+        this.thresholdNanos = thresholdNanos;
+        this.slowQueryLog = slowQueryLog;
+    }
+
+    public static QueryProfiler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing a search. The backend fills in the details on the returned trace as it goes, then calls
+     * {@link Trace#finish(List)} once the results are ready.
+     */
+    public Trace start(String target, String property, String value) {
+        return new Trace(target, property, value);
+    }
+
+    /**
+     * @return the most recent searches, oldest first
+     */
+    public synchronized List<QueryProfile> recentQueries() {
+        return new ArrayList<>(recent);
+    }
+
+    private void record(QueryProfile profile) {
+        synchronized (this) {
+            if (recent.size() == RECENT_PROFILES) {
+                recent.removeFirst();
+            }
+            recent.addLast(profile);
+        }
+        StorageMetrics.recordLatency("searchRecord." + profile.plan(), profile.target(), profile.totalNanos());
+    }
+
+    private boolean isSlow(long nanos) {
+        return thresholdNanos >= 0 && nanos >= thresholdNanos;
+    }
+
+    /**
+     * The profile of one search while it is running.
+     */
+    public class Trace {
+        private final Instant startedAt = Instant.now();
+        private final long startNanos = System.nanoTime();
+        private final String target;
+        private final String property;
+        private final String value;
+        private QueryPlan plan = QueryPlan.MEMORY_SCAN;
+        private long rowsExamined = -1;
+        private LongSupplier examinedIfSlow;
+        private long conversionNanos = 0;
+
+        private Trace(String target, String property, String value) {
+            this.target = target;
+            this.property = property;
+            this.value = value;
+        }
+
+        public void plan(QueryPlan plan) {
+            this.plan = plan;
+        }
+
+        public void rowsExamined(long rowsExamined) {
+            this.rowsExamined = rowsExamined;
+        }
+
+        /**
+         * For backends where finding out how many rows were examined is costly (e.g. asking MongoDB to explain the
+         * query), this is only called if the search turns out to be slow.
+         */
+        public void rowsExaminedIfSlow(LongSupplier examinedIfSlow) {
+            this.examinedIfSlow = examinedIfSlow;
+        }
+
+        /**
+         * Adds time spent converting results into {@link CSV} objects. Everything else is counted as fetching.
+         */
+        public void addConversionNanos(long nanos) {
+            conversionNanos += nanos;
+        }
+
+        /**
+         * Stops timing the search and records its profile, logging it if it was slow.
+         * @param results the rows the search returned
+         * @return the results, so a backend can return the result of this call directly
+         */
+        public List<CSV> finish(List<CSV> results) {
+            long totalNanos = System.nanoTime() - startNanos;
+            boolean slow = isSlow(totalNanos);
+            if (slow && rowsExamined < 0 && examinedIfSlow != null) {
+                try {
+                    rowsExamined = examinedIfSlow.getAsLong();
+                } catch (RuntimeException e) {
+                    // Leave the count unknown rather than failing a search that has already succeeded
+                }
+            }
+            QueryProfile profile = new QueryProfile(startedAt, target, property, value, plan, rowsExamined,
+                    results.size(), totalNanos - conversionNanos, conversionNanos);
+            record(profile);
+            if (slow) {
+                slowQueryLog.write(profile);
+            }
+            return results;
+        }
+    }
+}
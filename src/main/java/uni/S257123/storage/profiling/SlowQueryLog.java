@@ -0,0 +1,57 @@
+package uni.S257123.storage.profiling;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Appends slow queries to a set of rotating log files, one query per line.
+ * <p>
+ * The rotation is done by a {@link FileHandler}: queries are written to {@code slow-queries.0.log}, and once it
+ * reaches its size limit it is renamed to {@code slow-queries.1.log}, the previous one to {@code .2}, and so on, with
+ * the oldest dropped once there are too many.
+ * The files are only created when the first slow query is logged.
+ * </p>
+ */
+class SlowQueryLog {
+    private final Path directory;
+    private final long maxBytes;
+    private final int maxFiles;
+    private FileHandler handler;
+
+    /**
+     * @param directory the folder the log files are kept in
+     * @param maxBytes how large each file may get before rotating
+     * @param maxFiles how many files are kept, including the current one
+     */
+    SlowQueryLog(Path directory, long maxBytes, int maxFiles) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    synchronized void write(QueryProfile profile) {
+        try {
+            if (handler == null) {
+                Files.createDirectories(directory);
+                // %g is replaced by the FileHandler with the generation number of each file
+                handler = new FileHandler(directory.resolve("slow-queries.%g.log").toString(),
+                        (int) Math.min(maxBytes, Integer.MAX_VALUE), maxFiles, true);
+                handler.setFormatter(new Formatter() {
+                    @Override
+                    public String format(LogRecord record) {
+                        return record.getMessage() + System.lineSeparator();
+                    }
+                });
+            }
+            handler.publish(new LogRecord(Level.WARNING, profile.toString()));
+            handler.flush();
+        } catch (IOException e) {
+            System.err.println("Could not write to the slow-query log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package uni.S257123.storage.query;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A condition rows must meet to be returned by a {@link Query}. Conditions on single fields can be combined with
+ * {@link And} and {@link Or} to any depth.
+ * <p>
+ * Values are always given as strings, and compared according to the {@link FieldType} of the field, so
+ * {@code range("qtyInStock", null, "10")} compares quantities as numbers and {@code range("date", ...)} compares
+ * "dd/MM/yyyy" dates in date order.
+ * </p>
+ */
+public sealed interface Condition {
+    /**
+     * Matches rows that meet every one of the conditions.
+     */
+    record And(List<Condition> conditions) implements Condition {
+        public And {
+            conditions = List.copyOf(conditions);
+        }
+
+        @Override
+        public String toString() {
+            return conditions.stream().map(Condition::toString).collect(Collectors.joining(" AND ", "(", ")"));
+        }
+    }
+
+    /**
+     * Matches rows that meet at least one of the conditions.
+     */
+    record Or(List<Condition> conditions) implements Condition {
+        public Or {
+            conditions = List.copyOf(conditions);
+        }
+
+        @Override
+        public String toString() {
+            return conditions.stream().map(Condition::toString).collect(Collectors.joining(" OR ", "(", ")"));
+        }
+    }
+
+    /**
+     * Matches rows where the field is exactly the value.
+     */
+    record Equals(String field, String value) implements Condition {
+        @Override
+        public String toString() {
+            return field + " = " + value;
+        }
+    }
+
+    /**
+     * Matches rows where the field is between the two values, inclusive. Either end can be null to leave it open.
+     */
+    record Range(String field, String from, String to) implements Condition {
+        @Override
+        public String toString() {
+            return (from != null ? from + " <= " : "") + field + (to != null ? " <= " + to : "");
+        }
+    }
+
+    /**
+     * Matches rows where the field contains the text, in the same way as
+     * {@link uni.S257123.storage.interfaces.Storage#searchRecord(String, org.apache.commons.lang3.tuple.Pair)}.
+     */
+    record Contains(String field, String text) implements Condition {
+        @Override
+        public String toString() {
+            return field + " CONTAINS " + text;
+        }
+    }
+
+    /**
+     * Matches rows where the field starts with the text, compared in the same way as {@link Contains}.
+     */
+    record StartsWith(String field, String prefix) implements Condition {
+        @Override
+        public String toString() {
+            return field + " STARTS WITH " + prefix;
+        }
+    }
+
+    static Condition and(Condition... conditions) {
+        return new And(List.of(conditions));
+    }
+
+    static Condition or(Condition... conditions) {
+        return new Or(List.of(conditions));
+    }
+
+    static Condition equalTo(String field, String value) {
+        return new Equals(field, value);
+    }
+
+    static Condition range(String field, String from, String to) {
+        return new Range(field, from, to);
+    }
+
+    static Condition atLeast(String field, String from) {
+        return new Range(field, from, null);
+    }
+
+    static Condition atMost(String field, String to) {
+        return new Range(field, null, to);
+    }
+
+    static Condition contains(String field, String text) {
+        return new Contains(field, text);
+    }
+
+    static Condition startsWith(String field, String prefix) {
+        return new StartsWith(field, prefix);
+    }
+}
@@ -0,0 +1,54 @@
+package uni.S257123.storage.query;
+
+import uni.S257123.models.CSV;
+
+import java.time.LocalDate;
+
+/**
+ * How the values of a field are compared in a {@link Query}. The fields of a {@link CSV} are held as strings or
+ * numbers, but the values in a query are always strings, so each one is parsed according to its field's type.
+ */
+public enum FieldType {
+    /**
+     * unitPrice, qtyInStock, stockRemaining and totalPrice, compared as numbers
+     */
+    NUMBER,
+    /**
+     * "dd/MM/yyyy" dates, compared in date order rather than as strings
+     */
+    DATE,
+    /**
+     * Everything else, compared as strings
+     */
+    TEXT;
+
+    public static FieldType of(String field) {
+        return switch (field) {
+            case "unitPrice", "qtyInStock", "stockRemaining", "totalPrice" -> NUMBER;
+            case "date" -> DATE;
+            default -> TEXT;
+        };
+    }
+
+    /**
+     * Turns a "dd/MM/yyyy" date into a yyyyMMdd number that sorts in date order.
+     * @throws IllegalArgumentException if the date isn't in that format
+     */
+    public static int dateKey(String date) {
+        try {
+            int day = Integer.parseInt(date, 0, 2, 10);
+            int month = Integer.parseInt(date, 3, 5, 10);
+            int year = Integer.parseInt(date, 6, date.length(), 10);
+            return year * 10_000 + month * 100 + day;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Dates must be dd/MM/yyyy, but found: " + date);
+        }
+    }
+
+    /**
+     * @return the same yyyyMMdd number as {@link #dateKey(String)} gives for the date
+     */
+    public static int dateKey(LocalDate date) {
+        return date.getYear() * 10_000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+    }
+}
@@ -0,0 +1,383 @@
+package uni.S257123.storage.query;
+
+import uni.S257123.models.CSV;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * A {@link Query} compiled for checking rows held in memory, used by storages that scan their rows themselves.
+ * <p>
+ * Every value in the query is parsed once up front, rather than for every row. The parts of each {@link Condition.And}
+ * are then put in the order that rules rows out soonest for the least work: each part is ranked by how much it costs
+ * to check against how many rows it rules out, estimated from a sample of the rows when one is given. A cheap,
+ * selective condition such as {@code qtyInStock <= 9} is therefore checked before an expensive one such as a
+ * {@link Condition.Contains}, which then only runs on the rows that got through. The parts of each
+ * {@link Condition.Or} are ordered the opposite way, by which is cheapest to let a row through.
+ * </p>
+ */
+public class MemoryQueryPlan {
+    /**
+     * The most rows sampled to estimate how selective each condition is
+     */
+    private static final int SAMPLE_SIZE = 512;
+
+    private final Query query;
+    private final Step root;
+    private final Comparator<CSV> order;
+
+    private MemoryQueryPlan(Query query, Step root, Comparator<CSV> order) {
+        this.query = query;
+        this.root = root;
+        this.order = order;
+    }
+
+    /**
+     * Compiles the query, estimating how selective each condition is from a sample of the rows.
+     * @param query the query to be planned
+     * @param rows the rows that will be checked, or an empty list if they can't be sampled up front (e.g. when they
+     *             are streamed), in which case fixed estimates are used for each kind of condition
+     * @return the plan for checking the rows
+     * @throws IllegalArgumentException if the query names an unknown field, or a value in the query can't be parsed
+     * as its field's type
+     */
+    public static MemoryQueryPlan plan(Query query, List<CSV> rows) {
+        List<CSV> sample = sample(rows);
+        Step root = query.condition() == null
+                ? new Step(csv -> true, 0, 1, "*")
+                : compile(query.condition(), sample);
+        return new MemoryQueryPlan(query, root, query.sort() == null ? null : comparator(query.sort()));
+    }
+
+    /**
+     * @return whether the row meets the query's condition
+     */
+    public boolean matches(CSV csv) {
+        return root.test().test(csv);
+    }
+
+    /**
+     * Starts collecting the results of the query, to be given rows one at a time.
+     */
+    public Results results() {
+        return new Results();
+    }
+
+    /**
+     * Checks every row against the query, returning the matching rows sorted and limited as the query asks.
+     */
+    public List<CSV> execute(Iterable<CSV> rows) {
+        Results results = results();
+        for (CSV csv : rows) {
+            results.accept(csv);
+        }
+        return results.toList();
+    }
+
+    /**
+     * @return the conditions in the order they are checked, with how selective each is estimated to be
+     */
+    @Override
+    public String toString() {
+        return root.description() + (query.sort() != null ? " ORDER BY " + query.sort() : "")
+                + (query.limit() > 0 ? " LIMIT " + query.limit() : "");
+    }
+
+    /**
+     * Gathers the rows that match a query as they are given to it.
+     * <p>
+     * When the query is both sorted and limited, only the best rows seen so far are kept, in a heap holding at most
+     * the limit, so finding the top 50 of a million rows holds 50 rows rather than every match. Once the heap is
+     * full, rows that sort after the worst row in it are skipped without checking the condition at all. Rows that
+     * sort equally stay in the order they were given, the same as a full sort.
+     * </p>
+     */
+    public class Results {
+        private final List<CSV> matches = new ArrayList<>();
+        /**
+         * The best rows so far when the query is sorted and limited, with the worst at the head, otherwise null
+         */
+        private final PriorityQueue<Ranked> top;
+        private final Comparator<Ranked> rankOrder;
+        private long rowsExamined = 0;
+        private long matched = 0;
+
+        private Results() {
+            if (order != null && query.limit() > 0) {
+                rankOrder = Comparator.comparing(Ranked::csv, order).thenComparingLong(Ranked::position);
+                top = new PriorityQueue<>(query.limit() + 1, rankOrder.reversed());
+            } else {
+                rankOrder = null;
+                top = null;
+            }
+        }
+
+        public void accept(CSV csv) {
+            rowsExamined++;
+            if (top != null) {
+                // A row equal to the worst kept would come after it, so it can't make the cut either
+                if (top.size() == query.limit() && order.compare(csv, top.peek().csv()) >= 0) {
+                    return;
+                }
+                if (root.test().test(csv)) {
+                    top.add(new Ranked(csv, matched++));
+                    if (top.size() > query.limit()) {
+                        top.poll();
+                    }
+                }
+            } else if (root.test().test(csv) && (order != null || query.limit() == 0 || matches.size() < query.limit())) {
+                matches.add(csv);
+            }
+        }
+
+        /**
+         * @return how many rows have been checked so far
+         */
+        public long rowsExamined() {
+            return rowsExamined;
+        }
+
+        /**
+         * @return the matching rows, sorted and limited as the query asks
+         */
+        public List<CSV> toList() {
+            if (top != null) {
+                List<Ranked> ranked = new ArrayList<>(top);
+                ranked.sort(rankOrder);
+                List<CSV> list = new ArrayList<>(ranked.size());
+                for (Ranked row : ranked) {
+                    list.add(row.csv());
+                }
+                return list;
+            }
+            if (order != null) {
+                matches.sort(order);
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * A row kept in a top-k heap, along with its position among the matches so ties keep their original order.
+     */
+    private record Ranked(CSV csv, long position) {
+    }
+
+    /**
+     * A compiled condition, along with how much it is estimated to cost to check per row (relative to a numeric
+     * comparison) and the fraction of rows it is estimated to let through.
+     */
+    private record Step(Predicate<CSV> test, double cost, double selectivity, String description) {
+    }
+
+    private static Step compile(Condition condition, List<CSV> sample) {
+        return switch (condition) {
+            case Condition.And and -> {
+                List<Step> steps = new ArrayList<>();
+                for (Condition part : and.conditions()) {
+                    steps.add(compile(part, sample));
+                }
+                // Ranked by the cost of each row that gets ruled out, so the first steps do the most for the least
+                steps.sort(Comparator.comparingDouble(step -> step.cost() / Math.max(1 - step.selectivity(), 1e-9)));
+                double cost = 0;
+                double selectivity = 1;
+                for (Step step : steps) {
+                    cost += step.cost() * selectivity;
+                    selectivity *= step.selectivity();
+                }
+                Predicate<CSV>[] tests = tests(steps);
+                yield new Step(csv -> {
+                    for (Predicate<CSV> test : tests) {
+                        if (!test.test(csv)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }, cost, selectivity, describe(steps, " AND "));
+            }
+            case Condition.Or or -> {
+                List<Step> steps = new ArrayList<>();
+                for (Condition part : or.conditions()) {
+                    steps.add(compile(part, sample));
+                }
+                // Ranked by the cost of each row that gets let through
+                steps.sort(Comparator.comparingDouble(step -> step.cost() / Math.max(step.selectivity(), 1e-9)));
+                double cost = 0;
+                double rejected = 1;
+                for (Step step : steps) {
+                    cost += step.cost() * rejected;
+                    rejected *= 1 - step.selectivity();
+                }
+                Predicate<CSV>[] tests = tests(steps);
+                yield new Step(csv -> {
+                    for (Predicate<CSV> test : tests) {
+                        if (test.test(csv)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }, cost, 1 - rejected, describe(steps, " OR "));
+            }
+            case Condition.Equals equals -> estimate(equals, equalsTest(equals), 1, 0.1, sample);
+            case Condition.Range range -> estimate(range, rangeTest(range),
+                    FieldType.of(range.field()) == FieldType.DATE ? 2 : 1.5, 0.33, sample);
+            case Condition.Contains contains -> estimate(contains, containsTest(contains),
+                    FieldType.of(contains.field()) == FieldType.TEXT ? 4 : 8, 0.25, sample);
+            case Condition.StartsWith startsWith -> estimate(startsWith, startsWithTest(startsWith),
+                    FieldType.of(startsWith.field()) == FieldType.TEXT ? 2 : 6, 0.1, sample);
+        };
+    }
+
+    /**
+     * Estimates the fraction of rows a condition lets through from the sample, or uses the given default if there
+     * is no sample.
+     */
+    private static Step estimate(Condition condition, Predicate<CSV> test, double cost, double defaultSelectivity,
+                                 List<CSV> sample) {
+        double selectivity = defaultSelectivity;
+        if (!sample.isEmpty()) {
+            int matched = 0;
+            for (CSV csv : sample) {
+                if (test.test(csv)) {
+                    matched++;
+                }
+            }
+            // Never estimated as exactly 0, as a condition that matched nothing in the sample may still match a few
+            selectivity = (matched + 0.5) / (sample.size() + 1);
+        }
+        return new Step(test, cost, selectivity, condition + String.format(" [%.3f]", selectivity));
+    }
+
+    private static Predicate<CSV> equalsTest(Condition.Equals equals) {
+        String field = requireField(equals.field());
+        return switch (FieldType.of(field)) {
+            case NUMBER -> {
+                double value = parseNumber(equals.value());
+                yield csv -> csv.GetPropertyByName(field) instanceof Number number && number.doubleValue() == value;
+            }
+            case DATE -> {
+                int value = FieldType.dateKey(equals.value());
+                yield csv -> csv.GetPropertyByName(field) instanceof String date && FieldType.dateKey(date) == value;
+            }
+            case TEXT -> csv -> equals.value().equals(csv.GetPropertyByName(field));
+        };
+    }
+
+    private static Predicate<CSV> rangeTest(Condition.Range range) {
+        String field = requireField(range.field());
+        return switch (FieldType.of(field)) {
+            case NUMBER -> {
+                double from = range.from() != null ? parseNumber(range.from()) : Double.NEGATIVE_INFINITY;
+                double to = range.to() != null ? parseNumber(range.to()) : Double.POSITIVE_INFINITY;
+                yield csv -> csv.GetPropertyByName(field) instanceof Number number
+                        && number.doubleValue() >= from && number.doubleValue() <= to;
+            }
+            case DATE -> {
+                int from = range.from() != null ? FieldType.dateKey(range.from()) : Integer.MIN_VALUE;
+                int to = range.to() != null ? FieldType.dateKey(range.to()) : Integer.MAX_VALUE;
+                yield csv -> {
+                    if (!(csv.GetPropertyByName(field) instanceof String date)) {
+                        return false;
+                    }
+                    int key = FieldType.dateKey(date);
+                    return key >= from && key <= to;
+                };
+            }
+            case TEXT -> csv -> {
+                String value = text(csv, field);
+                return value != null
+                        && (range.from() == null || value.compareTo(range.from()) >= 0)
+                        && (range.to() == null || value.compareTo(range.to()) <= 0);
+            };
+        };
+    }
+
+    private static Predicate<CSV> containsTest(Condition.Contains contains) {
+        String field = requireField(contains.field());
+        String text = contains.text();
+        return csv -> {
+            String value = text(csv, field);
+            return value != null && value.contains(text);
+        };
+    }
+
+    private static Predicate<CSV> startsWithTest(Condition.StartsWith startsWith) {
+        String field = requireField(startsWith.field());
+        String prefix = startsWith.prefix();
+        return csv -> {
+            String value = text(csv, field);
+            return value != null && value.startsWith(prefix);
+        };
+    }
+
+    /**
+     * Compares rows by the sort's field according to its type, with rows missing the field last.
+     */
+    public static Comparator<CSV> comparator(Sort sort) {
+        String field = requireField(sort.field());
+        Comparator<CSV> order = switch (FieldType.of(field)) {
+            case NUMBER -> Comparator.comparing(csv -> (Number) csv.GetPropertyByName(field),
+                    Comparator.nullsLast(Comparator.comparingDouble(Number::doubleValue)));
+            case DATE -> Comparator.comparing(csv -> (String) csv.GetPropertyByName(field),
+                    Comparator.nullsLast(Comparator.comparingInt(FieldType::dateKey)));
+            case TEXT -> Comparator.comparing(csv -> text(csv, field), Comparator.nullsLast(Comparator.naturalOrder()));
+        };
+        return sort.descending() ? order.reversed() : order;
+    }
+
+    private static String requireField(String field) {
+        if (!CSV.isField(field)) {
+            throw new IllegalArgumentException("Unknown field: " + field);
+        }
+        return field;
+    }
+
+    /**
+     * @return the field's value as a string, or null if the row doesn't have it
+     */
+    private static String text(CSV csv, String field) {
+        Object value = csv.GetPropertyByName(field);
+        return value != null ? value.toString() : null;
+    }
+
+    private static double parseNumber(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number, but found: " + value);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Predicate<CSV>[] tests(List<Step> steps) {
+        return steps.stream().map(Step::test).toArray(Predicate[]::new);
+    }
+
+    private static String describe(List<Step> steps, String separator) {
+        StringBuilder description = new StringBuilder("(");
+        for (Step step : steps) {
+            if (description.length() > 1) {
+                description.append(separator);
+            }
+            description.append(step.description());
+        }
+        return description.append(')').toString();
+    }
+
+    /**
+     * Picks up to {@link #SAMPLE_SIZE} rows spread evenly through the list.
+     */
+    private static List<CSV> sample(List<CSV> rows) {
+        if (rows.size() <= SAMPLE_SIZE) {
+            return rows;
+        }
+        List<CSV> sample = new ArrayList<>(SAMPLE_SIZE);
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            sample.add(rows.get((int) ((long) i * rows.size() / SAMPLE_SIZE)));
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,59 @@
+package uni.S257123.storage.query;
+
+/**
+ * A search of one datasource for the rows meeting a {@link Condition}, optionally sorted and limited.
+ * <pre>{@code
+ * storage.query(Query.where("items", Condition.and(
+ *         Condition.contains("description", "Bolt"),
+ *         Condition.atMost("qtyInStock", "9")))
+ *     .sortedBy(Sort.descending("totalPrice"))
+ *     .limitedTo(50));
+ * }</pre>
+ *
+ * @param target the datasource to search, without its file extension
+ * @param condition the condition rows must meet, or null for every row
+ * @param sort the order to return the rows in, or null to leave them in the datasource's order
+ * @param limit the most rows to return, or 0 for no limit
+ */
+public record Query(String target, Condition condition, Sort sort, int limit) {
+    public Query {
+        if (limit < 0) {
+            throw new IllegalArgumentException("The limit can't be negative");
+        }
+    }
+
+    /**
+     * @return a query for every row of the target meeting the condition, in the datasource's order
+     */
+    public static Query where(String target, Condition condition) {
+        return new Query(target, condition, null, 0);
+    }
+
+    /**
+     * @return a query for every row of the target, in the datasource's order
+     */
+    public static Query all(String target) {
+        return new Query(target, null, null, 0);
+    }
+
+    /**
+     * @return a copy of this query returning the rows in the given order
+     */
+    public Query sortedBy(Sort sort) {
+        return new Query(target, condition, sort, limit);
+    }
+
+    /**
+     * @return a copy of this query returning at most the given number of rows
+     */
+    public Query limitedTo(int limit) {
+        return new Query(target, condition, sort, limit);
+    }
+
+    @Override
+    public String toString() {
+        return (condition != null ? condition.toString() : "*")
+                + (sort != null ? " ORDER BY " + sort : "")
+                + (limit > 0 ? " LIMIT " + limit : "");
+    }
+}
@@ -0,0 +1,22 @@
+package uni.S257123.storage.query;
+
+/**
+ * The order a {@link Query} returns its rows in. Values are compared according to the field's {@link FieldType}.
+ *
+ * @param field the field to sort by
+ * @param descending whether the largest (or latest) values come first
+ */
+public record Sort(String field, boolean descending) {
+    public static Sort ascending(String field) {
+        return new Sort(field, false);
+    }
+
+    public static Sort descending(String field) {
+        return new Sort(field, true);
+    }
+
+    @Override
+    public String toString() {
+        return field + (descending ? " DESC" : " ASC");
+    }
+}
@@ -0,0 +1,1028 @@
+package uni.S257123.storage.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * An inverted index over the descriptions of items, for ranked, typo tolerant searches such as "blu bolt" or
+ * "wrnech".
+ * <p>
+ * Descriptions are split into lower case words at anything that isn't a letter or a digit. Each word has a list of
+ * the items it appears in, in the order they were indexed, held in a trie so that a search word can be matched
+ * against every word in the index at once:
+ * </p>
+ * <ul>
+ *     <li>exactly</li>
+ *     <li>as the start of a longer word, for the last search word only, unless the search ends in a space, as it may
+ *     still be being typed</li>
+ *     <li>within one edit for search words of 3 to 5 characters, or two for longer words, using a
+ *     {@link LevenshteinAutomaton}</li>
+ * </ul>
+ * <p>
+ * An item matches if it matches every search word. Items are ranked by BM25, which favours items whose words are
+ * rare across the catalogue and make up more of a short description, scaled down for each edit or unfinished word so
+ * that exact matches come first. Each search word is matched against at most {@value #MAX_EXPANSIONS} words in the
+ * index, the closest and most common first, so a short prefix doesn't have to check the whole catalogue.
+ * </p>
+ * <p>
+ * How a search is answered depends on how many items are likely to match. When few are, the items of the rarest
+ * search word are checked against the others and only the survivors are scored, and items that score the same keep
+ * the order they were indexed in. When many are, as with a single word or several common ones, each word's items are
+ * gone through best first (see {@link Postings}) and the search stops as soon as nothing left could make the top,
+ * which rarely needs more than a few hundred items checked. Items that tie for the last place may then come in any
+ * order.
+ * </p>
+ * <p>
+ * Items are added, changed and removed one at a time as they change. A removed item is only marked as removed, and
+ * once a quarter of the items indexed have been removed the index is rebuilt without them.
+ * </p>
+ * <p>
+ * Every method is synchronized, so one index can be shared between threads.
+ * </p>
+ *
+ * @param <T> what each item is found as, e.g. its position in a list or its id
+ */
+public class DescriptionIndex<T> {
+    /**
+     * How quickly repeating a word in a description stops making it rank higher
+     */
+    private static final float K1 = 1.2f;
+    /**
+     * How much longer descriptions are marked down, from 0 (not at all) to 1
+     */
+    private static final float B = 0.75f;
+    /**
+     * How an item matching a search word by its start rather than the whole word is weighted
+     */
+    private static final float PREFIX_WEIGHT = 0.8f;
+    /**
+     * How an item is weighted for each edit between a search word and its word
+     */
+    private static final float EDIT_WEIGHT = 0.5f;
+    /**
+     * The most words in the index a search word is matched against
+     */
+    static final int MAX_EXPANSIONS = 50;
+    /**
+     * Roughly how many postings can be stepped through in the time it takes to score an item from its own words
+     */
+    private static final int SCORE_COST = 20;
+
+    private final Node root = new Node();
+    /**
+     * Maps each item's id to its document number, which are handed out in order and never reused until a rebuild
+     */
+    private final Map<String, Integer> documents = new HashMap<>();
+    private String[] ids = new String[16];
+    private Object[] values = new Object[16];
+    private int[] lengths = new int[16];
+    /**
+     * Where each item's words start in {@link #documentTerms}
+     */
+    private int[] termStarts = new int[16];
+    /**
+     * The words of every item, as their numbers in {@link #terms}, in the order they appear, so an item found through
+     * one word can be scored for the others without searching their postings
+     */
+    private int[] documentTerms = new int[64];
+    private int documentTermCount = 0;
+    /**
+     * The postings of every word in the index, by the number each word is known by
+     */
+    private Postings[] terms = new Postings[16];
+    private int termCount = 0;
+    /**
+     * A bit for each document number, set once the item has been removed
+     */
+    private long[] removed = new long[1];
+    private int documentCount = 0;
+    private int removedCount = 0;
+    /**
+     * The number of words in every item that hasn't been removed
+     */
+    private long totalLength = 0;
+
+    /**
+     * A bit for each document, used by a search to note which documents it has already seen and cleared again after
+     */
+    private long[] seenDocuments = new long[0];
+
+    /**
+     * The items that best match a search.
+     *
+     * @param matches the items, best first
+     * @param postingsChecked how many entries in the index were checked to find them
+     */
+    public record Results<T>(List<T> matches, long postingsChecked) {
+    }
+
+    /**
+     * Adds an item, or changes the description of an item already in the index.
+     * @param id the item's id
+     * @param description the item's description
+     * @param value what the item is found as
+     */
+    public synchronized void put(String id, String description, T value) {
+        List<String> words = tokenize(description);
+        Integer document = documents.get(id);
+        if (document != null) {
+            if (hasWords(document, words)) {
+                // Only where the item is has changed, e.g. an earlier item was removed from a list
+                values[document] = value;
+                return;
+            }
+            documents.remove(id);
+            markRemoved(document);
+        }
+        add(id, words, value);
+        compactIfNeeded();
+    }
+
+    /**
+     * @param id an item's id
+     * @return what the item is found as, or null if it isn't in the index
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized T get(String id) {
+        Integer document = documents.get(id);
+        return document != null ? (T) values[document] : null;
+    }
+
+    /**
+     * Removes an item.
+     * @param id the item's id
+     * @return whether the item was in the index
+     */
+    public synchronized boolean remove(String id) {
+        Integer document = documents.remove(id);
+        if (document == null) {
+            return false;
+        }
+        markRemoved(document);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * @return how many items are indexed
+     */
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    /**
+     * Finds the items that best match the search, matching and ranking them as described above.
+     * @param text what to search for
+     * @param limit the most items to return
+     * @return the best matching items, best first
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Results<T> search(String text, int limit) {
+        List<String> words = tokenize(text);
+        if (words.isEmpty() || limit <= 0 || documents.isEmpty()) {
+            return new Results<>(List.of(), 0);
+        }
+        boolean lastIsPrefix = Character.isLetterOrDigit(text.charAt(text.length() - 1));
+        List<List<Expansion>> expansions = new ArrayList<>(words.size());
+        for (int i = 0; i < words.size(); i++) {
+            List<Expansion> wordExpansions = expand(words.get(i), lastIsPrefix && i == words.size() - 1);
+            if (wordExpansions.isEmpty()) {
+                return new Results<>(List.of(), 0);
+            }
+            expansions.add(wordExpansions);
+        }
+        float averageLength = (float) totalLength / documents.size();
+        if (expansions.size() == 1) {
+            return best(expansions.getFirst(), limit, averageLength);
+        }
+        if (preferBestFirst(expansions, limit)) {
+            return bestFirst(expansions, limit, averageLength);
+        }
+        // Start from the search word with the fewest items, so every later word only checks those items
+        expansions.sort(Comparator.comparingLong(DescriptionIndex::postingCount));
+        Candidates candidates = union(expansions.getFirst());
+        for (int i = 1; i < expansions.size() && candidates.count > 0; i++) {
+            intersect(candidates, expansions.get(i));
+        }
+        // Only the items that match every word are scored
+        for (List<Expansion> wordExpansions : expansions) {
+            score(candidates, wordExpansions, averageLength);
+        }
+        List<T> matches = new ArrayList<>();
+        for (int index : best(candidates, limit)) {
+            matches.add((T) values[candidates.documents[index]]);
+        }
+        return new Results<>(matches, candidates.postingsChecked);
+    }
+
+    /**
+     * Splits text into the lower case words it is indexed and searched by.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return the edits allowed between a search word of this length and a word in the index
+     */
+    static int maxEdits(int length) {
+        if (length <= 2) {
+            return 0;
+        }
+        return length <= 5 ? 1 : 2;
+    }
+
+    private void add(String id, List<String> words, Object value) {
+        int document = documentCount++;
+        if (document == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            values = Arrays.copyOf(values, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            termStarts = Arrays.copyOf(termStarts, capacity);
+        }
+        if (document >> 6 == removed.length) {
+            removed = Arrays.copyOf(removed, removed.length * 2);
+        }
+        if (documentTermCount + words.size() > documentTerms.length) {
+            documentTerms = Arrays.copyOf(documentTerms,
+                    Math.max(documentTerms.length * 2, documentTermCount + words.size()));
+        }
+        ids[document] = id;
+        values[document] = value;
+        lengths[document] = words.size();
+        termStarts[document] = documentTermCount;
+        totalLength += words.size();
+        documents.put(id, document);
+        for (String word : words) {
+            documentTerms[documentTermCount++] = term(word).id;
+        }
+        int start = termStarts[document];
+        for (int i = start; i < documentTermCount; i++) {
+            int frequency = frequency(document, i);
+            if (frequency > 0) {
+                terms[documentTerms[i]].add(document, Postings.counts(words.size(), frequency));
+            }
+        }
+    }
+
+    /**
+     * @return the postings of a word, adding the word to the index if it is new
+     */
+    private Postings term(String word) {
+        Node node = root.insert(word);
+        if (node.postings == null) {
+            if (termCount == terms.length) {
+                terms = Arrays.copyOf(terms, termCount * 2);
+            }
+            node.postings = new Postings(word, termCount);
+            terms[termCount++] = node.postings;
+        }
+        return node.postings;
+    }
+
+    /**
+     * Counts how many times the word at a position in the item's words appears in them, so that each word is only
+     * counted once.
+     * @param position the position in {@link #documentTerms}
+     * @return the count, or 0 if the word already appeared earlier in the item
+     */
+    private int frequency(int document, int position) {
+        int start = termStarts[document];
+        int end = start + lengths[document];
+        int term = documentTerms[position];
+        for (int i = start; i < position; i++) {
+            if (documentTerms[i] == term) {
+                return 0;
+            }
+        }
+        int frequency = 1;
+        for (int i = position + 1; i < end; i++) {
+            if (documentTerms[i] == term) {
+                frequency++;
+            }
+        }
+        return frequency;
+    }
+
+    /**
+     * @return whether the item has exactly these words, in this order
+     */
+    private boolean hasWords(int document, List<String> words) {
+        if (lengths[document] != words.size()) {
+            return false;
+        }
+        int start = termStarts[document];
+        for (int i = 0; i < words.size(); i++) {
+            if (!terms[documentTerms[start + i]].term.equals(words.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void markRemoved(int document) {
+        removed[document >> 6] |= 1L << document;
+        removedCount++;
+        totalLength -= lengths[document];
+        int start = termStarts[document];
+        for (int i = start; i < start + lengths[document]; i++) {
+            if (frequency(document, i) > 0) {
+                terms[documentTerms[i]].live--;
+            }
+        }
+        ids[document] = null;
+        values[document] = null;
+    }
+
+    private boolean isRemoved(int document) {
+        return (removed[document >> 6] & (1L << document)) != 0;
+    }
+
+    /**
+     * Rebuilds the index without the removed items once they make up a quarter of it, so searches don't spend long
+     * skipping them.
+     */
+    private void compactIfNeeded() {
+        if (removedCount < 1024 || removedCount < documentCount / 4) {
+            return;
+        }
+        String[] oldIds = ids;
+        Object[] oldValues = values;
+        int[] oldLengths = lengths;
+        int[] oldTermStarts = termStarts;
+        int[] oldDocumentTerms = documentTerms;
+        Postings[] oldTerms = terms;
+        int oldCount = documentCount;
+        root.clear();
+        documents.clear();
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, oldCount - removedCount)) * 2);
+        ids = new String[capacity];
+        values = new Object[capacity];
+        lengths = new int[capacity];
+        termStarts = new int[capacity];
+        documentTerms = new int[Math.max(64, (int) totalLength)];
+        documentTermCount = 0;
+        terms = new Postings[16];
+        termCount = 0;
+        removed = new long[(capacity >> 6) + 1];
+        documentCount = 0;
+        removedCount = 0;
+        totalLength = 0;
+        List<String> words = new ArrayList<>();
+        for (int document = 0; document < oldCount; document++) {
+            if (oldIds[document] != null) {
+                words.clear();
+                for (int i = oldTermStarts[document]; i < oldTermStarts[document] + oldLengths[document]; i++) {
+                    words.add(oldTerms[oldDocumentTerms[i]].term);
+                }
+                add(oldIds[document], words, oldValues[document]);
+            }
+        }
+    }
+
+    /**
+     * A word in the index that a search word matches, and how much an item having it counts for.
+     */
+    private record Expansion(Postings postings, float weight) {
+    }
+
+    /**
+     * Finds the words in the index that a search word matches, by walking the trie with a
+     * {@link LevenshteinAutomaton}.
+     * @param prefix whether the search word may be the start of a longer word
+     * @return the closest and most common of them, at most {@value #MAX_EXPANSIONS}
+     */
+    private List<Expansion> expand(String word, boolean prefix) {
+        LevenshteinAutomaton automaton = new LevenshteinAutomaton(word, maxEdits(word.length()));
+        List<Expansion> expansions = new ArrayList<>();
+        walk(root, automaton, 0, '\0', Integer.MAX_VALUE, prefix, expansions);
+        if (expansions.size() > MAX_EXPANSIONS) {
+            expansions.sort(Comparator.comparingDouble(Expansion::weight).reversed()
+                    .thenComparing(Comparator.comparingInt((Expansion expansion) -> expansion.postings().live)
+                            .reversed()));
+            return new ArrayList<>(expansions.subList(0, MAX_EXPANSIONS));
+        }
+        return expansions;
+    }
+
+    /**
+     * Checks a node of the trie and everything below it.
+     * @param depth how long the word the node stands for is, which the automaton has read
+     * @param previousChar the last character of that word
+     * @param prefixEdits the fewest edits between the search word and the start of this node's word
+     */
+    private void walk(Node node, LevenshteinAutomaton automaton, int depth, char previousChar, int prefixEdits,
+                      boolean prefix, List<Expansion> expansions) {
+        int edits = automaton.edits(depth);
+        if (prefix) {
+            prefixEdits = Math.min(prefixEdits, edits);
+        }
+        boolean prefixMatched = prefix && prefixEdits <= automaton.maxEdits();
+        if (node.postings != null && node.postings.live > 0) {
+            float weight = 0;
+            if (edits <= automaton.maxEdits()) {
+                weight = (float) Math.pow(EDIT_WEIGHT, edits);
+            }
+            if (prefixMatched) {
+                weight = Math.max(weight, PREFIX_WEIGHT * (float) Math.pow(EDIT_WEIGHT, prefixEdits));
+            }
+            if (weight > 0) {
+                expansions.add(new Expansion(node.postings, weight));
+            }
+        }
+        // Once the start of a word matches, every longer word below it does too
+        if (!prefixMatched && !automaton.canMatch(depth)) {
+            return;
+        }
+        for (int i = 0; i < node.childCount; i++) {
+            char c = node.labels[i];
+            automaton.step(depth, previousChar, c);
+            walk(node.children[i], automaton, depth + 1, c, prefixEdits, prefix, expansions);
+        }
+    }
+
+    private static long postingCount(List<Expansion> expansions) {
+        long count = 0;
+        for (Expansion expansion : expansions) {
+            count += expansion.postings().size;
+        }
+        return count;
+    }
+
+    /**
+     * An item and its score.
+     */
+    private record Scored(int document, float score) {
+    }
+
+    /**
+     * A tier of a word's postings, and what every item in it scores.
+     */
+    private record Tier(Postings postings, int tier, float score) {
+        int[] documents() {
+            return postings.tierDocuments[tier];
+        }
+
+        int size() {
+            return postings.tierSizes[tier];
+        }
+    }
+
+    /**
+     * Finds the best items for a search of one word, going through the tiers of every word it matches best first.
+     * Once as many items as wanted have been found, a tier is only checked while it could still beat the worst of
+     * them, so usually only a few tiers are looked at. An item in the tiers of several words scores its best, which is
+     * always the first tier it is found in.
+     */
+    @SuppressWarnings("unchecked")
+    private Results<T> best(List<Expansion> expansions, int limit, float averageLength) {
+        List<Tier> tiers = tiers(expansions, averageLength);
+        // The worst of the best found so far is at the head, so it can be replaced by a better one
+        PriorityQueue<Scored> kept = new PriorityQueue<>(Comparator.comparingDouble(Scored::score)
+                .thenComparing(Comparator.comparingInt(Scored::document).reversed()));
+        Set<Integer> keptDocuments = new HashSet<>();
+        long checked = 0;
+        for (Tier tier : tiers) {
+            if (kept.size() == limit && tier.score() < kept.peek().score()) {
+                break;
+            }
+            int[] tierDocuments = tier.documents();
+            int size = tier.size();
+            for (int i = 0; i < size; i++) {
+                int document = tierDocuments[i];
+                checked++;
+                if (kept.size() == limit) {
+                    Scored worst = kept.peek();
+                    // Later items lose ties, and the items in a tier are in order, so none of the rest can get in
+                    if (tier.score() < worst.score() || (tier.score() == worst.score() && document > worst.document())) {
+                        break;
+                    }
+                }
+                if (isRemoved(document) || !keptDocuments.add(document)) {
+                    continue;
+                }
+                kept.add(new Scored(document, tier.score()));
+                if (kept.size() > limit) {
+                    keptDocuments.remove(kept.poll().document());
+                }
+            }
+        }
+        List<Scored> best = new ArrayList<>(kept);
+        best.sort(kept.comparator().reversed());
+        List<T> matches = new ArrayList<>(best.size());
+        for (Scored scored : best) {
+            matches.add((T) values[scored.document()]);
+        }
+        return new Results<>(matches, checked);
+    }
+
+    /**
+     * @return every tier of the words a search word matches, with what an item in it scores for the search word, best
+     * first
+     */
+    private List<Tier> tiers(List<Expansion> expansions, float averageLength) {
+        List<Tier> tiers = new ArrayList<>();
+        for (Expansion expansion : expansions) {
+            Postings list = expansion.postings();
+            float factor = expansion.weight() * idf(list);
+            for (int tier = 0; tier < list.tierCount; tier++) {
+                tiers.add(new Tier(list, tier, score(factor, list.tierCounts[tier], averageLength)));
+            }
+        }
+        tiers.sort(Comparator.comparingDouble(Tier::score).reversed());
+        return tiers;
+    }
+
+    /**
+     * Guesses whether going through the search words best first will find the best items sooner than checking every
+     * item of the rarest word against the others.
+     * <p>
+     * Treating the words as appearing in items independently of each other, an item found through one word matches
+     * the rest with the chance that any item with that word does, which says how many items have to be found best
+     * first before there are enough matches. That is doubled twice, as the best items for one word tend to be short
+     * descriptions with little room for the others, and each of them costs about as much to score as stepping through
+     * {@value #SCORE_COST} postings. If few items match every word at all, going best first can't stop early, and has
+     * to go through every item of the rarest word anyway.
+     * </p>
+     */
+    private boolean preferBestFirst(List<List<Expansion>> expansions, int limit) {
+        double n = documents.size();
+        long[] live = new long[expansions.size()];
+        double expected = n;
+        long fewest = Long.MAX_VALUE;
+        for (int word = 0; word < live.length; word++) {
+            for (Expansion expansion : expansions.get(word)) {
+                live[word] += expansion.postings().live;
+            }
+            expected *= Math.min(1.0, live[word] / n);
+            fewest = Math.min(fewest, live[word]);
+        }
+        double matchesPerRound = 0;
+        for (long wordLive : live) {
+            matchesPerRound += expected / Math.max(1, wordLive);
+        }
+        double rounds = Math.min(4.0 * limit / matchesPerRound, fewest);
+        return rounds * live.length * SCORE_COST < (double) fewest * live.length;
+    }
+
+    /**
+     * Finds the best items for a search of several words that many items are likely to match, by going through every
+     * search word's tiers best first at the same time, one item from each in turn. Each item found is scored in full
+     * from its own words, so an item is only looked at once however many of the search words find it. Every item not
+     * yet found scores at most the sum of the tiers each word is up to, so once that is no better than the worst of the
+     * best found so far the search stops. It also stops once any search word has run out of items, as every item
+     * matching all the words has then been found.
+     */
+    @SuppressWarnings("unchecked")
+    private Results<T> bestFirst(List<List<Expansion>> expansions, int limit, float averageLength) {
+        int wordCount = expansions.size();
+        List<List<Tier>> streams = new ArrayList<>(wordCount);
+        for (List<Expansion> wordExpansions : expansions) {
+            streams.add(tiers(wordExpansions, averageLength));
+        }
+        WordLookup lookup = new WordLookup(expansions, this);
+        int[] tierIndexes = new int[wordCount];
+        int[] positions = new int[wordCount];
+        float[] wordScores = new float[wordCount];
+        long[] seen = seenDocuments();
+        int[] seenList = new int[64];
+        int seenCount = 0;
+        Comparator<Scored> worse = Comparator.comparingDouble(Scored::score)
+                .thenComparing(Comparator.comparingInt(Scored::document).reversed());
+        PriorityQueue<Scored> kept = new PriorityQueue<>(worse);
+        long checked = 0;
+        search:
+        while (true) {
+            float threshold = 0;
+            for (int word = 0; word < wordCount; word++) {
+                List<Tier> tiers = streams.get(word);
+                while (tierIndexes[word] < tiers.size() && positions[word] == tiers.get(tierIndexes[word]).size()) {
+                    tierIndexes[word]++;
+                    positions[word] = 0;
+                }
+                if (tierIndexes[word] == tiers.size()) {
+                    break search;
+                }
+                threshold += tiers.get(tierIndexes[word]).score();
+            }
+            if (kept.size() == limit && threshold <= kept.peek().score()) {
+                break;
+            }
+            for (int word = 0; word < wordCount; word++) {
+                Tier tier = streams.get(word).get(tierIndexes[word]);
+                if (positions[word] == tier.size()) {
+                    continue;
+                }
+                int document = tier.documents()[positions[word]++];
+                checked++;
+                long bit = 1L << document;
+                if ((seen[document >> 6] & bit) != 0 || isRemoved(document)) {
+                    continue;
+                }
+                seen[document >> 6] |= bit;
+                if (seenCount == seenList.length) {
+                    seenList = Arrays.copyOf(seenList, seenCount * 2);
+                }
+                seenList[seenCount++] = document;
+                float score = score(document, lookup, wordScores, averageLength);
+                if (score > 0) {
+                    Scored scored = new Scored(document, score);
+                    if (kept.size() < limit) {
+                        kept.add(scored);
+                    } else if (worse.compare(scored, kept.peek()) > 0) {
+                        kept.poll();
+                        kept.add(scored);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < seenCount; i++) {
+            seen[seenList[i] >> 6] = 0;
+        }
+        List<Scored> best = new ArrayList<>(kept);
+        best.sort(worse.reversed());
+        List<T> matches = new ArrayList<>(best.size());
+        for (Scored scored : best) {
+            matches.add((T) values[scored.document()]);
+        }
+        return new Results<>(matches, checked);
+    }
+
+    /**
+     * Scores an item from its own words.
+     * @param wordScores scratch space for the item's best score for each search word
+     * @return the item's score, or 0 if it doesn't match every search word
+     */
+    private float score(int document, WordLookup lookup, float[] wordScores, float averageLength) {
+        Arrays.fill(wordScores, 0);
+        int start = termStarts[document];
+        for (int i = start; i < start + lengths[document]; i++) {
+            int match = lookup.first(documentTerms[i]);
+            if (match < 0) {
+                continue;
+            }
+            int frequency = frequency(document, i);
+            if (frequency == 0) {
+                continue;
+            }
+            int counts = Postings.counts(lengths[document], frequency);
+            for (; match < lookup.size && lookup.terms[match] == documentTerms[i]; match++) {
+                int word = lookup.words[match];
+                wordScores[word] = Math.max(wordScores[word], score(lookup.factors[match], counts, averageLength));
+            }
+        }
+        float total = 0;
+        for (float wordScore : wordScores) {
+            if (wordScore == 0) {
+                return 0;
+            }
+            total += wordScore;
+        }
+        return total;
+    }
+
+    /**
+     * The words in the index that a search matches, sorted by their numbers so an item's words can be looked up
+     * quickly, with which search word each matches and what it is multiplied by. A word may match several search
+     * words, e.g. "bolt" for both "bolt" and "bolts".
+     */
+    private static final class WordLookup {
+        final int[] terms;
+        final int[] words;
+        final float[] factors;
+        final int size;
+
+        WordLookup(List<List<Expansion>> expansions, DescriptionIndex<?> index) {
+            List<long[]> entries = new ArrayList<>();
+            List<Float> entryFactors = new ArrayList<>();
+            for (int word = 0; word < expansions.size(); word++) {
+                for (Expansion expansion : expansions.get(word)) {
+                    entries.add(new long[]{expansion.postings().id, word, entryFactors.size()});
+                    entryFactors.add(expansion.weight() * index.idf(expansion.postings()));
+                }
+            }
+            entries.sort(Comparator.comparingLong((long[] entry) -> entry[0]));
+            size = entries.size();
+            terms = new int[size];
+            words = new int[size];
+            factors = new float[size];
+            for (int i = 0; i < size; i++) {
+                long[] entry = entries.get(i);
+                terms[i] = (int) entry[0];
+                words[i] = (int) entry[1];
+                factors[i] = entryFactors.get((int) entry[2]);
+            }
+        }
+
+        /**
+         * @return the first entry for the word, or -1 if the search doesn't match it
+         */
+        int first(int term) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (terms[middle] < term) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low < size && terms[low] == term ? low : -1;
+        }
+    }
+
+    /**
+     * @return a bit for each document, all clear, which the caller must clear again once done with it
+     */
+    private long[] seenDocuments() {
+        if (seenDocuments.length <= documentCount >> 6) {
+            seenDocuments = new long[(ids.length >> 6) + 1];
+        }
+        return seenDocuments;
+    }
+
+    /**
+     * The items that still match after some of the search words, in document order, with their scores once scored.
+     */
+    private static final class Candidates {
+        int[] documents;
+        float[] scores;
+        int count = 0;
+        /**
+         * Where each candidate is in the postings last matched against, or -1 if it isn't in them
+         */
+        int[] positions;
+        long postingsChecked = 0;
+
+        Candidates(int capacity) {
+            documents = new int[capacity];
+        }
+    }
+
+    /**
+     * Finds every item matching the first search word.
+     */
+    private Candidates union(List<Expansion> expansions) {
+        if (expansions.size() == 1) {
+            Postings only = expansions.getFirst().postings();
+            Candidates candidates = new Candidates(only.live);
+            for (int i = 0; i < only.size; i++) {
+                int document = only.documents[i];
+                if (!isRemoved(document)) {
+                    candidates.documents[candidates.count++] = document;
+                }
+            }
+            candidates.postingsChecked = only.size;
+            return candidates;
+        }
+        // Several words match, so their items are merged back into document order through a bit set
+        long[] unionDocuments = seenDocuments();
+        int count = 0;
+        for (Expansion expansion : expansions) {
+            Postings list = expansion.postings();
+            for (int i = 0; i < list.size; i++) {
+                int document = list.documents[i];
+                long bit = 1L << document;
+                if ((unionDocuments[document >> 6] & bit) == 0 && !isRemoved(document)) {
+                    unionDocuments[document >> 6] |= bit;
+                    count++;
+                }
+            }
+        }
+        Candidates candidates = new Candidates(count);
+        for (int word = 0; word < unionDocuments.length && candidates.count < count; word++) {
+            long bits = unionDocuments[word];
+            while (bits != 0) {
+                candidates.documents[candidates.count++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+            unionDocuments[word] = 0;
+        }
+        candidates.postingsChecked = postingCount(expansions);
+        return candidates;
+    }
+
+    /**
+     * Keeps only the candidates that also match another search word.
+     */
+    private static void intersect(Candidates candidates, List<Expansion> expansions) {
+        boolean[] matched = new boolean[candidates.count];
+        for (Expansion expansion : expansions) {
+            match(candidates, expansion.postings());
+            for (int i = 0; i < candidates.count; i++) {
+                matched[i] |= candidates.positions[i] >= 0;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < candidates.count; i++) {
+            if (matched[i]) {
+                candidates.documents[kept++] = candidates.documents[i];
+            }
+        }
+        candidates.count = kept;
+    }
+
+    /**
+     * Adds each candidate's best score for a search word, out of the words in the index it matched.
+     */
+    private void score(Candidates candidates, List<Expansion> expansions, float averageLength) {
+        if (candidates.scores == null) {
+            candidates.scores = new float[candidates.count];
+        }
+        float[] best = new float[candidates.count];
+        for (Expansion expansion : expansions) {
+            Postings list = expansion.postings();
+            float factor = expansion.weight() * idf(list);
+            match(candidates, list);
+            for (int i = 0; i < candidates.count; i++) {
+                int position = candidates.positions[i];
+                if (position >= 0) {
+                    best[i] = Math.max(best[i], score(factor, list.counts[position], averageLength));
+                }
+            }
+        }
+        for (int i = 0; i < candidates.count; i++) {
+            candidates.scores[i] += best[i];
+        }
+    }
+
+    /**
+     * Finds where each candidate is in the postings. Whichever of the two is much longer is skipped through with
+     * {@link #advance}, otherwise both are simply walked through together.
+     */
+    private static void match(Candidates candidates, Postings list) {
+        if (candidates.positions == null) {
+            candidates.positions = new int[candidates.count];
+        }
+        int[] documents = list.documents;
+        int[] positions = candidates.positions;
+        if (candidates.count > 8L * list.size) {
+            Arrays.fill(positions, 0, candidates.count, -1);
+            int index = 0;
+            for (int position = 0; position < list.size && index < candidates.count; position++) {
+                index = advance(candidates.documents, index, candidates.count, documents[position]);
+                if (index < candidates.count && candidates.documents[index] == documents[position]) {
+                    positions[index] = position;
+                }
+            }
+            candidates.postingsChecked += list.size;
+            return;
+        }
+        boolean skip = list.size > 8L * candidates.count;
+        int position = 0;
+        for (int i = 0; i < candidates.count; i++) {
+            int document = candidates.documents[i];
+            if (skip) {
+                position = advance(documents, position, list.size, document);
+            } else {
+                while (position < list.size && documents[position] < document) {
+                    position++;
+                }
+            }
+            positions[i] = position < list.size && documents[position] == document ? position : -1;
+        }
+        candidates.postingsChecked += skip ? candidates.count : position;
+    }
+
+    /**
+     * Finds the first position from the given one holding the document or a later one, jumping ahead in growing steps
+     * and then searching back, so long runs of unwanted documents are skipped quickly.
+     */
+    private static int advance(int[] documents, int from, int size, int document) {
+        if (from >= size || documents[from] >= document) {
+            return from;
+        }
+        int low = from;
+        int step = 1;
+        int high = from + 1;
+        while (high < size && documents[high] < document) {
+            low = high;
+            step <<= 1;
+            high = from + step;
+        }
+        high = Math.min(high, size);
+        int found = Arrays.binarySearch(documents, low + 1, high, document);
+        return found >= 0 ? found : -found - 1;
+    }
+
+    /**
+     * @return the positions of the highest scoring candidates, best first, with ties in document order
+     */
+    private static List<Integer> best(Candidates candidates, int limit) {
+        Comparator<Integer> better = (a, b) -> {
+            int byScore = Float.compare(candidates.scores[b], candidates.scores[a]);
+            return byScore != 0 ? byScore : Integer.compare(candidates.documents[a], candidates.documents[b]);
+        };
+        // The worst of the best found so far is at the head, so it can be replaced by a better one
+        PriorityQueue<Integer> kept = new PriorityQueue<>(Math.min(limit, candidates.count) + 1, better.reversed());
+        for (int i = 0; i < candidates.count; i++) {
+            if (kept.size() == limit) {
+                int worst = kept.peek();
+                // Later documents lose ties, so only a strictly higher score gets in
+                if (candidates.scores[i] <= candidates.scores[worst]) {
+                    continue;
+                }
+                kept.poll();
+            }
+            kept.add(i);
+        }
+        List<Integer> best = new ArrayList<>(kept);
+        best.sort(better);
+        return best;
+    }
+
+    /**
+     * How much rarer words count for, by how few of the items have them.
+     */
+    private float idf(Postings postings) {
+        int n = documents.size();
+        return (float) Math.log(1 + (n - postings.live + 0.5) / (postings.live + 0.5));
+    }
+
+    /**
+     * @param counts the counts of a posting, see {@link Postings#counts}
+     */
+    private static float score(float factor, int counts, float averageLength) {
+        int frequency = Postings.frequency(counts);
+        int length = Postings.length(counts);
+        return factor * frequency * (K1 + 1) / (frequency + K1 * (1 - B + B * length / averageLength));
+    }
+
+    /**
+     * A node of the trie of words, standing for the characters on the path to it. Its children are kept sorted by
+     * character.
+     */
+    private static final class Node {
+        private static final char[] NO_LABELS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        char[] labels = NO_LABELS;
+        Node[] children = NO_CHILDREN;
+        int childCount = 0;
+        /**
+         * The items with the word ending at this node, or null if no item has had it
+         */
+        Postings postings;
+
+        /**
+         * @return the node the word ends at, creating the nodes if the word is new
+         */
+        Node insert(String word) {
+            Node node = this;
+            for (int i = 0; i < word.length(); i++) {
+                node = node.childOrAdd(word.charAt(i));
+            }
+            return node;
+        }
+
+        private Node childOrAdd(char c) {
+            int index = Arrays.binarySearch(labels, 0, childCount, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            index = -index - 1;
+            if (childCount == labels.length) {
+                labels = Arrays.copyOf(labels, Math.max(2, childCount * 2));
+                children = Arrays.copyOf(children, Math.max(2, childCount * 2));
+            }
+            System.arraycopy(labels, index, labels, index + 1, childCount - index);
+            System.arraycopy(children, index, children, index + 1, childCount - index);
+            Node child = new Node();
+            labels[index] = c;
+            children[index] = child;
+            childCount++;
+            return child;
+        }
+
+        void clear() {
+            labels = NO_LABELS;
+            children = NO_CHILDREN;
+            childCount = 0;
+            postings = null;
+        }
+    }
+}
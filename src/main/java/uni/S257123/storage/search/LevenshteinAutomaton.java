@@ -0,0 +1,114 @@
+package uni.S257123.storage.search;
+
+import java.util.Arrays;
+
+/**
+ * Accepts the words within a number of edits of one word, reading a candidate word a character at a time, so that a
+ * whole dictionary held in a trie can be checked by walking the trie once rather than comparing every word.
+ * <p>
+ * An edit is inserting, deleting or changing a character, or swapping two neighbouring characters, the usual typing
+ * mistakes. The state after each character is one row of the edit distance table between the word and what has been
+ * read so far. Each value is capped at one more than the edits allowed, so there are only finitely many states, and
+ * once no value in the row can come back under the limit (see {@link #canMatch(int)}) nothing below that point in the
+ * trie can match, so the walk skips it.
+ * </p>
+ * <p>
+ * The rows are kept by how many characters have been read, and reused as a depth first walk goes back up and down
+ * the trie, so reading a character allocates nothing. Only the values within the limit's distance of the diagonal are
+ * worked out, as the rest are always over it.
+ * </p>
+ */
+final class LevenshteinAutomaton {
+    private final char[] word;
+    private final int maxEdits;
+    private final int tooFar;
+    /**
+     * The state after reading each number of characters, as far as the walk has got
+     */
+    private int[][] rows;
+    /**
+     * The smallest value in each row
+     */
+    private int[] mins;
+
+    /**
+     * @param word the word to match against
+     * @param maxEdits the most edits a word may be away from it
+     */
+    LevenshteinAutomaton(String word, int maxEdits) {
+        this.word = word.toCharArray();
+        this.maxEdits = maxEdits;
+        this.tooFar = maxEdits + 1;
+        rows = new int[word.length() + maxEdits + 2][];
+        mins = new int[rows.length];
+        int[] start = new int[this.word.length + 1];
+        for (int j = 0; j < start.length; j++) {
+            start[j] = Math.min(j, tooFar);
+        }
+        rows[0] = start;
+    }
+
+    /**
+     * Reads the next character.
+     * @param depth how many characters have been read before it
+     * @param previousChar the character read before it, if any, which is needed to recognise swapped characters
+     * @param c the next character
+     */
+    void step(int depth, char previousChar, char c) {
+        if (depth + 1 == rows.length) {
+            rows = Arrays.copyOf(rows, rows.length * 2);
+            mins = Arrays.copyOf(mins, rows.length);
+        }
+        if (rows[depth + 1] == null) {
+            rows[depth + 1] = new int[word.length + 1];
+        }
+        int[] row = rows[depth];
+        int[] previousRow = depth > 0 ? rows[depth - 1] : null;
+        int[] next = rows[depth + 1];
+        int read = depth + 1;
+        next[0] = Math.min(read, tooFar);
+        int min = next[0];
+        int low = Math.max(1, read - maxEdits);
+        int high = Math.min(word.length, read + maxEdits);
+        if (low > 1 && low <= word.length + 1) {
+            next[low - 1] = tooFar;
+        }
+        for (int j = low; j <= high; j++) {
+            int value = Math.min(Math.min(next[j - 1], row[j]) + 1, row[j - 1] + (word[j - 1] == c ? 0 : 1));
+            if (previousRow != null && j > 1 && word[j - 2] == c && word[j - 1] == previousChar) {
+                value = Math.min(value, previousRow[j - 2] + 1);
+            }
+            next[j] = Math.min(value, tooFar);
+            min = Math.min(min, next[j]);
+        }
+        if (high < word.length) {
+            next[high + 1] = tooFar;
+        }
+        mins[depth + 1] = min;
+    }
+
+    /**
+     * @return how many edits the characters read so far are from the word, or one more than the limit if they are
+     * further away than that
+     */
+    int edits(int depth) {
+        return Math.abs(word.length - depth) > maxEdits ? tooFar : rows[depth][word.length];
+    }
+
+    int maxEdits() {
+        return maxEdits;
+    }
+
+    /**
+     * Checks whether reading more characters could still end within the limit. A swap reaches back two rows, so the
+     * row before also has to be too far away.
+     * @param depth how many characters have been read
+     */
+    boolean canMatch(int depth) {
+        return mins(depth) <= maxEdits || (depth > 0 && mins(depth - 1) < maxEdits);
+    }
+
+    private int mins(int depth) {
+        return depth == 0 ? 0 : mins[depth];
+    }
+}
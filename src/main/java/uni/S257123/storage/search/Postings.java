@@ -0,0 +1,98 @@
+package uni.S257123.storage.search;
+
+import java.util.Arrays;
+
+/**
+ * The items one word of a {@link DescriptionIndex} appears in, by their document numbers, which only ever go up as
+ * items are added. Removed items stay in the postings until the index is rebuilt, and are skipped by searches.
+ * <p>
+ * Each item is kept twice: once in document order, for checking whether items found through another word have this
+ * one too, and once in a tier of the items that have the same number of words and use this word the same number of
+ * times. Every item in a tier scores the same for this word, so the best items for it can be found by going through
+ * the tiers best first and stopping early, rather than scoring every item.
+ * </p>
+ */
+final class Postings {
+    /**
+     * The word
+     */
+    final String term;
+    /**
+     * The number the index knows the word by
+     */
+    final int id;
+
+    int[] documents = new int[2];
+    /**
+     * The {@link #counts(int, int) counts} of each item, in the same order. Kept here rather than looked up by item,
+     * so scoring reads straight through memory
+     */
+    int[] counts = new int[2];
+    int size = 0;
+    /**
+     * How many of the items haven't been removed
+     */
+    int live = 0;
+
+    /**
+     * The counts shared by the items in each tier
+     */
+    int[] tierCounts = new int[1];
+    int[][] tierDocuments = new int[1][];
+    int[] tierSizes = new int[1];
+    int tierCount = 0;
+
+    Postings(String term, int id) {
+        this.term = term;
+        this.id = id;
+    }
+
+    /**
+     * Packs what an item's score for a word depends on into one int.
+     * @param length how many words the item has, in the upper 24 bits
+     * @param frequency how many times it has the word, in the lower 8 (up to 255)
+     */
+    static int counts(int length, int frequency) {
+        return Math.min(length, 0xFFFFFF) << 8 | Math.min(frequency, 0xFF);
+    }
+
+    static int length(int counts) {
+        return counts >>> 8;
+    }
+
+    static int frequency(int counts) {
+        return counts & 0xFF;
+    }
+
+    /**
+     * Adds an item, which must have a higher document number than any already added.
+     */
+    void add(int document, int counts) {
+        if (size == documents.length) {
+            documents = Arrays.copyOf(documents, size * 2);
+            this.counts = Arrays.copyOf(this.counts, size * 2);
+        }
+        documents[size] = document;
+        this.counts[size++] = counts;
+        live++;
+
+        int tier = 0;
+        while (tier < tierCount && tierCounts[tier] != counts) {
+            tier++;
+        }
+        if (tier == tierCount) {
+            if (tierCount == tierCounts.length) {
+                tierCounts = Arrays.copyOf(tierCounts, tierCount * 2);
+                tierDocuments = Arrays.copyOf(tierDocuments, tierCount * 2);
+                tierSizes = Arrays.copyOf(tierSizes, tierCount * 2);
+            }
+            tierCounts[tier] = counts;
+            tierDocuments[tier] = new int[2];
+            tierCount++;
+        }
+        if (tierSizes[tier] == tierDocuments[tier].length) {
+            tierDocuments[tier] = Arrays.copyOf(tierDocuments[tier], tierSizes[tier] * 2);
+        }
+        tierDocuments[tier][tierSizes[tier]++] = document;
+    }
+}
@@ -0,0 +1,249 @@
+package uni.S257123.storage.search;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The values of one field of a list of rows, sorted so that the rows whose value starts with some text can be found
+ * with two binary searches rather than by checking every row. Rows are known by their positions in the list, and the
+ * index is kept up to date with the list as rows are added to the end, changed or removed.
+ * <p>
+ * The values are kept in one array by position, and the positions in another sorted by value and then by position,
+ * so the rows starting with some text are one run of the sorted positions. Changing or removing a row moves part of
+ * the sorted positions along by one, which costs next to nothing beside rewriting the file the row is in.
+ * </p>
+ */
+public final class PrefixIndex {
+    private String[] keys;
+    /**
+     * The positions, sorted by their keys
+     */
+    private int[] order;
+    private int size;
+
+    /**
+     * @param keys each row's value, by position. Rows without a value should be given an empty string
+     */
+    public PrefixIndex(List<String> keys) {
+        this.keys = keys.toArray(new String[Math.max(keys.size(), 16)]);
+        this.order = new int[this.keys.length];
+        this.size = keys.size();
+        sort();
+    }
+
+    /**
+     * @return how many rows the index is of
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Adds rows to the end of the list.
+     * @param newKeys the new rows' values, in order
+     */
+    public synchronized void add(List<String> newKeys) {
+        if (size + newKeys.size() > keys.length) {
+            int capacity = Math.max(size + newKeys.size(), keys.length * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            order = Arrays.copyOf(order, capacity);
+        }
+        // Inserting each one moves half the sorted positions along, so past a point sorting them again is quicker
+        if ((long) newKeys.size() * 16 > size) {
+            for (String key : newKeys) {
+                keys[size++] = key;
+            }
+            sort();
+            return;
+        }
+        for (String key : newKeys) {
+            keys[size] = key;
+            insert(size, size);
+            size++;
+        }
+    }
+
+    /**
+     * Changes the value of a row.
+     */
+    public synchronized void set(int position, String key) {
+        int index = indexOf(position);
+        System.arraycopy(order, index + 1, order, index, size - index - 1);
+        keys[position] = key;
+        insert(position, size - 1);
+    }
+
+    /**
+     * Removes a row, moving every row after it up one position.
+     */
+    public synchronized void remove(int position) {
+        int index = indexOf(position);
+        System.arraycopy(order, index + 1, order, index, size - index - 1);
+        System.arraycopy(keys, position + 1, keys, position, size - position - 1);
+        size--;
+        keys[size] = null;
+        for (int i = 0; i < size; i++) {
+            if (order[i] > position) {
+                order[i]--;
+            }
+        }
+    }
+
+    /**
+     * @return how many rows have a value starting with the prefix
+     */
+    public synchronized int count(String prefix) {
+        int from = lowerBound(prefix);
+        return endOfPrefix(prefix, from) - from;
+    }
+
+    /**
+     * @param limit the most positions to return, or 0 for all of them
+     * @return the positions of the rows whose value starts with the prefix, lowest first
+     */
+    public synchronized int[] positions(String prefix, int limit) {
+        int from = lowerBound(prefix);
+        int to = endOfPrefix(prefix, from);
+        if (limit <= 0 || to - from <= limit) {
+            int[] positions = Arrays.copyOfRange(order, from, to);
+            Arrays.sort(positions);
+            return positions;
+        }
+        // Only the lowest are wanted, so rather than sorting them all, the lowest so far are kept in a max-heap, which
+        // most positions are bigger than the top of
+        int[] heap = Arrays.copyOfRange(order, from, from + limit);
+        for (int i = limit / 2 - 1; i >= 0; i--) {
+            siftDown(heap, i);
+        }
+        for (int i = from + limit; i < to; i++) {
+            if (order[i] < heap[0]) {
+                heap[0] = order[i];
+                siftDown(heap, 0);
+            }
+        }
+        Arrays.sort(heap);
+        return heap;
+    }
+
+    private static void siftDown(int[] heap, int i) {
+        int value = heap[i];
+        while (2 * i + 1 < heap.length) {
+            int child = 2 * i + 1;
+            if (child + 1 < heap.length && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if (heap[child] <= value) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+    }
+
+    /**
+     * Slots a position into the sorted positions.
+     * @param count how many sorted positions there are before it is added
+     */
+    private void insert(int position, int count) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(order[middle], position) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        System.arraycopy(order, low, order, low + 1, count - low);
+        order[low] = position;
+    }
+
+    /**
+     * @return where a position is in the sorted positions
+     */
+    private int indexOf(int position) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compare(order[middle], position);
+            if (comparison == 0) {
+                return middle;
+            } else if (comparison < 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        throw new IllegalStateException("Position " + position + " isn't in the index");
+    }
+
+    /**
+     * @return the first place in the sorted positions whose value isn't before the prefix
+     */
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[order[middle]].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the first place from the given one whose value doesn't start with the prefix. The values that do all
+     * sort together, straight after the lower bound
+     */
+    private int endOfPrefix(String prefix, int from) {
+        int low = from;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys[order[middle]].startsWith(prefix)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private int compare(int a, int b) {
+        int comparison = keys[a].compareTo(keys[b]);
+        return comparison != 0 ? comparison : Integer.compare(a, b);
+    }
+
+    /**
+     * Sorts every position from scratch, with a merge sort over the ints so nothing has to be boxed.
+     */
+    private void sort() {
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        int[] from = order;
+        int[] to = new int[order.length];
+        for (int width = 1; width < size; width *= 2) {
+            for (int start = 0; start < size; start += 2 * width) {
+                int middle = Math.min(start + width, size);
+                int end = Math.min(start + 2 * width, size);
+                int left = start;
+                int right = middle;
+                for (int i = start; i < end; i++) {
+                    to[i] = left < middle && (right >= end || compare(from[left], from[right]) <= 0)
+                            ? from[left++] : from[right++];
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        order = from;
+    }
+}
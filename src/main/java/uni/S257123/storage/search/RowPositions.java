@@ -0,0 +1,85 @@
+package uni.S257123.storage.search;
+
+import java.util.BitSet;
+
+/**
+ * Finds where rows are in a list that rows are added to the end of and removed from, without renumbering every row
+ * after one that is removed, so an index can know rows by something that doesn't change when an earlier row goes.
+ * <p>
+ * Each row is given a slot as it is added, in the order of the list, which it keeps until it is removed. A row's
+ * position is its slot less the number of removed slots before it, which are counted through a Fenwick tree, so
+ * adding, removing and finding a row each take time proportional to the logarithm of the number of slots.
+ * </p>
+ */
+public final class RowPositions {
+    /**
+     * Each element counts the removed slots in a range ending at it, as a Fenwick tree numbered from 1
+     */
+    private int[] tree = new int[17];
+    private final BitSet removed = new BitSet();
+    private int slots = 0;
+    private int removedCount = 0;
+
+    /**
+     * Adds a row to the end of the list.
+     * @return the row's slot
+     */
+    public synchronized int add() {
+        if (slots + 1 == tree.length) {
+            grow();
+        }
+        return slots++;
+    }
+
+    /**
+     * Removes a row from the list, moving every row after it up one.
+     * @param slot the row's slot
+     * @throws IllegalArgumentException if there is no row in the slot
+     */
+    public synchronized void remove(int slot) {
+        if (slot < 0 || slot >= slots || removed.get(slot)) {
+            throw new IllegalArgumentException("There is no row in slot " + slot);
+        }
+        removed.set(slot);
+        removedCount++;
+        for (int i = slot + 1; i < tree.length; i += i & -i) {
+            tree[i]++;
+        }
+    }
+
+    /**
+     * @param slot a row's slot, which must not have been removed
+     * @return where the row is in the list
+     */
+    public synchronized int position(int slot) {
+        int removedBefore = 0;
+        for (int i = slot; i > 0; i -= i & -i) {
+            removedBefore += tree[i];
+        }
+        return slot - removedBefore;
+    }
+
+    /**
+     * @return how many rows are in the list
+     */
+    public synchronized int size() {
+        return slots - removedCount;
+    }
+
+    /**
+     * Doubles the number of slots the tree can count, building it again from the removed slots, as the ranges of the
+     * new elements take in some of the old ones.
+     */
+    private void grow() {
+        tree = new int[(tree.length - 1) * 2 + 1];
+        for (int slot = removed.nextSetBit(0); slot >= 0; slot = removed.nextSetBit(slot + 1)) {
+            tree[slot + 1] = 1;
+        }
+        for (int i = 1; i < tree.length; i++) {
+            int parent = i + (i & -i);
+            if (parent < tree.length) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+}
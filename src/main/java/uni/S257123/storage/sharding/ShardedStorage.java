@@ -0,0 +1,399 @@
+package uni.S257123.storage.sharding;
+
+import org.apache.commons.lang3.tuple.Pair;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.events.StorageListener;
+import uni.S257123.storage.history.ReplayVerification;
+import uni.S257123.storage.ids.IdFormat;
+import uni.S257123.storage.ids.StripedIdAllocator;
+import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.query.MemoryQueryPlan;
+import uni.S257123.storage.query.Query;
+import uni.S257123.storage.search.DescriptionIndex;
+import uni.S257123.storage.text.TextStorage;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * One inventory split between several storages (shards), e.g. one per warehouse, that is used as if it were a single
+ * storage.
+ * <p>
+ * Each item lives in exactly one shard, found from its id alone: a numeric id belongs to the shard numbered by the
+ * remainder of dividing it by the number of shards, and any other id by the remainder of its hash. Shards have to make
+ * only the ids that belong to them, which {@link #text(List)} sets up through {@link StripedIdAllocator}, so writes
+ * and the lookups of one item go straight to the shard that owns it. New items are spread between the shards in turn.
+ * </p>
+ * <p>
+ * Searches and other reads across every item are sent to all the shards at once, each on its own virtual thread, and
+ * their results are merged: concatenated in shard order, or merged in the query's order when it is sorted, then cut
+ * to the query's limit. Every shard has its own lock, so the shards are read and written in parallel, and the storage
+ * {@link #isThreadSafe() locks itself} rather than being locked as a whole by a
+ * {@link uni.S257123.storage.concurrent.StorageExecutor}. Throughput therefore grows with the number of shards, up to
+ * the number of cores.
+ * </p>
+ * <p>
+ * Reads that list every row (e.g. {@link #readContents(String)}) give each shard's rows in turn, so items come in
+ * order of shard and then of when they were added, rather than purely when they were added.
+ * </p>
+ */
+public class ShardedStorage implements Storage {
+    private final List<Storage> shards;
+    private final ReadWriteLock[] locks;
+    private final ExecutorService threads = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("shard-", 0).factory());
+    /**
+     * Which shard the next new item goes to
+     */
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /**
+     * @param shards the storages the inventory is split between, each holding only the items whose ids belong to it
+     */
+    public ShardedStorage(List<Storage> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.shards = List.copyOf(shards);
+        this.locks = new ReadWriteLock[shards.size()];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Opens a {@link TextStorage} shard in each folder, from the items.txt and transactions.txt files inside it. Each
+     * shard only makes the ids that belong to it, so the folders must always be given in the same order.
+     * @param folders the folder of each shard, e.g. one per warehouse
+     */
+    public static ShardedStorage text(List<Path> folders) {
+        List<Storage> shards = new ArrayList<>(folders.size());
+        for (int i = 0; i < folders.size(); i++) {
+            shards.add(new TextStorage(folders.get(i).resolve("items.txt").toString(),
+                    folders.get(i).resolve("transactions.txt").toString(), i, folders.size()));
+        }
+        return new ShardedStorage(shards);
+    }
+
+    /**
+     * @return the shards, in order, e.g. to add items to one warehouse in particular
+     */
+    public List<Storage> shards() {
+        return shards;
+    }
+
+    /**
+     * @return the number of the shard that owns the item with this id
+     */
+    public int shardOf(String id) {
+        long numeric = IdFormat.parse(id);
+        return (int) Math.floorMod(numeric >= 0 ? numeric : id.hashCode(), (long) shards.size());
+    }
+
+    private <T> T read(int shard, Function<Storage, T> call) {
+        locks[shard].readLock().lock();
+        try {
+            return call.apply(shards.get(shard));
+        } finally {
+            locks[shard].readLock().unlock();
+        }
+    }
+
+    private <T> T write(int shard, Function<Storage, T> call) {
+        locks[shard].writeLock().lock();
+        try {
+            return call.apply(shards.get(shard));
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads from every shard at once.
+     * @return each shard's result, in shard order
+     * @throws RuntimeException the first exception any shard threw
+     */
+    private <T> List<T> scatter(Function<Storage, T> call) {
+        if (shards.size() == 1) {
+            return List.of(read(0, call));
+        }
+        List<Future<T>> futures = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            int shard = i;
+            futures.add(threads.submit(() -> read(shard, call)));
+        }
+        return gather(futures);
+    }
+
+    private static <T> List<T> gather(List<Future<T>> futures) {
+        List<T> results = new ArrayList<>(futures.size());
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    private static <T> List<T> concatenate(List<List<T>> lists) {
+        List<T> all = new ArrayList<>(lists.stream().mapToInt(List::size).sum());
+        lists.forEach(all::addAll);
+        return all;
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public List<String> getSources() {
+        return read(0, Storage::getSources);
+    }
+
+    @Override
+    public List<String> getHeaders(String target) {
+        return read(0, storage -> storage.getHeaders(target));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * New items go to each shard in turn, which gives them an id of its own. Transactions go to the shard that owns
+     * their item.
+     * </p>
+     */
+    @Override
+    public boolean addRecord(List<String> parameters, String target, String transactionType) {
+        return write(shardFor(parameters, target), storage -> storage.addRecord(parameters, target, transactionType));
+    }
+
+    @Override
+    public boolean addRecord(List<String> parameters, String target) {
+        return write(shardFor(parameters, target), storage -> storage.addRecord(parameters, target));
+    }
+
+    private int shardFor(List<String> parameters, String target) {
+        return target.equals("items") ? Math.floorMod(nextShard.getAndIncrement(), shards.size())
+                : shardOf(parameters.getFirst());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The rows are split between the shards as {@link #addRecord(List, String)} would split them, and each shard's
+     * part is added as one batch, all the shards at once.
+     * </p>
+     */
+    @Override
+    public boolean addRecords(List<List<String>> rows, String target) {
+        List<List<List<String>>> parts = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            parts.add(new ArrayList<>());
+        }
+        for (List<String> parameters : rows) {
+            parts.get(shardFor(parameters, target)).add(parameters);
+        }
+        List<Future<Boolean>> futures = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            int shard = i;
+            List<List<String>> part = parts.get(i);
+            if (!part.isEmpty()) {
+                futures.add(threads.submit(() -> write(shard, storage -> storage.addRecords(part, target))));
+            }
+        }
+        return gather(futures).stream().allMatch(Boolean::booleanValue);
+    }
+
+    @Override
+    public void updateRecord(List<String> recordInfo) {
+        write(shardOf(recordInfo.getFirst()), storage -> {
+            storage.updateRecord(recordInfo);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteRecord(String id) {
+        write(shardOf(id), storage -> {
+            storage.deleteRecord(id);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Read as one page of every row of each shard, as the text storage reads the file at a path rather than a
+     * datasource here.
+     * </p>
+     */
+    @Override
+    public List<CSV> readContents(String target) {
+        return concatenate(scatter(storage -> storage.readPage(target, 0, Integer.MAX_VALUE)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The pages run through each shard's rows in turn. The shards don't say how many rows they have, so the size of
+     * each shard that the page starts after is found with a binary search of single row pages.
+     * </p>
+     */
+    @Override
+    public List<CSV> readPage(String target, int offset, int limit) {
+        List<CSV> page = new ArrayList<>();
+        int skip = offset;
+        for (int shard = 0; shard < shards.size() && page.size() < limit; shard++) {
+            int from = skip;
+            int wanted = limit - page.size();
+            List<CSV> rows = read(shard, storage -> storage.readPage(target, from, wanted));
+            if (rows.isEmpty() && skip > 0) {
+                skip -= read(shard, storage -> size(storage, target, from));
+            } else {
+                page.addAll(rows);
+                skip = 0;
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @return how many rows the storage has, which is known to be at most the bound
+     */
+    private static int size(Storage storage, String target, int bound) {
+        int low = 0;
+        int high = bound;
+        while (low < high) {
+            int middle = (int) (((long) low + high + 1) / 2);
+            if (storage.readPage(target, middle - 1, 1).isEmpty()) {
+                high = middle - 1;
+            } else {
+                low = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The shards are streamed one after another, as the action may not be safe to call from several threads.
+     * </p>
+     */
+    @Override
+    public void forEachRecord(String target, Consumer<CSV> action) {
+        for (int shard = 0; shard < shards.size(); shard++) {
+            read(shard, storage -> {
+                storage.forEachRecord(target, action);
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public List<CSV> searchRecord(String target, Pair<String, String> propertyNameValuePair) {
+        return concatenate(scatter(storage -> storage.searchRecord(target, propertyNameValuePair)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every shard runs the whole query, sorted and limited, so at most the limit rows come back from each. Each
+     * shard's rows are already in order, and the sort used to merge them finds and merges those runs rather than
+     * comparing every row again.
+     * </p>
+     */
+    @Override
+    public List<CSV> query(Query query) {
+        List<CSV> rows = concatenate(scatter(storage -> storage.query(query)));
+        if (query.sort() != null) {
+            rows.sort(MemoryQueryPlan.comparator(query.sort()));
+        }
+        return query.limit() > 0 && rows.size() > query.limit() ? new ArrayList<>(rows.subList(0, query.limit()))
+                : rows;
+    }
+
+    @Override
+    public List<CSV> transactionHistory(String id) {
+        return read(shardOf(id), storage -> storage.transactionHistory(id));
+    }
+
+    @Override
+    public List<CSV> itemsAsOf(LocalDate date) {
+        return concatenate(scatter(storage -> storage.itemsAsOf(date)));
+    }
+
+    @Override
+    public CSV itemAsOf(String id, LocalDate date) {
+        return read(shardOf(id), storage -> storage.itemAsOf(id, date));
+    }
+
+    @Override
+    public ReplayVerification verifyTransactionLog() {
+        long replayed = 0;
+        long checked = 0;
+        long mismatches = 0;
+        List<String> examples = new ArrayList<>();
+        for (ReplayVerification verification : scatter(Storage::verifyTransactionLog)) {
+            replayed += verification.transactionsReplayed();
+            checked += verification.itemsChecked();
+            mismatches += verification.mismatches();
+            examples.addAll(verification.examples().subList(0,
+                    Math.min(verification.examples().size(), 20 - examples.size())));
+        }
+        return new ReplayVerification(replayed, checked, mismatches, examples);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each shard ranks its own items, against how common each word is in that shard. The best of each are then ranked
+     * again together in a {@link DescriptionIndex} of just those items, so the order doesn't depend on which shard an
+     * item is in.
+     * </p>
+     */
+    @Override
+    public List<CSV> searchDescriptions(String text, int limit) {
+        List<CSV> candidates = concatenate(scatter(storage -> storage.searchDescriptions(text, limit)));
+        if (shards.size() == 1) {
+            return candidates;
+        }
+        DescriptionIndex<CSV> index = new DescriptionIndex<>();
+        for (CSV item : candidates) {
+            index.put(item.id, item.description, item);
+        }
+        return index.search(text, limit).matches();
+    }
+
+    @Override
+    public List<String> getIDs() {
+        return concatenate(scatter(Storage::getIDs));
+    }
+
+    @Override
+    public void addListener(StorageListener listener) {
+        shards.forEach(shard -> shard.addListener(listener));
+    }
+
+    @Override
+    public void removeListener(StorageListener listener) {
+        shards.forEach(shard -> shard.removeListener(listener));
+    }
+}
@@ -0,0 +1,158 @@
+package uni.S257123.storage.text;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Appends rows to the end of one data file through a channel that is kept open between writes, rather than a writer
+ * being opened and closed for every row, and makes each write as durable as the {@link Durability} asks.
+ * <p>
+ * Text is written with {@link #write(CharSequence)}, possibly in several pieces, and each whole write is ended with
+ * {@link #commit()}, which forces it onto the disk straight away, or leaves it for the background thread shared by
+ * every channel to force along with everything else written since it last ran. When the file is replaced by a
+ * rewritten copy, {@link #reopen()} has to be called so the channel isn't left appending to the old file.
+ * </p>
+ */
+final class AppendChannel {
+    private static final long GROUP_SYNC_MS = Long.getLong("ims.text.groupSyncMs", 20);
+    /**
+     * The channels written to in {@link Durability#GROUP} mode since the background thread last forced them
+     */
+    private static final Set<AppendChannel> unsynced = ConcurrentHashMap.newKeySet();
+    private static Thread groupSyncThread;
+
+    private final Path file;
+    private final Durability durability;
+    /**
+     * Only opened by the first write, and closed when the file is replaced
+     */
+    private FileChannel channel;
+
+    /**
+     * @param file the file to append to, which must already exist
+     * @param durability how soon writes are forced onto the disk
+     */
+    AppendChannel(Path file, Durability durability) {
+        this.file = file;
+        this.durability = durability;
+    }
+
+    /**
+     * Appends text to the end of the file, handing it to the operating system before returning.
+     * @return how many bytes were written
+     * @throws RuntimeException if an IOException occurs while writing
+     */
+    synchronized int write(CharSequence text) {
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(text));
+            int length = bytes.remaining();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            return length;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the length of the file just after the last write through this channel, which includes anything other
+     * programs appended before it, or -1 if nothing has been written since the channel was last opened
+     * @throws RuntimeException if an IOException occurs while finding the length
+     */
+    synchronized long end() {
+        try {
+            return channel != null ? channel.position() : -1;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Ends a write, forcing everything written so far onto the disk if the durability asks for it now.
+     * @throws RuntimeException if an IOException occurs while forcing the file onto the disk
+     */
+    void commit() {
+        switch (durability) {
+            case SYNC -> sync();
+            case GROUP -> {
+                unsynced.add(this);
+                startGroupSync();
+            }
+            case BUFFERED -> {
+            }
+        }
+    }
+
+    /**
+     * Forces everything written so far onto the disk.
+     */
+    synchronized void sync() {
+        try {
+            if (channel != null) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Lets go of the file after it has been replaced, so the next write opens the new one. Anything written to the
+     * old file is forced onto the disk first, unless the durability leaves that to the operating system.
+     */
+    synchronized void reopen() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            if (durability != Durability.BUFFERED) {
+                channel.force(false);
+            }
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            channel = null;
+            unsynced.remove(this);
+        }
+    }
+
+    private static synchronized void startGroupSync() {
+        if (groupSyncThread == null) {
+            groupSyncThread = Thread.ofVirtual().name("group-sync").start(AppendChannel::syncGroups);
+        }
+    }
+
+    /**
+     * Forces the channels written to in {@link Durability#GROUP} mode onto the disk, every
+     * {@code ims.text.groupSyncMs}. A channel is only held on to while it has writes to force.
+     */
+    private static void syncGroups() {
+        while (true) {
+            try {
+                Thread.sleep(GROUP_SYNC_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (AppendChannel channel : unsynced) {
+                unsynced.remove(channel);
+                try {
+                    channel.sync();
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to force " + channel.file + " onto the disk: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
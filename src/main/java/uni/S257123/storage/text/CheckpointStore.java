@@ -0,0 +1,279 @@
+package uni.S257123.storage.text;
+
+import uni.S257123.models.CSV;
+import uni.S257123.storage.history.InventoryReplay;
+import uni.S257123.storage.query.FieldType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Saves snapshots of the items part way through the transactions file, so the items as of any date can be rebuilt by
+ * replaying from the nearest snapshot before it, rather than from the first transaction.
+ * <p>
+ * As every transaction records the whole state of its item, a snapshot only needs to say which transaction holds the
+ * latest state of each item that still exists, so a checkpoint is just a list of row numbers into the transactions
+ * (which are already held in memory), in the order the items were first added. That keeps checkpoints small and
+ * quick to load.
+ * </p>
+ * <p>
+ * Checkpoints are kept in a folder next to the transactions file (e.g. transactions.checkpoints), one file per
+ * checkpoint, named after how many transactions it covers and the date of the last one. They are written as the log
+ * is replayed, whenever enough transactions have passed since the last one: at least {@code ims.checkpoint.interval}
+ * (100,000 by default), and at least a sixteenth as many as there are items, so each checkpoint is smaller than the
+ * stretch of the log before it. Rebuilding the items as of a date then costs one checkpoint and at most about one
+ * interval's worth of transactions, however long the history grows.
+ * </p>
+ * <p>
+ * Each checkpoint also keeps the last transaction it covers. If that no longer matches the transactions file, the
+ * file has been rewritten, so every checkpoint is thrown away and they are written again.
+ * </p>
+ */
+class CheckpointStore {
+    /**
+     * The fewest transactions between checkpoints, set by the {@code ims.checkpoint.interval} system property
+     */
+    private static final int INTERVAL = Integer.getInteger("ims.checkpoint.interval", 100_000);
+    /**
+     * Marks the start of a checkpoint file, "IMSC"
+     */
+    private static final int MAGIC = 0x494D5343;
+    private static final int VERSION = 1;
+
+    private final Path directory;
+    /**
+     * The checkpoints saved, by how many transactions they cover. Only read from the folder on first use
+     */
+    private TreeMap<Integer, Checkpoint> checkpoints;
+    /**
+     * The rows of the checkpoint last loaded, kept so that rebuilding nearby dates doesn't read it again
+     */
+    private Checkpoint cachedCheckpoint;
+    private int[] cachedRows;
+
+    /**
+     * @param rowCount how many transactions the checkpoint covers
+     * @param lastDateKey the date of the last transaction it covers, as a {@link FieldType#dateKey(String)}
+     */
+    private record Checkpoint(int rowCount, int lastDateKey, Path file) {
+    }
+
+    /**
+     * @param transactionsFile the transactions file the checkpoints are taken of
+     */
+    CheckpointStore(Path transactionsFile) {
+        this.directory = transactionsFile.resolveSibling(
+                transactionsFile.getFileName().toString().replaceFirst("\\.[^.]*$", "") + ".checkpoints");
+    }
+
+    /**
+     * Rebuilds the items as they were at the end of a day, by replaying from the latest checkpoint before it.
+     * @param transactions every transaction, in the order they happened
+     * @param dateKey the day, as a {@link FieldType#dateKey(String)}
+     * @return the items at the end of that day, in the order they were first added
+     * @throws RuntimeException if a checkpoint can't be read or written
+     */
+    synchronized List<CSV> itemsAsOf(List<CSV> transactions, int dateKey) {
+        try {
+            catchUp(transactions);
+            Checkpoint start = null;
+            for (Checkpoint checkpoint : checkpoints.values()) {
+                if (checkpoint.lastDateKey() > dateKey) {
+                    break;
+                }
+                start = checkpoint;
+            }
+            List<CSV> startingState = new ArrayList<>();
+            if (start != null) {
+                for (int row : load(start)) {
+                    startingState.add(transactions.get(row));
+                }
+            }
+            InventoryReplay replay = new InventoryReplay(startingState);
+            for (int i = start != null ? start.rowCount() : 0; i < transactions.size(); i++) {
+                CSV transaction = transactions.get(i);
+                // The transactions are in date order, so nothing after the first later transaction counts
+                if (FieldType.dateKey(transaction.date) > dateKey) {
+                    break;
+                }
+                replay.apply(transaction);
+            }
+            return replay.items();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes any checkpoints that are due, replaying forward from the latest one.
+     */
+    private void catchUp(List<CSV> transactions) throws IOException {
+        if (checkpoints == null) {
+            checkpoints = list();
+        }
+        Map.Entry<Integer, Checkpoint> latest = checkpoints.lastEntry();
+        if (latest != null && !stillValid(latest.getValue(), transactions)) {
+            deleteAll();
+            latest = null;
+        }
+        int from = latest != null ? latest.getKey() : 0;
+        if (transactions.size() - from < INTERVAL) {
+            return;
+        }
+        // The row of each item's latest transaction, in the order the items were first added
+        Map<String, Integer> latestRows = new LinkedHashMap<>();
+        if (latest != null) {
+            for (int row : load(latest.getValue())) {
+                latestRows.put(transactions.get(row).id, row);
+            }
+        }
+        for (int i = from; i < transactions.size(); i++) {
+            CSV transaction = transactions.get(i);
+            if ("deleted".equals(transaction.transactionType)) {
+                latestRows.remove(transaction.id);
+            } else {
+                latestRows.put(transaction.id, i);
+            }
+            int covered = i + 1;
+            if (covered - from >= Math.max(INTERVAL, latestRows.size() / 16)) {
+                save(covered, transaction, latestRows.values());
+                from = covered;
+            }
+        }
+    }
+
+    private TreeMap<Integer, Checkpoint> list() throws IOException {
+        TreeMap<Integer, Checkpoint> found = new TreeMap<>();
+        if (!Files.isDirectory(directory)) {
+            return found;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.ckpt")) {
+            for (Path file : files) {
+                String[] name = file.getFileName().toString().replace(".ckpt", "").split("-");
+                try {
+                    int rowCount = Integer.parseInt(name[0]);
+                    found.put(rowCount, new Checkpoint(rowCount, Integer.parseInt(name[1]), file));
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Checks that the last transaction the checkpoint covers is still where it was in the transactions file.
+     */
+    private static boolean stillValid(Checkpoint checkpoint, List<CSV> transactions) throws IOException {
+        if (checkpoint.rowCount() > transactions.size()) {
+            return false;
+        }
+        try (DataInputStream in = open(checkpoint)) {
+            in.readInt();
+            return in.readUTF().equals(transactions.get(checkpoint.rowCount() - 1).toCSVFileOutput());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the row of the latest transaction of each item at the checkpoint
+     */
+    private int[] load(Checkpoint checkpoint) throws IOException {
+        if (checkpoint.equals(cachedCheckpoint)) {
+            return cachedRows;
+        }
+        try (DataInputStream in = open(checkpoint)) {
+            in.readInt();
+            in.readUTF();
+            int[] rows = new int[in.readInt()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = readVarInt(in);
+            }
+            cachedCheckpoint = checkpoint;
+            cachedRows = rows;
+            return rows;
+        }
+    }
+
+    /**
+     * Opens a checkpoint, reading past its magic number and version.
+     * @return the stream positioned at how many transactions it covers
+     */
+    private static DataInputStream open(Checkpoint checkpoint) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint.file()),
+                1 << 16));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            in.close();
+            throw new IOException("Not a checkpoint: " + checkpoint.file());
+        }
+        return in;
+    }
+
+    private void save(int rowCount, CSV lastTransaction, Collection<Integer> latestRows) throws IOException {
+        Files.createDirectories(directory);
+        int lastDateKey = FieldType.dateKey(lastTransaction.date);
+        Path file = directory.resolve(String.format("%010d-%d.ckpt", rowCount, lastDateKey));
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        int[] rows = new int[latestRows.size()];
+        int i = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rowCount);
+            out.writeUTF(lastTransaction.toCSVFileOutput());
+            out.writeInt(rows.length);
+            for (int row : latestRows) {
+                writeVarInt(out, row);
+                rows[i++] = row;
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Checkpoint checkpoint = new Checkpoint(rowCount, lastDateKey, file);
+        checkpoints.put(rowCount, checkpoint);
+        cachedCheckpoint = checkpoint;
+        cachedRows = rows;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private void deleteAll() throws IOException {
+        for (Checkpoint checkpoint : checkpoints.values()) {
+            Files.deleteIfExists(checkpoint.file());
+        }
+        checkpoints.clear();
+        cachedCheckpoint = null;
+        cachedRows = null;
+    }
+}
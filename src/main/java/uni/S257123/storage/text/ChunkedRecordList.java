@@ -0,0 +1,67 @@
+package uni.S257123.storage.text;
+
+import uni.S257123.models.CSV;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A list of rows that can be read by any number of threads while one thread appends to it, without either locking,
+ * for the rows of files that other programs append to, see {@link FileTailer}.
+ * <p>
+ * Rows are held in fixed-size chunks rather than one array, so appending never copies the rows already held: only the
+ * small array of chunks is replaced by a longer copy when it fills. Everything a row needs is written before the
+ * volatile size is raised to include it, so a reader that reads the size first never sees a row before it is there.
+ * A reader going through the rows sees the ones appended as it goes, rather than failing with a
+ * {@link java.util.ConcurrentModificationException}.
+ * </p>
+ * <p>
+ * Rows can be appended but not changed or removed, which is all {@link TextStorage} needs, as it re-reads a file
+ * after rewriting it. Only one thread may append at a time.
+ * </p>
+ */
+class ChunkedRecordList extends AbstractList<CSV> implements RandomAccess {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private CSV[][] chunks = new CSV[16][];
+    /**
+     * Only raised once the row it includes has been written, so reading it first makes the row visible to a reader
+     */
+    private volatile int size = 0;
+
+    @Override
+    public CSV get(int index) {
+        int size = this.size; // Read before the chunks, so they hold at least this many rows
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return chunks[index >>> CHUNK_BITS][index & (CHUNK_SIZE - 1)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends the row to the end of the list. Only one thread may add rows at a time.
+     * @return true, as the list always changes
+     */
+    @Override
+    public boolean add(CSV csv) {
+        int size = this.size;
+        int chunk = size >>> CHUNK_BITS;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new CSV[CHUNK_SIZE];
+        }
+        chunks[chunk][size & (CHUNK_SIZE - 1)] = csv;
+        // Not counted as a modification, as readers can carry on through an append. Written last to publish the row
+        this.size = size + 1;
+        return true;
+    }
+}
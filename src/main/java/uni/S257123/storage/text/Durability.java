@@ -0,0 +1,34 @@
+package uni.S257123.storage.text;
+
+import java.util.Locale;
+
+/**
+ * How soon the text storage's writes are forced from the operating system's cache onto the disk, trading how many
+ * writes can be made a second against how many could be lost if the machine (rather than just the program) stops.
+ * A write is always handed to the operating system before it returns, so the program stopping never loses one.
+ */
+public enum Durability {
+    /**
+     * Every write is forced onto the disk before it returns, so none are ever lost. Each write waits for the disk
+     */
+    SYNC,
+    /**
+     * Writes are forced onto the disk together by a background thread every {@code ims.text.groupSyncMs}
+     * milliseconds (20 by default), so at most that long's worth of writes can be lost
+     */
+    GROUP,
+    /**
+     * Writes are left for the operating system to write out when it chooses, usually within half a minute. The
+     * quickest, and how the files have always been written
+     */
+    BUFFERED;
+
+    /**
+     * @return the durability set by the {@code ims.text.durability} system property ("sync", "group" or "buffered"),
+     * or {@link #BUFFERED} if it isn't set
+     * @throws IllegalArgumentException if the property is set to anything else
+     */
+    public static Durability configured() {
+        return valueOf(System.getProperty("ims.text.durability", "buffered").toUpperCase(Locale.ROOT));
+    }
+}
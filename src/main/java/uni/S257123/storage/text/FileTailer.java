@@ -0,0 +1,98 @@
+package uni.S257123.storage.text;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches data files for changes made by other programs, e.g. tools that append rows to the transactions file, and
+ * says which file changed so its rows can be brought up to date.
+ * <p>
+ * The folders holding the files are watched with a {@link WatchService}. As some file systems don't report every
+ * change (e.g. network drives, or where the service falls back on polling), every file is also checked once a second
+ * without waiting to be told, which costs one look at each file's size.
+ * </p>
+ */
+final class FileTailer {
+    private static final long CHECK_EVERY_SECONDS = 1;
+
+    private final Map<String, Path> files;
+    private final Consumer<String> changed;
+
+    /**
+     * Starts watching the files on a background thread.
+     * @param files the files to watch, by the name they're known by
+     * @param changed called on the background thread with the name of each file that may have changed
+     * @throws RuntimeException if the folders can't be watched
+     */
+    FileTailer(Map<String, Path> files, Consumer<String> changed) {
+        Map<String, Path> absolute = new HashMap<>();
+        files.forEach((name, file) -> absolute.put(name, file.toAbsolutePath().normalize()));
+        this.files = Map.copyOf(absolute);
+        this.changed = changed;
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            Set<Path> folders = new HashSet<>();
+            for (Path file : this.files.values()) {
+                folders.add(file.getParent());
+            }
+            for (Path folder : folders) {
+                // Files replaced by a rewritten copy are created again rather than modified
+                folder.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+            }
+            Thread.ofVirtual().name("tail-files").start(() -> watch(watcher));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void watch(WatchService watcher) {
+        try {
+            while (true) {
+                WatchKey key = watcher.poll(CHECK_EVERY_SECONDS, TimeUnit.SECONDS);
+                if (key == null) {
+                    files.keySet().forEach(this::notifyChanged);
+                    continue;
+                }
+                Path folder = (Path) key.watchable();
+                Set<String> changedFiles = new HashSet<>();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Too many changes to list, so any of them may have changed
+                        changedFiles.addAll(files.keySet());
+                        continue;
+                    }
+                    Path changedPath = folder.resolve((Path) event.context());
+                    for (Map.Entry<String, Path> file : files.entrySet()) {
+                        if (file.getValue().equals(changedPath)) {
+                            changedFiles.add(file.getKey());
+                        }
+                    }
+                }
+                key.reset();
+                changedFiles.forEach(this::notifyChanged);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Stopped watching
+        }
+    }
+
+    private void notifyChanged(String name) {
+        try {
+            changed.accept(name);
+        } catch (RuntimeException e) {
+            System.err.println("Failed to catch up with changes to " + files.get(name) + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package uni.S257123.storage.text;
+
+import uni.S257123.models.CSV;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * A list of rows held outside the Java heap, so that the garbage collector never has to trace them, however many
+ * there are.
+ * <p>
+ * Rows are encoded one after another into direct {@link ByteBuffer} slabs: a mask of which fields are null, then
+ * numbers as fixed-width primitives and strings as a length followed by their UTF-8 bytes, in the order of the rows'
+ * defined fields. Each slab is twice the size of the last, up to {@code ims.offHeap.slabBytes}, so a small file only
+ * takes a little more direct memory than its rows need, however often it is read again. The only thing on
+ * the heap is one {@code long[]} holding where each row starts, which the collector doesn't need to look inside.
+ * Each {@link #get(int)} decodes a new, short-lived {@link CSV}, so code that holds on to rows should expect a copy
+ * rather than the same object each time.
+ * </p>
+ * <p>
+ * Rows can be appended but not changed or removed, which is all {@link TextStorage} needs, as it re-reads a file
+ * after rewriting it. The slabs are freed once the list is garbage collected. Direct memory is limited by
+ * {@code -XX:MaxDirectMemorySize}, which defaults to the maximum heap size, so it should be raised along with the
+ * size of the data.
+ * </p>
+ * <p>
+ * Only one thread may add rows at a time, so callers adding from more than one thread have to lock around it. Any
+ * number of threads can read the rows while they are added, without locking: everything a row needs is written before
+ * the size is raised to include it, and the size is volatile, so a reader never sees a row before it is whole. A
+ * reader going through the rows sees the ones added as it goes, rather than failing with a
+ * {@link java.util.ConcurrentModificationException}.
+ * </p>
+ */
+class OffHeapRecordList extends AbstractList<CSV> implements RandomAccess {
+    /**
+     * How large the slabs can grow, set by the {@code ims.offHeap.slabBytes} system property
+     */
+    private static final int SLAB_BYTES = Integer.getInteger("ims.offHeap.slabBytes", 64 << 20);
+    private static final int FIRST_SLAB_BYTES = Math.min(64 << 10, SLAB_BYTES);
+
+    private static final byte STRING = 0;
+    private static final byte INTEGER = 1;
+    private static final byte DOUBLE = 2;
+
+    /**
+     * Replaced by a longer copy when a slab is added, so a reader never sees the array part way through growing
+     */
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    /**
+     * The slab each row is in (high 32 bits) and where in it the row starts (low 32 bits). Replaced by a longer copy
+     * when full, like the slabs
+     */
+    private long[] rowStarts = new long[1024];
+    /**
+     * Only raised once the row it includes has been written, so reading it first makes the row visible to a reader
+     */
+    private volatile int size = 0;
+    /**
+     * Where the next row will be written in the last slab
+     */
+    private int writePosition = 0;
+    /**
+     * The size of every slab added so far
+     */
+    private long offHeapBytes = 0;
+
+    /**
+     * The fields every row defines, shared by every decoded row, and how each one is encoded. Set from the first row
+     * added, as every row of a file has the same headers
+     */
+    private Set<String> definedFields;
+    private String[] fieldNames;
+    private byte[] fieldTypes;
+    /**
+     * How many bytes each row starts with to mark its null fields, one bit per field
+     */
+    private int nullMaskBytes;
+
+    @Override
+    public CSV get(int index) {
+        int size = this.size; // Read before the arrays, so they hold at least this many rows
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        long start = rowStarts[index];
+        ByteBuffer slab = slabs[(int) (start >>> 32)];
+        int position = (int) start;
+        int nullMask = position;
+        position += nullMaskBytes;
+        CSV csv = new CSV(definedFields);
+        for (int field = 0; field < fieldNames.length; field++) {
+            if ((slab.get(nullMask + field / 8) & (1 << field % 8)) != 0) {
+                position += nullFieldBytes(fieldTypes[field]); // Left unset, rather than read as 0
+                continue;
+            }
+            switch (fieldTypes[field]) {
+                case INTEGER -> {
+                    setField(csv, fieldNames[field], slab.getInt(position));
+                    position += Integer.BYTES;
+                }
+                case DOUBLE -> {
+                    setField(csv, fieldNames[field], slab.getDouble(position));
+                    position += Double.BYTES;
+                }
+                default -> {
+                    int length = slab.getInt(position);
+                    position += Integer.BYTES;
+                    if (length >= 0) {
+                        byte[] bytes = new byte[length];
+                        slab.get(position, bytes);
+                        position += length;
+                        setField(csv, fieldNames[field], new String(bytes, StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+        return csv;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Encodes the row onto the end of the list. Only one thread may add rows at a time.
+     * @param csv the row to be added, which must define the same fields as every other row in the list
+     * @return true, as the list always changes
+     */
+    @Override
+    public boolean add(CSV csv) {
+        if (definedFields == null) {
+            describeFields(csv.definedFields);
+        } else if (!definedFields.equals(csv.definedFields)) {
+            throw new IllegalArgumentException("Every row must define the fields " + definedFields);
+        }
+        byte[][] strings = new byte[fieldNames.length][];
+        int rowBytes = nullMaskBytes;
+        for (int field = 0; field < fieldNames.length; field++) {
+            rowBytes += switch (fieldTypes[field]) {
+                case INTEGER -> Integer.BYTES;
+                case DOUBLE -> Double.BYTES;
+                default -> {
+                    Object value = csv.GetPropertyByName(fieldNames[field]);
+                    if (value != null) {
+                        strings[field] = value.toString().getBytes(StandardCharsets.UTF_8);
+                    }
+                    yield Integer.BYTES + (value != null ? strings[field].length : 0);
+                }
+            };
+        }
+
+        ByteBuffer slab = slabFor(rowBytes);
+        int size = this.size;
+        if (size == rowStarts.length) {
+            rowStarts = Arrays.copyOf(rowStarts, size * 2);
+        }
+        rowStarts[size] = ((long) (slabs.length - 1) << 32) | writePosition;
+        int nullMask = writePosition;
+        for (int i = 0; i < nullMaskBytes; i++) {
+            slab.put(nullMask + i, (byte) 0);
+        }
+        writePosition += nullMaskBytes;
+        for (int field = 0; field < fieldNames.length; field++) {
+            Object value = csv.GetPropertyByName(fieldNames[field]);
+            if (value == null) {
+                slab.put(nullMask + field / 8, (byte) (slab.get(nullMask + field / 8) | 1 << field % 8));
+            }
+            switch (fieldTypes[field]) {
+                case INTEGER -> {
+                    slab.putInt(writePosition, value != null ? (Integer) value : 0);
+                    writePosition += Integer.BYTES;
+                }
+                case DOUBLE -> {
+                    slab.putDouble(writePosition, value != null ? (Double) value : 0);
+                    writePosition += Double.BYTES;
+                }
+                default -> {
+                    byte[] bytes = strings[field];
+                    slab.putInt(writePosition, bytes != null ? bytes.length : -1);
+                    writePosition += Integer.BYTES;
+                    if (bytes != null) {
+                        slab.put(writePosition, bytes);
+                        writePosition += bytes.length;
+                    }
+                }
+            }
+        }
+        // Not counted as a modification, as readers can carry on through an append. Written last to publish the row
+        this.size = size + 1;
+        return true;
+    }
+
+    /**
+     * @return how many bytes of direct memory the slabs take up
+     */
+    long offHeapBytes() {
+        return offHeapBytes;
+    }
+
+    /**
+     * Gets the slab the next row should be written to, starting a new one if it won't fit in the current one. Each
+     * new slab is twice the size of the last, so that a list holding only a few rows doesn't take a whole
+     * {@link #SLAB_BYTES} of direct memory.
+     */
+    private ByteBuffer slabFor(int rowBytes) {
+        if (rowBytes > SLAB_BYTES) {
+            throw new IllegalArgumentException("A row of " + rowBytes + " bytes doesn't fit in a slab of "
+                    + SLAB_BYTES + " bytes");
+        }
+        if (slabs.length == 0 || writePosition + rowBytes > slabs[slabs.length - 1].capacity()) {
+            int slabBytes = slabs.length == 0 ? FIRST_SLAB_BYTES
+                    : (int) Math.min((long) slabs[slabs.length - 1].capacity() * 2, SLAB_BYTES);
+            slabBytes = Math.max(slabBytes, rowBytes);
+            ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+            grown[slabs.length] = ByteBuffer.allocateDirect(slabBytes);
+            offHeapBytes += slabBytes;
+            slabs = grown;
+            writePosition = 0;
+        }
+        return slabs[slabs.length - 1];
+    }
+
+    private void describeFields(Set<String> fields) {
+        definedFields = fields;
+        fieldNames = fields.toArray(String[]::new);
+        fieldTypes = new byte[fieldNames.length];
+        nullMaskBytes = (fieldNames.length + 7) / 8;
+        for (int field = 0; field < fieldNames.length; field++) {
+            fieldTypes[field] = switch (fieldNames[field]) {
+                case "stockRemaining", "qtyInStock" -> INTEGER;
+                case "unitPrice", "totalPrice" -> DOUBLE;
+                default -> STRING;
+            };
+        }
+    }
+
+    /**
+     * @return how many bytes a null field takes up: a 0 for a number, or a length of -1 for a string
+     */
+    private static int nullFieldBytes(byte fieldType) {
+        return fieldType == DOUBLE ? Double.BYTES : Integer.BYTES;
+    }
+
+    private static void setField(CSV csv, String fieldName, String value) {
+        switch (fieldName) {
+            case "id" -> csv.id = value;
+            case "description" -> csv.description = value;
+            case "transactionType" -> csv.transactionType = value;
+            case "date" -> csv.date = value;
+            default -> throw new IllegalStateException("Unexpected text field: " + fieldName);
+        }
+    }
+
+    private static void setField(CSV csv, String fieldName, int value) {
+        switch (fieldName) {
+            case "stockRemaining" -> csv.stockRemaining = value;
+            case "qtyInStock" -> csv.qtyInStock = value;
+            default -> throw new IllegalStateException("Unexpected whole number field: " + fieldName);
+        }
+    }
+
+    private static void setField(CSV csv, String fieldName, double value) {
+        switch (fieldName) {
+            case "unitPrice" -> csv.unitPrice = value;
+            case "totalPrice" -> csv.totalPrice = value;
+            default -> throw new IllegalStateException("Unexpected decimal field: " + fieldName);
+        }
+    }
+}
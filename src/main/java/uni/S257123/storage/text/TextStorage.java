@@ -2,38 +2,281 @@ package uni.S257123.storage.text;
 
 import org.apache.commons.lang3.tuple.Pair;
 import uni.S257123.models.CSV;
+import uni.S257123.storage.events.StorageChange;
+import uni.S257123.storage.events.StorageChangePublisher;
+import uni.S257123.storage.events.StorageListener;
+import uni.S257123.storage.history.InventoryReplay;
+import uni.S257123.storage.history.ReplayVerification;
+import uni.S257123.storage.ids.BatchedIdAllocator;
+import uni.S257123.storage.ids.FileIdAllocator;
+import uni.S257123.storage.ids.IdAllocator;
+import uni.S257123.storage.ids.IdFormat;
+import uni.S257123.storage.ids.StripedIdAllocator;
 import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.metrics.StorageCounter;
+import uni.S257123.storage.metrics.StorageMetrics;
+import uni.S257123.storage.profiling.QueryPlan;
+import uni.S257123.storage.profiling.QueryProfiler;
+import uni.S257123.storage.query.Condition;
+import uni.S257123.storage.query.FieldType;
+import uni.S257123.storage.query.MemoryQueryPlan;
+import uni.S257123.storage.query.Query;
+import uni.S257123.storage.search.DescriptionIndex;
+import uni.S257123.storage.search.PrefixIndex;
+import uni.S257123.storage.search.RowPositions;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 /**
  * A text file based storage system for the Inventory Management System. This class
  * implements methods that interact with data stored within text files.
+ * <p>
+ * Constructing one doesn't wait for the files to be read. Each file is read on its own background thread, and the
+ * first call that needs a file's rows waits for that read to finish, so a UI can come up while the data is loading.
+ * </p>
+ * <p>
+ * Starting the JVM with {@code -Dims.text.offHeap=true} holds the rows outside the heap in an
+ * {@link OffHeapRecordList}, so very large files don't make garbage collection pauses longer.
+ * </p>
+ * <p>
+ * New rows are appended through a channel kept open to each file, and added to the rows held in memory rather than
+ * the file being read again. How soon they are forced onto the disk is set by {@code -Dims.text.durability}, see
+ * {@link Durability}.
+ * </p>
+ * <p>
+ * Starting the JVM with {@code -Dims.text.watch=true} keeps the rows up to date with changes other programs make to
+ * the files, see {@link FileTailer}. How far through each file has been read is tracked, so rows appended to the end
+ * are read on their own and added to the rows and indexes in memory, and listeners are told about them as inserts.
+ * A file that was replaced or cut short, found by its inode (where the file system has one) or its size, is read again
+ * in full, without listeners being told. Other programs have to append whole rows in one write, each starting on a
+ * new line, and rows they append while this storage is rewriting the same file can be lost.
+ * </p>
  */
 public class TextStorage implements Storage {
-    public final String itemsFilePath = "src/main/resources/items.txt";
-    public final String transactionsFilePath = "src/main/resources/transactions.txt";
+    /**
+     * Whether rows read from the files are held off the heap
+     */
+    private static final boolean OFF_HEAP = Boolean.getBoolean("ims.text.offHeap");
+    /**
+     * Whether the files are watched for changes made by other programs
+     */
+    private static final boolean WATCH = Boolean.getBoolean("ims.text.watch");
+
+    public final String itemsFilePath;
+    public final String transactionsFilePath;
+    public final String idCounterFilePath;
     /**
      * Maps the file names to their associated file path
      */
-    public final Map<String, String> csvDataSource = new LinkedHashMap<>() {{
-        put("items", itemsFilePath);
-        put("transactions", transactionsFilePath);
-    }};
+    public final Map<String, String> csvDataSource = new LinkedHashMap<>();
+
+    /**
+     * Maps the file names to the data read into memory from their associated file. A file only appears here once its
+     * first read has finished, so rows should be fetched through {@link #rows(String)}
+     */
+    public final Map<String, List<CSV>> csvDataMap = new ConcurrentHashMap<>();
+
+    /**
+     * The first read of each file, started in the background by the constructor
+     */
+    private final Map<String, CompletableFuture<List<CSV>>> initialLoads = new HashMap<>();
+
+    /**
+     * Hands out the ids of new items. Starts above every id in either file, so that the ids of deleted items (which
+     * only remain in the transactions) are never reused. Only created when the first id is needed, as finding the
+     * highest id means waiting for both files
+     */
+    private IdAllocator idAllocator;
+    /**
+     * Which ids this storage makes, see {@link StripedIdAllocator}. With one stripe, every id is made
+     */
+    private final int idStripe;
+    private final int idStripes;
+
+    /**
+     * Finds the transactions of each item in the transactions file, so an item's history doesn't need every
+     * transaction to be checked
+     */
+    private final TransactionHistoryIndex historyIndex;
+
+    /**
+     * Snapshots of the items part way through the transactions, so the items as of a date don't need every
+     * transaction to be replayed
+     */
+    private final CheckpointStore checkpoints;
+
+    /**
+     * The descriptions of the items, found as their slots in {@link #itemPositions}, so that deleting an item doesn't
+     * change how every item after it is found. Only built by the first search of the descriptions, then kept up to
+     * date by every write to the items
+     */
+    private DescriptionIndex<Integer> descriptionIndex;
+    /**
+     * Where the item in each slot of the description index is in the items' rows
+     */
+    private RowPositions itemPositions;
+    /**
+     * The items' rows the description index was built from or last brought up to date with. If the rows have since been
+     * replaced by anything else, the index is rebuilt
+     */
+    private List<CSV> indexedItems;
+
+    /**
+     * Sorted indexes of the fields queried by prefix, by target and then field. Each is only built by the first prefix
+     * query on its field, then kept up to date by every write to its target
+     */
+    private final Map<String, Map<String, PrefixIndex>> prefixIndexes = new HashMap<>();
+    /**
+     * The rows each target's prefix indexes were built from or last brought up to date with. If the rows have since
+     * been replaced by anything else, the indexes are rebuilt
+     */
+    private final Map<String, List<CSV>> prefixIndexedRows = new HashMap<>();
+
+    /**
+     * How soon writes are forced onto the disk, set by the {@code ims.text.durability} system property
+     */
+    private final Durability durability = Durability.configured();
+    /**
+     * Appends new rows to each file, by file name, through a channel kept open between writes
+     */
+    private final Map<String, AppendChannel> appendChannels = new HashMap<>();
+
+    /**
+     * Which file each datasource's rows were read from, and how much of it has been read, by file name. Only kept
+     * while the files are watched
+     */
+    private final Map<String, FileState> fileStates = new ConcurrentHashMap<>();
+    /**
+     * Held while appending to, replacing or catching up with a file, so rows appended by other programs are never
+     * read twice or missed
+     */
+    private final Object fileLock = new Object();
+    /**
+     * Watches the files for changes made by other programs, or null if they aren't watched or nothing has been read
+     * yet
+     */
+    private volatile FileTailer tailer;
 
     /**
-     * Maps the file names to the data read into memory from their associated file
+     * @param fileKey the file's inode, or whatever else the file system identifies it by, or null if it has nothing
+     * @param length how many bytes of the file have been read into memory
      */
-    public final HashMap<String, List<CSV>> csvDataMap = new HashMap<>(Map.of(
-            "items", readContents(itemsFilePath),
-            "transactions", readContents(transactionsFilePath))
-    );
+    private record FileState(Object fileKey, long length) {
+    }
+
+    /**
+     * Tells registered listeners about every change this instance makes to its files
+     */
+    private final StorageChangePublisher changePublisher = new StorageChangePublisher();
+
+    /**
+     * Uses the items and transactions files bundled in the resources folder.
+     */
+    public TextStorage() {
+        this("src/main/resources/items.txt", "src/main/resources/transactions.txt");
+    }
+
+    /**
+     * Uses the given items and transactions files, e.g. to point at a larger dataset for testing. The id counter is
+     * kept next to the items file, in a file of the same name ending in ".seq".
+     * @param itemsFilePath the path of the items file
+     * @param transactionsFilePath the path of the transactions file
+     */
+    public TextStorage(String itemsFilePath, String transactionsFilePath) {
+        this(itemsFilePath, transactionsFilePath, 0, 1);
+    }
+
+    /**
+     * Uses the given items and transactions files as one of several storages that mustn't make the same ids, e.g.
+     * the shards of a {@link uni.S257123.storage.sharding.ShardedStorage}. Only the ids that leave the given
+     * remainder when divided by the number of stripes are made, see {@link StripedIdAllocator}.
+     * @param itemsFilePath the path of the items file
+     * @param transactionsFilePath the path of the transactions file
+     * @param idStripe the remainder of this storage's ids
+     * @param idStripes how many storages the ids are split between
+     */
+    public TextStorage(String itemsFilePath, String transactionsFilePath, int idStripe, int idStripes) {
+        this.idStripe = idStripe;
+        this.idStripes = idStripes;
+        this.itemsFilePath = itemsFilePath;
+        this.transactionsFilePath = transactionsFilePath;
+        this.idCounterFilePath = itemsFilePath.replaceFirst("\\.[^./\\\\]*$", "") + ".seq";
+        csvDataSource.put("items", itemsFilePath);
+        csvDataSource.put("transactions", transactionsFilePath);
+        this.historyIndex = new TransactionHistoryIndex(Paths.get(transactionsFilePath));
+        this.checkpoints = new CheckpointStore(Paths.get(transactionsFilePath));
+        for (Map.Entry<String, String> source : csvDataSource.entrySet()) {
+            appendChannels.put(source.getKey(), new AppendChannel(Paths.get(source.getValue()), durability));
+            initialLoads.put(source.getKey(), CompletableFuture.supplyAsync(() -> readContents(source.getValue()),
+                    runnable -> Thread.ofVirtual().name("load-" + source.getKey()).start(runnable)));
+        }
+    }
+
+    /**
+     * Uses the given items and transactions files, giving new items the ids handed out by the given allocator, e.g.
+     * ids reserved from a database the files are a replica of.
+     * @param itemsFilePath the path of the items file
+     * @param transactionsFilePath the path of the transactions file
+     * @param idAllocator hands out the ids of new items
+     */
+    public TextStorage(String itemsFilePath, String transactionsFilePath, IdAllocator idAllocator) {
+        this(itemsFilePath, transactionsFilePath, 0, 1);
+        this.idAllocator = idAllocator;
+    }
+
+    /**
+     * Gets the rows held in memory for a file, waiting for its first read to finish if it is still loading.
+     * @param target the file name, without its file extension
+     * @return the rows of the file
+     * @throws RuntimeException if the file could not be read
+     */
+    private List<CSV> rows(String target) {
+        if (WATCH && tailer == null) {
+            startTailing();
+        }
+        List<CSV> rows = csvDataMap.get(target);
+        if (rows != null) {
+            return rows;
+        }
+        try {
+            // Only stored if absent, so rows already replaced by a write are never overwritten by the older first read
+            return csvDataMap.computeIfAbsent(target, source -> initialLoads.get(source).join());
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    /**
+     * Starts watching the files for changes made by other programs, unless that has already started. Left until the
+     * rows are first needed rather than started by the constructor, so the watching thread never sees this storage
+     * part way through being constructed.
+     */
+    private synchronized void startTailing() {
+        if (tailer == null) {
+            Map<String, Path> files = new HashMap<>();
+            csvDataSource.forEach((target, path) -> files.put(target, Paths.get(path)));
+            tailer = new FileTailer(files, this::catchUp);
+        }
+    }
 
     @Override
     public List<String> getSources()  {
@@ -42,15 +285,24 @@ public class TextStorage implements Storage {
 
     @Override
     public List<String> getHeaders(String target)  {
-        return csvDataMap.get(target).getFirst().definedFields.stream().toList();
+        List<CSV> rows = rows(target);
+        if (rows.isEmpty()) {
+            // No row to take them from, so they are read from the first line of the file
+            try (BufferedReader reader = new BufferedReader(new FileReader(csvDataSource.get(target)))) {
+                return Arrays.asList(reader.readLine().split(","));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return rows.getFirst().definedFields.stream().toList();
     }
 
     /**
 	 * {@inheritDoc}
 	 * <p>
 	 * The method creates a new {@link CSV} object using the given parameters, and getting the headers
-	 * It then appends this record to the file. Upon successful writing, the file's
-	 * contents are read and stored into the {@link #csvDataMap}.
+	 * It then appends this record to the file, as durably as {@link Durability#configured()} asks, and onto the
+	 * in-memory {@link #csvDataMap}.
 	 * </p>
      * @param parameters At a minimum, should provide:
      *                   <ol>
@@ -80,15 +332,21 @@ public class TextStorage implements Storage {
                 parametersComplete.add(new SimpleDateFormat("dd/MM/yyyy").format(new Date()));
             }
             CSV newRecord = new CSV(parametersComplete, headers);
-            try (BufferedWriter bw = new BufferedWriter(new FileWriter(csvDataSource.get(target), true))) {
-                bw.newLine(); // Add a new line for the new row
-                bw.write(newRecord.toCSVFileOutput()); // Write the new row content
-                bw.flush();
-                csvDataMap.put(target, readContents(csvDataSource.get(target))); //updates the in-memory store of csv records
-                return true;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            String row = newRecord.toCSVFileOutput();
+            synchronized (fileLock) {
+                catchUp(target);
+                AppendChannel file = appendChannels.get(target);
+                int written = file.write(System.lineSeparator() + row); // The new row goes on a new line
+                file.commit();
+                appended(target, written);
+                StorageMetrics.count(target, StorageCounter.BYTES_WRITTEN, written);
+                // The row is added to the in-memory store too, rather than the whole file being read again
+                List<CSV> existing = rows(target);
+                existing.add(newRecord);
+                rowsAdded(target, existing.size() - 1);
             }
+            changePublisher.publish(new StorageChange(target, StorageChange.Type.INSERTED, newRecord));
+            return true;
         }
         return false;
     }
@@ -110,6 +368,80 @@ public class TextStorage implements Storage {
         return addRecord(parameters, target, "added");
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each file is opened once for the whole batch, and the new rows are appended straight onto the in-memory
+     * {@link #csvDataMap} instead of the file being re-read afterwards.
+     * </p>
+     * @throws RuntimeException if an IOException occurs while writing to the files
+     */
+    @Override
+    public boolean addRecords(List<List<String>> rows, String target) {
+        String date = new SimpleDateFormat("dd/MM/yyyy").format(new Date());
+        List<String> headers = getHeaders(target);
+        List<String> transactionHeaders = getHeaders("transactions");
+        List<CSV> newRecords = new ArrayList<>(rows.size());
+        List<CSV> newTransactions = new ArrayList<>(rows.size());
+
+        for (List<String> parameters : rows) {
+            List<String> parametersComplete = new ArrayList<>(transactionHeaders.size());
+            if (target.equals("items")) {
+                parametersComplete.add(generateID());
+                parametersComplete.addAll(parameters);
+                newRecords.add(new CSV(parametersComplete, headers));
+                parametersComplete = new ArrayList<>(parametersComplete);
+            } else {
+                parametersComplete.addAll(parameters);
+            }
+            parametersComplete.add("added");
+            parametersComplete.add(date);
+            newTransactions.add(new CSV(parametersComplete, transactionHeaders));
+        }
+        // Transactions are written first, matching the order addRecord writes them in
+        appendRecords("transactions", newTransactions);
+        if (target.equals("items")) {
+            appendRecords("items", newRecords);
+        }
+        return true;
+    }
+
+    /**
+     * Appends the records to the end of the target file as one write, then onto the in-memory store.
+     * @param target the file name for the records to be added to, without its file extension
+     * @param records the rows to be appended
+     */
+    private void appendRecords(String target, List<CSV> records) {
+        synchronized (fileLock) {
+            // Waits for the file's first read first, so that it can't also read the rows being appended
+            catchUp(target);
+            AppendChannel file = appendChannels.get(target);
+            long written = 0;
+            StringBuilder chunk = new StringBuilder(1 << 16);
+            for (CSV record : records) {
+                String row = record.toCSVFileOutput();
+                chunk.append(System.lineSeparator()).append(row);
+                if (chunk.length() >= 1 << 16) {
+                    written += file.write(chunk);
+                    chunk.setLength(0);
+                }
+            }
+            written += file.write(chunk);
+            file.commit();
+            appended(target, written);
+            StorageMetrics.count(target, StorageCounter.BYTES_WRITTEN, written);
+            List<CSV> existing = rows(target);
+            int firstNew = existing.size();
+            existing.addAll(records);
+            rowsAdded(target, firstNew);
+        }
+        if (changePublisher.hasListeners()) {
+            for (CSV record : records) {
+                changePublisher.publish(new StorageChange(target, StorageChange.Type.INSERTED, record));
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      * @param recordInfo index 0: row ID, index 1: property wanted to be edited, index 2: what the value to be edited to
@@ -121,6 +453,7 @@ public class TextStorage implements Storage {
     public void updateRecord(List<String> recordInfo) {
         List<String> headers = getHeaders("items");
         CSV changedRow = null;
+        int changedPosition = -1;
 
         int columnToUpdateIndex = -1;
         for (int i = 0; i < headers.size(); i++) {
@@ -132,6 +465,7 @@ public class TextStorage implements Storage {
             BufferedWriter writer = new BufferedWriter(new FileWriter(csvDataSource.get("items") + ".tmp"));
 
             boolean isFirstLine = true;
+            int position = -1; // the headers come before the first row
             while (myReader.hasNextLine()) {
                 if (!isFirstLine) {
                     writer.newLine();
@@ -144,7 +478,9 @@ public class TextStorage implements Storage {
                 if (columns[0].equals(recordInfo.get(0))) {
                     columns[columnToUpdateIndex] = recordInfo.get(2);
                     changedRow = new CSV(List.of(columns), headers);
+                    changedPosition = position;
                 }
+                position++;
                 writer.write(String.join(",", columns));
 
             }
@@ -153,26 +489,29 @@ public class TextStorage implements Storage {
             throw new RuntimeException(e);
         }
         try {
-            Files.move(
-                    Paths.get(csvDataSource.get("items") + ".tmp"),
-                    Paths.get(csvDataSource.get("items")),
-                    StandardCopyOption.ATOMIC_MOVE);
+            replaceWithTemp("items");
             if (changedRow != null) {
                 addRecord(List.of(changedRow.toCSVFileOutput().split(",")),"transactions","updated");
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        csvDataMap.put("items", readContents(csvDataSource.get("items"))); //updates the in-memory store of csv records
+        reload("items"); //updates the in-memory store of csv records
+        if (changedRow != null) {
+            rowChanged(changedPosition);
+            changePublisher.publish(new StorageChange("items", StorageChange.Type.UPDATED, changedRow));
+        }
     }
 
     @Override
     public void deleteRecord(String id) {
+        CSV deletedRow = null;
+        int deletedPosition = -1;
         try (Scanner myReader = new Scanner(new BufferedReader(new FileReader(csvDataSource.get("items"))))) {
             BufferedWriter writer = new BufferedWriter(new FileWriter(csvDataSource.get("items") + ".tmp"));
 
             boolean isFirstLine = true;
-            CSV deletedRow = null;
+            int position = -1; // the headers come before the first row
             while (myReader.hasNextLine()) {
                 String currentLine = myReader.nextLine();
                 String[] columns = currentLine.split(",");
@@ -180,8 +519,10 @@ public class TextStorage implements Storage {
                     List<String> columnslist = new ArrayList<>(List.of(columns));
                     columnslist.set(3,"0");
                     deletedRow = new CSV(columnslist, getHeaders("items"));
+                    deletedPosition = position;
                     continue;
                 }
+                position++;
                 if (!isFirstLine) {
                     writer.newLine();
                 } else {
@@ -198,16 +539,349 @@ public class TextStorage implements Storage {
             throw new RuntimeException(e);
         }
         try {
-            Files.move(
-                    Paths.get(csvDataSource.get("items") + ".tmp"),
-                    Paths.get(csvDataSource.get("items")),
-                    StandardCopyOption.ATOMIC_MOVE);
+            replaceWithTemp("items");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        reload("items"); //updates the in-memory store of csv records
+        if (deletedRow != null) {
+            rowRemoved(id, deletedPosition);
+            changePublisher.publish(new StorageChange("items", StorageChange.Type.DELETED, deletedRow));
+        }
+    }
+
+
+    /**
+     * Applies a change made somewhere else, e.g. by another client of a database these files are a replica of, without
+     * recording a transaction for it or making an id. An inserted or updated item replaces the item with the same id,
+     * or is added if there isn't one, and a deleted item is removed if it is there, so applying an item's change again
+     * leaves the files as they were, and the file isn't rewritten for an item that already matches. Transactions are
+     * always added, so each should only be applied once. Listeners are told about the change as if it had been made
+     * here.
+     * @param change the change to apply, holding every field of the row
+     * @throws RuntimeException if an IOException occurs while writing to the files
+     */
+    public void replicate(StorageChange change) {
+        if (!change.target().equals("items")) {
+            appendRecords(change.target(), List.of(change.record()));
+            return;
+        }
+        List<CSV> items = rows("items");
+        int position = -1;
+        for (int i = 0; i < items.size(); i++) {
+            if (items.get(i).id.equals(change.id())) {
+                position = i;
+                break;
+            }
+        }
+        if (position < 0) {
+            if (change.type() != StorageChange.Type.DELETED) {
+                appendRecords("items", List.of(change.record()));
+            }
+            return;
+        }
+        boolean deleted = change.type() == StorageChange.Type.DELETED;
+        CSV existing = items.get(position);
+        if (!deleted && existing.toCSVFileOutput().equals(change.record().toCSVFileOutput())) {
+            return;
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(csvDataSource.get("items") + ".tmp"))) {
+            writer.write(String.join(",", getHeaders("items")));
+            for (int i = 0; i < items.size(); i++) {
+                if (i != position || !deleted) {
+                    writer.newLine();
+                    writer.write((i == position ? change.record() : items.get(i)).toCSVFileOutput());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            replaceWithTemp("items");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        reload("items"); //updates the in-memory store of csv records
+        if (deleted) {
+            rowRemoved(change.id(), position);
+            changePublisher.publish(new StorageChange("items", StorageChange.Type.DELETED, existing));
+        } else {
+            rowChanged(position);
+            changePublisher.publish(change);
+        }
+    }
+
+    /**
+     * Replaces every row of a datasource, e.g. with a fresh copy of a database these files are a replica of. The new
+     * file is written next to the old one and moved over it, so it is never left half written. Listeners aren't told
+     * about the rows, as there may be millions of them, and the indexes are rebuilt when next used.
+     * @param target the file name to replace the rows of, without its file extension
+     * @param records every row the file should hold, with the file's headers
+     * @throws RuntimeException if an IOException occurs while writing the file
+     */
+    public void replaceContents(String target, List<CSV> records) {
+        String path = csvDataSource.get(target);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(path + ".tmp"), 1 << 16)) {
+            writer.write(String.join(",", getHeaders(target)));
+            for (CSV record : records) {
+                writer.newLine();
+                writer.write(record.toCSVFileOutput());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            replaceWithTemp(target);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        reload(target);
+    }
+
+    /**
+     * Takes rows back out of a datasource, e.g. the transactions of a write that the database these files are a replica
+     * of turned down. Each row given removes the last row exactly like it, as the rows taken back are usually the
+     * newest. The file is rewritten the way {@link #replaceContents(String, List)} rewrites it, and only if any row
+     * was found.
+     * @param target the file name to remove the rows from, without its file extension
+     * @param records the rows to remove
+     * @return how many rows were removed
+     * @throws RuntimeException if an IOException occurs while writing the file
+     */
+    public int removeRows(String target, List<CSV> records) {
+        Map<String, Integer> toRemove = new HashMap<>();
+        for (CSV record : records) {
+            toRemove.merge(record.toCSVFileOutput(), 1, Integer::sum);
+        }
+        List<CSV> rows = rows(target);
+        boolean[] removed = new boolean[rows.size()];
+        int removedCount = 0;
+        for (int i = rows.size() - 1; i >= 0 && !toRemove.isEmpty(); i--) {
+            String row = rows.get(i).toCSVFileOutput();
+            Integer count = toRemove.get(row);
+            if (count != null) {
+                if (count == 1) {
+                    toRemove.remove(row);
+                } else {
+                    toRemove.put(row, count - 1);
+                }
+                removed[i] = true;
+                removedCount++;
+            }
+        }
+        if (removedCount > 0) {
+            List<CSV> kept = new ArrayList<>(rows.size() - removedCount);
+            for (int i = 0; i < rows.size(); i++) {
+                if (!removed[i]) {
+                    kept.add(rows.get(i));
+                }
+            }
+            replaceContents(target, kept);
+        }
+        return removedCount;
+    }
+
+    /**
+     * Reads a file again in full after it was rewritten, replacing its rows held in memory.
+     * @param target the file name, without its file extension
+     */
+    private void reload(String target) {
+        synchronized (fileLock) {
+            csvDataMap.put(target, readContents(csvDataSource.get(target)));
+        }
+    }
+
+    /**
+     * Moves the rewritten copy of a file (the same path ending in ".tmp") over the file, forcing it onto the disk first
+     * unless the durability leaves that to the operating system, so the file is never replaced by a half written copy.
+     * The folder is forced onto the disk after the move too, as until then the move itself can be lost.
+     * @param target the file name being rewritten, without its file extension
+     */
+    private void replaceWithTemp(String target) throws IOException {
+        Path path = Paths.get(csvDataSource.get(target));
+        Path tempPath = Paths.get(csvDataSource.get(target) + ".tmp");
+        countRewrite(target);
+        if (durability != Durability.BUFFERED) {
+            try (FileChannel temp = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                temp.force(false);
+            }
+        }
+        synchronized (fileLock) {
+            long length = Files.size(tempPath);
+            Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+            appendChannels.get(target).reopen();
+            if (WATCH) {
+                // Anything appended to the new file from here on was appended by another program
+                fileStates.put(target, new FileState(fileKeyOf(path.toString()), length));
+            }
+        }
+        if (durability != Durability.BUFFERED) {
+            forceFolder(path.toAbsolutePath().getParent());
+        }
+    }
+
+    /**
+     * Forces a folder's list of files onto the disk, so a file just moved into it is still there after a power cut.
+     * Windows can't open a folder to do this, so there the move is left to the file system's own journal.
+     */
+    private static void forceFolder(Path folder) throws IOException {
+        try (FileChannel channel = FileChannel.open(folder, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // The folder can't be opened on this platform
+        }
+    }
+
+    /**
+     * Catches up with the changes other programs have made to a file since it was last read, if it is watched: rows
+     * appended to the end are read on their own, and a file that was replaced or cut short is read again in full.
+     * @param target the file name, without its file extension
+     * @throws RuntimeException if an IOException occurs while reading the file
+     */
+    private void catchUp(String target) {
+        synchronized (fileLock) {
+            rows(target); // Waits for the first read, which finds where reading carries on from
+            FileState known = fileStates.get(target);
+            if (known == null) {
+                return;
+            }
+            Path path = Paths.get(csvDataSource.get(target));
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                return; // Part way through being replaced, so caught up with once it has been
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (!Objects.equals(attributes.fileKey(), known.fileKey()) || attributes.size() < known.length()) {
+                appendChannels.get(target).reopen();
+                reload(target);
+            } else if (attributes.size() > known.length()) {
+                long read = readAppended(target, known.length(), attributes.size(), false);
+                fileStates.put(target, new FileState(known.fileKey(), read));
+            }
+        }
+    }
+
+    /**
+     * Records that this storage appended to a file, if it is watched, first reading any rows another program appended
+     * between the last catch up and the write, which are in front of the ones written.
+     * @param target the file name, without its file extension
+     * @param written how many bytes were written
+     */
+    private void appended(String target, long written) {
+        if (!WATCH) {
+            return;
+        }
+        FileState known = fileStates.get(target);
+        long end = appendChannels.get(target).end();
+        if (known == null || end < 0) {
+            return;
+        }
+        if (end - written > known.length()) {
+            readAppended(target, known.length(), end - written, true);
+        }
+        fileStates.put(target, new FileState(known.fileKey(), end));
+    }
+
+    /**
+     * Reads the rows another program appended to a file, and adds them to the end of the rows held in memory and to
+     * the indexes, telling listeners about each. Lines that can't be read as rows are skipped, and counted in the
+     * metrics.
+     * @param target the file name, without its file extension
+     * @param from where the appended bytes start
+     * @param to where they end
+     * @param whole whether the last line is known to be whole, rather than possibly still being written
+     * @return where reading should carry on from next time, which is before the last line if it wasn't whole yet
+     * @throws RuntimeException if an IOException occurs while reading the file
+     */
+    private long readAppended(String target, long from, long to, boolean whole) {
+        ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(to - from));
+        try (FileChannel file = FileChannel.open(Paths.get(csvDataSource.get(target)), StandardOpenOption.READ)) {
+            while (bytes.hasRemaining() && file.read(bytes, from + bytes.position()) >= 0) {
+                // Keeps reading until every byte asked for has been read, or the file ends
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        bytes.flip();
+        StorageMetrics.count(target, StorageCounter.BYTES_READ, bytes.remaining());
+        List<String> headers = getHeaders(target);
+        List<CSV> newRows = new ArrayList<>();
+        long read = from;
+        int lineStart = 0;
+        for (int i = 0; i <= bytes.limit(); i++) {
+            if (i < bytes.limit() && bytes.get(i) != '\n') {
+                continue;
+            }
+            String line = StandardCharsets.UTF_8.decode(bytes.slice(lineStart, i - lineStart)).toString()
+                    .replace("\r", "");
+            boolean last = i == bytes.limit();
+            if (!line.isEmpty()) {
+                CSV row = null;
+                try {
+                    String[] columns = line.split(",", -1);
+                    if (columns.length == headers.size()) {
+                        row = new CSV(Arrays.asList(columns), headers);
+                    }
+                } catch (RuntimeException e) {
+                    // Not a row, so left out below
+                }
+                if (row == null && last && !whole) {
+                    // The rest of the line may not have been written yet, so it is read again next time
+                    break;
+                }
+                if (row != null) {
+                    newRows.add(row);
+                } else {
+                    StorageMetrics.count(target, StorageCounter.ROWS_SKIPPED, 1);
+                }
+            }
+            read = from + Math.min(i + 1, bytes.limit());
+            lineStart = i + 1;
+        }
+        if (!newRows.isEmpty()) {
+            // The rows of watched files are held in a list that can be read while it is appended to, see readContents
+            List<CSV> existing = rows(target);
+            int firstNew = existing.size();
+            existing.addAll(newRows);
+            rowsAdded(target, firstNew);
+            StorageMetrics.count(target, StorageCounter.ROWS_SCANNED, newRows.size());
+            if (changePublisher.hasListeners()) {
+                for (CSV row : newRows) {
+                    changePublisher.publish(new StorageChange(target, StorageChange.Type.INSERTED, row));
+                }
+            }
+        }
+        return read;
+    }
+
+    /**
+     * @return the inode of a file, or whatever else the file system identifies it by, or null if it has nothing
+     * @throws RuntimeException if an IOException occurs while finding it
+     */
+    private static Object fileKeyOf(String path) {
+        try {
+            return Files.readAttributes(Paths.get(path), BasicFileAttributes.class).fileKey();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        csvDataMap.put("items", readContents(csvDataSource.get("items"))); //updates the in-memory store of csv records
     }
 
+    /**
+     * Counts a whole-file rewrite of the target into the metrics: the old file is read in full, and the ".tmp" file
+     * that is about to replace it is written in full.
+     * @param target the file name being rewritten, without its file extension
+     */
+    private void countRewrite(String target) throws IOException {
+        if (StorageMetrics.ENABLED) {
+            String path = csvDataSource.get(target);
+            StorageMetrics.count(target, StorageCounter.BYTES_READ, Files.size(Paths.get(path)));
+            StorageMetrics.count(target, StorageCounter.BYTES_WRITTEN, Files.size(Paths.get(path + ".tmp")));
+            StorageMetrics.count(target, StorageCounter.ROWS_SCANNED, rows(target).size());
+        }
+    }
 
     /**
 	 * {@inheritDoc}
@@ -215,7 +889,8 @@ public class TextStorage implements Storage {
  	 * The method assumes the first row of the file to be the headers. Each header is separated
  	 * by a comma. Subsequent rows are interpreted as data, where each value is associated with
  	 * a header based on its position. Each row is transformed into a CSV object and
- 	 * added to the resulting list.
+ 	 * added to the resulting list, which is an {@link OffHeapRecordList} if {@code ims.text.offHeap} is set, or
+ 	 * else a {@link ChunkedRecordList} if {@code ims.text.watch} is.
  	 * </p>
      *
      * @param target the file to be read from, minus any file extensions
@@ -224,9 +899,14 @@ public class TextStorage implements Storage {
 	 */
     @Override
     public List<CSV> readContents(String target) {
-        List<CSV> result = new ArrayList<>();
+        // The rows of watched files are appended to by the watching thread while others read them, which an
+        // ArrayList doesn't allow
+        List<CSV> result = OFF_HEAP ? new OffHeapRecordList() : WATCH ? new ChunkedRecordList() : new ArrayList<>();
 
-        try (Scanner myReader = new Scanner(new BufferedReader(new FileReader(target)))) {
+        // Found before the file is opened, so if it is replaced in between, the next catch up reads it again
+        Object fileKey = WATCH ? fileKeyOf(target) : null;
+        try (FileInputStream in = new FileInputStream(target);
+             Scanner myReader = new Scanner(new BufferedReader(new InputStreamReader(in)))) {
             List<String> headers = Arrays.asList(myReader.nextLine().split(","));
 
             while (myReader.hasNextLine()) {
@@ -234,15 +914,74 @@ public class TextStorage implements Storage {
                 List<String> parameterFileRow = Arrays.asList(row.split(","));
                 result.add(new CSV(parameterFileRow, headers));
             }
+            String source = sourceOf(target);
+            if (WATCH && csvDataSource.containsKey(source)) {
+                // Everything up to where the reader stopped has been read, however long the file is by now
+                fileStates.put(source, new FileState(fileKey, in.getChannel().position()));
+            }
+            if (StorageMetrics.ENABLED) {
+                StorageMetrics.count(source, StorageCounter.CACHE_MISSES, 1);
+                StorageMetrics.count(source, StorageCounter.BYTES_READ, new File(target).length());
+                StorageMetrics.count(source, StorageCounter.ROWS_SCANNED, result.size());
+            }
             return result;
-        } catch (FileNotFoundException e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Finds which datasource a file path belongs to, for recording metrics against.
+     * @return the datasource's name, or the path itself if it isn't one of this storage's files
+     */
+    private String sourceOf(String path) {
+        for (Map.Entry<String, String> source : csvDataSource.entrySet()) {
+            if (source.getValue().equals(path)) {
+                return source.getKey();
+            }
+        }
+        return path;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Pages are served from the in-memory {@link #csvDataMap} rather than by re-reading the file.
+     * </p>
+     */
+    @Override
+    public List<CSV> readPage(String target, int offset, int limit) {
+        StorageMetrics.count(target, StorageCounter.CACHE_HITS, 1);
+        List<CSV> rows = rows(target);
+        int from = Math.min(offset, rows.size());
+        int to = Math.min(from + limit, rows.size());
+        return new ArrayList<>(rows.subList(from, to));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Rows are passed straight from the in-memory {@link #csvDataMap}, so no copy of the datasource is made.
+     * </p>
+     */
+    @Override
+    public void forEachRecord(String target, Consumer<CSV> action) {
+        StorageMetrics.count(target, StorageCounter.CACHE_HITS, 1);
+        rows(target).forEach(action);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every row held in memory is checked, so the search is profiled as a {@link QueryPlan#MEMORY_SCAN} with nothing
+     * to convert, as the rows are already {@link CSV} objects.
+     * </p>
+     */
     @Override
     public List<CSV> searchRecord(String target, Pair<String, String> propertyNameValuePair) {
-        List<CSV> csvs = csvDataMap.get(target);
+        QueryProfiler.Trace trace = QueryProfiler.get().start(target, propertyNameValuePair.getLeft(),
+                propertyNameValuePair.getRight());
+        List<CSV> csvs = rows(target);
         List<CSV> output = new ArrayList<>();
         for (CSV csv: csvs) {
             // Pattern.quote to treat the user input as not regex, with 0+ wildcards preceding and following
@@ -251,31 +990,398 @@ public class TextStorage implements Storage {
                 output.add(csv);
             }
         }
-        return output;
+        StorageMetrics.count(target, StorageCounter.CACHE_HITS, 1);
+        StorageMetrics.count(target, StorageCounter.ROWS_SCANNED, csvs.size());
+        trace.rowsExamined(csvs.size());
+        return trace.finish(output);
     }
 
     /**
-     * Generates an ID by looking at the last ID in the items.txt file, and adding one to it.
-     * @return The ID formatted as a 5 character string filled with preceding zeros
-     * @throws RuntimeException If the ID surpasses 5 characters
-     * @implNote The RuntimeException thrown by this method is just to fit the strict definition set by the assigment
-     * as a proof of concept and can be freely removed if desired
+     * {@inheritDoc}
+     * <p>
+     * Every row is checked, but the {@link MemoryQueryPlan} samples them first to check the most selective conditions
+     * first. Profiled as a {@link QueryPlan#MEMORY_SCAN}.
+     * </p>
+     * <p>
+     * The exception is a query that needs its rows to start with some text (on its own or as part of an AND), such as
+     * the search as you type in the GUI. The rows that do are found in a {@link PrefixIndex} of the field, and the
+     * rest of the query only checks those, profiled as an {@link QueryPlan#INDEX_LOOKUP}.
+     * </p>
+     */
+    @Override
+    public List<CSV> query(Query query) {
+        QueryProfiler.Trace trace = QueryProfiler.get().start(query.target(), "query", query.toString());
+        Condition.StartsWith prefix = indexablePrefix(query.target(), query.condition());
+        if (prefix != null) {
+            trace.plan(QueryPlan.INDEX_LOOKUP);
+            List<CSV> rows;
+            int[] positions;
+            boolean onlyCondition = prefix == query.condition() && query.sort() == null;
+            synchronized (this) {
+                rows = prefixIndexedRows(query.target());
+                // Without anything else to check, the first matches are the answer
+                positions = prefixIndex(query.target(), prefix.field(), rows)
+                        .positions(prefix.prefix(), onlyCondition ? query.limit() : 0);
+            }
+            List<CSV> candidates = new ArrayList<>(positions.length);
+            for (int position : positions) {
+                candidates.add(rows.get(position));
+            }
+            List<CSV> output = onlyCondition ? candidates : MemoryQueryPlan.plan(query, candidates).execute(candidates);
+            StorageMetrics.count(query.target(), StorageCounter.CACHE_HITS, 1);
+            StorageMetrics.count(query.target(), StorageCounter.ROWS_SCANNED, candidates.size());
+            trace.rowsExamined(candidates.size());
+            return trace.finish(output);
+        }
+        List<CSV> csvs = rows(query.target());
+        List<CSV> output = MemoryQueryPlan.plan(query, csvs).execute(csvs);
+        StorageMetrics.count(query.target(), StorageCounter.CACHE_HITS, 1);
+        StorageMetrics.count(query.target(), StorageCounter.ROWS_SCANNED, csvs.size());
+        trace.rowsExamined(csvs.size());
+        return trace.finish(output);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Read straight from the item's rows in the transactions file, found through the {@link TransactionHistoryIndex},
+     * so the cost depends on the length of the item's history rather than the number of transactions. This also
+     * means the history is available without waiting for the transactions to finish loading into memory.
+     * </p>
+     */
+    @Override
+    public List<CSV> transactionHistory(String id) {
+        QueryProfiler.Trace trace = QueryProfiler.get().start("transactions", "id", id);
+        trace.plan(QueryPlan.INDEX_LOOKUP);
+        List<String> lines = historyIndex.lines(id);
+        List<String> headers = historyIndex.headers();
+        List<CSV> history = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            history.add(new CSV(Arrays.asList(line.split(",")), headers));
+        }
+        StorageMetrics.count("transactions", StorageCounter.ROWS_SCANNED, lines.size());
+        trace.rowsExamined(lines.size());
+        return trace.finish(history);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Searched through a {@link DescriptionIndex} of the items held in memory, built by the first search and then
+     * kept up to date by each write, so only the entries for the search's words are checked. Profiled as a
+     * {@link QueryPlan#TEXT_INDEX}, with the index entries checked as the rows examined.
+     * </p>
+     */
+    @Override
+    public List<CSV> searchDescriptions(String text, int limit) {
+        QueryProfiler.Trace trace = QueryProfiler.get().start("items", "description", text);
+        trace.plan(QueryPlan.TEXT_INDEX);
+        List<CSV> items;
+        DescriptionIndex.Results<Integer> results;
+        int[] positions;
+        synchronized (this) {
+            items = indexedItems();
+            results = descriptionIndex.search(text, limit);
+            positions = new int[results.matches().size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = itemPositions.position(results.matches().get(i));
+            }
+        }
+        List<CSV> output = new ArrayList<>(positions.length);
+        for (int position : positions) {
+            output.add(items.get(position));
+        }
+        StorageMetrics.count("items", StorageCounter.CACHE_HITS, 1);
+        trace.rowsExamined(results.postingsChecked());
+        return trace.finish(output);
+    }
+
+    /**
+     * Finds the condition on the start of a field that a query can be answered through the prefix indexes with,
+     * which is the whole condition or, in an AND, the part that the fewest rows meet.
+     * @return the condition, or null if there isn't one
+     */
+    private Condition.StartsWith indexablePrefix(String target, Condition condition) {
+        if (condition instanceof Condition.StartsWith prefix) {
+            return CSV.isField(prefix.field()) && !prefix.prefix().isEmpty() ? prefix : null;
+        }
+        if (!(condition instanceof Condition.And and)) {
+            return null;
+        }
+        Condition.StartsWith best = null;
+        int fewest = Integer.MAX_VALUE;
+        for (Condition part : and.conditions()) {
+            if (part instanceof Condition.StartsWith prefix && indexablePrefix(target, prefix) != null) {
+                int count;
+                synchronized (this) {
+                    count = prefixIndex(target, prefix.field(), prefixIndexedRows(target)).count(prefix.prefix());
+                }
+                if (count < fewest) {
+                    best = prefix;
+                    fewest = count;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Drops the target's prefix indexes if its rows were replaced without them being brought up to date.
+     * @return the rows the indexes are up to date with
+     */
+    private synchronized List<CSV> prefixIndexedRows(String target) {
+        List<CSV> rows = rows(target);
+        if (prefixIndexedRows.get(target) != rows) {
+            prefixIndexes.remove(target);
+            prefixIndexedRows.put(target, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * @return the prefix index of a field, built from the rows if there isn't one yet
+     */
+    private synchronized PrefixIndex prefixIndex(String target, String field, List<CSV> rows) {
+        return prefixIndexes.computeIfAbsent(target, t -> new HashMap<>()).computeIfAbsent(field, f -> {
+            List<String> keys = new ArrayList<>(rows.size());
+            for (CSV row : rows) {
+                keys.add(prefixKey(row, field));
+            }
+            return new PrefixIndex(keys);
+        });
+    }
+
+    private static String prefixKey(CSV row, String field) {
+        Object value = row.GetPropertyByName(field);
+        return value != null ? value.toString() : "";
+    }
+
+    /**
+     * Brings the indexes of a target up to date after rows were added to the end of it.
+     * @param from the position of the first new row
+     */
+    private synchronized void rowsAdded(String target, int from) {
+        if (target.equals("items")) {
+            indexItems(from);
+        }
+        Map<String, PrefixIndex> indexes = prefixIndexes.get(target);
+        if (indexes == null) {
+            return;
+        }
+        List<CSV> rows = rows(target);
+        for (Map.Entry<String, PrefixIndex> index : indexes.entrySet()) {
+            if (index.getValue().size() != from) {
+                // The file changed some other way too, so the indexes are rebuilt when next needed
+                prefixIndexes.remove(target);
+                return;
+            }
+            List<String> keys = new ArrayList<>(rows.size() - from);
+            for (CSV row : rows.subList(from, rows.size())) {
+                keys.add(prefixKey(row, index.getKey()));
+            }
+            index.getValue().add(keys);
+        }
+        prefixIndexedRows.put(target, rows);
+    }
+
+    /**
+     * Brings the indexes of the items up to date after one was changed.
+     * @param position where the item is in the items' rows
+     */
+    private synchronized void rowChanged(int position) {
+        reindexItem(position);
+        Map<String, PrefixIndex> indexes = prefixIndexes.get("items");
+        if (indexes == null) {
+            return;
+        }
+        List<CSV> items = rows("items");
+        for (Map.Entry<String, PrefixIndex> index : indexes.entrySet()) {
+            index.getValue().set(position, prefixKey(items.get(position), index.getKey()));
+        }
+        prefixIndexedRows.put("items", items);
+    }
+
+    /**
+     * Brings the indexes of the items up to date after one was deleted. The prefix indexes move every item after it up
+     * one, while the description index only forgets the deleted item.
+     * @param position where the item was in the items' rows
+     */
+    private synchronized void rowRemoved(String id, int position) {
+        unindexItem(id, position);
+        Map<String, PrefixIndex> indexes = prefixIndexes.get("items");
+        if (indexes == null) {
+            return;
+        }
+        for (PrefixIndex index : indexes.values()) {
+            index.remove(position);
+        }
+        prefixIndexedRows.put("items", rows("items"));
+    }
+
+    /**
+     * Builds the description index over the items' rows if it hasn't been yet, or if the rows were replaced without it
+     * being brought up to date.
+     * @return the rows the index is up to date with
+     */
+    private synchronized List<CSV> indexedItems() {
+        List<CSV> items = rows("items");
+        if (descriptionIndex == null || indexedItems != items) {
+            descriptionIndex = new DescriptionIndex<>();
+            itemPositions = new RowPositions();
+            indexItems(0);
+        }
+        return items;
+    }
+
+    /**
+     * Adds the items' rows to the description index after they were added to the end of the items, if it has been
+     * built.
+     * @param from the position of the first new row
+     */
+    private synchronized void indexItems(int from) {
+        if (descriptionIndex == null) {
+            return;
+        }
+        if (itemPositions.size() != from) {
+            // The file changed some other way too, so the index is rebuilt when next needed
+            forgetDescriptionIndex();
+            return;
+        }
+        List<CSV> items = rows("items");
+        for (int position = from; position < items.size(); position++) {
+            CSV item = items.get(position);
+            descriptionIndex.put(item.id, item.description, itemPositions.add());
+        }
+        indexedItems = items;
+    }
+
+    /**
+     * Brings the description index up to date with a changed item, if it has been built.
+     * @param position where the item is in the items' rows
+     */
+    private synchronized void reindexItem(int position) {
+        if (descriptionIndex == null) {
+            return;
+        }
+        List<CSV> items = rows("items");
+        CSV item = items.get(position);
+        Integer slot = descriptionIndex.get(item.id);
+        if (slot == null || itemPositions.position(slot) != position) {
+            forgetDescriptionIndex();
+            return;
+        }
+        descriptionIndex.put(item.id, item.description, slot);
+        indexedItems = items;
+    }
+
+    /**
+     * Removes a deleted item from the description index, if it has been built. Only the item's own entry and slot
+     * are removed, as the items after it are found through their slots.
+     * @param position where the item was in the items' rows
+     */
+    private synchronized void unindexItem(String id, int position) {
+        if (descriptionIndex == null) {
+            return;
+        }
+        Integer slot = descriptionIndex.get(id);
+        List<CSV> items = rows("items");
+        // Another row with the same id (e.g. appended by another program) leaves the slots out of step with the rows
+        if (slot == null || itemPositions.position(slot) != position || itemPositions.size() != items.size() + 1) {
+            forgetDescriptionIndex();
+            return;
+        }
+        descriptionIndex.remove(id);
+        itemPositions.remove(slot);
+        indexedItems = items;
+    }
+
+    /**
+     * Drops the description index after it fell out of step with the items' rows, so the next search builds it again.
+     */
+    private synchronized void forgetDescriptionIndex() {
+        descriptionIndex = null;
+        itemPositions = null;
+        indexedItems = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Replays from the latest {@link CheckpointStore} checkpoint before the date, writing any checkpoints that are
+     * due first.
+     * </p>
+     */
+    @Override
+    public List<CSV> itemsAsOf(LocalDate date) {
+        return checkpoints.itemsAsOf(rows("transactions"), FieldType.dateKey(date));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Both files are checked from the rows held in memory.
+     * </p>
+     */
+    @Override
+    public ReplayVerification verifyTransactionLog() {
+        return InventoryReplay.verify(rows("transactions"), rows("items"));
+    }
+
+    /**
+     * Generates an ID for a new item from the {@link FileIdAllocator}, whose counter is persisted in
+     * {@link #idCounterFilePath}. Safe to call from multiple threads, and never returns an ID that has been used before.
+     * @return The ID formatted with preceding zeros to the width set by {@link IdFormat#configured()} (5 by default)
      */
     public String generateID() {
-        List<CSV> itemsList = csvDataMap.get("items");
-        CSV lastRow = itemsList.getLast();
+        return idAllocator().nextID();
+    }
 
-        if (Integer.parseInt(lastRow.id) + 1 >= 100_000) {
-            throw new RuntimeException("ID exceeds the maximum allowed value");
+    private synchronized IdAllocator idAllocator() {
+        if (idAllocator == null && idStripes > 1) {
+            // The counter file then holds how many ids this stripe has made, so starts past the highest id's count
+            idAllocator = new StripedIdAllocator(new FileIdAllocator(
+                    Paths.get(idCounterFilePath),
+                    highestID() / idStripes + 1,
+                    IdFormat.configured(),
+                    BatchedIdAllocator.configuredBatchSize()), idStripe, idStripes, IdFormat.configured());
+        } else if (idAllocator == null) {
+            idAllocator = new FileIdAllocator(
+                    Paths.get(idCounterFilePath),
+                    highestID() + 1,
+                    IdFormat.configured(),
+                    BatchedIdAllocator.configuredBatchSize());
         }
+        return idAllocator;
+    }
 
-        return String.format("%05d", Integer.parseInt(lastRow.id) + 1);
+    /**
+     * Finds the highest numeric ID in either file, including items that have since been deleted.
+     * @return the highest ID, or 0 if there are no numeric IDs
+     */
+    private long highestID() {
+        long highest = 0;
+        for (String source : csvDataSource.keySet()) {
+            for (CSV csv : rows(source)) {
+                highest = Math.max(highest, IdFormat.parse(csv.id));
+            }
+        }
+        return highest;
     }
 
     @Override
     public List<String> getIDs() {
-        return csvDataMap.get("items").stream()
+        return rows("items").stream()
                 .map(csv -> (String) csv.GetPropertyByName("id"))
                 .toList();
     }
+
+    @Override
+    public void addListener(StorageListener listener) {
+        changePublisher.addListener(listener);
+    }
+
+    @Override
+    public void removeListener(StorageListener listener) {
+        changePublisher.removeListener(listener);
+    }
 }
@@ -0,0 +1,349 @@
+package uni.S257123.storage.text;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps each item id to where each of its transactions starts in the transactions file, so an item's history can be
+ * read by seeking straight to its rows rather than scanning every transaction.
+ * <p>
+ * The transactions file is only ever appended to, so the index records how many bytes of the file it covers, and
+ * catches up by scanning just the bytes appended since then each time it is used. This picks up rows written by
+ * other processes too. It is saved next to the transactions file (e.g. transactions.idx), so a later run only has to
+ * scan what was appended after it was saved. If the file has shrunk, or a row isn't where the index says, the index
+ * is rebuilt from scratch.
+ * </p>
+ */
+class TransactionHistoryIndex {
+    /**
+     * Marks the start of a saved index, "IMSI"
+     */
+    private static final int MAGIC = 0x494D5349;
+    private static final int VERSION = 1;
+    /**
+     * How many bytes of appended rows are scanned before the index is saved again
+     */
+    private static final long SAVE_AFTER_BYTES = 1 << 20;
+
+    private final Path transactionsFile;
+    private final Path indexFile;
+    private Map<String, Offsets> offsets;
+    private List<String> headers;
+    /**
+     * How many bytes of the transactions file the index covers
+     */
+    private long indexedLength;
+    private long unsavedBytes;
+
+    /**
+     * @param transactionsFile the transactions file to index. The index is kept next to it, in a file of the same
+     *                         name ending in ".idx"
+     */
+    TransactionHistoryIndex(Path transactionsFile) {
+        this.transactionsFile = transactionsFile;
+        this.indexFile = transactionsFile.resolveSibling(
+                transactionsFile.getFileName().toString().replaceFirst("\\.[^.]*$", "") + ".idx");
+    }
+
+    /**
+     * Reads every transaction of an item from the file, in the order they were written.
+     * @param id the id of the item
+     * @return the rows of the item's transactions, as they are written in the file
+     * @throws RuntimeException if the transactions file can't be read
+     */
+    synchronized List<String> lines(String id) {
+        try {
+            catchUp();
+            List<String> lines = read(id);
+            if (lines == null) {
+                // The file was changed in a way the index can't follow, e.g. rewritten to the same length or longer
+                rebuild();
+                lines = read(id);
+            }
+            return lines != null ? lines : List.of();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the headers of the transactions file
+     */
+    synchronized List<String> headers() {
+        try {
+            catchUp();
+            return headers;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Brings the index up to date with the end of the file, loading the saved index first if this is the first use.
+     */
+    private void catchUp() throws IOException {
+        if (offsets == null && !load()) {
+            rebuild();
+            return;
+        }
+        long length = Files.size(transactionsFile);
+        if (length < indexedLength) {
+            rebuild();
+        } else if (length > indexedLength) {
+            unsavedBytes += length - indexedLength;
+            scan(indexedLength, length);
+            if (unsavedBytes >= SAVE_AFTER_BYTES) {
+                save();
+            }
+        }
+    }
+
+    private void rebuild() throws IOException {
+        offsets = new HashMap<>();
+        headers = null;
+        indexedLength = 0;
+        scan(0, Files.size(transactionsFile));
+        save();
+    }
+
+    /**
+     * Adds every row starting between the two positions to the index. Only whole rows are ever appended (each
+     * preceded by a line break), so the scan starts either at the top of the file or at the end of the last row
+     * indexed.
+     */
+    private void scan(long from, long to) throws IOException {
+        try (FileChannel channel = FileChannel.open(transactionsFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+            long position = from;
+            boolean lineStart = from == 0 || byteAt(channel, from - 1) == '\n';
+            long lineOffset = -1;
+            // The id (or for the first line, the whole header) of the row being scanned
+            byte[] key = new byte[64];
+            int keyLength = 0;
+            boolean inKey = false;
+            channel.position(from);
+            while (position < to && channel.read(buffer.clear()) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining() && position < to) {
+                    byte b = buffer.get();
+                    if (lineStart && b != '\n' && b != '\r') {
+                        lineOffset = position;
+                        keyLength = 0;
+                        inKey = true;
+                        lineStart = false;
+                    }
+                    if (b == '\n') {
+                        if (inKey) {
+                            addKey(key, keyLength, lineOffset);
+                        }
+                        inKey = false;
+                        lineStart = true;
+                    } else if (inKey) {
+                        if (b == ',' && lineOffset != 0) {
+                            addKey(key, keyLength, lineOffset);
+                            inKey = false;
+                        } else if (b != '\r') {
+                            if (keyLength == key.length) {
+                                key = Arrays.copyOf(key, key.length * 2);
+                            }
+                            key[keyLength++] = b;
+                        }
+                    }
+                    position++;
+                }
+            }
+            if (inKey) {
+                addKey(key, keyLength, lineOffset);
+            }
+            indexedLength = position;
+        }
+    }
+
+    private void addKey(byte[] key, int length, long lineOffset) {
+        String value = new String(key, 0, length, StandardCharsets.UTF_8);
+        if (lineOffset == 0) {
+            headers = List.of(value.split(","));
+        } else {
+            offsets.computeIfAbsent(value, id -> new Offsets()).add(lineOffset);
+        }
+    }
+
+    /**
+     * Reads the rows at each of the item's offsets.
+     * @return the rows, or null if any of them doesn't belong to the item, meaning the index is out of date
+     */
+    private List<String> read(String id) throws IOException {
+        Offsets itemOffsets = offsets.get(id);
+        if (itemOffsets == null) {
+            return List.of();
+        }
+        List<String> lines = new ArrayList<>(itemOffsets.size);
+        try (FileChannel channel = FileChannel.open(transactionsFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            for (int i = 0; i < itemOffsets.size; i++) {
+                String line = readLine(channel, itemOffsets.values[i], buffer);
+                if (!line.startsWith(id + ",")) {
+                    return null;
+                }
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static String readLine(FileChannel channel, long offset, ByteBuffer buffer) throws IOException {
+        while (true) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            int end = -1;
+            for (int i = 0; i < Math.max(read, 0); i++) {
+                if (buffer.get(i) == '\n') {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0 && read == buffer.capacity()) {
+                // The row is longer than the buffer, so try again with room for all of it
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                continue;
+            }
+            if (end < 0) {
+                end = Math.max(read, 0);
+            }
+            if (end > 0 && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            return new String(buffer.array(), 0, end, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte byteAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer single = ByteBuffer.allocate(1);
+        channel.read(single, position);
+        return single.get(0);
+    }
+
+    /**
+     * Loads the saved index, if there is one that was saved for a file at least as long as the current one.
+     * @return whether the index was loaded
+     */
+    private boolean load() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            long length = in.readLong();
+            if (length > Files.size(transactionsFile)) {
+                return false;
+            }
+            List<String> savedHeaders = List.of(in.readUTF().split(","));
+            int ids = in.readInt();
+            Map<String, Offsets> savedOffsets = new HashMap<>(ids * 4 / 3 + 1);
+            for (int i = 0; i < ids; i++) {
+                String id = in.readUTF();
+                Offsets itemOffsets = new Offsets();
+                int count = in.readInt();
+                long offset = 0;
+                for (int j = 0; j < count; j++) {
+                    // Stored as the gap from the previous offset, which is usually small
+                    offset += readVarLong(in);
+                    itemOffsets.add(offset);
+                }
+                savedOffsets.put(id, itemOffsets);
+            }
+            offsets = savedOffsets;
+            headers = savedHeaders;
+            indexedLength = length;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // A damaged index is simply rebuilt
+            return false;
+        }
+    }
+
+    /**
+     * Saves the index next to the transactions file, replacing the old one atomically.
+     */
+    private void save() {
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(indexedLength);
+            out.writeUTF(headers != null ? String.join(",", headers) : "");
+            out.writeInt(offsets.size());
+            for (Map.Entry<String, Offsets> entry : offsets.entrySet()) {
+                out.writeUTF(entry.getKey());
+                Offsets itemOffsets = entry.getValue();
+                out.writeInt(itemOffsets.size);
+                long previous = 0;
+                for (int i = 0; i < itemOffsets.size; i++) {
+                    writeVarLong(out, itemOffsets.values[i] - previous);
+                    previous = itemOffsets.values[i];
+                }
+            }
+        } catch (IOException e) {
+            // The index can always be rebuilt from the file, so failing to save it only costs the next run a rescan
+            return;
+        }
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            unsavedBytes = 0;
+        } catch (IOException e) {
+            // As above
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * The offsets of one item's rows, in the order they appear in the file.
+     */
+    private static class Offsets {
+        private long[] values = new long[2];
+        private int size = 0;
+
+        void add(long offset) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = offset;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package uni.S257123.storage.transfer;
+
+import uni.S257123.storage.interfaces.Storage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Bulk loads items from a supplier's CSV file into a {@link Storage} backend.
+ * <p>
+ * The file is streamed rather than read into memory at once. A reader thread cuts it into batches, which are
+ * validated and converted in parallel, while the calling thread writes the finished batches (in file order) through
+ * {@link Storage#addRecords(List, String)}. The queue of batches between the two is bounded, so if the storage can't
+ * keep up the reader waits for it, rather than the whole file piling up in memory.
+ * </p>
+ * <p>
+ * The file must start with a header row containing (in any order) "description", "unitPrice" and "qtyInStock"
+ * columns. Any other columns, such as "totalPrice", are ignored as they are calculated when the item is added.
+ * </p>
+ */
+public class CsvImporter {
+    public static final int DEFAULT_BATCH_SIZE = 10_000;
+
+    private final Storage storage;
+    private final int batchSize;
+    private final int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * A batch of rows after validation. The end of the file is marked by a batch with no rows in it at all.
+     * @param firstLineNumber the line number of the batch's first row
+     * @param rowsRead how many rows of the file were in this batch
+     * @param accepted the converted rows that passed validation, ready for {@link Storage#addRecords(List, String)}
+     * @param rejected a line for the rejected rows report for each row that failed validation
+     */
+    private record ValidatedBatch(long firstLineNumber, int rowsRead, List<List<String>> accepted,
+                                  List<String> rejected) { }
+
+    private static final ValidatedBatch END_OF_FILE = new ValidatedBatch(0, 0, List.of(), List.of());
+
+    public CsvImporter(Storage storage) {
+        this(storage, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param storage the backend the items should be added to
+     * @param batchSize how many rows are validated and written together
+     */
+    public CsvImporter(Storage storage, int batchSize) {
+        this.storage = storage;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Imports every valid row of the source file as a new item.
+     * @param source the supplier CSV file to be imported
+     * @param rejectedReport where to write the rows that failed validation, with their line number and the reason,
+     *                       or null if they don't need reporting
+     * @param progress called on the calling thread after each batch has been written
+     * @return the final counts of the import
+     * @throws IllegalArgumentException if the file is missing one of the required columns
+     * @throws IllegalStateException if the storage doesn't save a batch, leaving the batches before it imported
+     * @throws RuntimeException if an IOException occurs while reading the source or writing the report
+     */
+    public ImportProgress importItems(Path source, Path rejectedReport, Consumer<ImportProgress> progress) {
+        long startTime = System.nanoTime();
+        ExecutorService validators = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "import-validator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Bounded so that the reader can only get a couple of batches per validator ahead of the writer
+        BlockingQueue<Future<ValidatedBatch>> pending = new ArrayBlockingQueue<>(parallelism * 2);
+
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8);
+             Writer rejectedWriter = rejectedReport == null ? Writer.nullWriter()
+                     : Files.newBufferedWriter(rejectedReport, StandardCharsets.UTF_8)) {
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                throw new IllegalArgumentException("Import file is empty: " + source);
+            }
+            ColumnLayout layout = ColumnLayout.of(headerLine.split(",", -1));
+            rejectedWriter.write("line,reason,row");
+
+            Thread readerThread = Thread.ofPlatform().name("import-reader").daemon().start(
+                    () -> readBatches(reader, layout, validators, pending));
+            long rowsRead = 0;
+            long accepted = 0;
+            long rejected = 0;
+            ImportProgress current = new ImportProgress(0, 0, 0, Duration.ZERO);
+            try {
+                while (true) {
+                    ValidatedBatch batch = pending.take().get();
+                    if (batch == END_OF_FILE) {
+                        break;
+                    }
+                    if (!batch.accepted().isEmpty() && !storage.addRecords(batch.accepted(), "items")) {
+                        // Stops rather than carrying on, so the counts never include rows that weren't saved
+                        throw new IllegalStateException("The storage didn't save the rows from line "
+                                + batch.firstLineNumber() + " on, after " + accepted + " rows were imported");
+                    }
+                    for (String line : batch.rejected()) {
+                        rejectedWriter.write(System.lineSeparator());
+                        rejectedWriter.write(line);
+                    }
+                    rowsRead += batch.rowsRead();
+                    accepted += batch.accepted().size();
+                    rejected += batch.rejected().size();
+                    current = new ImportProgress(rowsRead, accepted, rejected,
+                            Duration.ofNanos(System.nanoTime() - startTime));
+                    progress.accept(current);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                readerThread.interrupt();
+            }
+            return new ImportProgress(rowsRead, accepted, rejected, Duration.ofNanos(System.nanoTime() - startTime));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            validators.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs on the reader thread, cutting the file into batches and handing each to the validators. Blocks whenever
+     * the queue of pending batches is full.
+     */
+    private void readBatches(BufferedReader reader, ColumnLayout layout, ExecutorService validators,
+                             BlockingQueue<Future<ValidatedBatch>> pending) {
+        try {
+            // Line 1 is the header, so the first row is line 2
+            long lineNumber = 2;
+            List<String> lines = new ArrayList<>(batchSize);
+            String line;
+            try {
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) {
+                        lineNumber++;
+                        continue;
+                    }
+                    lines.add(line);
+                    if (lines.size() == batchSize) {
+                        submit(lines, lineNumber - lines.size() + 1, layout, validators, pending);
+                        lines = new ArrayList<>(batchSize);
+                    }
+                    lineNumber++;
+                }
+            } catch (IOException e) {
+                pending.put(CompletableFuture.failedFuture(e));
+                return;
+            }
+            if (!lines.isEmpty()) {
+                submit(lines, lineNumber - lines.size(), layout, validators, pending);
+            }
+            pending.put(CompletableFuture.completedFuture(END_OF_FILE));
+        } catch (InterruptedException e) {
+            // The writer has stopped early, so there is nobody left to read the remaining batches
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(List<String> lines, long firstLineNumber, ColumnLayout layout, ExecutorService validators,
+                        BlockingQueue<Future<ValidatedBatch>> pending) throws InterruptedException {
+        pending.put(validators.submit(() -> validate(lines, firstLineNumber, layout)));
+    }
+
+    /**
+     * Validates and converts each line of a batch into the parameters {@link Storage#addRecords(List, String)} takes.
+     * @param lines the rows of the file
+     * @param firstLineNumber the line number of the first row, used when reporting rejected rows. Line numbers are
+     *                        approximate if the batch had blank lines in it
+     * @param layout where each required column is in a row
+     */
+    private static ValidatedBatch validate(List<String> lines, long firstLineNumber, ColumnLayout layout) {
+        List<List<String>> accepted = new ArrayList<>(lines.size());
+        List<String> rejected = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            String[] columns = line.split(",", -1);
+            String reason = null;
+            if (columns.length != layout.columnCount()) {
+                reason = "expected " + layout.columnCount() + " columns but found " + columns.length;
+            } else {
+                String description = columns[layout.description()].trim();
+                double unitPrice = parseDouble(columns[layout.unitPrice()].trim());
+                long qtyInStock = parseLong(columns[layout.qtyInStock()].trim());
+                if (description.isEmpty()) {
+                    reason = "description is empty";
+                } else if (!(unitPrice >= 0) || Double.isInfinite(unitPrice)) {
+                    reason = "unitPrice is not a non-negative number";
+                } else if (qtyInStock < 0 || qtyInStock > Integer.MAX_VALUE) {
+                    reason = "qtyInStock is not a non-negative integer";
+                } else {
+                    accepted.add(Arrays.asList(
+                            description,
+                            String.valueOf(unitPrice),
+                            String.valueOf(qtyInStock),
+                            String.valueOf(unitPrice * qtyInStock)));
+                }
+            }
+            if (reason != null) {
+                rejected.add((firstLineNumber + i) + "," + reason + "," + line);
+            }
+        }
+        return new ValidatedBatch(firstLineNumber, lines.size(), accepted, rejected);
+    }
+
+    /**
+     * @return the parsed number, or NaN if the value is not a number
+     */
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @return the parsed number, or -1 if the value is not a whole number
+     */
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The position of each required column within a row of the import file.
+     */
+    private record ColumnLayout(int columnCount, int description, int unitPrice, int qtyInStock) {
+        static ColumnLayout of(String[] headers) {
+            List<String> headerList = Arrays.stream(headers).map(String::trim).toList();
+            return new ColumnLayout(headers.length,
+                    indexOf(headerList, "description"),
+                    indexOf(headerList, "unitPrice"),
+                    indexOf(headerList, "qtyInStock"));
+        }
+
+        private static int indexOf(List<String> headers, String header) {
+            int index = headers.indexOf(header);
+            if (index < 0) {
+                throw new IllegalArgumentException("Import file is missing the " + header + " column");
+            }
+            return index;
+        }
+    }
+}
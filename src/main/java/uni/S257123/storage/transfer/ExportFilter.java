@@ -0,0 +1,73 @@
+package uni.S257123.storage.transfer;
+
+import uni.S257123.models.CSV;
+import uni.S257123.storage.query.Condition;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restricts which rows {@link RecordExporter} writes. Any part left null matches every row.
+ *
+ * @param from the earliest date to include (inclusive), only applied to rows that have a date
+ * @param to the latest date to include (inclusive), only applied to rows that have a date
+ * @param transactionType the transaction type to include (e.g. "added"), only applied to rows that have one
+ */
+public record ExportFilter(LocalDate from, LocalDate to, String transactionType) {
+    /**
+     * A filter that lets every row through
+     */
+    public static final ExportFilter ALL = new ExportFilter(null, null, null);
+
+    public boolean matches(CSV csv) {
+        if (transactionType != null && csv.transactionType != null && !transactionType.equals(csv.transactionType)) {
+            return false;
+        }
+        if ((from != null || to != null) && csv.date != null) {
+            int date = dateKey(csv.date);
+            if (from != null && date < dateKey(from)) {
+                return false;
+            }
+            return to == null || date <= dateKey(to);
+        }
+        return true;
+    }
+
+    /**
+     * @return the same filter as a {@link Condition} on transactions, so it can be part of a
+     * {@link uni.S257123.storage.query.Query}, or null if it lets every row through
+     */
+    public Condition toCondition() {
+        List<Condition> conditions = new ArrayList<>();
+        if (from != null || to != null) {
+            DateTimeFormatter format = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+            conditions.add(Condition.range("date", from != null ? from.format(format) : null,
+                    to != null ? to.format(format) : null));
+        }
+        if (transactionType != null) {
+            conditions.add(Condition.equalTo("transactionType", transactionType));
+        }
+        return switch (conditions.size()) {
+            case 0 -> null;
+            case 1 -> conditions.getFirst();
+            default -> new Condition.And(conditions);
+        };
+    }
+
+    /**
+     * Turns a "dd/MM/yyyy" date into a yyyyMMdd number that sorts in date order, without going through a
+     * DateTimeFormatter for every row.
+     */
+    private static int dateKey(String date) {
+        int day = Integer.parseInt(date, 0, 2, 10);
+        int month = Integer.parseInt(date, 3, 5, 10);
+        int year = Integer.parseInt(date, 6, date.length(), 10);
+        return year * 10_000 + month * 100 + day;
+    }
+
+    private static int dateKey(LocalDate date) {
+        return date.getYear() * 10_000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+    }
+}
@@ -0,0 +1,15 @@
+package uni.S257123.storage.transfer;
+
+/**
+ * The file formats {@link RecordExporter} can write.
+ */
+public enum ExportFormat {
+    /**
+     * The same comma separated format as the text storage files, with a header row
+     */
+    CSV,
+    /**
+     * One JSON object per line, with numbers left unquoted
+     */
+    JSON_LINES
+}
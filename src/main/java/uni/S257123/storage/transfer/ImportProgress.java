@@ -0,0 +1,20 @@
+package uni.S257123.storage.transfer;
+
+import java.time.Duration;
+
+/**
+ * How far through an import {@link CsvImporter} has got, reported after each batch is written.
+ *
+ * @param rowsRead the number of rows read from the import file so far
+ * @param accepted the number of rows that have been written to the storage
+ * @param rejected the number of rows that failed validation
+ * @param elapsed how long the import has been running
+ */
+public record ImportProgress(long rowsRead, long accepted, long rejected, Duration elapsed) {
+    /**
+     * @return the number of rows read per second so far
+     */
+    public double rowsPerSecond() {
+        return elapsed.isZero() ? 0 : rowsRead / (elapsed.toNanos() / 1e9);
+    }
+}
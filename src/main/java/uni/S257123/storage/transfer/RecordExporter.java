@@ -0,0 +1,150 @@
+package uni.S257123.storage.transfer;
+
+import uni.S257123.models.CSV;
+import uni.S257123.storage.interfaces.Storage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Streams the rows of a {@link Storage} datasource to a file, for full dumps and reports.
+ * <p>
+ * Rows are taken one at a time from {@link Storage#forEachRecord(String, java.util.function.Consumer)} and written
+ * straight into one large buffered writer, so memory use stays the same however big the datasource is. Fields are
+ * appended directly rather than formatted, and the output can optionally be gzip compressed as it is written.
+ * </p>
+ */
+public class RecordExporter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Storage storage;
+
+    public RecordExporter(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Writes every row of the target that matches the filter to the destination file, replacing it if it exists.
+     * @param target the datasource to be exported, without its file extension
+     * @param destination the file to write to
+     * @param format whether to write CSV or JSON Lines
+     * @param filter which rows to include
+     * @param gzip whether to gzip compress the output
+     * @return the number of rows written
+     * @throws RuntimeException if an IOException occurs while writing the file
+     */
+    public long export(String target, Path destination, ExportFormat format, ExportFilter filter, boolean gzip) {
+        try (Writer writer = openWriter(destination, gzip)) {
+            return export(target, writer, format, filter);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes every row of the target that matches the filter to the writer. The writer is not closed afterwards.
+     * @param target the datasource to be exported, without its file extension
+     * @param writer where to write the rows, which should be buffered
+     * @param format whether to write CSV or JSON Lines
+     * @param filter which rows to include
+     * @return the number of rows written
+     * @throws IOException if the writer fails to be written to
+     */
+    public long export(String target, Writer writer, ExportFormat format, ExportFilter filter) throws IOException {
+        long[] rowsWritten = {0};
+        try {
+            storage.forEachRecord(target, csv -> {
+                if (!filter.matches(csv)) {
+                    return;
+                }
+                try {
+                    // The header row is taken from the first row, as asking the storage for headers can mean an
+                    // extra read of the whole datasource
+                    if (format == ExportFormat.CSV) {
+                        if (rowsWritten[0] == 0) {
+                            writer.write(String.join(",", csv.definedFields));
+                        }
+                        // Matches the text storage files, where each row starts on a new line after the header
+                        writer.write('\n');
+                        csv.appendCSVFileOutput(writer);
+                    } else {
+                        appendJSON(csv, writer);
+                        writer.write('\n');
+                    }
+                    rowsWritten[0]++;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.flush();
+        return rowsWritten[0];
+    }
+
+    /**
+     * Writes a row as a single line JSON object, with each defined field as a key.
+     * @param csv the row to be written
+     * @param out where to write it
+     * @throws IOException if the destination fails to be written to
+     */
+    public static void appendJSON(CSV csv, Appendable out) throws IOException {
+        out.append('{');
+        boolean first = true;
+        for (String fieldName : csv.definedFields) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append('"').append(fieldName).append("\":");
+            Object value = csv.GetPropertyByName(fieldName);
+            if (value == null) {
+                out.append("null");
+            } else if (value instanceof Number) {
+                out.append(value.toString());
+            } else {
+                appendJSONString(value.toString(), out);
+            }
+        }
+        out.append('}');
+    }
+
+    /**
+     * Writes a string as a quoted JSON string, escaping any characters JSON doesn't allow as-is.
+     */
+    public static void appendJSONString(String value, Appendable out) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append("\\u00");
+                        out.append(Character.forDigit(c >> 4, 16));
+                        out.append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    private static Writer openWriter(Path destination, boolean gzip) throws IOException {
+        OutputStream out = Files.newOutputStream(destination);
+        if (gzip) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+}
@@ -0,0 +1,357 @@
+package uni.S257123.ui.batch;
+
+import org.apache.commons.lang3.tuple.Pair;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.history.ReplayVerification;
+import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.transfer.CsvImporter;
+import uni.S257123.storage.transfer.ExportFilter;
+import uni.S257123.storage.transfer.ExportFormat;
+import uni.S257123.storage.transfer.ImportProgress;
+import uni.S257123.storage.transfer.RecordExporter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A non-interactive interface to the Inventory Management System, for scripting many operations at once. This class
+ * runs a stream of commands against one storage, writing one JSON line of output per command.
+ *
+ * <p>Each line of input is one command, with its arguments separated by spaces. Arguments containing spaces can be
+ * wrapped in double quotes, and blank lines or lines starting with '#' are skipped:</p>
+ * <ul>
+ *     <li>{@code add <description> <unitPrice> <qtyInStock>}</li>
+ *     <li>{@code update <id> <property> <value>}</li>
+ *     <li>{@code delete <id>}</li>
+ *     <li>{@code search <source> <property> <value>}</li>
+ *     <li>{@code find <text> [limit]}, the items whose descriptions best match the text, best first, allowing typos
+ *     (20 unless a limit is given)</li>
+ *     <li>{@code history <id>}</li>
+ *     <li>{@code asof <yyyy-MM-dd> [id]}, the items (or one item) as they were at the end of that day</li>
+ *     <li>{@code verify}, checking that replaying the transactions gives the stored items, which counts as a
+ *     failure if it doesn't</li>
+ *     <li>{@code list <source>}</li>
+ *     <li>{@code import <file>}</li>
+ *     <li>{@code export <source> <file> [csv|jsonl]}</li>
+ * </ul>
+ *
+ * <p>Runs of consecutive adds are saved together with {@link Storage#addRecords(List, String)}, up to the batch size
+ * at a time, rather than with a write per item. Their result is reported once for the whole run, on the line of the
+ * first add. Every other command gets a line such as {@code {"line":4,"command":"search","ok":true,"rows":[...]}},
+ * or {@code "ok":false} with an {@code "error"} if it failed, after which the following commands still run.</p>
+ *
+ * @see uni.S257123.ui.console.ConsoleInterface
+ */
+public class BatchCommandRunner {
+    public static final int DEFAULT_BATCH_SIZE = 1_000;
+
+    private final Storage storage;
+    private final Writer out;
+    private final int batchSize;
+
+    private final List<List<String>> pendingAdds = new ArrayList<>();
+    private long firstPendingAddLine;
+    private long failures = 0;
+
+    /**
+     * @param storage the backend every command is run against
+     * @param out where the results are written, which should be buffered. It is flushed at the end of a run, but not
+     *            closed
+     * @param batchSize how many consecutive adds are saved together
+     */
+    public BatchCommandRunner(Storage storage, Writer out, int batchSize) {
+        this.storage = storage;
+        this.out = out;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Runs every command read from the input, in order.
+     * @param commands the commands, one per line
+     * @return the number of commands that failed
+     * @throws RuntimeException if an IOException occurs while reading the commands or writing the results
+     */
+    public long run(BufferedReader commands) {
+        try {
+            long lineNumber = 0;
+            String line;
+            while ((line = commands.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.strip();
+                if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    run(lineNumber, tokenize(trimmed));
+                }
+            }
+            flushAdds();
+            out.flush();
+            return failures;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs a single command, given as its separate arguments (e.g. straight from the command line).
+     * @return the number of commands that failed, so 0 or 1
+     * @throws RuntimeException if an IOException occurs while writing the result
+     */
+    public long run(List<String> command) {
+        try {
+            run(1, command);
+            flushAdds();
+            out.flush();
+            return failures;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void run(long lineNumber, List<String> command) throws IOException {
+        String name = command.getFirst().toLowerCase();
+        if (!name.equals("add")) {
+            // Everything added so far has to be saved before a later command can see it
+            flushAdds();
+        }
+        try {
+            switch (name) {
+                case "add" -> queueAdd(lineNumber, command);
+                case "update" -> {
+                    requireArguments(command, 3);
+                    storage.updateRecord(command.subList(1, 4));
+                    writeSuccess(lineNumber, name).append('}').append('\n');
+                }
+                case "delete" -> {
+                    requireArguments(command, 1);
+                    storage.deleteRecord(command.get(1));
+                    writeSuccess(lineNumber, name).append('}').append('\n');
+                }
+                case "search" -> {
+                    requireArguments(command, 3);
+                    List<CSV> rows = storage.searchRecord(command.get(1), Pair.of(command.get(2), command.get(3)));
+                    writeSuccess(lineNumber, name).append(",\"rows\":");
+                    writeRows(rows);
+                    out.append("}\n");
+                }
+                case "find" -> {
+                    requireArguments(command, 1);
+                    int limit = command.size() > 2 ? Integer.parseInt(command.get(2)) : 20;
+                    List<CSV> rows = storage.searchDescriptions(command.get(1), limit);
+                    writeSuccess(lineNumber, name).append(",\"rows\":");
+                    writeRows(rows);
+                    out.append("}\n");
+                }
+                case "history" -> {
+                    requireArguments(command, 1);
+                    List<CSV> rows = storage.transactionHistory(command.get(1));
+                    writeSuccess(lineNumber, name).append(",\"rows\":");
+                    writeRows(rows);
+                    out.append("}\n");
+                }
+                case "asof" -> {
+                    requireArguments(command, 1);
+                    LocalDate date = LocalDate.parse(command.get(1));
+                    List<CSV> rows;
+                    if (command.size() > 2) {
+                        CSV item = storage.itemAsOf(command.get(2), date);
+                        rows = item != null ? List.of(item) : List.of();
+                    } else {
+                        rows = storage.itemsAsOf(date);
+                    }
+                    writeSuccess(lineNumber, name).append(",\"rows\":");
+                    writeRows(rows);
+                    out.append("}\n");
+                }
+                case "verify" -> {
+                    ReplayVerification verification = storage.verifyTransactionLog();
+                    if (!verification.matches()) {
+                        failures++;
+                    }
+                    out.append("{\"line\":").append(String.valueOf(lineNumber))
+                            .append(",\"command\":\"verify\",\"ok\":").append(String.valueOf(verification.matches()))
+                            .append(",\"transactions\":").append(String.valueOf(verification.transactionsReplayed()))
+                            .append(",\"items\":").append(String.valueOf(verification.itemsChecked()))
+                            .append(",\"mismatches\":").append(String.valueOf(verification.mismatches()))
+                            .append(",\"examples\":[");
+                    for (int i = 0; i < verification.examples().size(); i++) {
+                        if (i > 0) {
+                            out.append(',');
+                        }
+                        RecordExporter.appendJSONString(verification.examples().get(i), out);
+                    }
+                    out.append("]}\n");
+                }
+                case "list" -> {
+                    requireArguments(command, 1);
+                    list(lineNumber, command.get(1));
+                }
+                case "import" -> {
+                    requireArguments(command, 1);
+                    Path source = Path.of(command.get(1));
+                    Path rejectedReport = source.resolveSibling(source.getFileName() + ".rejected.csv");
+                    ImportProgress result = new CsvImporter(storage).importItems(source, rejectedReport,
+                            progress -> { });
+                    writeSuccess(lineNumber, name).append(",\"imported\":").append(String.valueOf(result.accepted()))
+                            .append(",\"rejected\":").append(String.valueOf(result.rejected())).append("}\n");
+                }
+                case "export" -> {
+                    requireArguments(command, 2);
+                    ExportFormat format = command.size() > 3 && command.get(3).equalsIgnoreCase("jsonl")
+                            ? ExportFormat.JSON_LINES : ExportFormat.CSV;
+                    long rowsWritten = new RecordExporter(storage).export(command.get(1), Path.of(command.get(2)),
+                            format, ExportFilter.ALL, command.get(2).endsWith(".gz"));
+                    writeSuccess(lineNumber, name).append(",\"exported\":").append(String.valueOf(rowsWritten))
+                            .append("}\n");
+                }
+                default -> throw new IllegalArgumentException("unknown command");
+            }
+        } catch (RuntimeException e) {
+            writeFailure(lineNumber, name, e);
+        }
+    }
+
+    private void writeRows(List<CSV> rows) throws IOException {
+        out.append('[');
+        for (int i = 0; i < rows.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            RecordExporter.appendJSON(rows.get(i), out);
+        }
+        out.append(']');
+    }
+
+    /**
+     * Streams every row of the source into the output as it is read, without holding them all in memory.
+     */
+    private void list(long lineNumber, String source) throws IOException {
+        // Checked up front, as a failure once rows have started being written would leave a half written line
+        if (!storage.getSources().contains(source)) {
+            throw new IllegalArgumentException("unknown source " + source);
+        }
+        writeSuccess(lineNumber, "list").append(",\"rows\":[");
+        boolean[] first = {true};
+        try {
+            storage.forEachRecord(source, csv -> {
+                try {
+                    if (!first[0]) {
+                        out.append(',');
+                    }
+                    first[0] = false;
+                    RecordExporter.appendJSON(csv, out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.append("]}\n");
+    }
+
+    /**
+     * Validates an add, then holds onto it until the run of adds ends or the batch is full.
+     */
+    private void queueAdd(long lineNumber, List<String> command) throws IOException {
+        requireArguments(command, 3);
+        String description = command.get(1);
+        double unitPrice;
+        int qtyInStock;
+        try {
+            unitPrice = Double.parseDouble(command.get(2));
+            qtyInStock = Integer.parseInt(command.get(3));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("unitPrice and qtyInStock must be numbers");
+        }
+        // Descriptions are stored as a single column of the text files
+        if (description.isEmpty() || description.contains(",")) {
+            throw new IllegalArgumentException("description must be non-empty and can't contain commas");
+        }
+        if (!(unitPrice >= 0) || Double.isInfinite(unitPrice) || qtyInStock < 0) {
+            throw new IllegalArgumentException("unitPrice and qtyInStock can't be negative");
+        }
+        if (pendingAdds.isEmpty()) {
+            firstPendingAddLine = lineNumber;
+        }
+        pendingAdds.add(Arrays.asList(
+                description,
+                String.valueOf(unitPrice),
+                String.valueOf(qtyInStock),
+                String.valueOf(unitPrice * qtyInStock)));
+        if (pendingAdds.size() >= batchSize) {
+            flushAdds();
+        }
+    }
+
+    private void flushAdds() throws IOException {
+        if (pendingAdds.isEmpty()) {
+            return;
+        }
+        try {
+            storage.addRecords(new ArrayList<>(pendingAdds), "items");
+            writeSuccess(firstPendingAddLine, "add").append(",\"added\":").append(String.valueOf(pendingAdds.size()))
+                    .append("}\n");
+        } catch (RuntimeException e) {
+            writeFailure(firstPendingAddLine, "add", e);
+        } finally {
+            pendingAdds.clear();
+        }
+    }
+
+    private static void requireArguments(List<String> command, int count) {
+        if (command.size() - 1 < count) {
+            throw new IllegalArgumentException("expected " + count + " arguments but found " + (command.size() - 1));
+        }
+    }
+
+    private Writer writeSuccess(long lineNumber, String command) throws IOException {
+        out.append("{\"line\":").append(String.valueOf(lineNumber)).append(",\"command\":");
+        RecordExporter.appendJSONString(command, out);
+        return out.append(",\"ok\":true");
+    }
+
+    private void writeFailure(long lineNumber, String command, RuntimeException e) throws IOException {
+        failures++;
+        out.append("{\"line\":").append(String.valueOf(lineNumber)).append(",\"command\":");
+        RecordExporter.appendJSONString(command, out);
+        out.append(",\"ok\":false,\"error\":");
+        RecordExporter.appendJSONString(String.valueOf(e.getMessage()), out);
+        out.append("}\n");
+    }
+
+    /**
+     * Splits a command into its arguments on spaces, keeping anything inside double quotes together.
+     */
+    static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inToken) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (inToken) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+}
@@ -1,11 +1,22 @@
 package uni.S257123.ui.console;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import uni.S257123.main.InventoryManagementSystem;
 import uni.S257123.models.CSV;
+import uni.S257123.storage.events.StorageChange;
 import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.transfer.ExportFilter;
+import uni.S257123.storage.transfer.ExportFormat;
+import uni.S257123.storage.transfer.ImportProgress;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 
 
@@ -20,7 +31,13 @@ import java.util.*;
  * @see uni.S257123.ui.graphical.GraphicalInterface
  */
 public class ConsoleInterface {
-    
+    /**
+     * Writes tables of records to standard output in large blocks. It is flushed after every table, so that it never
+     * holds back output from the {@code System.out} calls used for everything else.
+     */
+    private final Writer consoleWriter = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), System.out.charset()), 1 << 16);
+
     public void displayMenu() {
         System.out.print("""
             ╔══════════════════════════════════════════════════════════╗
@@ -32,8 +49,10 @@ public class ConsoleInterface {
             ║ 4. REMOVE ITEM                                           ║
             ║ 5. VIEW TRANSACTIONS                                     ║
             ║ 6. VIEW ITEMS IN INVENTORY                               ║
+            ║ 7. IMPORT ITEMS FROM CSV                                 ║
+            ║ 8. EXPORT TO FILE                                        ║
             ╠══════════════════════════════════════════════════════════╣
-            ║ 7. Exit                                                  ║
+            ║ 9. Exit                                                  ║
             ╠══════════════════════════════════════════════════════════╣
             """);
 
@@ -52,7 +71,8 @@ public class ConsoleInterface {
     
     public int menuInputChoice(int optionsQuantity) {
         Scanner input = new Scanner(System.in);
-        System.out.print("║ Enter a choice and Press ENTER to continue [1-7]:        ║");
+        System.out.print("║ " + String.format("%-57s",
+                "Enter a choice and Press ENTER to continue [1-" + optionsQuantity + "]:") + "║");
         int userInput = -1;
         try {
             userInput = input.nextInt();
@@ -63,7 +83,8 @@ public class ConsoleInterface {
 
        while (userInput < 1 || userInput > optionsQuantity) {
            try {
-               System.out.println("║ Please enter a choice between 1 and 7:                   ║");
+               System.out.println("║ " + String.format("%-57s",
+                       "Please enter a choice between 1 and " + optionsQuantity + ":") + "║");
                userInput = input.nextInt();
            } catch (InputMismatchException e) {
                input.next(); // consume the invalid input
@@ -189,12 +210,13 @@ public class ConsoleInterface {
         boolean validID = false;
         String id = "";
         while (!validID){
-            String input = scanner.nextLine();
+            // Leading zeros are ignored, so that "7" matches the ID "00007" whatever width IDs are padded to
+            String input = StringUtils.stripStart(scanner.nextLine().trim(), "0");
             for (CSV csv : csvs) {
                 // if the current csv has an id that matches the input
-                if (csv.id.equals(String.format("%05d", Integer.parseInt(input)))) {
+                if (StringUtils.stripStart(csv.id, "0").equals(input)) {
                     validID = true;
-                    id = String.format("%05d", Integer.parseInt(input));
+                    id = csv.id;
                     break;
                 }
             }
@@ -205,6 +227,118 @@ public class ConsoleInterface {
         return id;
     }
 
+    /**
+     * Prompts the user for the path of a CSV file to import items from, until they enter one that exists.
+     * @return the path of the file to be imported
+     */
+    public Path importFileInput() {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("║ " + String.format("%-57s","Enter the path of the CSV file to import: ") + "║");
+        Path path = Path.of(scanner.nextLine().trim());
+        while (!Files.isRegularFile(path)) {
+            System.out.print("║ " + String.format("%-57s","That file doesn't exist. Please enter a valid path.") + "║");
+            path = Path.of(scanner.nextLine().trim());
+        }
+        return path;
+    }
+
+    /**
+     * Shows how far through an import has got.
+     * @param progress the counts so far
+     */
+    public void displayImportProgress(ImportProgress progress) {
+        System.out.println("║ " + String.format("%-57s", String.format("Read %,d rows, %,d rejected (%,.0f rows/s)",
+                progress.rowsRead(), progress.rejected(), progress.rowsPerSecond())) + "║");
+    }
+
+    /**
+     * Shows the final counts of an import, and where any rejected rows have been reported.
+     * @param result the counts once the import has finished
+     * @param rejectedReport the file the rejected rows were written to
+     */
+    public void displayImportResult(ImportProgress result, Path rejectedReport) {
+        System.out.println("╠══════════════════════════════════════════════════════════╣");
+        System.out.println("║ " + String.format("%-57s", String.format("Imported %,d items in %.1fs",
+                result.accepted(), result.elapsed().toMillis() / 1000.0)) + "║");
+        if (result.rejected() > 0) {
+            System.out.println("║ " + String.format("%-57s",
+                    String.format("%,d rows rejected, see:", result.rejected())) + "║");
+            System.out.println("║ " + String.format("%-57s", rejectedReport) + "║");
+        }
+        System.out.println("╠══════════════════════════════════════════════════════════╣");
+    }
+
+    /**
+     * Prompts the user for the format to export in.
+     * @return the chosen format
+     */
+    public ExportFormat exportFormatInput() {
+        return chooseOption(List.of("csv", "jsonl")).equals("csv") ? ExportFormat.CSV : ExportFormat.JSON_LINES;
+    }
+
+    /**
+     * Prompts the user for the file to export to, until they enter one whose folder exists.
+     * @return the path of the file to be written. Paths ending in ".gz" are to be gzip compressed
+     */
+    public Path exportFileInput() {
+        Scanner scanner = new Scanner(System.in);
+
+        System.out.print("║ " + String.format("%-57s","Enter the file to export to (end in .gz to compress): ") + "║");
+        Path path = Path.of(scanner.nextLine().trim()).toAbsolutePath();
+        while (!Files.isDirectory(path.getParent())) {
+            System.out.print("║ " + String.format("%-57s","That folder doesn't exist. Please enter a valid path.") + "║");
+            path = Path.of(scanner.nextLine().trim()).toAbsolutePath();
+        }
+        return path;
+    }
+
+    /**
+     * Prompts the user for which rows to export. Every part is optional, and left out by entering nothing.
+     * @param askTransactionType whether to ask for a transaction type, as only transactions have one
+     * @return the filter to apply to the export
+     */
+    public ExportFilter exportFilterInput(boolean askTransactionType) {
+        Scanner scanner = new Scanner(System.in);
+        DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+        LocalDate[] range = new LocalDate[2];
+        String[] prompts = {"Export from date (dd/MM/yyyy, blank for any): ", "Export to date (dd/MM/yyyy, blank for any): "};
+        for (int i = 0; i < range.length; i++) {
+            System.out.print("║ " + String.format("%-57s", prompts[i]) + "║");
+            while (range[i] == null) {
+                String input = scanner.nextLine().trim();
+                if (input.isEmpty()) {
+                    break;
+                }
+                try {
+                    range[i] = LocalDate.parse(input, dateFormat);
+                } catch (DateTimeParseException e) {
+                    System.out.print("║ " + String.format("%-57s","Invalid date. Please enter dd/MM/yyyy or nothing.") + "║");
+                }
+            }
+        }
+        String transactionType = null;
+        if (askTransactionType) {
+            System.out.print("║ " + String.format("%-57s","Transaction type (added/updated/deleted, blank for all): ") + "║");
+            String input = scanner.nextLine().trim().toLowerCase();
+            transactionType = input.isEmpty() ? null : input;
+        }
+        return new ExportFilter(range[0], range[1], transactionType);
+    }
+
+    /**
+     * Shows how many rows an export wrote, and where to.
+     * @param rowsWritten the number of rows exported
+     * @param destination the file they were written to
+     */
+    public void displayExportResult(long rowsWritten, Path destination) {
+        System.out.println("╠══════════════════════════════════════════════════════════╣");
+        System.out.println("║ " + String.format("%-57s", String.format("Exported %,d rows to:", rowsWritten)) + "║");
+        System.out.println("║ " + String.format("%-57s", destination) + "║");
+        System.out.println("╠══════════════════════════════════════════════════════════╣");
+    }
+
     /**
      * Prompts the user to view transactions either from today or from all time, and returns their selection.
      * @return A string of either today's date in the format "dd/MM/yyyy" or an empty string "" to represent all time
@@ -263,13 +397,89 @@ public class ConsoleInterface {
     /**
      * Takes in a list of {@link CSV}'s, and displays all of them to the UI
      * @param csvs a list of CSVs that you want to display to the user
+     * @throws RuntimeException if an IOException occurs while writing to the console
      */
     public void displayRecords(List<CSV> csvs) {
-        for (CSV csv: csvs) {
-            System.out.println("╠" + String.format("%-158s","").replace(" ", "═") + "╣");
-            System.out.println("║ " + String.format("%-157s",csv) + "║");
+        RecordRenderer renderer = newRenderer();
+        try {
+            for (CSV csv : csvs) {
+                renderer.render(csv);
+            }
+            renderer.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        System.out.println("╠" + String.format("%-58s","").replace(" ", "═") + "╦"
-                + String.format("%-99s","").replace(" ", "═") + "╝");
     }
-}
\ No newline at end of file
+
+    /**
+     * Displays every row of a datasource, streaming them from the storage rather than reading them all into a list
+     * first.
+     * <p>
+     * If the {@code ims.console.pageSize} system property is set, rows are read a page of that size at a time, and
+     * the user is asked whether to carry on after each page. Otherwise every row is drawn in one go.
+     * </p>
+     * @param storage the storage to read the rows from
+     * @param target the datasource to display, without its file extension
+     * @throws RuntimeException if an IOException occurs while writing to the console
+     */
+    public void displayRecords(Storage storage, String target) {
+        RecordRenderer renderer = newRenderer();
+        int pageSize = Integer.getInteger("ims.console.pageSize", 0);
+        try {
+            if (pageSize <= 0) {
+                try {
+                    storage.forEachRecord(target, csv -> {
+                        try {
+                            renderer.render(csv);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            } else {
+                Scanner scanner = new Scanner(System.in);
+                int offset = 0;
+                List<CSV> page;
+                do {
+                    page = storage.readPage(target, offset, pageSize);
+                    for (CSV csv : page) {
+                        renderer.render(csv);
+                    }
+                    offset += page.size();
+                    if (page.size() == pageSize) {
+                        consoleWriter.flush();
+                        System.out.print("║ " + String.format("%-57s",
+                                "Showing " + offset + " rows. Press ENTER for more, or q to stop:") + "║");
+                        if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                            break;
+                        }
+                    }
+                } while (page.size() == pageSize);
+            }
+            renderer.finish();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private RecordRenderer newRenderer() {
+        // Anything already printed through System.out has to come out before the table
+        System.out.flush();
+        return new RecordRenderer(consoleWriter);
+    }
+
+    /**
+     * Lets the user know that an item has changed, including changes made by other users of the same storage.
+     * @param change the item that has been inserted, updated or deleted
+     */
+    public void displayChange(StorageChange change) {
+        String message = switch (change.type()) {
+            case INSERTED -> "Item " + change.id() + " was added";
+            case UPDATED -> "Item " + change.id() + " was updated";
+            case DELETED -> "Item " + change.id() + " was removed";
+        };
+        System.out.println("║ " + String.format("%-57s", message) + "║");
+    }
+}
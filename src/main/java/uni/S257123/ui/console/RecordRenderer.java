@@ -0,0 +1,66 @@
+package uni.S257123.ui.console;
+
+import uni.S257123.models.CSV;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Draws rows into the console's bordered table, one after another, for {@link ConsoleInterface#displayRecords}.
+ * <p>
+ * The borders are built once rather than for every row, and each row is appended into one reused
+ * {@link StringBuilder} and padded by hand instead of through {@link String#format}, so drawing a row allocates
+ * nothing. Everything goes into the given writer, which should be buffered, so the console is written to in large
+ * blocks rather than once per line.
+ * </p>
+ */
+class RecordRenderer {
+    /**
+     * How many characters fit between the borders of a row
+     */
+    static final int ROW_WIDTH = 157;
+    private static final String ROW_SEPARATOR = "╠" + "═".repeat(ROW_WIDTH + 1) + "╣\n";
+    private static final String TABLE_END = "╠" + "═".repeat(58) + "╦" + "═".repeat(99) + "╝\n";
+    private static final String PADDING = " ".repeat(ROW_WIDTH);
+
+    private final Writer out;
+    private final StringBuilder row = new StringBuilder(ROW_WIDTH + 8);
+    private char[] chars = new char[ROW_WIDTH + 8];
+
+    RecordRenderer(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Draws a row, with a separator above it.
+     * @param csv the row to be drawn, shown the same as {@link CSV#toString()}
+     * @throws IOException if the writer fails to be written to
+     */
+    void render(CSV csv) throws IOException {
+        row.setLength(0);
+        row.append("║ ");
+        csv.appendDisplayString(row);
+        // Rows longer than the table push the right border out, as they did when padded by String.format
+        int padding = ROW_WIDTH + 2 - row.length();
+        if (padding > 0) {
+            row.append(PADDING, 0, padding);
+        }
+        row.append("║\n");
+        if (chars.length < row.length()) {
+            chars = new char[row.length() * 2];
+        }
+        // Copied out by hand, as Writer.append(CharSequence) would turn the builder into a new String
+        row.getChars(0, row.length(), chars, 0);
+        out.write(ROW_SEPARATOR);
+        out.write(chars, 0, row.length());
+    }
+
+    /**
+     * Closes off the bottom of the table, and flushes everything drawn so far.
+     * @throws IOException if the writer fails to be written to
+     */
+    void finish() throws IOException {
+        out.write(TABLE_END);
+        out.flush();
+    }
+}
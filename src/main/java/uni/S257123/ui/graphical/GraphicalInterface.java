@@ -1,6 +1,8 @@
 package uni.S257123.ui.graphical;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -13,14 +15,24 @@ import javafx.scene.input.Clipboard;
 import javafx.scene.input.ClipboardContent;
 import javafx.scene.layout.Pane;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import uni.S257123.models.CSV;
+import uni.S257123.storage.concurrent.StorageExecutor;
+import uni.S257123.storage.events.StorageChange;
+import uni.S257123.storage.events.StorageListener;
 import uni.S257123.storage.interfaces.Storage;
+import uni.S257123.storage.query.Condition;
+import uni.S257123.storage.query.Query;
 import uni.S257123.storage.text.TextStorage;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -31,10 +43,23 @@ import java.util.stream.Collectors;
  * are handled within each method, ensuring that the user is always prompted to enter
  * correct data as necessary (primarily by dynamically providing the user dropdown options).</p>
  *
+ * <p>Storage calls never run on the JavaFX application thread. They are handed to a {@link StorageExecutor}, and
+ * their results are applied back on the application thread once they complete, so the window stays responsive
+ * however slow the backend is.</p>
+ *
  * @see uni.S257123.ui.console.ConsoleInterface
  */
 public class GraphicalInterface extends Application {
-    static Storage storage = new TextStorage();
+    /**
+     * How long typing has to pause for before the search results are updated
+     */
+    private static final Duration LIVE_SEARCH_DELAY = Duration.millis(150);
+    /**
+     * The most results shown while typing. Only the full search from the search button returns every match
+     */
+    private static final int LIVE_SEARCH_LIMIT = 100;
+
+    static Storage storage;
 
     /**
      * Sets the storage that powers the backend of the GUI. If this method doesn't get called,
@@ -66,47 +91,131 @@ public class GraphicalInterface extends Application {
     public ComboBox<String> DeleteIDItemSelection;
     public Button DeleteItemButton;
 
+    private StorageExecutor storageExecutor;
+    private PagedTableLoader itemsLoader;
+    private PagedTableLoader transactionsLoader;
+    private final PauseTransition liveSearchDelay = new PauseTransition(LIVE_SEARCH_DELAY);
+    /**
+     * Goes up with every search and every key typed, so a search that has been overtaken is skipped if it hasn't
+     * started yet, and its results are thrown away if it has
+     */
+    private final AtomicLong searchGeneration = new AtomicLong();
+
     /**
      * Sets up each tab in the GUI. This is the first method to resolve, so any code prior to the application starting
-     * should be run from here. This method sometimes gets re-called as an easy way to ensure all tables have up-to-date
-     * data, and all dropdowns have the correct available options.
+     * should be run from here. This method is only run once, after a change is made only the affected rows and dropdowns
+     * get refreshed (see {@link #applyChange(StorageChange)}).
      *
      * <p>To avoid too many repetitive comments, most of the methods that appear within this have inline comments
      * rather than javadoc style comments</p>
      */
     @FXML
     private void initialize() {
+        // Only created now, so that choosing the database never reads the text files
+        if (storage == null) {
+            storage = new TextStorage();
+        }
+        storageExecutor = new StorageExecutor(storage, StorageExecutor.configuredMaxConcurrent());
         setupSearch();
         setupAddItem();
         setupUpdateItem();
         setupDeleteItem();
-        setupTable("items", ViewItemsTable);
-        setupTable("transactions",  ViewTransactionsTable);
+        itemsLoader = setupTable("items", ViewItemsTable);
+        transactionsLoader = setupTable("transactions",  ViewTransactionsTable);
+        // Changes can be reported from a background thread, so they get applied on the FX thread
+        try {
+            storage.addListener(new StorageListener() {
+                @Override
+                public void onChange(StorageChange change) {
+                    Platform.runLater(() -> applyChange(change));
+                }
+
+                @Override
+                public void onStopped(Exception reason) {
+                    Platform.runLater(() -> showChangesStopped(reason));
+                }
+            });
+        } catch (UnsupportedOperationException e) {
+            showChangesStopped(e);
+        }
+    }
+
+    /**
+     * Warns that the tables will no longer be patched by changes to the storage, so they may fall out of date.
+     */
+    private void showChangesStopped(Exception reason) {
+        showAlert("Changes Not Shown", "Changes to the storage won't appear in the tables: " + reason.getMessage(),
+                Alert.AlertType.WARNING);
     }
+
+    /**
+     * Patches the tables and dropdowns affected by a change to the storage, whether it was made through this window
+     * or by another client of the same storage.
+     * @param change the row that has been inserted, updated or deleted
+     */
+    private void applyChange(StorageChange change) {
+        PagedTableLoader loader = change.target().equals("items") ? itemsLoader : transactionsLoader;
+        switch (change.type()) {
+            case INSERTED -> loader.loadNewRows();
+            case UPDATED -> loader.replaceRow(change.record());
+            case DELETED -> loader.removeRow(change.id());
+        }
+        if (change.target().equals("items") && change.type() != StorageChange.Type.UPDATED) {
+            refreshIDSelections();
+        }
+    }
+
+    /**
+     * Runs a storage call in the background, then hands its result to the callback on the JavaFX application thread.
+     * If the call fails, an error popup is shown instead.
+     * @param call the pending storage call
+     * @param onSuccess what to do with the result, on the application thread
+     */
+    private <T> void whenLoaded(CompletableFuture<T> call, Consumer<T> onSuccess) {
+        call.whenCompleteAsync((result, error) -> {
+            if (error == null) {
+                onSuccess.accept(result);
+            } else {
+                showStorageError(error);
+            }
+        }, Platform::runLater);
+    }
+
+    /**
+     * Shows an error popup for a storage call that failed.
+     * @param error what the call failed with, possibly wrapped in a {@link CompletionException}
+     */
+    private void showStorageError(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        showAlert("Storage Error", String.valueOf(cause.getMessage()), Alert.AlertType.ERROR);
+    }
+
     private void setupDeleteItem() {
-        List<String> ids = storage.getIDs();
-        DeleteIDItemSelection.getItems().setAll(ids);
+        whenLoaded(storageExecutor.submitRead(Storage::getIDs), DeleteIDItemSelection.getItems()::setAll);
         // When option chosen, make button visible
         DeleteIDItemSelection.valueProperty().addListener((observable, oldValue, newValue) -> DeleteItemButton.setVisible(true));
         DeleteItemButton.setOnAction(actionEvent -> deleteItem());
     }
 
     private void deleteItem() {
-        storage.deleteRecord(DeleteIDItemSelection.getValue());
-        showAlert("Delete Successful", "The item has been deleted successfully.", Alert.AlertType.INFORMATION);
-        initialize();
+        String id = DeleteIDItemSelection.getValue();
+        whenLoaded(storageExecutor.submitWrite(storage -> {
+            storage.deleteRecord(id);
+            return id;
+        }), deleted -> showAlert("Delete Successful", "The item has been deleted successfully.",
+                Alert.AlertType.INFORMATION));
     }
 
     private void setupUpdateItem() {
-        List<String> ids = storage.getIDs();
-        UpdateItemIDSelection.getItems().setAll(ids);
+        whenLoaded(storageExecutor.submitRead(Storage::getIDs), UpdateItemIDSelection.getItems()::setAll);
         // When option chosen, make option visible
         UpdateItemIDSelection.valueProperty().addListener((observable, oldValue, newValue) -> UpdateItemPropertySelection.setVisible(true));
         // Add all headers except id and total price, as you shouldn't be able to edit those
-        UpdateItemPropertySelection.getItems().setAll(storage.getHeaders("items").stream()
-                .filter(header -> !header.equals("id"))
-                .filter(header -> !header.equals("totalPrice"))
-                .collect(Collectors.toList()));
+        whenLoaded(storageExecutor.submitRead(storage -> storage.getHeaders("items")),
+                headers -> UpdateItemPropertySelection.getItems().setAll(headers.stream()
+                        .filter(header -> !header.equals("id"))
+                        .filter(header -> !header.equals("totalPrice"))
+                        .collect(Collectors.toList())));
         // When option chosen, make option visible
         UpdateItemPropertySelection.valueProperty().addListener((observable, oldValue, newValue) -> {
             UpdateItemNewValue.setVisible(true);
@@ -118,19 +227,36 @@ public class GraphicalInterface extends Application {
     private void updateItem() {
         List<TextField> textFields = Collections.singletonList(UpdateItemNewValue);
         if (validateTextInputNotEmpty(textFields)) {
-            storage.updateRecord(
-                    List.of(UpdateItemIDSelection.getValue(),
+            List<String> recordInfo = List.of(UpdateItemIDSelection.getValue(),
                     UpdateItemPropertySelection.getValue(),
-                    UpdateItemNewValue.getText()));
-            showAlert("Update Successful", "The item has been updated successfully.", Alert.AlertType.INFORMATION);
+                    UpdateItemNewValue.getText());
+            whenLoaded(storageExecutor.submitWrite(storage -> {
+                storage.updateRecord(recordInfo);
+                return recordInfo;
+            }), updated -> showAlert("Update Successful", "The item has been updated successfully.",
+                    Alert.AlertType.INFORMATION));
         }
-        initialize();
     }
 
-    private void setupTable(String target, TableView<CSV> table) {
-        List<CSV> items = storage.searchRecord(target, Pair.of("id", ""));
-        setupTableColumns(FXCollections.observableArrayList(storage.getHeaders(target)), table);
-        table.setItems(FXCollections.observableArrayList(items));
+    /**
+     * Refreshes the ID dropdowns after an item has been added or removed, keeping the current selections if they
+     * still exist.
+     */
+    private void refreshIDSelections() {
+        whenLoaded(storageExecutor.submitRead(Storage::getIDs), ids -> {
+            UpdateItemIDSelection.getItems().setAll(ids);
+            DeleteIDItemSelection.getItems().setAll(ids);
+        });
+    }
+
+    private PagedTableLoader setupTable(String target, TableView<CSV> table) {
+        PagedTableLoader loader = new PagedTableLoader(storageExecutor, target, table, this::showStorageError);
+        // The first page is only loaded once the columns exist, as building them clears the table
+        whenLoaded(storageExecutor.submitRead(storage -> storage.getHeaders(target)), headers -> {
+            setupTableColumns(FXCollections.observableArrayList(headers), table);
+            loader.loadNextPage();
+        });
+        return loader;
     }
 
     private void setupAddItem() {
@@ -143,26 +269,94 @@ public class GraphicalInterface extends Application {
         SearchSourcesSelector.valueProperty().addListener((observable, oldValue, newValue) -> {
             SearchHeadersSelector.setValue(null);
             SearchSubmitButton.setVisible(false);
-            SearchHeadersSelector.getItems().setAll(storage.getHeaders(newValue));
-            SearchHeadersSelector.setVisible(true);
+            whenLoaded(storageExecutor.submitRead(storage -> storage.getHeaders(newValue)), headers -> {
+                SearchHeadersSelector.getItems().setAll(headers);
+                SearchHeadersSelector.setVisible(true);
+            });
         });
         // When option chosen, make option visible
         SearchHeadersSelector.valueProperty().addListener((observable, oldValue, newValue) -> {
             SearchPropertyText.setVisible(true);
             SearchSubmitButton.setVisible(true);
+            // Anything already typed is searched for again in the newly chosen field
+            searchGeneration.incrementAndGet();
+            liveSearchDelay.playFromStart();
         });
         SearchSubmitButton.setOnAction(actionEvent -> searchRecord());
         SearchResultFinishButton.setOnAction(actionEvent -> SearchResultPane.setVisible(false));
+        // Searches as the user types, once they pause, rather than on every key
+        liveSearchDelay.setOnFinished(actionEvent -> liveSearch());
+        SearchPropertyText.textProperty().addListener((observable, oldValue, newValue) -> {
+            searchGeneration.incrementAndGet();
+            liveSearchDelay.playFromStart();
+        });
     }
 
     private void searchRecord() {
-        List<CSV> matchingRows = storage.searchRecord(SearchSourcesSelector.getValue(),
-                Pair.of(SearchHeadersSelector.getValue(), SearchPropertyText.getText()));
+        String source = SearchSourcesSelector.getValue();
+        Pair<String, String> propertyNameValuePair = Pair.of(SearchHeadersSelector.getValue(),
+                SearchPropertyText.getText());
+        long generation = searchGeneration.incrementAndGet();
+        liveSearchDelay.stop();
+        SearchSubmitButton.setDisable(true);
+        whenLoaded(storageExecutor.submitRead(storage -> storage.searchRecord(source, propertyNameValuePair))
+                .whenComplete((rows, error) -> Platform.runLater(() -> SearchSubmitButton.setDisable(false))),
+                rows -> showSearchResults(generation, rows));
+    }
 
-        setupTableColumns(SearchHeadersSelector.getItems(), SearchResultTable);
+    /**
+     * Updates the results with the first matches for what has been typed so far. Descriptions of items are searched
+     * word by word through {@link Storage#searchDescriptions(String, int)}, best match first, and every other field
+     * by how it starts, which the text storage answers from a sorted index of the field.
+     */
+    private void liveSearch() {
+        String source = SearchSourcesSelector.getValue();
+        String property = SearchHeadersSelector.getValue();
+        String text = SearchPropertyText.getText();
+        if (source == null || property == null || text == null || text.isBlank()) {
+            return;
+        }
+        long generation = searchGeneration.incrementAndGet();
+        whenLoaded(storageExecutor.submitRead(storage -> {
+            if (generation != searchGeneration.get()) {
+                return null;
+            }
+            if (source.equals("items") && property.equals("description")) {
+                return storage.searchDescriptions(text, LIVE_SEARCH_LIMIT);
+            }
+            return storage.query(Query.where(source, Condition.startsWith(property, text))
+                    .limitedTo(LIVE_SEARCH_LIMIT));
+        }), rows -> showSearchResults(generation, rows));
+    }
+
+    /**
+     * Shows the results of a search, unless another search has been started since.
+     * @param generation the {@link #searchGeneration} the search was started at
+     */
+    private void showSearchResults(long generation, List<CSV> matchingRows) {
+        if (matchingRows == null || generation != searchGeneration.get()) {
+            return;
+        }
+        // The columns only need rebuilding if a different datasource has been searched since last time
+        List<String> currentHeaders = SearchResultTable.getColumns().stream().map(TableColumnBase::getText).toList();
+        if (!currentHeaders.equals(SearchHeadersSelector.getItems())) {
+            setupTableColumns(SearchHeadersSelector.getItems(), SearchResultTable);
+        }
 
         SearchResultPane.setVisible(true);
-        SearchResultTable.setItems(FXCollections.observableArrayList(matchingRows));
+        // Only the rows that differ are replaced, so rows still in the results aren't redrawn as each key is typed
+        ObservableList<CSV> shown = SearchResultTable.getItems();
+        int common = Math.min(shown.size(), matchingRows.size());
+        for (int i = 0; i < common; i++) {
+            if (shown.get(i) != matchingRows.get(i)) {
+                shown.set(i, matchingRows.get(i));
+            }
+        }
+        if (shown.size() > matchingRows.size()) {
+            shown.remove(matchingRows.size(), shown.size());
+        } else {
+            shown.addAll(matchingRows.subList(common, matchingRows.size()));
+        }
     }
 
     /**
@@ -170,10 +364,14 @@ public class GraphicalInterface extends Application {
      * to clipboard from. Given the custom CSV classed being used, this method overrides the traditional javabeans
      * style of getting properties from objects with a custom CellValueFactory that uses the
      * {@link CSV#GetPropertyByName(String)}.
+     * <p>
+     * A single context menu is shared by the whole table, and copies whichever cell currently has focus, rather than
+     * every cell creating its own menu.
+     * </p>
      * @param headers the list of headers that should be turned into column headers
      * @param table the table that these columns should be added to once created
      */
-    private void setupTableColumns(ObservableList<String> headers, TableView<CSV> table) {
+    private void setupTableColumns(List<String> headers, TableView<CSV> table) {
         table.getItems().clear();
         table.getColumns().clear();
         for (String propertyName : headers) {
@@ -183,40 +381,48 @@ public class GraphicalInterface extends Application {
                 Object value = csv.GetPropertyByName(propertyName);
                 return new ReadOnlyObjectWrapper<>(value != null ? value.toString() : "");
             });
-            column.setCellFactory(tc -> {
-                TableCell<CSV, String> cell = new TableCell<>();
-                ContextMenu contextMenu = new ContextMenu();
-                MenuItem copyMenuItem = new MenuItem("Copy");
-                contextMenu.getItems().add(copyMenuItem);
-
-                copyMenuItem.setOnAction(e -> {
-                    if (!cell.isEmpty()) {
-                        Clipboard clipboard = Clipboard.getSystemClipboard();
-                        ClipboardContent content = new ClipboardContent();
-                        content.putString(cell.getItem());
-                        clipboard.setContent(content);
-                    }
-                });
-
-                cell.textProperty().bind(cell.itemProperty());
-                cell.emptyProperty().addListener((obs, wasEmpty, isNowEmpty) -> {
-                    if (isNowEmpty) {
-                        cell.setContextMenu(null);
-                    } else {
-                        cell.setContextMenu(contextMenu);
-                    }
-                });
-                return cell;
-            });
             table.getColumns().add(column);
         }
+        if (table.getContextMenu() == null) {
+            table.getSelectionModel().setCellSelectionEnabled(true);
+            table.setContextMenu(createCopyContextMenu(table));
+        }
+    }
+
+    private ContextMenu createCopyContextMenu(TableView<CSV> table) {
+        ContextMenu contextMenu = new ContextMenu();
+        MenuItem copyMenuItem = new MenuItem("Copy");
+        contextMenu.getItems().add(copyMenuItem);
+
+        // Only allow copying when the focus is on a cell that actually holds a row
+        contextMenu.setOnShowing(e -> {
+            int row = table.getFocusModel().getFocusedIndex();
+            copyMenuItem.setDisable(focusedColumn(table) == null || row < 0 || row >= table.getItems().size());
+        });
+        copyMenuItem.setOnAction(e -> {
+            Object value = focusedColumn(table).getCellData(table.getFocusModel().getFocusedIndex());
+            Clipboard clipboard = Clipboard.getSystemClipboard();
+            ClipboardContent content = new ClipboardContent();
+            content.putString(value != null ? value.toString() : "");
+            clipboard.setContent(content);
+        });
+        return contextMenu;
+    }
+
+    /**
+     * @return the column of the focused cell, or null if no cell is focused
+     */
+    private static TableColumn<CSV, ?> focusedColumn(TableView<CSV> table) {
+        // The focus model hands back a raw TablePosition, so only its column number is used
+        TablePosition<?, ?> focusedCell = table.getFocusModel().getFocusedCell();
+        int column = focusedCell != null ? focusedCell.getColumn() : -1;
+        return column >= 0 ? table.getVisibleLeafColumn(column) : null;
     }
 
     private void handleAddItemSubmitButton() {
         List<TextField> textFields = Arrays.asList(AddItemDescription, AddItemUnitPrice, AddItemQuantity);
         if (validateTextInputNotEmpty(textFields) && validateAddItemInput()) {
             processAddItemInput();
-            showAlert("Submission Successful", "The item has been added successfully.", Alert.AlertType.INFORMATION);
         }
     }
 
@@ -252,8 +458,9 @@ public class GraphicalInterface extends Application {
         ));
         String totalPrice = String.valueOf(Double.parseDouble(AddItemUnitPrice.getText()) * Double.parseDouble(AddItemQuantity.getText()));
         textFields.add(totalPrice);
-        storage.addRecord(textFields,"items");
-        initialize();
+        whenLoaded(storageExecutor.submitWrite(storage -> storage.addRecord(textFields, "items")),
+                added -> showAlert("Submission Successful", "The item has been added successfully.",
+                        Alert.AlertType.INFORMATION));
     }
 
     public void start(Stage primaryStage) {
@@ -0,0 +1,129 @@
+package uni.S257123.ui.graphical;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.control.TableView;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.concurrent.StorageExecutor;
+import uni.S257123.storage.interfaces.Storage;
+
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Pages the rows of a datasource into a {@link TableView} as the user scrolls, instead of loading every row up front.
+ * <p>
+ * Each page is read from {@link Storage#readPage(String, int, int)} on a virtual thread of the
+ * {@link StorageExecutor}, and appended to the table back on the JavaFX application thread once it completes. The {@link TableView} already virtualises its cells, so only the rows that have been
+ * scrolled to ever need to be held by the table.
+ * </p>
+ * <p>All methods in this class must be called from the JavaFX application thread.</p>
+ */
+class PagedTableLoader {
+    private static final int PAGE_SIZE = 500;
+    // How far down the scrollbar (0 to 1) the user has to scroll before the next page is requested
+    private static final double PREFETCH_THRESHOLD = 0.9;
+
+    private final StorageExecutor storageExecutor;
+    private final String target;
+    private final TableView<CSV> table;
+    private final Consumer<Throwable> onError;
+    // The number of rows from the datasource that have been appended to the table so far
+    private int loadedRows = 0;
+    private boolean loading = false;
+    private boolean exhausted = false;
+
+    /**
+     * @param onError shown the error if a page fails to load, on the JavaFX application thread. The page is tried
+     *                again when new rows arrive, rather than every time the table is scrolled
+     */
+    PagedTableLoader(StorageExecutor storageExecutor, String target, TableView<CSV> table,
+                     Consumer<Throwable> onError) {
+        this.storageExecutor = storageExecutor;
+        this.target = target;
+        this.table = table;
+        this.onError = onError;
+        // The scrollbar only exists once the table's skin has been created, so wait for that before listening to it
+        table.skinProperty().addListener((observable, oldSkin, newSkin) -> listenToScrollBar());
+    }
+
+    /**
+     * Requests the next page of rows, unless one is already loading or the datasource has no more rows.
+     */
+    void loadNextPage() {
+        if (loading || exhausted) {
+            return;
+        }
+        loadFrom(loadedRows);
+    }
+
+    /**
+     * Picks up any rows that have been added to the end of the datasource since the last page was read. Only needed
+     * once the table has reached the end, as otherwise the new rows will arrive with a later page anyway.
+     */
+    void loadNewRows() {
+        if (exhausted && !loading) {
+            exhausted = false;
+            loadFrom(loadedRows);
+        }
+    }
+
+    /**
+     * Replaces the row in the table that has the same id as the changed row, if that row has been loaded.
+     * @param changedRow the new values of the row
+     */
+    void replaceRow(CSV changedRow) {
+        ObservableList<CSV> rows = table.getItems();
+        for (int i = 0; i < rows.size(); i++) {
+            if (Objects.equals(rows.get(i).id, changedRow.id)) {
+                rows.set(i, changedRow);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the row with the given id from the table, if it has been loaded. The datasource is one row shorter
+     * afterwards, so the next page starts one row earlier.
+     * @param id the id of the row that has been removed from the datasource
+     */
+    void removeRow(String id) {
+        if (table.getItems().removeIf(csv -> Objects.equals(csv.id, id))) {
+            loadedRows--;
+        }
+    }
+
+    private void loadFrom(int offset) {
+        loading = true;
+        storageExecutor.submitRead(storage -> storage.readPage(target, offset, PAGE_SIZE))
+                .whenCompleteAsync((page, error) -> {
+                    loading = false;
+                    if (error != null) {
+                        exhausted = true;
+                        onError.accept(error);
+                    } else if (offset != loadedRows) {
+                        // A row was removed while the page was loading, so the page starts at the wrong row
+                        loadFrom(loadedRows);
+                    } else {
+                        table.getItems().addAll(page);
+                        loadedRows = offset + page.size();
+                        exhausted = page.size() < PAGE_SIZE;
+                    }
+                }, Platform::runLater);
+    }
+
+    private void listenToScrollBar() {
+        for (Node node : table.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar scrollBar && scrollBar.getOrientation() == Orientation.VERTICAL) {
+                scrollBar.valueProperty().addListener((observable, oldValue, newValue) -> {
+                    if (newValue.doubleValue() >= scrollBar.getMax() * PREFETCH_THRESHOLD) {
+                        loadNextPage();
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package uni.S257123.storage.hybrid;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.testcontainers.containers.MongoDBContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import uni.S257123.models.CSV;
+import uni.S257123.storage.database.DatabaseStorage;
+import uni.S257123.storage.interfaces.Storage;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Syncs a replica with a real mongod, started as a single node replica set in a container, as the sync follows the
+ * database's change streams. Skipped where Docker isn't available.
+ * <p>
+ * Each test gets a database of its own on the shared mongod and a new replica folder, and syncs by calling
+ * {@link HybridStorage#syncNow()} rather than starting the background sync, so it knows when each round has run.
+ * </p>
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class HybridStorageTest {
+    @Container
+    private static final MongoDBContainer MONGO = new MongoDBContainer("mongo:7.0");
+    private static int databases = 0;
+
+    @TempDir
+    Path folder;
+    private DatabaseStorage remote;
+
+    @BeforeEach
+    void connect() {
+        remote = new DatabaseStorage(MONGO.getReplicaSetUrl(), "hybrid" + databases++);
+    }
+
+    @Test
+    void pushesWritesMadeToTheReplica() {
+        HybridStorage hybrid = new HybridStorage(folder, remote);
+        assertTrue(hybrid.syncNow());
+        hybrid.addRecord(List.of("Bolt", "0.5", "10", "5.0"), "items");
+        String id = find(hybrid, "Bolt").id;
+        hybrid.updateRecord(List.of(id, "qtyInStock", "20"));
+        assertEquals(2, hybrid.pendingWrites());
+
+        assertTrue(hybrid.syncNow());
+        assertEquals(0, hybrid.pendingWrites());
+        assertEquals(20, find(remote, "Bolt").qtyInStock);
+        assertEquals(2, remote.transactionHistory(id).size());
+        // The transactions pushed come back through the change stream, and mustn't be added to the replica again
+        assertTrue(hybrid.syncNow());
+        assertEquals(2, hybrid.transactionHistory(id).size());
+        assertTrue(hybrid.verifyTransactionLog().matches());
+    }
+
+    @Test
+    void pullsChangesMadeInTheDatabase() {
+        HybridStorage hybrid = new HybridStorage(folder, remote);
+        assertTrue(hybrid.syncNow());
+        remote.addRecord(List.of("Nut", "0.2", "100", "20.0"), "items");
+        String id = find(remote, "Nut").id;
+        remote.updateRecord(List.of(id, "unitPrice", "0.25"));
+
+        assertTrue(hybrid.syncNow());
+        CSV pulled = find(hybrid, "Nut");
+        assertEquals(id, pulled.id);
+        assertEquals(0.25, pulled.unitPrice);
+        assertEquals(2, hybrid.transactionHistory(id).size());
+        assertTrue(hybrid.verifyTransactionLog().matches());
+
+        remote.deleteRecord(id);
+        assertTrue(hybrid.syncNow());
+        assertTrue(hybrid.searchRecord("items", Pair.of("description", "Nut")).isEmpty());
+        assertTrue(hybrid.verifyTransactionLog().matches());
+    }
+
+    @Test
+    void keepsTheDatabasesChangeWhenBothChangeAnItem() {
+        HybridStorage hybrid = new HybridStorage(folder, remote);
+        assertTrue(hybrid.syncNow());
+        hybrid.addRecord(List.of("Washer", "0.1", "50", "5.0"), "items");
+        String id = find(hybrid, "Washer").id;
+        assertTrue(hybrid.syncNow());
+
+        // Changed in the database after the replica last fetched it, then offline before the replica syncs again
+        remote.updateRecord(List.of(id, "qtyInStock", "40"));
+        hybrid.updateRecord(List.of(id, "qtyInStock", "5"));
+        assertTrue(hybrid.syncNow());
+
+        assertEquals(1, hybrid.conflicts().size());
+        assertEquals(id, hybrid.conflicts().getFirst().id());
+        assertEquals(0, hybrid.pendingWrites());
+        assertEquals(40, find(remote, "Washer").qtyInStock);
+        assertEquals(40, find(hybrid, "Washer").qtyInStock);
+        // The dropped write's transaction is taken back out, so the replica's history is the database's
+        assertEquals(2, remote.transactionHistory(id).size());
+        List<CSV> history = hybrid.transactionHistory(id);
+        assertEquals(2, history.size());
+        assertEquals(40, history.getLast().stockRemaining);
+        assertTrue(hybrid.verifyTransactionLog().matches());
+    }
+
+    @Test
+    void carriesOnAfterARestart() {
+        HybridStorage hybrid = new HybridStorage(folder, remote);
+        assertTrue(hybrid.syncNow());
+        hybrid.addRecord(List.of("Hinge", "2.0", "4", "8.0"), "items");
+        String queuedID = find(hybrid, "Hinge").id;
+        remote.addRecord(List.of("Latch", "3.0", "6", "18.0"), "items");
+
+        // Closed with a write still queued, and a change in the database not yet pulled
+        HybridStorage restarted = new HybridStorage(folder, remote);
+        assertEquals(1, restarted.pendingWrites());
+        assertTrue(restarted.syncNow());
+        assertEquals(0, restarted.pendingWrites());
+        assertEquals(queuedID, find(remote, "Hinge").id);
+        assertEquals(6, find(restarted, "Latch").qtyInStock);
+        assertEquals(1, restarted.transactionHistory(queuedID).size());
+        assertTrue(restarted.verifyTransactionLog().matches());
+    }
+
+    @Test
+    void copiesTheDatabaseAgainOnceItsHistoryIsLost() throws IOException {
+        HybridStorage hybrid = new HybridStorage(folder, remote);
+        assertTrue(hybrid.syncNow());
+        remote.addRecord(List.of("Spring", "0.3", "30", "9.0"), "items");
+        forgetHistory(folder.resolve("sync.properties"));
+
+        HybridStorage restarted = new HybridStorage(folder, remote);
+        // The first round finds the changes after the saved token are gone, the next copies the database again
+        assertTrue(restarted.syncNow());
+        assertTrue(restarted.syncNow());
+        assertEquals(30, find(restarted, "Spring").qtyInStock);
+        assertTrue(restarted.verifyTransactionLog().matches());
+
+        remote.addRecord(List.of("Clip", "0.1", "70", "7.0"), "items");
+        assertTrue(restarted.syncNow());
+        assertEquals(70, find(restarted, "Clip").qtyInStock);
+    }
+
+    @Test
+    void stopsAddingItemsOfflineOnceTheReservedIdsAreUsed() throws IOException {
+        Files.createDirectories(folder);
+        Files.writeString(folder.resolve("ids.pool"), "100,103\n", StandardCharsets.UTF_8);
+        DatabaseStorage unreachable = new DatabaseStorage("mongodb://127.0.0.1:1/?serverSelectionTimeoutMS=200",
+                "unreachable");
+        HybridStorage offline = new HybridStorage(folder, unreachable);
+        assertFalse(offline.syncNow());
+        for (int i = 0; i < 3; i++) {
+            offline.addRecord(List.of("Rivet " + i, "0.05", "200", "10.0"), "items");
+        }
+        assertThrows(IllegalStateException.class,
+                () -> offline.addRecord(List.of("Rivet 3", "0.05", "200", "10.0"), "items"));
+        assertEquals(3, offline.pendingWrites());
+
+        // Reconnecting sends the items made offline, and reserves more ids above them
+        HybridStorage online = new HybridStorage(folder, remote);
+        assertTrue(online.syncNow());
+        assertEquals(0, online.pendingWrites());
+        assertEquals("00100", find(remote, "Rivet 0").id);
+        assertEquals("00102", find(remote, "Rivet 2").id);
+        online.addRecord(List.of("Rivet 3", "0.05", "200", "10.0"), "items");
+        assertTrue(Long.parseLong(find(online, "Rivet 3").id) > 102);
+        assertTrue(online.syncNow());
+        assertEquals(4, remote.searchRecord("items", Pair.of("description", "Rivet")).size());
+    }
+
+    private static CSV find(Storage storage, String description) {
+        List<CSV> found = storage.searchRecord("items", Pair.of("description", description));
+        assertEquals(1, found.size(), () -> "Items matching " + description + ": " + found);
+        return found.getFirst();
+    }
+
+    /**
+     * Moves the saved resume tokens back to the first second of 1970, before anything the database still has a
+     * record of, as happens when the replica is offline for longer than the oplog covers.
+     * <p>
+     * A resume token's data is hex, starting with 82 (a timestamp) and then the 8 bytes of the cluster time.
+     * </p>
+     */
+    private static void forgetHistory(Path stateFile) throws IOException {
+        Properties state = new Properties();
+        try (Reader reader = Files.newBufferedReader(stateFile, StandardCharsets.UTF_8)) {
+            state.load(reader);
+        }
+        for (String key : state.stringPropertyNames()) {
+            String token = state.getProperty(key);
+            int data = token.indexOf("\"82") + 3;
+            state.setProperty(key, token.substring(0, data) + "0000000100000001" + token.substring(data + 16));
+        }
+        try (Writer writer = Files.newBufferedWriter(stateFile, StandardCharsets.UTF_8)) {
+            state.store(writer, null);
+        }
+    }
+}